@@ -0,0 +1,80 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading every row of a sheet through one {@link RowCursor} against making a new {@link RowWrapper} for each
+ * row. Each cell is read as text and then as a number, the way the frequency and allele importers read them.
+ *
+ * @author Ryan Whaley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RowCursorBenchmark {
+  private static final int COLUMNS = 8;
+
+  @Param({"1000", "10000"})
+  public int rows;
+
+  private WorkbookWrapper m_workbook;
+
+  @Setup
+  public void setUp() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+      Sheet sheet = workbook.createSheet("CYP2D6");
+      for (int i = 0; i < rows; i++) {
+        Row row = sheet.createRow(i);
+        for (int j = 0; j < COLUMNS; j++) {
+          if (j % 2 == 0) {
+            row.createCell(j).setCellValue("*" + (i % 150) + " Normal function");
+          } else {
+            row.createCell(j).setCellValue((i % 100) / 100d);
+          }
+        }
+      }
+      workbook.write(out);
+    }
+    m_workbook = new WorkbookWrapper(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    m_workbook.close();
+  }
+
+  @Benchmark
+  public void rowWrapper(Blackhole blackhole) {
+    for (int i = 0; i < rows; i++) {
+      readRow(m_workbook.getRow(i), blackhole);
+    }
+  }
+
+  @Benchmark
+  public void rowCursor(Blackhole blackhole) {
+    RowCursor cursor = m_workbook.cursor();
+    for (int i = 0; cursor.moveTo(i); i++) {
+      readRow(cursor, blackhole);
+    }
+  }
+
+  private static void readRow(RowWrapper row, Blackhole blackhole) {
+    for (int j = 0; j < COLUMNS; j++) {
+      blackhole.consume(row.getNullableText(j));
+      blackhole.consume(row.getNullableDouble(j));
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.cpicpgx.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares cleaning up cell text with {@link TextNormalizer} against the <code>replaceAll</code> calls importers made
+ * before, which compile a new pattern on every call.
+ *
+ * @author Ryan Whaley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextNormalizerBenchmark {
+  private static final String GENE = "CYP2D6";
+  private static final String[] TEXTS = new String[]{
+      "CYP2D6 Poor Metabolizer",
+      "CYP2D6  Normal\tMetabolizer",
+      "Intermediate Metabolizer",
+      "CYP2D6 Ultrarapid  Metabolizer ",
+      " Normal function ",
+      "Decreased function",
+      "CYP2D6 Indeterminate",
+      "No function",
+  };
+
+  @Benchmark
+  public void regex(Blackhole blackhole) {
+    for (String text : TEXTS) {
+      blackhole.consume(text.replaceAll(GENE + "\\s*", ""));
+      blackhole.consume(text.replaceAll(GENE + "\\s+", ""));
+      blackhole.consume(text.replaceAll("\\s+", " "));
+      blackhole.consume(StringUtils.stripToNull(text.replaceAll("(^\\h*)|(\\h*$)", "")));
+    }
+  }
+
+  @Benchmark
+  public void normalizer(Blackhole blackhole) {
+    for (String text : TEXTS) {
+      blackhole.consume(TextNormalizer.removeGene(text, GENE, false));
+      blackhole.consume(TextNormalizer.removeGene(text, GENE, true));
+      blackhole.consume(TextNormalizer.collapseWhitespace(text));
+      blackhole.consume(TextNormalizer.trim(text));
+    }
+  }
+}
@@ -1,6 +1,10 @@
 package org.cpicpgx;
 
 import org.apache.commons.cli.*;
+import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.ConnectionPool;
+import org.cpicpgx.db.ReferenceData;
+import org.cpicpgx.db.StagingSchema;
 import org.cpicpgx.importer.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,29 +13,37 @@ import java.lang.invoke.MethodHandles;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 /**
  * An import task for getting all information from excel workbooks in the proper order and then inserting it into the 
- * database.
+ * database. Importers that don't depend on each other are run at the same time, see {@link ImportScheduler}.
  *
  * @author Ryan Whaley
  */
 public class DataImport {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final int DEFAULT_THREADS = 4;
 
   private final Path m_directory;
+  private final int m_threads;
+  private final int m_fileWorkers;
+  private final boolean m_staging;
+  private final boolean m_incremental;
 
   public static void main(String[] args) {
     try {
       Options options = new Options();
       options.addOption("d", true,"directory that has sub-folders with excel data files (*.xlsx)");
+      options.addOption("t", true,"max number of importers to run at the same time (default " + DEFAULT_THREADS + ")");
+      options.addOption("w", true,"max number of files each importer processes at the same time (default 1)");
+      options.addOption("s", false,"load into a staging schema and swap it in for the live schema when done");
+      options.addOption("i", false,"only reload data from files that changed since the last import");
       CommandLineParser clParser = new DefaultParser();
       CommandLine cli = clParser.parse(options, args);
 
-      DataImport processor = new DataImport(cli.getOptionValue("d"));
+      int threads = Integer.parseInt(cli.getOptionValue("t", String.valueOf(DEFAULT_THREADS)));
+      int fileWorkers = Integer.parseInt(cli.getOptionValue("w", "1"));
+      DataImport processor = new DataImport(cli.getOptionValue("d"), threads, fileWorkers, cli.hasOption("s"), cli.hasOption("i"));
       processor.execute();
     } catch (ParseException e) {
       sf_logger.error("Couldn't parse command", e);
@@ -41,10 +53,14 @@ public class DataImport {
     }
   }
 
-  private DataImport(String directory) {
+  private DataImport(String directory, int threads, int fileWorkers, boolean staging, boolean incremental) {
     if (directory == null) {
       throw new IllegalArgumentException("No directory given");
     }
+    if (staging && incremental) {
+      // a staging schema starts out empty so there's nothing to increment from
+      throw new IllegalArgumentException("Can't do an incremental import into a staging schema");
+    }
     Path directoryPath = Paths.get(directory);
     if (!directoryPath.toFile().exists()) {
       throw new IllegalArgumentException("Directory doesn't exist " + directoryPath);
@@ -56,35 +72,69 @@ public class DataImport {
       throw new IllegalArgumentException("Directory is empty " + directoryPath);
     }
 
+    if (threads < 1 || fileWorkers < 1) {
+      throw new IllegalArgumentException("Need at least 1 thread and 1 file worker, got " + threads + " and " + fileWorkers);
+    }
+    // every file worker of every importer running at once can hold a connection for its transaction
+    ConnectionFactory.checkPoolSize(threads * fileWorkers);
+
     m_directory = directoryPath;
+    m_threads = threads;
+    m_fileWorkers = fileWorkers;
+    m_staging = staging;
+    m_incremental = incremental;
   }
 
   private void execute() throws SQLException {
+    if (!m_staging) {
+      load();
+      return;
+    }
+
+    // readers keep using the live schema until the staging schema is loaded, checked and swapped in
+    StagingSchema staging = new StagingSchema();
+    staging.create();
+    try {
+      load();
+    } catch (SQLException | RuntimeException ex) {
+      staging.abandon();
+      throw ex;
+    }
+    staging.swap();
+  }
+
+  private void load() throws SQLException {
+
+    // importers declare what they depend on, the scheduler works out the order and what can run at the same time
+    ImportScheduler scheduler = new ImportScheduler(m_threads);
+    scheduler.add(new GeneReferenceImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new DrugImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new PairImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new AlleleDirectoryProcessor().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new PharmVarImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new FunctionReferenceImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new AlleleFrequencyImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new GenePhenotypeImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new GeneCdsImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new RecommendationImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
+    scheduler.add(new TestAlertImporter().setDirectory(m_directory, null).setFileWorkers(m_fileWorkers));
 
-    // order is important in this list, later importers may add data to previously imported data
-    List<BaseDirectoryImporter> importers = new ArrayList<>();
-    importers.add(new GeneReferenceImporter().setDirectory(m_directory, null));
-    importers.add(new DrugImporter().setDirectory(m_directory, null));
-    importers.add(new PairImporter().setDirectory(m_directory, null));
-    importers.add(new AlleleDirectoryProcessor().setDirectory(m_directory, null));
-    importers.add(new PharmVarImporter().setDirectory(m_directory, null));
-    importers.add(new FunctionReferenceImporter().setDirectory(m_directory, null));
-    importers.add(new AlleleFrequencyImporter().setDirectory(m_directory, null));
-    importers.add(new GenePhenotypeImporter().setDirectory(m_directory, null));
-    importers.add(new GeneCdsImporter().setDirectory(m_directory, null));
-    importers.add(new RecommendationImporter().setDirectory(m_directory, null));
-    importers.add(new TestAlertImporter().setDirectory(m_directory, null));
-    
-    // reverse the importers before clearing data due to referential integrity
-    Collections.reverse(importers);
-    for (BaseDirectoryImporter importer : importers) {
-      importer.clearAllData();
+    if (m_incremental) {
+      // unchanged files are skipped, only the data for the genes or drugs in changed files is cleared and reloaded
+      ReferenceData.preload();
+      scheduler.executeIncremental();
+    } else {
+      // data is cleared in reverse dependency order due to referential integrity, in a staging schema this only clears
+      // the seed rows the migrations added
+      scheduler.clearAllData();
+      // read the reference data once up front instead of having the first workers of each importer wait on it
+      ReferenceData.preload();
+      scheduler.execute();
     }
 
-    // reverse again to put them in the "right" order for loading
-    Collections.reverse(importers);
-    for (BaseDirectoryImporter importer : importers) {
-      importer.execute();
+    ConnectionPool.Stats poolStats = ConnectionFactory.getPoolStats();
+    if (poolStats != null) {
+      sf_logger.info("Connection pool: {}", poolStats);
     }
   }
 }
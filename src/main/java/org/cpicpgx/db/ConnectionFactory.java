@@ -1,6 +1,8 @@
 package org.cpicpgx.db;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,6 +10,8 @@ import java.lang.invoke.MethodHandles;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
 
 /**
  * This class is a factory for creating new {@link Connection} objects for the Postgres database.
@@ -16,25 +20,147 @@ import java.sql.SQLException;
  */
 public class ConnectionFactory {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-  private static final String sf_dbUrl = "jdbc:postgresql://%s/%s?currentSchema=%s";
+  // reWriteBatchedInserts lets the driver send a batch of inserts as multi-row inserts
+  private static final String sf_dbUrl = "jdbc:postgresql://%s/%s?currentSchema=%s&reWriteBatchedInserts=true";
   private static final String sf_host = MoreObjects.firstNonNull(System.getenv("CPIC_HOST"), "localhost");
   private static final String sf_user = MoreObjects.firstNonNull(System.getenv("CPIC_USER"), "cpic");
   private static final String sf_pass = MoreObjects.firstNonNull(System.getenv("CPIC_PASS"), "");
   private static final String sf_db = MoreObjects.firstNonNull(System.getenv("CPIC_DB"), "cpic");
   private static final String sf_schema = MoreObjects.firstNonNull(System.getenv("CPIC_SCHEMA"), "cpic");
+  // the schema new connections use, this is only different from sf_schema while loading a staging schema
+  private static volatile String s_activeSchema = sf_schema;
+  private static final String sf_synchronousCommit = System.getenv("CPIC_SYNCHRONOUS_COMMIT");
+  private static final List<String> sf_synchronousCommitValues = ImmutableList.of("on", "off", "local", "remote_write", "remote_apply");
+  // a max pool size of 0 turns off the pool and opens a new connection every time
+  private static final int sf_poolMin = Integer.parseInt(MoreObjects.firstNonNull(System.getenv("CPIC_POOL_MIN"), "1"));
+  private static final int sf_poolMax = Integer.parseInt(MoreObjects.firstNonNull(System.getenv("CPIC_POOL_MAX"), "20"));
+  private static final long sf_poolTimeout = Long.parseLong(MoreObjects.firstNonNull(System.getenv("CPIC_POOL_TIMEOUT"), "30000"));
+  private static final long sf_poolLeak = Long.parseLong(MoreObjects.firstNonNull(System.getenv("CPIC_POOL_LEAK_THRESHOLD"), "300000"));
+  private static final long sf_poolIdleTimeout = Long.parseLong(MoreObjects.firstNonNull(System.getenv("CPIC_POOL_IDLE_TIMEOUT"), "600000"));
+  private static ConnectionPool s_pool = null;
+
+  /**
+   * Connections an import needs on top of the ones its file workers hold for their transactions, for the work that 
+   * borrows its own connection while those transactions are open
+   */
+  public static final int POOL_HEADROOM = 2;
 
   /**
    * Makes a new {@link Connection}. All connection information defaults to local DB but also can override with environment variables.
+   * 
+   * Connections come from a pool so close the connection when done with it to give it back.
+   * 
+   * If a {@link Transaction} is open on the current thread this gives the transaction's connection instead so the 
+   * caller's writes are part of the transaction.
    * @return a new, opened JDBC database {@link Connection}
    * @throws SQLException can occur if there is a problem connecting to the database
    */
   public static Connection newConnection() throws SQLException {
+    Transaction tx = Transaction.current();
+    if (tx != null) {
+      return tx.getConnection();
+    }
+    return openConnection();
+  }
+
+  /**
+   * Gets a connection that isn't part of any {@link Transaction}. This comes from the connection pool unless the pool
+   * has been turned off by setting CPIC_POOL_MAX to 0. Closing the connection gives it back to the pool.
+   * @return an opened JDBC database {@link Connection}
+   * @throws SQLException can occur if there is a problem connecting to the database or no connection is free in time
+   */
+  static Connection openConnection() throws SQLException {
+    if (sf_poolMax <= 0) {
+      return openPhysicalConnection();
+    }
+    return getPool().borrow();
+  }
+
+  /**
+   * Gets the max number of connections the pool opens at once
+   * @return the max pool size, 0 if the pool is turned off and there's no limit
+   */
+  public static int getPoolMaxSize() {
+    return Math.max(sf_poolMax, 0);
+  }
+
+  /**
+   * Checks that the pool is big enough for the given number of transactions open at once. Each transaction holds its 
+   * connection until it's done and can still borrow another one while it does, so a pool any smaller could end up with 
+   * every connection held by a worker waiting for one more.
+   * @param transactions the max number of transactions open at the same time
+   * @throws IllegalArgumentException if CPIC_POOL_MAX is too small
+   */
+  public static void checkPoolSize(int transactions) {
+    int needed = transactions + POOL_HEADROOM;
+    if (sf_poolMax > 0 && sf_poolMax < needed) {
+      throw new IllegalArgumentException(String.format(
+          "CPIC_POOL_MAX of %d is too small for %d transactions at once, it has to be at least %d", sf_poolMax, transactions, needed));
+    }
+  }
+
+  /**
+   * Gets the numbers for the connection pool
+   * @return pool stats, null if the pool isn't in use
+   */
+  public static synchronized ConnectionPool.Stats getPoolStats() {
+    return s_pool == null ? null : s_pool.getStats();
+  }
+
+  private static synchronized ConnectionPool getPool() throws SQLException {
+    if (s_pool == null) {
+      ConnectionPool pool = new ConnectionPool(ConnectionFactory::openPhysicalConnection, ConnectionFactory::setUpSession, Math.min(sf_poolMin, sf_poolMax), sf_poolMax, sf_poolTimeout, sf_poolLeak, sf_poolIdleTimeout);
+      try {
+        pool.fill();
+      } catch (SQLException ex) {
+        pool.close();
+        throw ex;
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(pool::close, "cpic-connection-pool-shutdown"));
+      s_pool = pool;
+      sf_logger.debug("Started connection pool, min {} max {}", sf_poolMin, sf_poolMax);
+    }
+    return s_pool;
+  }
+
+  /**
+   * Opens a new connection to the DB and sets up its session, see {@link ConnectionFactory#setUpSession(Connection)}
+   * @return a new, opened JDBC database {@link Connection}
+   * @throws SQLException can occur if there is a problem connecting to the database
+   */
+  private static Connection openPhysicalConnection() throws SQLException {
     sf_logger.debug("Using JDBC URL: {}", getJdbcUrl());
-    return DriverManager.getConnection(getJdbcUrl(), sf_user, sf_pass);
+    Connection conn = DriverManager.getConnection(getJdbcUrl(), sf_user, sf_pass);
+    try {
+      setUpSession(conn);
+    } catch (SQLException | RuntimeException ex) {
+      conn.close();
+      throw ex;
+    }
+    return conn;
+  }
+
+  /**
+   * Applies the session settings every connection gets. This runs again each time the pool resets a returned 
+   * connection. If the CPIC_SYNCHRONOUS_COMMIT environment variable is set then the <code>synchronous_commit</code> 
+   * setting is applied to the session. Setting it to "off" makes commits return without waiting for the WAL flush which
+   * is fine for bulk rebuilds that can be re-run if the server crashes.
+   * @param conn a connection with a new or reset session
+   * @throws SQLException can occur when applying a setting
+   */
+  private static void setUpSession(Connection conn) throws SQLException {
+    if (StringUtils.isNotBlank(sf_synchronousCommit)) {
+      if (!sf_synchronousCommitValues.contains(sf_synchronousCommit.toLowerCase())) {
+        throw new IllegalArgumentException("Invalid CPIC_SYNCHRONOUS_COMMIT value: " + sf_synchronousCommit);
+      }
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute("set synchronous_commit = " + sf_synchronousCommit.toLowerCase());
+      }
+    }
   }
   
   static String getJdbcUrl() {
-    return String.format(sf_dbUrl, sf_host, sf_db, sf_schema);
+    return String.format(sf_dbUrl, sf_host, sf_db, s_activeSchema);
   }
 
   static String getUser() {
@@ -45,7 +171,36 @@ public class ConnectionFactory {
     return sf_pass;
   }
 
+  /**
+   * Gets the schema set by the CPIC_SCHEMA environment variable, the one readers use
+   * @return the name of the live schema
+   */
   static String getSchema() {
     return sf_schema;
   }
+
+  /**
+   * Gets the schema new connections use. This is the live schema unless a staging schema is being loaded.
+   * @return a schema name
+   */
+  static String getActiveSchema() {
+    return s_activeSchema;
+  }
+
+  /**
+   * Point all new connections at the given schema. Pooled connections for the old schema are closed and the reference
+   * data cache is dropped since it was read from the old schema. Don't call this while importers are running.
+   * @param schema the schema to use for new connections
+   */
+  static synchronized void setActiveSchema(String schema) {
+    if (schema.equals(s_activeSchema)) return;
+
+    sf_logger.info("Switching connections from schema {} to {}", s_activeSchema, schema);
+    s_activeSchema = schema;
+    if (s_pool != null) {
+      s_pool.close();
+      s_pool = null;
+    }
+    ReferenceData.invalidate(ReferenceData.Table.values());
+  }
 }
@@ -0,0 +1,515 @@
+package org.cpicpgx.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of DB connections.
+ *
+ * Connections handed out by {@link ConnectionPool#borrow()} go back to the pool when they're closed so callers use them
+ * the same way as a connection from {@link java.sql.DriverManager}. When a connection is returned any statements opened
+ * on it are closed, uncommitted work is rolled back, autocommit is turned back on and the session is reset so the next
+ * borrower gets a clean connection: temporary tables are dropped, settings changed with <code>SET</code> go back to 
+ * their defaults and then the pool's session setup is run again. The driver's cache of server-side prepared statements
+ * is kept, which is why this doesn't use <code>DISCARD ALL</code>, it would deallocate statements the driver still 
+ * thinks are there.
+ *
+ * When all connections are in use and the pool is at its max size, callers wait for a connection to be returned. If
+ * none comes back in time an {@link SQLException} is thrown.
+ *
+ * A background task logs a warning (with the stack trace of the borrower) for any connection that has been out longer
+ * than the leak threshold, and closes connections that have been idle too long as long as the pool stays at its min
+ * size.
+ *
+ * @author Ryan Whaley
+ */
+public class ConnectionPool implements AutoCloseable {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final long VALIDATE_AFTER_IDLE_MILLIS = 5000;
+  private static final int VALIDATE_TIMEOUT_SECONDS = 5;
+  private static final int PRUNE_STATEMENTS_AT = 100;
+
+  private final ConnectionOpener f_opener;
+  private final SessionSetup f_setup;
+  private final int f_minSize;
+  private final int f_maxSize;
+  private final long f_timeoutMillis;
+  private final long f_leakMillis;
+  private final long f_idleTimeoutMillis;
+  private final Deque<PooledConnection> f_idle = new ArrayDeque<>();
+  private final Set<PooledConnection> f_active = new HashSet<>();
+  private final ScheduledExecutorService f_housekeeper;
+  private boolean m_closed = false;
+  private int m_waiting = 0;
+
+  private long m_created = 0;
+  private long m_borrowed = 0;
+  private long m_discarded = 0;
+  private long m_leaks = 0;
+  private long m_timeouts = 0;
+  private long m_waitMillisTotal = 0;
+  private long m_waitMillisMax = 0;
+
+  /**
+   * Constructor for a pool with no session setup
+   * @see ConnectionPool#ConnectionPool(ConnectionOpener, SessionSetup, int, int, long, long, long)
+   */
+  ConnectionPool(ConnectionOpener opener, int minSize, int maxSize, long timeoutMillis, long leakMillis, long idleTimeoutMillis) {
+    this(opener, conn -> {}, minSize, maxSize, timeoutMillis, leakMillis, idleTimeoutMillis);
+  }
+
+  /**
+   * Constructor
+   * @param opener opens new physical connections, with their session already set up
+   * @param setup sets up the session of a connection again after it has been reset
+   * @param minSize number of connections to keep open even when idle
+   * @param maxSize max number of connections open at once
+   * @param timeoutMillis how long to wait for a connection when the pool is exhausted
+   * @param leakMillis how long a connection can be borrowed before it's reported as a possible leak, 0 to turn off
+   * @param idleTimeoutMillis how long a connection can sit idle before it's closed (when above min size)
+   */
+  ConnectionPool(ConnectionOpener opener, SessionSetup setup, int minSize, int maxSize, long timeoutMillis, long leakMillis, long idleTimeoutMillis) {
+    if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+      throw new IllegalArgumentException("Invalid pool size min " + minSize + ", max " + maxSize);
+    }
+    f_opener = opener;
+    f_setup = setup;
+    f_minSize = minSize;
+    f_maxSize = maxSize;
+    f_timeoutMillis = timeoutMillis;
+    f_leakMillis = leakMillis;
+    f_idleTimeoutMillis = idleTimeoutMillis;
+
+    f_housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "cpic-connection-pool");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(1000, Math.min(30000, leakMillis > 0 ? leakMillis / 2 : 30000));
+    f_housekeeper.scheduleAtFixedRate(this::housekeeping, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Open the min number of connections so they're ready for the first callers
+   * @throws SQLException can occur when connecting
+   */
+  void fill() throws SQLException {
+    while (true) {
+      synchronized (this) {
+        if (m_closed || f_idle.size() + f_active.size() >= f_minSize) return;
+      }
+      PooledConnection pooled = new PooledConnection(f_opener.open());
+      synchronized (this) {
+        m_created += 1;
+        f_idle.push(pooled);
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Borrow a connection from the pool. Close the connection to give it back.
+   * @return an open connection
+   * @throws SQLException if a connection can't be opened or none is free before the timeout
+   */
+  public Connection borrow() throws SQLException {
+    long start = System.currentTimeMillis();
+    while (true) {
+      PooledConnection pooled = null;
+      boolean openNew = false;
+
+      synchronized (this) {
+        while (true) {
+          if (m_closed) {
+            throw new SQLException("Connection pool is closed");
+          }
+          if (!f_idle.isEmpty()) {
+            pooled = f_idle.pop();
+            break;
+          }
+          if (f_idle.size() + f_active.size() < f_maxSize) {
+            openNew = true;
+            break;
+          }
+          long remaining = f_timeoutMillis - (System.currentTimeMillis() - start);
+          if (remaining <= 0) {
+            m_timeouts += 1;
+            throw new SQLException(String.format("No connection available after %d ms, %s", f_timeoutMillis, getStats()));
+          }
+          m_waiting += 1;
+          try {
+            wait(remaining);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", ex);
+          } finally {
+            m_waiting -= 1;
+          }
+        }
+        if (openNew) {
+          // hold the slot while connecting, outside the lock
+          pooled = new PooledConnection(null);
+          f_active.add(pooled);
+        }
+      }
+
+      if (openNew) {
+        try {
+          pooled.physical = f_opener.open();
+        } catch (SQLException | RuntimeException ex) {
+          synchronized (this) {
+            f_active.remove(pooled);
+            notifyAll();
+          }
+          throw ex;
+        }
+        synchronized (this) {
+          m_created += 1;
+        }
+      } else if (!isValid(pooled)) {
+        discard(pooled);
+        continue;
+      } else {
+        synchronized (this) {
+          f_active.add(pooled);
+        }
+      }
+
+      long waited = System.currentTimeMillis() - start;
+      synchronized (this) {
+        m_borrowed += 1;
+        m_waitMillisTotal += waited;
+        m_waitMillisMax = Math.max(m_waitMillisMax, waited);
+      }
+      return pooled.lease(this);
+    }
+  }
+
+  /**
+   * Check that a connection that's been idle for a while is still usable
+   */
+  private boolean isValid(PooledConnection pooled) {
+    if (System.currentTimeMillis() - pooled.returnedAt < VALIDATE_AFTER_IDLE_MILLIS) {
+      return true;
+    }
+    try {
+      return pooled.physical.isValid(VALIDATE_TIMEOUT_SECONDS);
+    } catch (SQLException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Take back a connection from a borrower
+   */
+  private void giveBack(PooledConnection pooled) {
+    boolean reusable;
+    try {
+      pooled.closeStatements();
+      if (pooled.physical.isClosed()) {
+        reusable = false;
+      } else {
+        if (!pooled.physical.getAutoCommit()) {
+          pooled.physical.rollback();
+          pooled.physical.setAutoCommit(true);
+        }
+        resetSession(pooled.physical);
+        pooled.physical.clearWarnings();
+        reusable = true;
+      }
+    } catch (SQLException ex) {
+      sf_logger.warn("Couldn't reset returned connection, discarding it", ex);
+      reusable = false;
+    }
+
+    if (!reusable) {
+      synchronized (this) {
+        f_active.remove(pooled);
+      }
+      discard(pooled);
+      return;
+    }
+
+    synchronized (this) {
+      f_active.remove(pooled);
+      pooled.returnedAt = System.currentTimeMillis();
+      if (m_closed) {
+        closeQuietly(pooled);
+      } else {
+        f_idle.push(pooled);
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Drops the temporary tables and settings a borrower left on the session, then sets the session up again
+   */
+  private void resetSession(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("discard temp");
+      stmt.execute("reset all");
+    }
+    f_setup.setUp(conn);
+  }
+
+  private void discard(PooledConnection pooled) {
+    closeQuietly(pooled);
+    synchronized (this) {
+      m_discarded += 1;
+      notifyAll();
+    }
+  }
+
+  private static void closeQuietly(PooledConnection pooled) {
+    try {
+      if (pooled.physical != null) {
+        pooled.physical.close();
+      }
+    } catch (SQLException ex) {
+      sf_logger.debug("Error closing connection", ex);
+    }
+  }
+
+  /**
+   * Report connections out longer than the leak threshold and close connections idle longer than the idle timeout
+   */
+  private void housekeeping() {
+    long now = System.currentTimeMillis();
+    List<PooledConnection> toClose = new ArrayList<>();
+    synchronized (this) {
+      if (f_leakMillis > 0) {
+        for (PooledConnection pooled : f_active) {
+          if (!pooled.leakReported && pooled.borrowedBy != null && now - pooled.borrowedAt > f_leakMillis) {
+            pooled.leakReported = true;
+            m_leaks += 1;
+            sf_logger.warn("Connection borrowed " + (now - pooled.borrowedAt) + " ms ago has not been returned, possible leak", pooled.borrowedBy);
+          }
+        }
+      }
+      Iterator<PooledConnection> it = f_idle.descendingIterator();
+      while (it.hasNext() && f_idle.size() + f_active.size() > f_minSize) {
+        PooledConnection pooled = it.next();
+        if (now - pooled.returnedAt > f_idleTimeoutMillis) {
+          it.remove();
+          toClose.add(pooled);
+        }
+      }
+    }
+    toClose.forEach(ConnectionPool::closeQuietly);
+    if (toClose.size() > 0) {
+      sf_logger.debug("Closed {} idle connections", toClose.size());
+    }
+  }
+
+  /**
+   * Gets a snapshot of the pool's numbers
+   * @return pool stats
+   */
+  public synchronized Stats getStats() {
+    return new Stats(f_idle.size(), f_active.size(), m_waiting, m_created, m_borrowed, m_discarded, m_leaks, m_timeouts,
+        m_borrowed == 0 ? 0 : m_waitMillisTotal / m_borrowed, m_waitMillisMax);
+  }
+
+  /**
+   * Close all idle connections and stop handing out new ones. Borrowed connections are closed when they're returned.
+   */
+  @Override
+  public void close() {
+    List<PooledConnection> toClose;
+    synchronized (this) {
+      m_closed = true;
+      toClose = new ArrayList<>(f_idle);
+      f_idle.clear();
+      notifyAll();
+    }
+    f_housekeeper.shutdownNow();
+    toClose.forEach(ConnectionPool::closeQuietly);
+    sf_logger.debug("Closed connection pool: {}", getStats());
+  }
+
+  private static boolean isStatementClosed(Statement stmt) {
+    try {
+      return stmt.isClosed();
+    } catch (SQLException ex) {
+      return true;
+    }
+  }
+
+  /**
+   * Opens new physical connections for the pool
+   */
+  @FunctionalInterface
+  interface ConnectionOpener {
+    Connection open() throws SQLException;
+  }
+
+  /**
+   * Sets up the session of a connection, like applying settings the pool's connections should always have
+   */
+  @FunctionalInterface
+  interface SessionSetup {
+    void setUp(Connection conn) throws SQLException;
+  }
+
+  /**
+   * A physical connection and what the pool knows about it
+   */
+  private static class PooledConnection {
+    private Connection physical;
+    private final List<Statement> statements = new ArrayList<>();
+    private long returnedAt = System.currentTimeMillis();
+    private long borrowedAt;
+    private Exception borrowedBy;
+    private boolean leakReported;
+
+    PooledConnection(Connection physical) {
+      this.physical = physical;
+    }
+
+    /**
+     * Make a connection for a borrower, closing it gives the physical connection back to the pool
+     */
+    Connection lease(ConnectionPool pool) {
+      borrowedAt = System.currentTimeMillis();
+      borrowedBy = pool.f_leakMillis > 0 ? new Exception("Connection borrowed here") : null;
+      leakReported = false;
+
+      final boolean[] returned = new boolean[]{false};
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+        String name = method.getName();
+        if (name.equals("close")) {
+          if (!returned[0]) {
+            returned[0] = true;
+            borrowedBy = null;
+            pool.giveBack(this);
+          }
+          return null;
+        }
+        if (name.equals("isClosed")) {
+          return returned[0] || physical.isClosed();
+        }
+        if (returned[0]) {
+          throw new SQLException("Connection has already been returned to the pool");
+        }
+        try {
+          Object result = method.invoke(physical, args);
+          if (result instanceof Statement) {
+            synchronized (statements) {
+              if (statements.size() >= PRUNE_STATEMENTS_AT) {
+                statements.removeIf(ConnectionPool::isStatementClosed);
+              }
+              statements.add((Statement)result);
+            }
+          }
+          return result;
+        } catch (InvocationTargetException ex) {
+          throw ex.getCause();
+        }
+      });
+    }
+
+    /**
+     * Close any statements the borrower left open so they don't pile up on the physical connection
+     */
+    void closeStatements() {
+      synchronized (statements) {
+        for (Statement stmt : statements) {
+          try {
+            stmt.close();
+          } catch (SQLException ex) {
+            sf_logger.debug("Error closing statement", ex);
+          }
+        }
+        statements.clear();
+      }
+    }
+  }
+
+  /**
+   * Pool numbers at a point in time
+   */
+  public static class Stats {
+    private final int idle;
+    private final int active;
+    private final int waiting;
+    private final long created;
+    private final long borrowed;
+    private final long discarded;
+    private final long leaks;
+    private final long timeouts;
+    private final long averageWaitMillis;
+    private final long maxWaitMillis;
+
+    private Stats(int idle, int active, int waiting, long created, long borrowed, long discarded, long leaks, long timeouts, long averageWaitMillis, long maxWaitMillis) {
+      this.idle = idle;
+      this.active = active;
+      this.waiting = waiting;
+      this.created = created;
+      this.borrowed = borrowed;
+      this.discarded = discarded;
+      this.leaks = leaks;
+      this.timeouts = timeouts;
+      this.averageWaitMillis = averageWaitMillis;
+      this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public int getIdle() {
+      return idle;
+    }
+
+    public int getActive() {
+      return active;
+    }
+
+    public int getWaiting() {
+      return waiting;
+    }
+
+    public long getCreated() {
+      return created;
+    }
+
+    public long getBorrowed() {
+      return borrowed;
+    }
+
+    public long getDiscarded() {
+      return discarded;
+    }
+
+    public long getLeaks() {
+      return leaks;
+    }
+
+    public long getTimeouts() {
+      return timeouts;
+    }
+
+    public long getAverageWaitMillis() {
+      return averageWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    public String toString() {
+      return String.format(
+          "%d active, %d idle, %d waiting; %d borrowed from %d opened (%d discarded); wait avg %d ms max %d ms; %d timeouts, %d possible leaks",
+          active, idle, waiting, borrowed, created, discarded, averageWaitMillis, maxWaitMillis, timeouts, leaks
+      );
+    }
+  }
+}
@@ -0,0 +1,319 @@
+package org.cpicpgx.db;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk loads rows into a table using the Postgres <code>COPY ... FROM STDIN</code> command instead of one
+ * <code>insert</code> per row.
+ *
+ * Rows are encoded into a buffer as they're added. When the buffer gets big enough, or when this loader is closed, the
+ * whole buffer is sent to the DB in a single COPY. Since each COPY is started and finished in one go the connection can
+ * still be used for other statements between calls to {@link CopyLoader#add(Object...)}.
+ *
+ * COPY can't return generated IDs. If child rows need to refer to the ID of a parent row, reserve the IDs ahead of time
+ * with {@link CopyLoader#nextIds(Connection, int)}, include the ID column in the parent loader, and use
+ * {@link CopyLoader#after(CopyLoader)} so the parent rows are always sent before the child rows that refer to them.
+ *
+ * Values are encoded according to their Java type:
+ * <ul>
+ *   <li><code>null</code> &rarr; NULL</li>
+ *   <li>{@link Integer} &rarr; <code>integer</code></li>
+ *   <li>{@link Long} &rarr; <code>bigint</code></li>
+ *   <li>{@link Double} &rarr; <code>double precision</code> (text format also works for <code>numeric</code>)</li>
+ *   <li>{@link Boolean} &rarr; <code>boolean</code></li>
+ *   <li>{@link java.sql.Date} &rarr; <code>date</code></li>
+ *   <li>anything else &rarr; its <code>toString()</code> as <code>text</code></li>
+ * </ul>
+ * In {@link Format#TEXT} the DB casts the text of each value to the column type so this is the safe choice. In
+ * {@link Format#BINARY} the Java type must exactly match the column type (e.g. no Double into a numeric column, no
+ * String into a jsonb column) but the DB doesn't have to parse anything.
+ *
+ * @author Ryan Whaley
+ */
+public class CopyLoader implements AutoCloseable {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final int DEFAULT_FLUSH_BYTES = 4 * 1024 * 1024;
+  private static final byte[] sf_binaryHeader = new byte[]{'P','G','C','O','P','Y','\n',(byte)0xff,'\r','\n',0,0,0,0,0,0,0,0,0};
+  private static final LocalDate sf_pgEpoch = LocalDate.of(2000, 1, 1);
+
+  public enum Format { TEXT, BINARY }
+
+  private final Connection f_conn;
+  private final Format f_format;
+  private final String f_table;
+  private final String f_copySql;
+  private final int f_columnCount;
+  private final List<CopyLoader> f_upstream = new ArrayList<>();
+  private final ByteArrayOutputStream f_buffer = new ByteArrayOutputStream();
+  private final DataOutputStream f_out = new DataOutputStream(f_buffer);
+  private int m_flushBytes = DEFAULT_FLUSH_BYTES;
+  private int m_bufferedRows = 0;
+  private long m_rowCount = 0;
+  private int m_copyCount = 0;
+
+  /**
+   * Constructor for a loader using the text format
+   * @param conn the connection to send data on, this loader does not close it
+   * @param table the table to load
+   * @param columns the columns each row will have values for, in order
+   */
+  public CopyLoader(Connection conn, String table, String... columns) {
+    this(conn, Format.TEXT, table, columns);
+  }
+
+  /**
+   * Constructor
+   * @param conn the connection to send data on, this loader does not close it
+   * @param format the COPY format to use
+   * @param table the table to load
+   * @param columns the columns each row will have values for, in order
+   */
+  public CopyLoader(Connection conn, Format format, String table, String... columns) {
+    if (columns.length == 0) {
+      throw new IllegalArgumentException("No columns specified for " + table);
+    }
+    f_conn = conn;
+    f_format = format;
+    f_table = table;
+    f_columnCount = columns.length;
+    f_copySql = String.format("copy %s(%s) from stdin%s",
+        table, String.join(",", columns), format == Format.BINARY ? " with (format binary)" : "");
+  }
+
+  /**
+   * Makes sure all rows of the given loader are sent before any rows of this loader. Use this when rows in this loader
+   * have foreign keys to rows in the given loader.
+   * @param upstream a loader for a parent table
+   * @return this loader
+   */
+  public CopyLoader after(CopyLoader upstream) {
+    f_upstream.add(upstream);
+    return this;
+  }
+
+  /**
+   * Set the size the buffer can grow to before it's sent to the DB
+   * @param flushBytes number of bytes
+   * @return this loader
+   */
+  public CopyLoader setFlushBytes(int flushBytes) {
+    m_flushBytes = flushBytes;
+    return this;
+  }
+
+  /**
+   * Add a row. The row may not be sent to the DB until later.
+   * @param values the values for the row, in the same order as the columns given in the constructor
+   * @return this loader
+   * @throws SQLException can occur if the buffer gets sent to the DB
+   */
+  public CopyLoader add(Object... values) throws SQLException {
+    if (values.length != f_columnCount) {
+      throw new IllegalArgumentException(String.format("Expected %d values for %s, got %d", f_columnCount, f_table, values.length));
+    }
+    try {
+      if (f_format == Format.BINARY) {
+        writeBinaryRow(values);
+      } else {
+        writeTextRow(values);
+      }
+    } catch (IOException ex) {
+      throw new SQLException("Couldn't encode row for " + f_table, ex);
+    }
+    m_bufferedRows += 1;
+
+    if (f_buffer.size() >= m_flushBytes) {
+      flush();
+    }
+    return this;
+  }
+
+  /**
+   * Send all buffered rows to the DB in one COPY, after first flushing any upstream loaders
+   * @throws SQLException can occur when sending the rows
+   */
+  public void flush() throws SQLException {
+    for (CopyLoader upstream : f_upstream) {
+      upstream.flush();
+    }
+    if (m_bufferedRows == 0) return;
+
+    try {
+      if (f_format == Format.BINARY) {
+        f_out.writeShort(-1);
+      }
+      f_out.flush();
+    } catch (IOException ex) {
+      throw new SQLException("Couldn't finish buffer for " + f_table, ex);
+    }
+
+    byte[] data = f_buffer.toByteArray();
+    CopyIn copyIn = startCopy(f_copySql);
+    try {
+      if (f_format == Format.BINARY) {
+        copyIn.writeToCopy(sf_binaryHeader, 0, sf_binaryHeader.length);
+      }
+      copyIn.writeToCopy(data, 0, data.length);
+      long copied = copyIn.endCopy();
+      sf_logger.debug("copied {} rows into {}", copied, f_table);
+    } finally {
+      if (copyIn.isActive()) {
+        copyIn.cancelCopy();
+      }
+    }
+
+    m_rowCount += m_bufferedRows;
+    m_copyCount += 1;
+    m_bufferedRows = 0;
+    f_buffer.reset();
+  }
+
+  /**
+   * Start a COPY on the connection
+   * @param sql the COPY command
+   * @return the COPY in progress
+   * @throws SQLException can occur when starting the COPY
+   */
+  CopyIn startCopy(String sql) throws SQLException {
+    return f_conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+  }
+
+  /**
+   * @return the number of rows that have been sent to the DB so far
+   */
+  public long getRowCount() {
+    return m_rowCount;
+  }
+
+  /**
+   * @return the number of COPY commands this loader has run so far
+   */
+  public int getCopyCount() {
+    return m_copyCount;
+  }
+
+  /**
+   * Sends any remaining rows. Does not close the connection.
+   * @throws SQLException can occur when sending the rows
+   */
+  @Override
+  public void close() throws SQLException {
+    flush();
+  }
+
+  /**
+   * Reserve a block of new IDs from the <code>cpic_id</code> sequence in one round trip
+   * @param conn the connection to use
+   * @param count the number of IDs needed
+   * @return an array of new IDs
+   * @throws SQLException can occur when querying the sequence
+   */
+  public static int[] nextIds(Connection conn, int count) throws SQLException {
+    int[] ids = new int[count];
+    if (count == 0) return ids;
+
+    try (PreparedStatement stmt = conn.prepareStatement("select nextval('cpic_id') from generate_series(1, ?)")) {
+      stmt.setInt(1, count);
+      try (ResultSet rs = stmt.executeQuery()) {
+        int i = 0;
+        while (rs.next()) {
+          ids[i] = rs.getInt(1);
+          i += 1;
+        }
+        if (i != count) {
+          throw new SQLException("Expected " + count + " IDs, got " + i);
+        }
+      }
+    }
+    return ids;
+  }
+
+  private void writeTextRow(Object[] values) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append('\t');
+      }
+      Object value = values[i];
+      if (value == null) {
+        sb.append("\\N");
+      } else if (value instanceof Boolean) {
+        sb.append((Boolean)value ? 't' : 'f');
+      } else {
+        escapeText(value.toString(), sb);
+      }
+    }
+    sb.append('\n');
+    f_out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Escape the characters that have special meaning in the COPY text format
+   */
+  static void escapeText(String value, StringBuilder sb) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+  }
+
+  private void writeBinaryRow(Object[] values) throws IOException {
+    f_out.writeShort(values.length);
+    for (Object value : values) {
+      if (value == null) {
+        f_out.writeInt(-1);
+      } else if (value instanceof Integer) {
+        f_out.writeInt(4);
+        f_out.writeInt((Integer)value);
+      } else if (value instanceof Long) {
+        f_out.writeInt(8);
+        f_out.writeLong((Long)value);
+      } else if (value instanceof Double) {
+        f_out.writeInt(8);
+        f_out.writeDouble((Double)value);
+      } else if (value instanceof Boolean) {
+        f_out.writeInt(1);
+        f_out.writeByte((Boolean)value ? 1 : 0);
+      } else if (value instanceof java.sql.Date) {
+        f_out.writeInt(4);
+        f_out.writeInt((int)ChronoUnit.DAYS.between(sf_pgEpoch, ((java.sql.Date)value).toLocalDate()));
+      } else {
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        f_out.writeInt(bytes.length);
+        f_out.write(bytes);
+      }
+    }
+  }
+}
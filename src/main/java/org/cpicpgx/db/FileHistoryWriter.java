@@ -3,6 +3,8 @@ package org.cpicpgx.db;
 import org.cpicpgx.model.FileType;
 
 import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Class that helps with writing history messages to the database for file artifacts either read or written by this code 
@@ -14,18 +16,26 @@ public class FileHistoryWriter implements AutoCloseable {
   public static final String SOURCE_SYSTEM="SYSTEM";
 
   private static final String DEFAULT_EXPORT_MESSAGE = "exported from DB";
+  private static final String DEFAULT_IMPORT_MESSAGE = "imported into DB";
+  // the file record and its history message in one statement so exports can be queued and sent in batches
+  //language=PostgreSQL
+  private static final String sf_exportSql = "with f as (insert into file_artifact(type, fileName, entityIds) values (?, ?, ?) " +
+      "on conflict (fileName) do update set entityids=coalesce(excluded.entityids, file_artifact.entityids) returning id) " +
+      "insert into file_artifact_history(fileId, changeMessage, source) select id, ?, ? from f";
+  //language=PostgreSQL
+  private static final String sf_uploadSql = "update file_artifact set url=? where fileName=?";
 
   private Connection connection;
   private PreparedStatement insertFile;
   private PreparedStatement insertHistory;
-  private PreparedStatement updateUrl;
+  private PreparedStatement updateImport;
   private FileType fileType;
   
   public FileHistoryWriter(FileType fileType) throws SQLException {
     this.connection = ConnectionFactory.newConnection();
-    insertFile = this.connection.prepareStatement("insert into file_artifact(type, fileName, entityIds) values (?, ?, ?) on conflict (fileName) do update set entityids=excluded.entityids");
+    insertFile = this.connection.prepareStatement("insert into file_artifact(type, fileName, entityIds) values (?, ?, ?) on conflict (fileName) do update set entityids=coalesce(excluded.entityids, file_artifact.entityids)");
     insertHistory = this.connection.prepareStatement("insert into file_artifact_history(fileId, changeMessage, source) select id, ?, ? from file_artifact where filename=?");
-    updateUrl = this.connection.prepareStatement("update file_artifact set url=? where fileName=?");
+    updateImport = this.connection.prepareStatement("update file_artifact set contentHash=?, contentSize=?, contentModified=? where fileName=?");
     this.fileType = fileType;
   }
 
@@ -47,20 +57,85 @@ public class FileHistoryWriter implements AutoCloseable {
   }
 
   /**
-   * Writes a timestamped message associated with the given file name to the database. This method will source the 
-   * message to "SYSTEM" meaning it's automated and not human-curated
+   * Queues a timestamped message that the given file was exported. The message is sourced to "SYSTEM" meaning it's 
+   * automated and not human-curated. It's written by the {@link WriteBehindQueue}, flush the queue for the file type to
+   * make sure it's been written.
+   * @param type the type of file that was exported
+   * @param fileName a String file name
+   * @param entityIds the IDs of the entities (gene symbols or drug IDs) in the file, optional
+   */
+  public static void writeExport(FileType type, String fileName, String[] entityIds) {
+    WriteBehindQueue.shared().add(type.name(), -1, sf_exportSql,
+        type.name(), fileName, entityIds != null && entityIds.length > 0 ? entityIds : null,
+        DEFAULT_EXPORT_MESSAGE, SOURCE_SYSTEM);
+  }
+
+  /**
+   * Queues the URL a file was uploaded to. It's written by the {@link WriteBehindQueue} after any export record queued
+   * before it, flush the queue for the file type to make sure it's been written.
+   * @param type the type of file that was uploaded
+   * @param fileName a String file name
+   * @param url the URL of the uploaded file
+   */
+  public static void writeUpload(FileType type, String fileName, String url) {
+    WriteBehindQueue.shared().add(type.name(), -1, sf_uploadSql, url, fileName);
+  }
+
+  /**
+   * Records that a file was imported along with the state of its contents so the next import can tell whether it has
+   * changed. The entity IDs replace the ones on record for the file unless none are given.
+   * @param state the state of the file as it was imported
+   * @param entityIds the IDs of the entities (gene symbols or drug IDs) the file had data for, optional
+   * @throws SQLException can occur from DB activity
+   */
+  public void writeImport(FileImportState state, String[] entityIds) throws SQLException {
+    write(state.getFileName(), DEFAULT_IMPORT_MESSAGE, SOURCE_SYSTEM, entityIds);
+    this.updateImport.clearParameters();
+    this.updateImport.setString(1, state.getHash());
+    this.updateImport.setLong(2, state.getSize());
+    this.updateImport.setTimestamp(3, new Timestamp(state.getModified()));
+    this.updateImport.setString(4, state.getFileName());
+    this.updateImport.executeUpdate();
+  }
+
+  /**
+   * Forgets the imported state of a file, used when the file is no longer in the import directory
    * @param fileName a String file name
    * @throws SQLException can occur from DB activity
    */
-  public void writeExport(String fileName, String[] entityIds) throws SQLException {
-    write(fileName, DEFAULT_EXPORT_MESSAGE, SOURCE_SYSTEM, entityIds);
+  public void clearImport(String fileName) throws SQLException {
+    try (PreparedStatement stmt = this.connection.prepareStatement(
+        "update file_artifact set contentHash=null, contentSize=null, contentModified=null where fileName=?")) {
+      stmt.setString(1, fileName);
+      stmt.executeUpdate();
+    }
   }
 
-  public void writeUpload(String fileName, String url) throws SQLException {
-    this.updateUrl.clearParameters();
-    this.updateUrl.setString(1, url);
-    this.updateUrl.setString(2, fileName);
-    this.updateUrl.executeUpdate();
+  /**
+   * Reads the state of all files of this writer's type as of their last import
+   * @return a map of file name to imported state, only files that have been imported are included
+   * @throws SQLException can occur from DB activity
+   */
+  public Map<String, FileImportState> readImportStates() throws SQLException {
+    Map<String, FileImportState> states = new HashMap<>();
+    try (PreparedStatement stmt = this.connection.prepareStatement(
+        "select fileName, contentSize, contentModified, contentHash, entityIds from file_artifact where type=? and contentHash is not null")) {
+      stmt.setString(1, this.fileType.name());
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          Array entityIds = rs.getArray(5);
+          states.put(rs.getString(1), new FileImportState(
+              null,
+              rs.getString(1),
+              rs.getLong(2),
+              rs.getTimestamp(3) != null ? rs.getTimestamp(3).getTime() : 0,
+              rs.getString(4),
+              entityIds != null ? (String[])entityIds.getArray() : null
+          ));
+        }
+      }
+    }
+    return states;
   }
 
   /**
@@ -80,15 +155,15 @@ public class FileHistoryWriter implements AutoCloseable {
   }
 
   @Override
-  public void close() throws Exception {
+  public void close() throws SQLException {
     if (this.insertFile != null) {
       this.insertFile.close();
     }
     if (this.insertHistory != null) {
       this.insertHistory.close();
     }
-    if (this.updateUrl != null) {
-      this.updateUrl.close();
+    if (this.updateImport != null) {
+      this.updateImport.close();
     }
     if (this.connection != null) {
       this.connection.close();
@@ -0,0 +1,130 @@
+package org.cpicpgx.db;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+/**
+ * The contents of a source file as of an import, used to tell whether a file has changed since it was last imported.
+ *
+ * The size and last-modified time are checked first since they're free to read. The content hash is only computed when
+ * one of them differs so a file that was touched but not changed still counts as unchanged.
+ *
+ * The file can also be a directory, like a workbook exported as one CSV file per sheet. Then the size is the total of
+ * the files in it, the last-modified time is the latest of them and the hash covers their names and contents.
+ *
+ * @author Ryan Whaley
+ */
+public class FileImportState {
+  private final File f_file;
+  private final String f_fileName;
+  private final long f_size;
+  private final long f_modified;
+  private final String[] f_entityIds;
+  private String m_hash;
+
+  /**
+   * Gets the state of a file as it is on disk now, the hash is computed when it's first asked for
+   * @param file a file in the filesystem
+   * @return the current state of the file
+   */
+  public static FileImportState of(File file) {
+    if (file.isDirectory()) {
+      long size = 0;
+      long modified = file.lastModified();
+      for (File child : listChildren(file)) {
+        size += child.length();
+        modified = Math.max(modified, child.lastModified());
+      }
+      return new FileImportState(file, file.getName(), size, modified, null, null);
+    }
+    return new FileImportState(file, file.getName(), file.length(), file.lastModified(), null, null);
+  }
+
+  private static File[] listChildren(File dir) {
+    File[] children = Objects.requireNonNull(dir.listFiles(File::isFile), "Couldn't list " + dir);
+    Arrays.sort(children, Comparator.comparing(File::getName));
+    return children;
+  }
+
+  FileImportState(File file, String fileName, long size, long modified, String hash, String[] entityIds) {
+    f_file = file;
+    f_fileName = fileName;
+    f_size = size;
+    f_modified = modified;
+    m_hash = hash;
+    f_entityIds = entityIds;
+  }
+
+  public String getFileName() {
+    return f_fileName;
+  }
+
+  public long getSize() {
+    return f_size;
+  }
+
+  public long getModified() {
+    return f_modified;
+  }
+
+  /**
+   * Gets the entity IDs (gene symbols or drug IDs) the file had data for when it was imported
+   * @return an array of entity IDs, null if they weren't recorded
+   */
+  public String[] getEntityIds() {
+    return f_entityIds;
+  }
+
+  /**
+   * Gets the SHA-256 hash of the file contents as a hex String
+   * @return a hex String hash
+   */
+  public synchronized String getHash() {
+    if (m_hash == null) {
+      Objects.requireNonNull(f_file, "No file to hash for " + f_fileName);
+      try {
+        if (f_file.isDirectory()) {
+          Hasher hasher = Hashing.sha256().newHasher();
+          for (File child : listChildren(f_file)) {
+            hasher.putString(child.getName(), StandardCharsets.UTF_8);
+            hasher.putBytes(Files.toByteArray(child));
+          }
+          m_hash = hasher.hash().toString();
+        } else {
+          m_hash = Files.asByteSource(f_file).hash(Hashing.sha256()).toString();
+        }
+      } catch (IOException ex) {
+        throw new RuntimeException("Couldn't hash " + f_file, ex);
+      }
+    }
+    return m_hash;
+  }
+
+  /**
+   * Check whether the file has the same contents it had when it was last imported
+   * @param imported the state recorded at the last import, may be null
+   * @return true if the contents are the same, false if they changed or the file was never imported
+   */
+  public boolean isUnchangedFrom(FileImportState imported) {
+    if (imported == null || imported.m_hash == null) {
+      return false;
+    }
+    if (f_size == imported.f_size && f_modified == imported.f_modified) {
+      return true;
+    }
+    return f_size == imported.f_size && getHash().equals(imported.m_hash);
+  }
+
+  @Override
+  public String toString() {
+    return f_fileName + " (" + f_size + " bytes" + (f_entityIds != null ? ", " + Arrays.toString(f_entityIds) : "") + ")";
+  }
+}
@@ -16,6 +16,7 @@ public class FlywayMigrate {
   public static void main(String[] args) {
     Options options = new Options();
     options.addOption("r", false, "flag to reset (clean) the DB before migration");
+    options.addOption("p", false, "flag to repair the schema history before migration, needed when an applied migration has changed");
     CommandLineParser clParser = new DefaultParser();
 
     try {
@@ -31,6 +32,10 @@ public class FlywayMigrate {
         sf_logger.info("Cleaning DB, as requested");
         flyway.clean();
       }
+      if (cli.hasOption("p")) {
+        sf_logger.info("Repairing schema history, as requested");
+        flyway.repair();
+      }
 
       if (flyway.info().current() == null) {
         sf_logger.info("Starting fresh");
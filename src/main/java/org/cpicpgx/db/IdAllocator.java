@@ -0,0 +1,59 @@
+package org.cpicpgx.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Hands out new IDs from the <code>cpic_id</code> sequence that every table's ID defaults to. IDs are reserved from
+ * the sequence a block at a time with {@link CopyLoader#nextIds(Connection, int)} so getting an ID is usually just
+ * reading the next one from the block.
+ *
+ * Knowing a row's ID before it's written means child rows that refer to it don't have to wait for an
+ * <code>insert ... returning id</code>, parent and child rows can both be queued in {@link CopyLoader}s (or batches)
+ * and sent together later. IDs left over in a block are never used, the same as IDs from a rolled back insert.
+ *
+ * @author Ryan Whaley
+ */
+public class IdAllocator {
+  public static final int DEFAULT_BLOCK_SIZE = 100;
+
+  private final Connection f_conn;
+  private final int f_blockSize;
+  private int[] m_ids = new int[0];
+  private int m_next = 0;
+  private long m_reservedCount = 0;
+
+  /**
+   * Constructor
+   * @param conn the connection to reserve IDs on, this does not close it
+   * @param blockSize the number of IDs to reserve at once
+   */
+  public IdAllocator(Connection conn, int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be at least 1, got " + blockSize);
+    }
+    f_conn = conn;
+    f_blockSize = blockSize;
+  }
+
+  /**
+   * Gets a new ID, reserving another block of IDs when they've all been used
+   * @return a new ID
+   * @throws SQLException can occur when reserving IDs
+   */
+  public int next() throws SQLException {
+    if (m_next >= m_ids.length) {
+      m_ids = CopyLoader.nextIds(f_conn, f_blockSize);
+      m_next = 0;
+      m_reservedCount += m_ids.length;
+    }
+    return m_ids[m_next++];
+  }
+
+  /**
+   * @return the number of IDs reserved from the sequence so far
+   */
+  public long getReservedCount() {
+    return m_reservedCount;
+  }
+}
@@ -0,0 +1,381 @@
+package org.cpicpgx.db;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandles;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of the reference data importers use to validate and link what they read: genes, drugs,
+ * guidelines, allele definitions, alleles and gene results.
+ *
+ * Each table is read in one query the first time it's needed and the whole table is kept in memory, so looking up a
+ * value doesn't go to the DB. The cache is safe to use from more than one thread.
+ *
+ * Tables are read on their own autocommit connection, not the connection of a {@link Transaction} open on the current
+ * thread, so the cache only ever holds committed data. An importer that needs to see its own uncommitted writes should
+ * query its tables directly. Importers that write one of these tables must invalidate it (see
+ * {@link org.cpicpgx.importer.BaseDirectoryImporter}) so the next lookup reads it again.
+ *
+ * @author Ryan Whaley
+ */
+public class ReferenceData {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * The tables held in this cache
+   */
+  public enum Table {
+    GENE,
+    DRUG,
+    GUIDELINE,
+    ALLELE_DEFINITION,
+    ALLELE,
+    GENE_RESULT
+  }
+
+  private static final Section<Map<String, Gene>> sf_genes = new Section<>(Table.GENE, ReferenceData::loadGenes);
+  private static final Section<Map<String, Drug>> sf_drugs = new Section<>(Table.DRUG, ReferenceData::loadDrugs);
+  private static final Section<Map<String, Integer>> sf_guidelines = new Section<>(Table.GUIDELINE, ReferenceData::loadGuidelines);
+  private static final Section<Map<String, Map<String, Long>>> sf_alleleDefinitions = new Section<>(Table.ALLELE_DEFINITION, ReferenceData::loadAlleleDefinitions);
+  private static final Section<Map<String, Map<String, Allele>>> sf_alleles = new Section<>(Table.ALLELE, ReferenceData::loadAlleles);
+  private static final Section<Map<String, Map<String, String>>> sf_geneResults = new Section<>(Table.GENE_RESULT, ReferenceData::loadGeneResults);
+
+  private ReferenceData() {}
+
+  /**
+   * Read all tables into the cache now instead of on first use
+   * @throws SQLException can occur when querying the DB
+   */
+  public static void preload() throws SQLException {
+    for (Section<?> section : sections()) {
+      section.get();
+    }
+  }
+
+  /**
+   * Drop the cached data for the given tables, they'll be read again the next time they're used
+   * @param tables the tables that have been written to
+   */
+  public static void invalidate(Table... tables) {
+    for (Table table : tables) {
+      for (Section<?> section : sections()) {
+        if (section.f_table == table) {
+          section.invalidate();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets a gene
+   * @param symbol the HGNC symbol of the gene
+   * @return the gene, null if there's no such gene
+   * @throws SQLException can occur when reading the gene table
+   */
+  @Nullable
+  public static Gene getGene(@Nullable String symbol) throws SQLException {
+    if (symbol == null) return null;
+    return sf_genes.get().get(symbol);
+  }
+
+  /**
+   * Gets a drug by its name
+   * @param name the name of the drug, case insensitive
+   * @return the drug, null if there's no such drug
+   * @throws SQLException can occur when reading the drug table
+   */
+  @Nullable
+  public static Drug getDrug(@Nullable String name) throws SQLException {
+    String normalizedName = StringUtils.lowerCase(StringUtils.stripToNull(name));
+    if (normalizedName == null) return null;
+    return sf_drugs.get().get(normalizedName);
+  }
+
+  /**
+   * Gets the ID of a guideline
+   * @param url the URL of the guideline
+   * @return the guideline ID, null if there's no guideline with that URL
+   * @throws SQLException can occur when reading the guideline table
+   */
+  @Nullable
+  public static Integer getGuidelineId(@Nullable String url) throws SQLException {
+    String normalizedUrl = StringUtils.stripToNull(url);
+    if (normalizedUrl == null) return null;
+    return sf_guidelines.get().get(normalizedUrl);
+  }
+
+  /**
+   * Gets the allele definitions for a gene
+   * @param gene the HGNC symbol of the gene
+   * @return a map of allele definition name to ID, empty if there are none
+   * @throws SQLException can occur when reading the allele_definition table
+   */
+  @Nonnull
+  public static Map<String, Long> getAlleleDefinitionIds(String gene) throws SQLException {
+    return sf_alleleDefinitions.get().getOrDefault(gene, ImmutableMap.of());
+  }
+
+  /**
+   * Gets the alleles for a gene
+   * @param gene the HGNC symbol of the gene
+   * @return a map of allele name to allele, empty if there are none
+   * @throws SQLException can occur when reading the allele table
+   */
+  @Nonnull
+  public static Map<String, Allele> getAlleles(String gene) throws SQLException {
+    return sf_alleles.get().getOrDefault(gene, ImmutableMap.of());
+  }
+
+  /**
+   * Check whether any allele for a gene has the given clinical function
+   * @param gene the HGNC symbol of the gene
+   * @param clinicalFunction the clinical functional status to look for, case sensitive
+   * @return true if at least one allele of the gene has that function
+   * @throws SQLException can occur when reading the allele table
+   */
+  public static boolean hasAlleleFunction(String gene, String clinicalFunction) throws SQLException {
+    if (clinicalFunction == null) return false;
+    for (Allele allele : getAlleles(gene).values()) {
+      if (clinicalFunction.equals(allele.getClinicalFunctionalStatus())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets a gene result (phenotype) in the form it's written in the DB
+   * @param gene the HGNC symbol of the gene
+   * @param result the result text, case insensitive
+   * @return the result as written in the gene_result table, null if the gene has no such result
+   * @throws SQLException can occur when reading the gene_result table
+   */
+  @Nullable
+  public static String getGeneResult(String gene, @Nullable String result) throws SQLException {
+    if (result == null) return null;
+    return sf_geneResults.get().getOrDefault(gene, ImmutableMap.of()).get(result.toLowerCase());
+  }
+
+  private static Section<?>[] sections() {
+    return new Section<?>[]{sf_genes, sf_drugs, sf_guidelines, sf_alleleDefinitions, sf_alleles, sf_geneResults};
+  }
+
+  private static Map<String, Gene> loadGenes(Connection conn) throws SQLException {
+    ImmutableMap.Builder<String, Gene> genes = ImmutableMap.builder();
+    try (PreparedStatement stmt = conn.prepareStatement("select symbol, lookupmethod, chr from gene");
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        String lookupMethod = rs.getString(2);
+        genes.put(rs.getString(1), new Gene(rs.getString(1), lookupMethod == null ? null : LookupMethod.valueOf(lookupMethod), rs.getString(3)));
+      }
+    }
+    return genes.build();
+  }
+
+  private static Map<String, Drug> loadDrugs(Connection conn) throws SQLException {
+    Map<String, Drug> drugs = new HashMap<>();
+    try (PreparedStatement stmt = conn.prepareStatement("select drugid, name, guidelineid from drug");
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        Integer guidelineId = rs.getInt(3);
+        if (rs.wasNull()) {
+          guidelineId = null;
+        }
+        drugs.put(rs.getString(2).toLowerCase(), new Drug(rs.getString(1), rs.getString(2), guidelineId));
+      }
+    }
+    return ImmutableMap.copyOf(drugs);
+  }
+
+  private static Map<String, Integer> loadGuidelines(Connection conn) throws SQLException {
+    ImmutableMap.Builder<String, Integer> guidelines = ImmutableMap.builder();
+    try (PreparedStatement stmt = conn.prepareStatement("select url, id from guideline where url is not null");
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        guidelines.put(rs.getString(1), rs.getInt(2));
+      }
+    }
+    return guidelines.build();
+  }
+
+  private static Map<String, Map<String, Long>> loadAlleleDefinitions(Connection conn) throws SQLException {
+    Map<String, ImmutableMap.Builder<String, Long>> byGene = new HashMap<>();
+    try (PreparedStatement stmt = conn.prepareStatement("select genesymbol, name, id from allele_definition");
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        byGene.computeIfAbsent(rs.getString(1), g -> ImmutableMap.builder()).put(rs.getString(2), rs.getLong(3));
+      }
+    }
+    ImmutableMap.Builder<String, Map<String, Long>> definitions = ImmutableMap.builder();
+    byGene.forEach((gene, builder) -> definitions.put(gene, builder.build()));
+    return definitions.build();
+  }
+
+  private static Map<String, Map<String, Allele>> loadAlleles(Connection conn) throws SQLException {
+    Map<String, ImmutableMap.Builder<String, Allele>> byGene = new HashMap<>();
+    try (PreparedStatement stmt = conn.prepareStatement("select genesymbol, name, id, clinicalfunctionalstatus from allele");
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        byGene.computeIfAbsent(rs.getString(1), g -> ImmutableMap.builder())
+            .put(rs.getString(2), new Allele(rs.getLong(3), rs.getString(2), rs.getString(4)));
+      }
+    }
+    ImmutableMap.Builder<String, Map<String, Allele>> alleles = ImmutableMap.builder();
+    byGene.forEach((gene, builder) -> alleles.put(gene, builder.build()));
+    return alleles.build();
+  }
+
+  private static Map<String, Map<String, String>> loadGeneResults(Connection conn) throws SQLException {
+    Map<String, Map<String, String>> byGene = new HashMap<>();
+    try (PreparedStatement stmt = conn.prepareStatement("select genesymbol, result from gene_result");
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        byGene.computeIfAbsent(rs.getString(1), g -> new HashMap<>()).putIfAbsent(rs.getString(2).toLowerCase(), rs.getString(2));
+      }
+    }
+    ImmutableMap.Builder<String, Map<String, String>> results = ImmutableMap.builder();
+    byGene.forEach((gene, map) -> results.put(gene, ImmutableMap.copyOf(map)));
+    return results.build();
+  }
+
+  /**
+   * The cached contents of one table. Reading and dropping the data are synchronized so data read before an
+   * invalidation can't be cached after it.
+   */
+  private static class Section<T> {
+    private final Table f_table;
+    private final Loader<T> f_loader;
+    private volatile T m_value;
+
+    Section(Table table, Loader<T> loader) {
+      f_table = table;
+      f_loader = loader;
+    }
+
+    T get() throws SQLException {
+      T value = m_value;
+      if (value != null) {
+        return value;
+      }
+      synchronized (this) {
+        if (m_value == null) {
+          long start = System.currentTimeMillis();
+          // read outside any open transaction so a rollback or a long running import can't leave its state in here
+          try (Connection conn = ConnectionFactory.openConnection()) {
+            m_value = f_loader.load(conn);
+          }
+          sf_logger.debug("Loaded {} reference data in {} ms", f_table, System.currentTimeMillis() - start);
+        }
+        return m_value;
+      }
+    }
+
+    synchronized void invalidate() {
+      if (m_value != null) {
+        sf_logger.debug("Invalidated {} reference data", f_table);
+      }
+      m_value = null;
+    }
+  }
+
+  @FunctionalInterface
+  private interface Loader<T> {
+    T load(Connection conn) throws SQLException;
+  }
+
+  /**
+   * A gene and the fields importers need from it
+   */
+  public static class Gene {
+    private final String symbol;
+    private final LookupMethod lookupMethod;
+    private final String chr;
+
+    private Gene(String symbol, LookupMethod lookupMethod, String chr) {
+      this.symbol = symbol;
+      this.lookupMethod = lookupMethod;
+      this.chr = chr;
+    }
+
+    public String getSymbol() {
+      return symbol;
+    }
+
+    @Nullable
+    public LookupMethod getLookupMethod() {
+      return lookupMethod;
+    }
+
+    @Nullable
+    public String getChr() {
+      return chr;
+    }
+  }
+
+  /**
+   * A drug and the fields importers need from it
+   */
+  public static class Drug {
+    private final String drugId;
+    private final String name;
+    private final Integer guidelineId;
+
+    private Drug(String drugId, String name, Integer guidelineId) {
+      this.drugId = drugId;
+      this.name = name;
+      this.guidelineId = guidelineId;
+    }
+
+    public String getDrugId() {
+      return drugId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    @Nullable
+    public Integer getGuidelineId() {
+      return guidelineId;
+    }
+  }
+
+  /**
+   * An allele and the fields importers need from it
+   */
+  public static class Allele {
+    private final long id;
+    private final String name;
+    private final String clinicalFunctionalStatus;
+
+    private Allele(long id, String name, String clinicalFunctionalStatus) {
+      this.id = id;
+      this.name = name;
+      this.clinicalFunctionalStatus = clinicalFunctionalStatus;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    @Nullable
+    public String getClinicalFunctionalStatus() {
+      return clinicalFunctionalStatus;
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package org.cpicpgx.db;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.io.CharStreams;
+import org.flywaydb.core.Flyway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Loads data into a fresh copy of the schema and then swaps it in for the live schema so readers never see a
+ * half-loaded DB.
+ *
+ * The staging schema is named after the live schema (the CPIC_SCHEMA environment variable) with a
+ * <code>_staging</code> suffix. It's built from scratch with the Flyway migrations and all new connections from
+ * {@link ConnectionFactory} use it until it's swapped in or abandoned. Tables are made unlogged while loading since a
+ * crash only means loading again, they're made logged again before the swap.
+ *
+ * The <code>file_artifact</code> and <code>file_artifact_history</code> tables record exports and uploads as well as
+ * imports, and those keep being written to the live schema while staging loads. Just before the swap the live rows of
+ * those two tables that the staging schema doesn't have are copied over so that history isn't lost.
+ *
+ * Before the swap the row counts of the staging tables are compared to the live tables. A table that has gone empty or
+ * shrunk by more than the allowed fraction (CPIC_SWAP_TOLERANCE, default 0.1) stops the swap, and so does a function
+ * the live schema has that staging doesn't. The swap renames the live schema to <code>_previous</code> and the staging
+ * schema to the live name in one transaction, so readers see either all of the old data or all of the new data. The
+ * previous schema is kept until the next load in case it's needed.
+ *
+ * Migrations have to use unqualified names, or the <code>${flyway:defaultSchema}</code> placeholder, so their objects
+ * are made in the schema Flyway is migrating. An object made in a schema by name would be made in the live schema, not
+ * in staging, and go away with the previous schema.
+ *
+ * @author Ryan Whaley
+ */
+public class StagingSchema {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final String FLYWAY_TABLE = "flyway_schema_history";
+  private static final String PERMISSIONS_SCRIPT = "/db/migration/R__apply_permissions.sql";
+  private static final String SCHEMA_PLACEHOLDER = "${flyway:defaultSchema}";
+  private static final double sf_tolerance = Double.parseDouble(MoreObjects.firstNonNull(System.getenv("CPIC_SWAP_TOLERANCE"), "0.1"));
+
+  private final String f_liveSchema;
+  private final String f_stagingSchema;
+  private final String f_previousSchema;
+
+  public StagingSchema() {
+    f_liveSchema = ConnectionFactory.getSchema();
+    f_stagingSchema = f_liveSchema + "_staging";
+    f_previousSchema = f_liveSchema + "_previous";
+  }
+
+  public String getName() {
+    return f_stagingSchema;
+  }
+
+  /**
+   * Make a new, empty staging schema with the Flyway migrations and point all new connections at it
+   * @throws SQLException can occur when building the schema
+   */
+  public void create() throws SQLException {
+    try (Connection conn = ConnectionFactory.openConnection();
+         Statement stmt = conn.createStatement()) {
+      stmt.execute("drop schema if exists " + f_stagingSchema + " cascade");
+    }
+
+    Flyway flyway = Flyway.configure().dataSource(
+        ConnectionFactory.getJdbcUrl(),
+        ConnectionFactory.getUser(),
+        ConnectionFactory.getPass()
+    ).schemas(f_stagingSchema).load();
+    int migrations = flyway.migrate();
+    sf_logger.info("Created staging schema {} with {} migrations", f_stagingSchema, migrations);
+
+    ConnectionFactory.setActiveSchema(f_stagingSchema);
+    setLogged(false);
+  }
+
+  /**
+   * Check the staging data against the live data and, if it's fine, swap the staging schema in for the live one.
+   * Connections go back to the live schema afterwards.
+   * @throws SQLException can occur when validating or swapping
+   */
+  public void swap() throws SQLException {
+    setLogged(true);
+
+    ConnectionFactory.setActiveSchema(f_liveSchema);
+    try (Connection conn = ConnectionFactory.openConnection()) {
+      conn.setAutoCommit(false);
+      try (Statement stmt = conn.createStatement()) {
+        copyAuditTables(conn);
+        validate(conn);
+
+        stmt.execute("drop schema if exists " + f_previousSchema + " cascade");
+        stmt.execute("alter schema " + f_liveSchema + " rename to " + f_previousSchema);
+        stmt.execute("alter schema " + f_stagingSchema + " rename to " + f_liveSchema);
+        stmt.execute(readPermissionsScript().replace(SCHEMA_PLACEHOLDER, f_liveSchema));
+        conn.commit();
+      } catch (SQLException | RuntimeException ex) {
+        conn.rollback();
+        throw ex;
+      }
+    }
+    ReferenceData.invalidate(ReferenceData.Table.values());
+    sf_logger.info("Swapped {} in for {}, old data is in {}", f_stagingSchema, f_liveSchema, f_previousSchema);
+  }
+
+  /**
+   * Stop using the staging schema and point connections back at the live schema. The staging schema is left as it is
+   * so it can be looked at, it's dropped the next time a staging schema is created.
+   */
+  public void abandon() {
+    ConnectionFactory.setActiveSchema(f_liveSchema);
+    sf_logger.warn("Abandoned staging schema {}, live schema {} is unchanged", f_stagingSchema, f_liveSchema);
+  }
+
+  /**
+   * Copy the rows of <code>file_artifact</code> and <code>file_artifact_history</code> from live that staging doesn't
+   * have. Files are matched by
+   * name since the same file gets a different ID in each schema. A file staging already has keeps its staging import
+   * state and gets the live upload URL if it doesn't have one.
+   */
+  private void copyAuditTables(Connection conn) throws SQLException {
+    String live = f_liveSchema;
+    String staging = f_stagingSchema;
+    try (Statement stmt = conn.createStatement()) {
+      int files = stmt.executeUpdate(
+          "insert into " + staging + ".file_artifact(entityIds, type, fileName, url, contentHash, contentSize, contentModified) " +
+              "select l.entityIds, l.type, l.fileName, l.url, l.contentHash, l.contentSize, l.contentModified " +
+              "from " + live + ".file_artifact l " +
+              "where not exists (select 1 from " + staging + ".file_artifact s where s.fileName = l.fileName)");
+      stmt.executeUpdate(
+          "update " + staging + ".file_artifact s set url = l.url from " + live + ".file_artifact l " +
+              "where s.fileName = l.fileName and s.url is null and l.url is not null");
+      int history = stmt.executeUpdate(
+          "insert into " + staging + ".file_artifact_history(fileId, source, changeDate, changeMessage) " +
+              "select s.id, h.source, h.changeDate, h.changeMessage " +
+              "from " + live + ".file_artifact_history h " +
+              "join " + live + ".file_artifact l on h.fileId = l.id " +
+              "join " + staging + ".file_artifact s on s.fileName = l.fileName " +
+              "on conflict (fileId, changeDate) do nothing");
+      sf_logger.info("Copied {} file artifacts and {} history entries from {}", files, history, live);
+    }
+  }
+
+  /**
+   * Compare row counts of every table in the staging schema with the live schema, and check staging has all the live
+   * functions
+   */
+  private void validate(Connection conn) throws SQLException {
+    Map<String, Long> liveCounts = countRows(conn, f_liveSchema);
+    Map<String, Long> stagingCounts = countRows(conn, f_stagingSchema);
+
+    List<String> problems = new ArrayList<>();
+    for (Map.Entry<String, Long> staging : stagingCounts.entrySet()) {
+      long liveCount = liveCounts.getOrDefault(staging.getKey(), 0L);
+      long stagingCount = staging.getValue();
+      sf_logger.info("{}: {} rows (live {})", staging.getKey(), stagingCount, liveCount);
+      if (liveCount > 0 && stagingCount == 0) {
+        problems.add(String.format("%s is empty, live has %d rows", staging.getKey(), liveCount));
+      } else if (stagingCount < liveCount * (1 - sf_tolerance)) {
+        problems.add(String.format("%s has %d rows, live has %d", staging.getKey(), stagingCount, liveCount));
+      }
+    }
+    for (String table : liveCounts.keySet()) {
+      if (!stagingCounts.containsKey(table)) {
+        problems.add(String.format("%s is missing from staging", table));
+      }
+    }
+    Set<String> stagingFunctions = listFunctions(conn, f_stagingSchema);
+    for (String function : listFunctions(conn, f_liveSchema)) {
+      if (!stagingFunctions.contains(function)) {
+        problems.add(String.format("function %s is missing from staging", function));
+      }
+    }
+
+    if (problems.size() > 0) {
+      throw new IllegalStateException("Staging schema " + f_stagingSchema + " failed validation, not swapping:\n  " + String.join("\n  ", problems));
+    }
+  }
+
+  private static Map<String, Long> countRows(Connection conn, String schema) throws SQLException {
+    Map<String, Long> counts = new TreeMap<>();
+    for (String table : listTables(conn, schema)) {
+      try (Statement stmt = conn.createStatement();
+           ResultSet rs = stmt.executeQuery("select count(*) from " + schema + "." + table)) {
+        rs.next();
+        counts.put(table, rs.getLong(1));
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Make all staging tables logged or unlogged. Postgres won't let a logged table reference an unlogged one so tables
+   * are made unlogged starting from the tables nothing else references, and logged in the opposite order.
+   * @param logged true to make tables logged, false for unlogged
+   */
+  private void setLogged(boolean logged) throws SQLException {
+    long start = System.currentTimeMillis();
+    try (Connection conn = ConnectionFactory.openConnection();
+         Statement stmt = conn.createStatement()) {
+      List<String> tables = referencedFirst(conn, f_stagingSchema);
+      if (!logged) {
+        Collections.reverse(tables);
+      }
+      for (String table : tables) {
+        stmt.execute("alter table " + f_stagingSchema + "." + table + (logged ? " set logged" : " set unlogged"));
+      }
+    }
+    sf_logger.info("Made {} tables {} in {} ms", f_stagingSchema, logged ? "logged" : "unlogged", System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Lists the tables in a schema ordered so every table comes after the tables its foreign keys refer to
+   */
+  private static List<String> referencedFirst(Connection conn, String schema) throws SQLException {
+    Map<String, Set<String>> references = new LinkedHashMap<>();
+    for (String table : listTables(conn, schema)) {
+      references.put(table, new HashSet<>());
+    }
+    try (PreparedStatement stmt = conn.prepareStatement(
+        "select t.relname, r.relname from pg_constraint c " +
+            "join pg_class t on c.conrelid = t.oid join pg_class r on c.confrelid = r.oid " +
+            "join pg_namespace n on t.relnamespace = n.oid " +
+            "where c.contype = 'f' and n.nspname = ? and c.conrelid <> c.confrelid")) {
+      stmt.setString(1, schema);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          if (references.containsKey(rs.getString(1)) && references.containsKey(rs.getString(2))) {
+            references.get(rs.getString(1)).add(rs.getString(2));
+          }
+        }
+      }
+    }
+
+    List<String> ordered = new ArrayList<>();
+    Set<String> done = new HashSet<>();
+    while (ordered.size() < references.size()) {
+      boolean progress = false;
+      for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+        if (!done.contains(entry.getKey()) && done.containsAll(entry.getValue())) {
+          ordered.add(entry.getKey());
+          done.add(entry.getKey());
+          progress = true;
+        }
+      }
+      if (!progress) {
+        throw new IllegalStateException("Foreign key cycle between tables in " + schema);
+      }
+    }
+    return ordered;
+  }
+
+  private static List<String> listTables(Connection conn, String schema) throws SQLException {
+    List<String> tables = new ArrayList<>();
+    try (PreparedStatement stmt = conn.prepareStatement(
+        "select c.relname from pg_class c join pg_namespace n on c.relnamespace = n.oid " +
+            "where c.relkind = 'r' and n.nspname = ? and c.relname <> ? order by c.relname")) {
+      stmt.setString(1, schema);
+      stmt.setString(2, FLYWAY_TABLE);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          tables.add(rs.getString(1));
+        }
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Lists the plain functions in a schema, not aggregates or procedures. <code>prokind</code> is only there from 
+   * Postgres 11, older servers mark aggregates and window functions with flags instead.
+   */
+  private static Set<String> listFunctions(Connection conn, String schema) throws SQLException {
+    String plainFunction = conn.getMetaData().getDatabaseMajorVersion() >= 11
+        ? "p.prokind = 'f'"
+        : "not p.proisagg and not p.proiswindow";
+    Set<String> functions = new TreeSet<>();
+    try (PreparedStatement stmt = conn.prepareStatement(
+        "select p.proname from pg_proc p join pg_namespace n on p.pronamespace = n.oid " +
+            "where n.nspname = ? and " + plainFunction)) {
+      stmt.setString(1, schema);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          functions.add(rs.getString(1));
+        }
+      }
+    }
+    return functions;
+  }
+
+  private static String readPermissionsScript() {
+    try (InputStream in = StagingSchema.class.getResourceAsStream(PERMISSIONS_SCRIPT)) {
+      if (in == null) {
+        throw new IllegalStateException("Missing " + PERMISSIONS_SCRIPT);
+      }
+      return CharStreams.toString(new InputStreamReader(in, StandardCharsets.UTF_8));
+    } catch (IOException ex) {
+      throw new RuntimeException("Couldn't read " + PERMISSIONS_SCRIPT, ex);
+    }
+  }
+}
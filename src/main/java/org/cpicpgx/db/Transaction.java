@@ -0,0 +1,250 @@
+package org.cpicpgx.db;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A unit of work that groups all DB writes made on the current thread into one transaction.
+ *
+ * While a transaction is open, {@link ConnectionFactory#newConnection()} called on the same thread returns the
+ * transaction's connection instead of a new one, so existing code that opens and closes its own connections takes part
+ * in the transaction without changes. Closing one of those connections does nothing, the connection is closed when the
+ * transaction is closed.
+ *
+ * Use it in a <code>try</code> block and call {@link Transaction#commit()} at the end, anything not committed when the
+ * transaction is closed is rolled back:
+ * <pre>
+ *   try (Transaction tx = Transaction.begin("my file")) {
+ *     // do writes
+ *     tx.commit();
+ *   }
+ * </pre>
+ *
+ * Calling {@link Transaction#begin(String)} when a transaction is already open on this thread joins the open
+ * transaction, only the outermost one commits or rolls back. If a joined transaction is closed without being committed
+ * the outermost transaction can only roll back. The same goes for code that calls <code>rollback()</code> on the
+ * transaction's connection, the rollback waits for the outermost transaction to close and it can no longer commit.
+ * Savepoints work as usual, rolling back to a savepoint only undoes the work done since the savepoint and the 
+ * transaction can still commit.
+ *
+ * Work handed to other threads can join the transaction with {@link Transaction#propagate(Runnable)}. Those threads
+ * share the one connection so don't use it from more than one thread at a time.
+ *
+ * @author Ryan Whaley
+ */
+public class Transaction implements AutoCloseable {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final ThreadLocal<Transaction> sf_current = new ThreadLocal<>();
+
+  /**
+   * How much work to group in one transaction when importing
+   */
+  public enum Scope {
+    /** every statement commits on its own (autocommit) */
+    NONE,
+    /** one transaction for each file */
+    WORKBOOK,
+    /** one transaction for all the files of an importer */
+    IMPORTER
+  }
+
+  /**
+   * The default transaction scope for importers, override with the CPIC_TRANSACTION environment variable
+   */
+  public static final Scope SCOPE = Scope.valueOf(StringUtils.defaultIfBlank(System.getenv("CPIC_TRANSACTION"), Scope.WORKBOOK.name()).toUpperCase());
+
+  private final String f_name;
+  private final Connection f_conn;
+  private final Connection f_sharedConn;
+  private final Transaction f_outer;
+  private final List<Runnable> f_afterCommit = Collections.synchronizedList(new ArrayList<>());
+  private boolean m_committed = false;
+  private volatile boolean m_rollbackOnly = false;
+
+  Transaction(String name, Connection conn, Transaction outer) {
+    f_name = name;
+    f_conn = conn;
+    f_outer = outer;
+    f_sharedConn = conn == null ? null : makeShared();
+  }
+
+  /**
+   * Start a transaction on this thread, or join the one already open on this thread
+   * @param name a name for this transaction to use in log messages
+   * @return an open transaction
+   * @throws SQLException can occur when connecting to the DB
+   */
+  public static Transaction begin(String name) throws SQLException {
+    Transaction outer = sf_current.get();
+    if (outer != null) {
+      return new Transaction(name, null, outer);
+    }
+
+    Connection conn = ConnectionFactory.openConnection();
+    try {
+      conn.setAutoCommit(false);
+    } catch (SQLException ex) {
+      conn.close();
+      throw ex;
+    }
+    Transaction tx = new Transaction(name, conn, null);
+    sf_current.set(tx);
+    sf_logger.debug("Began transaction for {}", name);
+    return tx;
+  }
+
+  /**
+   * Gets the transaction open on this thread
+   * @return the open transaction, null if there isn't one
+   */
+  public static Transaction current() {
+    return sf_current.get();
+  }
+
+  /**
+   * Wraps the given work so that it runs in the transaction that is open on this thread right now, if there is one.
+   * Use this to hand work to another thread.
+   * @param work the work to run
+   * @return work that will join this thread's current transaction
+   */
+  public static Runnable propagate(Runnable work) {
+    Transaction tx = current();
+    if (tx == null) {
+      return work;
+    }
+    return () -> {
+      Transaction previous = sf_current.get();
+      sf_current.set(tx);
+      try {
+        work.run();
+      } finally {
+        if (previous == null) {
+          sf_current.remove();
+        } else {
+          sf_current.set(previous);
+        }
+      }
+    };
+  }
+
+  /**
+   * Gets a connection for this transaction. Closing it does nothing, it's closed when the transaction is closed.
+   * @return a connection in this transaction
+   */
+  Connection getConnection() {
+    return f_outer != null ? f_outer.getConnection() : f_sharedConn;
+  }
+
+  /**
+   * Run the given action once this transaction commits, for work outside the DB that should only happen if the writes
+   * are kept. The action is dropped if the transaction rolls back. In a joined transaction the action waits for the
+   * outermost transaction to commit.
+   * @param action work to run after the commit, on the committing thread
+   */
+  public void afterCommit(Runnable action) {
+    if (f_outer != null) {
+      f_outer.afterCommit(action);
+    } else {
+      f_afterCommit.add(action);
+    }
+  }
+
+  /**
+   * Commit all the work done in this transaction. Does nothing for a transaction that joined another one, the
+   * outermost transaction does the commit.
+   * @throws SQLException can occur when committing, or if a joined transaction was closed without committing
+   */
+  public void commit() throws SQLException {
+    if (f_outer != null) {
+      m_committed = true;
+      return;
+    }
+    if (m_rollbackOnly) {
+      throw new SQLException("Can't commit " + f_name + ", part of the work in this transaction failed");
+    }
+    m_committed = true;
+
+    long start = System.currentTimeMillis();
+    f_conn.commit();
+    sf_logger.debug("Committed transaction for {} in {} ms", f_name, System.currentTimeMillis() - start);
+
+    synchronized (f_afterCommit) {
+      f_afterCommit.forEach(Runnable::run);
+      f_afterCommit.clear();
+    }
+  }
+
+  /**
+   * Roll back anything not committed and close the connection
+   * @throws SQLException can occur when rolling back or closing
+   */
+  @Override
+  public void close() throws SQLException {
+    if (f_outer != null) {
+      if (!m_committed) {
+        sf_logger.debug("Joined transaction for {} not committed, {} will roll back", f_name, f_outer.f_name);
+        f_outer.m_rollbackOnly = true;
+      }
+      return;
+    }
+
+    sf_current.remove();
+    try {
+      if (!m_committed && !f_conn.isClosed()) {
+        sf_logger.warn("Rolling back transaction for {}", f_name);
+        f_conn.rollback();
+      }
+    } finally {
+      f_conn.close();
+    }
+  }
+
+  /**
+   * Makes a view of the connection that can't be closed, committed or rolled back by the code that uses it. A rollback
+   * marks the transaction so it can't commit, a rollback to a savepoint goes to the connection.
+   */
+  private Connection makeShared() {
+    return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "close":
+        case "commit":
+        case "setAutoCommit":
+          return null;
+        case "rollback":
+          if (args != null && args.length > 0) {
+            return invoke(method, args);
+          }
+          if (!m_rollbackOnly) {
+            sf_logger.warn("Rollback requested in transaction for {}, it will roll back when closed", f_name);
+            m_rollbackOnly = true;
+          }
+          return null;
+        case "setTransactionIsolation":
+          throw new SQLException("Can't change the isolation level of the transaction for " + f_name);
+        case "isClosed":
+          return f_conn.isClosed();
+        default:
+          return invoke(method, args);
+      }
+    });
+  }
+
+  private Object invoke(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(f_conn, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package org.cpicpgx.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandles;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+
+/**
+ * A queue for low priority audit writes (change log entries, file notes and export history) so they don't hold up the
+ * data they describe. Writes are queued with the statement to run and sent by one background thread that has its own
+ * connection, runs of the same statement are sent as one JDBC batch and everything it takes off the queue at once is
+ * committed together. Writes are sent in the order they were queued.
+ *
+ * A write queued while a {@link Transaction} is open on the current thread is held until the transaction commits, so
+ * it's dropped along with the data if the transaction rolls back. The writes are committed after the data, so the data
+ * is kept if they fail. Nothing an import depends on goes through here: the import state of a file is written in the
+ * file's own transaction, and importers clear it again when a flush fails so an incremental import loads the file again.
+ *
+ * Writes are tagged with an owner, usually the name of the {@link org.cpicpgx.model.FileType} being imported or
+ * exported. Call {@link WriteBehindQueue#flush(String)} when the owner is done, it waits until everything queued so far
+ * has been written and then reports any writes for that owner that failed.
+ *
+ * @author Ryan Whaley
+ */
+public class WriteBehindQueue {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final int QUEUE_CAPACITY = 10000;
+  private static final int BATCH_SIZE = 500;
+  private static final WriteBehindQueue sf_shared = new WriteBehindQueue(ConnectionFactory::openConnection, QUEUE_CAPACITY, BATCH_SIZE);
+
+  private final Callable<Connection> f_connections;
+  private final int f_batchSize;
+  private final BlockingQueue<Write> f_queue;
+  private final Map<String, Failure> f_failures = new HashMap<>();
+  private final Object f_lock = new Object();
+  private Thread m_writer;
+  private long m_queued = 0;
+  private long m_written = 0;
+
+  /**
+   * Gets the queue shared by everything in this process
+   */
+  public static WriteBehindQueue shared() {
+    return sf_shared;
+  }
+
+  /**
+   * Constructor
+   * @param connections where the writer gets a connection when it has writes to send
+   * @param capacity the number of writes that can wait in the queue, queueing more blocks until there's room
+   * @param batchSize the max number of writes to send at once
+   */
+  WriteBehindQueue(Callable<Connection> connections, int capacity, int batchSize) {
+    f_connections = connections;
+    f_queue = new ArrayBlockingQueue<>(capacity);
+    f_batchSize = batchSize;
+  }
+
+  /**
+   * Queue a write
+   * @param owner what the write is for, failures are reported to this owner by {@link WriteBehindQueue#flush(String)}
+   * @param sourceRow the 1-based number of the row in the source file for error messages, -1 if there isn't one
+   * @param sql an insert or update statement
+   * @param params the parameters of the statement, a String[] is sent as a text array
+   */
+  public void add(@Nonnull String owner, int sourceRow, @Nonnull String sql, Object... params) {
+    Write write = new Write(owner, sourceRow, sql, params);
+    Transaction tx = Transaction.current();
+    if (tx != null) {
+      tx.afterCommit(() -> put(write));
+    } else {
+      put(write);
+    }
+  }
+
+  private void put(Write write) {
+    synchronized (f_lock) {
+      m_queued += 1;
+      if (m_writer == null || !m_writer.isAlive()) {
+        m_writer = new Thread(this::run, "cpic-write-behind");
+        m_writer.setDaemon(true);
+        m_writer.start();
+      }
+    }
+    try {
+      f_queue.put(write);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      fail(Collections.singletonList(write), new SQLException("Interrupted while queueing write"));
+      finished(1);
+    }
+  }
+
+  /**
+   * Wait until everything queued so far has been written
+   * @param owner the owner to report failures for
+   * @throws SQLException if any writes for the owner failed since the last flush, the first failure is the cause
+   */
+  public void flush(@Nonnull String owner) throws SQLException {
+    Failure failure;
+    synchronized (f_lock) {
+      long target = m_queued;
+      while (m_written < target) {
+        try {
+          f_lock.wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted waiting for writes for " + owner);
+        }
+      }
+      failure = f_failures.remove(owner);
+    }
+    if (failure != null) {
+      throw new SQLException(String.format("%d writes for %s failed: %s", failure.count, owner, failure.first.getMessage()), failure.first);
+    }
+  }
+
+  private void run() {
+    while (true) {
+      List<Write> writes = new ArrayList<>();
+      try {
+        writes.add(f_queue.take());
+      } catch (InterruptedException ex) {
+        return;
+      }
+      // the connection is kept while there's more to write and given back when the queue is empty
+      try (Connection conn = f_connections.call()) {
+        while (!writes.isEmpty()) {
+          f_queue.drainTo(writes, f_batchSize - writes.size());
+          send(conn, writes);
+          finished(writes.size());
+          writes.clear();
+          Write next = f_queue.poll();
+          if (next != null) {
+            writes.add(next);
+          }
+        }
+      } catch (Exception ex) {
+        // couldn't connect, or lost the connection
+        fail(writes, ex instanceof SQLException ? (SQLException)ex : new SQLException(ex));
+        finished(writes.size());
+      }
+    }
+  }
+
+  /**
+   * Sends the writes in one transaction. If that fails they're sent again one at a time so only the ones that fail on
+   * their own are lost.
+   */
+  private void send(Connection conn, List<Write> writes) throws SQLException {
+    conn.setAutoCommit(false);
+    try {
+      sendBatches(conn, writes);
+      conn.commit();
+      sf_logger.debug("Wrote {} queued writes", writes.size());
+      return;
+    } catch (SQLException ex) {
+      conn.rollback();
+      sf_logger.debug("Batch of {} queued writes failed, sending them one at a time", writes.size(), ex);
+    } finally {
+      conn.setAutoCommit(true);
+    }
+
+    for (Write write : writes) {
+      try (PreparedStatement stmt = conn.prepareStatement(write.sql)) {
+        write.bind(conn, stmt);
+        stmt.executeUpdate();
+      } catch (SQLException ex) {
+        fail(Collections.singletonList(write), ex);
+      }
+    }
+  }
+
+  /**
+   * Sends each run of writes with the same statement as one JDBC batch
+   */
+  private static void sendBatches(Connection conn, List<Write> writes) throws SQLException {
+    int start = 0;
+    while (start < writes.size()) {
+      String sql = writes.get(start).sql;
+      int end = start;
+      try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        while (end < writes.size() && writes.get(end).sql.equals(sql)) {
+          writes.get(end).bind(conn, stmt);
+          stmt.addBatch();
+          end += 1;
+        }
+        stmt.executeBatch();
+      }
+      start = end;
+    }
+  }
+
+  private void fail(List<Write> writes, SQLException ex) {
+    synchronized (f_lock) {
+      for (Write write : writes) {
+        String message = write.sourceRow > 0
+            ? String.format("Error writing row %d for %s: %s", write.sourceRow, write.owner, ex.getMessage())
+            : String.format("Error writing for %s: %s", write.owner, ex.getMessage());
+        sf_logger.warn(message);
+        Failure failure = f_failures.computeIfAbsent(write.owner, o -> new Failure(new SQLException(message, ex.getSQLState(), ex)));
+        failure.count += 1;
+      }
+    }
+  }
+
+  private void finished(int count) {
+    synchronized (f_lock) {
+      m_written += count;
+      f_lock.notifyAll();
+    }
+  }
+
+  private static class Write {
+    private final String owner;
+    private final int sourceRow;
+    private final String sql;
+    private final Object[] params;
+
+    private Write(String owner, int sourceRow, String sql, Object[] params) {
+      this.owner = owner;
+      this.sourceRow = sourceRow;
+      this.sql = sql;
+      this.params = params;
+    }
+
+    private void bind(Connection conn, PreparedStatement stmt) throws SQLException {
+      for (int i = 0; i < params.length; i++) {
+        Object param = params[i];
+        if (param == null) {
+          stmt.setNull(i + 1, Types.OTHER);
+        } else if (param instanceof String[]) {
+          stmt.setArray(i + 1, conn.createArrayOf("text", (String[])param));
+        } else {
+          stmt.setObject(i + 1, param);
+        }
+      }
+    }
+  }
+
+  private static class Failure {
+    private final SQLException first;
+    private int count = 0;
+
+    private Failure(SQLException first) {
+      this.first = first;
+    }
+  }
+}
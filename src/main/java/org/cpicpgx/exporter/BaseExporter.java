@@ -3,6 +3,7 @@ package org.cpicpgx.exporter;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.db.FileHistoryWriter;
+import org.cpicpgx.db.WriteBehindQueue;
 import org.cpicpgx.model.FileType;
 import org.cpicpgx.util.FileStoreClient;
 import org.slf4j.Logger;
@@ -109,14 +110,19 @@ public abstract class BaseExporter {
 
   /**
    * This method will check if user wants to upload and then upload the generated files to S3 and put them in the 
-   * proper directory if the user has flagged that they want upload.
+   * proper directory if the user has flagged that they want upload. Exporters call this when they're done so it also 
+   * waits for the file history they queued to be written.
    */
   void handleFileUpload() {
-    if (!upload) {
-      return;
+    if (upload) {
+      try (FileStoreClient fileStore = new FileStoreClient()) {
+        generatedFiles.forEach(f -> fileStore.putArtifact(f, getFileType()));
+      }
     }
-    try (FileStoreClient fileStore = new FileStoreClient()) {
-      generatedFiles.forEach(f -> fileStore.putArtifact(f, getFileType()));
+    try {
+      WriteBehindQueue.shared().flush(getFileType().name());
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error writing file history for " + getFileType().name(), ex);
     }
   }
 
@@ -171,9 +177,12 @@ public abstract class BaseExporter {
     return changeLog;
   }
 
-  void addFileExportHistory(String fileName, String[] entityIds) throws Exception {
-    try (FileHistoryWriter historyWriter = new FileHistoryWriter(getFileType())) {
-      historyWriter.writeExport(fileName, entityIds);
-    }
+  /**
+   * Queues a record that the file was exported, it's written by the time {@link BaseExporter#handleFileUpload()} returns
+   * @param fileName the name of the exported file
+   * @param entityIds the IDs of the entities in the file
+   */
+  void addFileExportHistory(String fileName, String[] entityIds) {
+    FileHistoryWriter.writeExport(getFileType(), fileName, entityIds);
   }
 }
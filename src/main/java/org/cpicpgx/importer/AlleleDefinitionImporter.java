@@ -2,26 +2,27 @@ package org.cpicpgx.importer;
 
 import org.apache.commons.cli.*;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.CopyLoader;
+import org.cpicpgx.db.WriteBehindQueue;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.RowWrapper;
+import org.cpicpgx.util.SheetCell;
+import org.cpicpgx.util.SheetRow;
+import org.cpicpgx.util.TextNormalizer;
+import org.cpicpgx.util.WorkbookSheet;
 import org.cpicpgx.util.WorkbookWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.regex.Matcher;
@@ -61,13 +62,14 @@ public class AlleleDefinitionImporter {
       CommandLine cli = clParser.parse(options, args);
 
       Path inputPath = Paths.get(cli.getOptionValue("i"));
-      try (InputStream in = Files.newInputStream(inputPath)) {
-        WorkbookWrapper workbook = new WorkbookWrapper(in);
+      try (WorkbookWrapper workbook = new WorkbookWrapper(inputPath)) {
 
         AlleleDefinitionImporter importer = new AlleleDefinitionImporter(workbook);
         importer.writeToDB();
         importer.writeNotes(workbook);
         importer.writeHistory(workbook);
+        // notes and history are written behind, wait for them before exiting
+        WriteBehindQueue.shared().flush(FileType.ALLELE_DEFINITION.name());
       } catch (Exception ex) {
         throw new RuntimeException("Error processing file " + inputPath, ex);
       }
@@ -90,74 +92,75 @@ public class AlleleDefinitionImporter {
     return m_gene;
   }
   
-  private void readGene(Sheet sheet) {
-    Row row = sheet.getRow(0);
-    Optional<String> geneOpt = getCellValue(row, 0);
-    m_gene = geneOpt
-        .orElseThrow(IllegalStateException::new)
-        .replaceAll("(GENE|Gene):\\s*", "");
+  private void readGene(WorkbookSheet sheet) {
+    SheetRow row = sheet.getRow(0);
+    String gene = getCellValue(row, 0);
+    if (gene == null) {
+      throw new IllegalStateException("No gene in " + row);
+    }
+    m_gene = gene.replaceAll("(GENE|Gene):\\s*", "");
   }
   
-  private void readLegacyRow(Sheet sheet) {
-    Row row = sheet.getRow(1);
+  private void readLegacyRow(WorkbookSheet sheet) {
+    SheetRow row = sheet.getRow(1);
     m_variantColEnd = row.getLastCellNum();
     m_legacyNames = new String[m_variantColEnd];
 
-    Cell description = row.getCell(0);
+    SheetCell description = row.getCell(0);
     findSeqId(description.getStringCellValue());
     
     for (int i=sf_variantColStart; i < m_variantColEnd; i++) {
-      m_legacyNames[i] = getCellValue(row, i).orElse(null);
+      m_legacyNames[i] = getCellValue(row, i);
     }
   }
   
-  private void readProteinRow(Sheet sheet) {
-    Row row = sheet.getRow(2);
+  private void readProteinRow(WorkbookSheet sheet) {
+    SheetRow row = sheet.getRow(2);
     m_proteinEffects = new String[m_variantColEnd];
     
-    Cell description = row.getCell(0);
+    SheetCell description = row.getCell(0);
     findSeqId(description.getStringCellValue());
     
     for (int i=sf_variantColStart; i < m_variantColEnd; i++) {
-      m_proteinEffects[i] = getCellValue(row, i).orElse(null);
+      m_proteinEffects[i] = getCellValue(row, i);
     }
   }
   
-  private void readChromoRow(Sheet sheet) {
-    Row row = sheet.getRow(3);
+  private void readChromoRow(WorkbookSheet sheet) {
+    SheetRow row = sheet.getRow(3);
     m_chromoPositions = new String[m_variantColEnd];
 
-    Cell description = row.getCell(0);
+    SheetCell description = row.getCell(0);
     findSeqId(description.getStringCellValue());
 
     for (int i=sf_variantColStart; i < m_variantColEnd; i++) {
-      m_chromoPositions[i] = getCellValue(row, i).orElse(null);
+      m_chromoPositions[i] = getCellValue(row, i);
     }
   }
   
-  private void readGenoRow(Sheet sheet) {
-    Row row = sheet.getRow(4);
+  private void readGenoRow(WorkbookSheet sheet) {
+    SheetRow row = sheet.getRow(4);
     m_genoPositions = new String[m_variantColEnd];
 
-    Cell description = row.getCell(0);
+    SheetCell description = row.getCell(0);
     findSeqId(description.getStringCellValue());
 
     for (int i=sf_variantColStart; i < m_variantColEnd; i++) {
-      m_genoPositions[i] = getCellValue(row, i).orElse(null);
+      m_genoPositions[i] = getCellValue(row, i);
     }
   }
   
-  private void readDbSnpRow(Sheet sheet) {
-    Row row = sheet.getRow(5);
+  private void readDbSnpRow(WorkbookSheet sheet) {
+    SheetRow row = sheet.getRow(5);
     m_dbSnpIds = new String[m_variantColEnd];
     
     for (int i=sf_variantColStart; i < m_variantColEnd; i++) {
-      Optional<String> rsid = getCellValue(row, i);
-      if (!rsid.isPresent()) {
+      String rsid = getCellValue(row, i);
+      if (rsid == null) {
         continue;
       }
       
-      Matcher m = sf_rsidPattern.matcher(rsid.get());
+      Matcher m = sf_rsidPattern.matcher(rsid);
       if (m.matches()) {
         m_dbSnpIds[i] = m.group();
       }
@@ -185,21 +188,20 @@ public class AlleleDefinitionImporter {
     }
   }
   
-  private void readAlleles(Sheet sheet) {
+  private void readAlleles(WorkbookSheet sheet) {
     m_alleles = new LinkedHashMap<>();
 
     for (int i=sf_alleleRowStart; i <= sheet.getLastRowNum(); i++) {
       try {
-        Row row = sheet.getRow(i);
+        SheetRow row = sheet.getRow(i);
         if (row == null) {
           continue;
         }
         
-        Optional<String> alleleNameOpt = getCellValue(row, 0);
-        if (!alleleNameOpt.isPresent()) {
+        String alleleName = getCellValue(row, 0);
+        if (alleleName == null) {
           continue;
         }
-        String alleleName = alleleNameOpt.get();
         if (alleleName.length() == 0) {
           break;
         }
@@ -210,8 +212,10 @@ public class AlleleDefinitionImporter {
 
         Map<Integer, String> definition = new LinkedHashMap<>();
         for (int j = sf_variantColStart; j < m_variantColEnd; j++) {
-          final int arrayIdx = j;
-          getCellValue(row, j).ifPresent(s -> definition.put(arrayIdx, s));
+          String value = getCellValue(row, j);
+          if (value != null) {
+            definition.put(j, value);
+          }
         }
 
         m_alleles.put(alleleName, definition);
@@ -222,61 +226,48 @@ public class AlleleDefinitionImporter {
     }
   }
 
-  private void writeNotes(WorkbookWrapper workbook) throws SQLException {
+  private void writeNotes(WorkbookWrapper workbook) {
     List<String> notes = workbook.getNotes();
 
-    try (Connection conn = ConnectionFactory.newConnection()) {
-      PreparedStatement noteInsert = conn.prepareStatement("insert into file_note(entityId, note, type, ordinal) values (?, ?, ?, ?)");
-      int n = 0;
-      for (String note : notes) {
-        noteInsert.setString(1, m_gene);
-        noteInsert.setString(2, note);
-        noteInsert.setString(3, FileType.ALLELE_DEFINITION.name());
-        noteInsert.setInt(4, n);
-        noteInsert.executeUpdate();
-        n += 1;
-      }
-      sf_logger.debug("created {} new notes", notes.size());
+    int n = 0;
+    for (String note : notes) {
+      WriteBehindQueue.shared().add(FileType.ALLELE_DEFINITION.name(), BatchStatement.UNKNOWN_ROW, BaseDirectoryImporter.INSERT_NOTE_SQL,
+          m_gene, note, FileType.ALLELE_DEFINITION.name(), n);
+      n += 1;
     }
+    sf_logger.debug("queued {} new notes", notes.size());
   }
 
-  void writeHistory(WorkbookWrapper workbook) throws SQLException {
+  /**
+   * Reads the change log sheet and queues its entries to be written by the {@link WriteBehindQueue}
+   * @param workbook the workbook to read the change log sheet from
+   */
+  void writeHistory(WorkbookWrapper workbook) {
     workbook.currentSheetIs(AbstractWorkbook.HISTORY_SHEET_NAME);
 
-    try (Connection conn = ConnectionFactory.newConnection()) {
-      PreparedStatement insertStmt = conn.prepareStatement("insert into change_log (entityId, type, date, note) values (?, ?, ?, ?)");
-      insertStmt.setString(1, m_gene);
-      insertStmt.setString(2, FileType.ALLELE_DEFINITION.name());
-      
-      for (int i = 1; i <= workbook.currentSheet.getLastRowNum(); i++) {
-        RowWrapper row = workbook.getRow(i);
-        if (row.hasNoText(0) ^ row.hasNoText(1)) {
-          throw new RuntimeException("Change log row " + (i + 1) + ": row must have both date and text");
-        }
-        else if (row.hasNoText(0)) continue;
-        
-        Date date = row.getDate(0);
-        String note = row.getNullableText(1);
+    for (int i = 1; i <= workbook.currentSheet.getLastRowNum(); i++) {
+      RowWrapper row = workbook.getRow(i);
+      if (row.hasNoText(0) ^ row.hasNoText(1)) {
+        throw new RuntimeException("Change log row " + (i + 1) + ": row must have both date and text");
+      }
+      else if (row.hasNoText(0)) continue;
 
-        if (note.equalsIgnoreCase(AbstractWorkbook.LOG_FILE_CREATED)) continue;
-        
-        insertStmt.setDate(3, new java.sql.Date(date.getTime()));
-        if (StringUtils.isNotBlank(note)) {
-          insertStmt.setString(4, note);
-        } else {
-          insertStmt.setString(4, Constants.NA);
-        }
+      Date date = row.getDate(0);
+      String note = row.getNullableText(1);
 
-        insertStmt.executeUpdate();
-      }
+      if (note.equalsIgnoreCase(AbstractWorkbook.LOG_FILE_CREATED)) continue;
+
+      //language=PostgreSQL
+      WriteBehindQueue.shared().add(FileType.ALLELE_DEFINITION.name(), i + 1,
+          "insert into change_log (entityId, type, date, note) values (?, ?, ?, ?)",
+          m_gene, FileType.ALLELE_DEFINITION.name(), new java.sql.Date(date.getTime()),
+          StringUtils.isNotBlank(note) ? note : Constants.NA);
     }
   }
   
   void writeToDB() throws SQLException {
     try (Connection conn = ConnectionFactory.newConnection()) {
 
-      PreparedStatement joinTableInsert = conn.prepareStatement("insert into allele_location_value(alleledefinitionid, locationid, variantallele) values (?,?,?)");
-      
       PreparedStatement geneUpdate = conn.prepareStatement("update gene set genesequenceid=?,proteinsequenceid=?,chromosequenceid=?,mrnaSequenceId=? where symbol=?");
       geneUpdate.setString(1, m_geneSeqId);
       geneUpdate.setString(2, m_proteinSeqId);
@@ -285,58 +276,60 @@ public class AlleleDefinitionImporter {
       geneUpdate.setString(5, m_gene);
       geneUpdate.executeUpdate();
 
-      PreparedStatement seqLocInsert = conn.prepareStatement("insert into sequence_location(name, chromosomelocation, genelocation, proteinlocation, dbsnpid, geneSymbol) values (?,?,?,?,?,?) returning (id)");
-      Integer[] locIdAssignements = new Integer[m_chromoPositions.length];
+      // IDs for locations and definitions are reserved up front so all rows, including the ones that refer to those 
+      // IDs, can be sent with COPY instead of one insert per row
+      CopyLoader seqLocLoader = new CopyLoader(conn, CopyLoader.Format.BINARY, "sequence_location", 
+          "id", "name", "chromosomelocation", "genelocation", "proteinlocation", "dbsnpid", "geneSymbol");
+      CopyLoader alleleDefLoader = new CopyLoader(conn, "allele_definition", "id", "geneSymbol", "name", "reference");
+      CopyLoader alleleLoader = new CopyLoader(conn, "allele", "genesymbol", "name", "definitionId")
+          .after(alleleDefLoader);
+      CopyLoader joinTableLoader = new CopyLoader(conn, CopyLoader.Format.BINARY, "allele_location_value", 
+          "alleledefinitionid", "locationid", "variantallele")
+          .after(seqLocLoader)
+          .after(alleleDefLoader);
+
+      // here we want to guard against over-running the location columns
+      // we can't rely on either the legacy row or the chromo row singly since there are sheets that have missing 
+      // values in both so we need to check for either
       int newLocations = 0;
       for (int i=0; i < m_chromoPositions.length; i++) {
-        
-        // here we want to guard against over-running the location columns
-        // we can't rely on either the legacy row or the chromo row singly since there are sheets that have missing 
-        // values in both so we need to check for either
+        if (m_chromoPositions[i] != null || m_legacyNames[i] != null) {
+          newLocations += 1;
+        }
+      }
+      int[] locIds = CopyLoader.nextIds(conn, newLocations);
+      Integer[] locIdAssignements = new Integer[m_chromoPositions.length];
+      int n = 0;
+      for (int i=0; i < m_chromoPositions.length; i++) {
         if (m_chromoPositions[i] == null && m_legacyNames[i] == null) {
           continue;
         }
 
-        seqLocInsert.setString(1, m_legacyNames[i]);
-        seqLocInsert.setString(2, m_chromoPositions[i]);
-        seqLocInsert.setString(3, m_genoPositions[i]);
-        seqLocInsert.setString(4, m_proteinEffects[i]);
-        seqLocInsert.setString(5, m_dbSnpIds[i]);
-        seqLocInsert.setString(6, m_gene);
-        ResultSet rs = seqLocInsert.executeQuery();
-        rs.next();
-        int locId = rs.getInt(1);
+        int locId = locIds[n];
+        n += 1;
+        seqLocLoader.add(locId, m_legacyNames[i], m_chromoPositions[i], m_genoPositions[i], m_proteinEffects[i], m_dbSnpIds[i], m_gene);
         locIdAssignements[i] = locId;
-        newLocations += 1;
       }
       sf_logger.debug("created {} new locations", newLocations);
 
-      PreparedStatement alleleDefInsert = conn.prepareStatement("insert into allele_definition(geneSymbol, name, reference) values (?,?,?) returning (id)");
-      PreparedStatement alleleInsert = conn.prepareStatement("insert into allele(genesymbol, name, definitionId) values (?,?,?)");
+      int[] alleleIds = CopyLoader.nextIds(conn, m_alleles.size());
       boolean isReference = true;
+      n = 0;
       for (String alleleName : m_alleles.keySet()) {
-        alleleDefInsert.setString(1, m_gene);
-        alleleDefInsert.setString(2, alleleName);
-        alleleDefInsert.setBoolean(3, isReference);
-        ResultSet rs = alleleDefInsert.executeQuery();
-        rs.next();
-        int alleleId = rs.getInt(1);
-
-        alleleInsert.clearParameters();
-        alleleInsert.setString(1, m_gene);
-        alleleInsert.setString(2, alleleName);
-        alleleInsert.setInt(3, alleleId);
-        alleleInsert.executeUpdate();
+        int alleleId = alleleIds[n];
+        n += 1;
+        alleleDefLoader.add(alleleId, m_gene, alleleName, isReference);
+        alleleLoader.add(m_gene, alleleName, alleleId);
 
         Map<Integer,String> allelePosMap = m_alleles.get(alleleName);
         for (Integer locIdx : allelePosMap.keySet()) {
-          joinTableInsert.setInt(1, alleleId);
-          joinTableInsert.setInt(2, locIdAssignements[locIdx]);
-          joinTableInsert.setString(3, allelePosMap.get(locIdx));
-          joinTableInsert.executeUpdate();
+          joinTableLoader.add(alleleId, locIdAssignements[locIdx], allelePosMap.get(locIdx));
         }
         isReference = false;
       }
+
+      alleleLoader.close();
+      joinTableLoader.close();
       sf_logger.debug("created {} new alleles", m_alleles.keySet().size());
     }
   }
@@ -344,27 +337,25 @@ public class AlleleDefinitionImporter {
   /**
    * Makes a string representation of a cell's value. Will log if the cell has extra whitespace preceding or succeeding 
    * the cell value.
-   * @param cell a non-null Cell object 
-   * @return an Optional String of the cell value
+   * @param cell a non-null SheetCell object 
+   * @return the String cell value, null if there's nothing in the cell
    */
-  private static Optional<String> makeCellString(Cell cell) {
+  private static String makeCellString(SheetCell cell) {
     String value = Objects.requireNonNull(cell).getStringCellValue();
 
     // if the cell doesn't exist or is 0-length, we don't care, don't log
     if (value == null || value.length() == 0) {
-      return Optional.empty();
+      return null;
     }
 
     // strip down the cell value, including non-breaking spaces that Excel loves to introduce
     String strippedValue = trim(value);
 
     // return an empty value if there's nothing after strip
-    if (strippedValue == null) return Optional.empty();
+    if (strippedValue == null) return null;
     
     // fix common misspellings
-    strippedValue = strippedValue.replaceAll("Function", "function");
-    
-    return Optional.of(strippedValue);
+    return StringUtils.replace(strippedValue, "Function", "function");
   }
 
   /**
@@ -373,18 +364,18 @@ public class AlleleDefinitionImporter {
    * @return a String without visible whitespace at the beginning or end of the string
    */
   static String trim(String value) {
-    return StringUtils.stripToNull(value.replaceAll("(^\\h*)|(\\h*$)",""));
+    return TextNormalizer.trim(value);
   }
 
   /**
    * Given a row and index, extract the cell's String value
-   * @param row a non-null Row object
+   * @param row a non-null SheetRow object
    * @param cellIndex the index of a cell in the given row
-   * @return an Optional String of the cell value
+   * @return the String cell value, null if there's nothing in the cell
    */
-  private static Optional<String> getCellValue(Row row, int cellIndex) {
-    Cell cell = Objects.requireNonNull(row).getCell(cellIndex);
-    if (cell == null)  return Optional.empty();
+  private static String getCellValue(SheetRow row, int cellIndex) {
+    SheetCell cell = Objects.requireNonNull(row).getCell(cellIndex);
+    if (cell == null)  return null;
     return makeCellString(cell);
   }
 }
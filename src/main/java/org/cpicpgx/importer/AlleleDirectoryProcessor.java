@@ -1,5 +1,6 @@
 package org.cpicpgx.importer;
 
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.model.FileType;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.WorkbookWrapper;
@@ -20,6 +21,13 @@ public class AlleleDirectoryProcessor extends BaseDirectoryImporter {
       "delete from allele_definition where geneSymbol not in ('HLA-A','HLA-B')",
       "delete from sequence_location"
   };
+  private static final String[] sf_entityDeleteStatements = new String[]{
+      "delete from change_log where type='" + FileType.ALLELE_DEFINITION.name() + "' and entityId=?",
+      "delete from file_note where type='" + FileType.ALLELE_DEFINITION.name() + "' and entityId=?",
+      "delete from allele_location_value where alleleDefinitionId in (select id from allele_definition where geneSymbol=?)",
+      "delete from allele_definition where geneSymbol=? and geneSymbol not in ('HLA-A','HLA-B')",
+      "delete from sequence_location where geneSymbol=?"
+  };
 
   public static void main(String[] args) {
     rebuild(new AlleleDirectoryProcessor(), args);
@@ -37,6 +45,34 @@ public class AlleleDirectoryProcessor extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  EntityKind getEntityKind() {
+    return EntityKind.GENE;
+  }
+
+  @Override
+  String[] getEntityDeleteStatements() {
+    return sf_entityDeleteStatements;
+  }
+
+  @Override
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.ALLELE_DEFINITION, ReferenceData.Table.ALLELE};
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.GENE_RESOURCE};
+  }
+
+  /**
+   * Definition sheets are read from the top down, as are the notes and history
+   */
+  @Override
+  boolean isStreamingSafe() {
+    return true;
+  }
+
   @Override
   String getFileExtensionToProcess() {
     return Constants.EXCEL_EXTENSION;
@@ -47,6 +83,7 @@ public class AlleleDirectoryProcessor extends BaseDirectoryImporter {
     try {
       AlleleDefinitionImporter importer = new AlleleDefinitionImporter(workbook);
       importer.writeToDB();
+      noteEntity(importer.getGene());
       writeNotes(importer.getGene(), workbook.getNotes());
       importer.writeHistory(workbook);
     } catch (SQLException e) {
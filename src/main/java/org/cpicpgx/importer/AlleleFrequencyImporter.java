@@ -4,6 +4,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
 import org.cpicpgx.util.Constants;
+import org.cpicpgx.util.RowCursor;
 import org.cpicpgx.util.RowWrapper;
 import org.cpicpgx.util.WorkbookWrapper;
 import org.slf4j.Logger;
@@ -29,6 +30,12 @@ public class AlleleFrequencyImporter extends BaseDirectoryImporter {
       "delete from allele_frequency",
       "delete from population"
   };
+  private static final String[] sf_entityDeleteStatements = new String[]{
+      "delete from change_log where type='" + FileType.FREQUENCY.name() + "' and entityId=?",
+      "delete from file_note where type='" + FileType.FREQUENCY.name() + "' and entityId=?",
+      "delete from allele_frequency where alleleid in (select id from allele where geneSymbol=?)",
+      "delete from population where id not in (select population from allele_frequency)"
+  };
 
   public static void main(String[] args) {
     rebuild(new AlleleFrequencyImporter(), args);
@@ -46,6 +53,37 @@ public class AlleleFrequencyImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  EntityKind getEntityKind() {
+    return EntityKind.GENE;
+  }
+
+  @Override
+  String[] getEntityDeleteStatements() {
+    return sf_entityDeleteStatements;
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.ALLELE_FUNCTION_REFERENCE};
+  }
+
+  /**
+   * Not parallel-safe, processing a file clears unused populations and adds publications which would collide with other files
+   */
+  @Override
+  boolean isParallelSafe() {
+    return false;
+  }
+
+  /**
+   * Frequency workbooks are big and every sheet is read from the top down
+   */
+  @Override
+  boolean isStreamingSafe() {
+    return true;
+  }
+
   @Override
   String getFileExtensionToProcess() {
     return Constants.EXCEL_EXTENSION;
@@ -54,6 +92,7 @@ public class AlleleFrequencyImporter extends BaseDirectoryImporter {
   @Override
   void processWorkbook(WorkbookWrapper workbook) throws Exception {
     String[] nameParts = workbook.getFileName().split("_");
+    noteEntity(nameParts[0]);
     processAlleles(workbook, nameParts[0]);
   }
 
@@ -67,9 +106,10 @@ public class AlleleFrequencyImporter extends BaseDirectoryImporter {
     workbook.currentSheetIs("References");
     
     try (FrequencyProcessor frequencyProcessor = new FrequencyProcessor(gene, workbook.getRow(0))) {
-      for (int i = 1; i <= workbook.currentSheet.getLastRowNum(); i++) {
+      RowCursor cursor = workbook.cursor();
+      for (int i = 1; cursor.moveTo(i); i++) {
         try {
-          frequencyProcessor.insertPopulation(workbook.getRow(i));
+          frequencyProcessor.insertPopulation(cursor);
         } catch (Exception ex) {
           throw new RuntimeException("Error parsing row " + (i+1), ex);
         }
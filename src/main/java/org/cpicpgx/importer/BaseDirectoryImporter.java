@@ -4,10 +4,17 @@ import com.google.gson.JsonObject;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.FileHistoryWriter;
+import org.cpicpgx.db.FileImportState;
+import org.cpicpgx.db.ReferenceData;
+import org.cpicpgx.db.Transaction;
+import org.cpicpgx.db.WriteBehindQueue;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.DbHarness;
 import org.cpicpgx.util.RowWrapper;
+import org.cpicpgx.util.TextNormalizer;
 import org.cpicpgx.util.WorkbookWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,7 +22,6 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
-import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -23,11 +29,14 @@ import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Abstract class for classes that want to crawl all files in a directory and do something with them. This should be 
@@ -43,11 +52,30 @@ public abstract class BaseDirectoryImporter {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
   private static final Pattern sf_activityScorePattern = Pattern.compile("^[≥>]?\\d+\\.?\\d*$");
   private static final Pattern sf_noResultPattern = Pattern.compile("^No [Rr]esult$");
+  // entities noted while the current thread processes a file
+  private static final ThreadLocal<Set<String>> sf_fileEntities = new ThreadLocal<>();
+  //language=PostgreSQL
+  static final String INSERT_NOTE_SQL = "insert into file_note(entityId, note, type, ordinal) values (?, ?, ?, ?)";
+
+  /**
+   * The kinds of entity an importer's data can be split up by for incremental imports
+   */
+  enum EntityKind {
+    /** data keyed by gene symbol */
+    GENE,
+    /** data keyed by drug ID */
+    DRUG
+  }
 
   private Path directory;
+  private int fileWorkers = 1;
+  private IncrementalPlan incrementalPlan;
 
   /**
    * Gets the String file extension to look for in the given directory. This should be something like ".xlsx" or ".csv".
+   * 
+   * When the extension is for excel files, text exports of the workbooks are read too: a CSV or TSV file, or a directory
+   * of them with one file per sheet, named like the workbook but without the ".xlsx". See {@link WorkbookWrapper}.
    * @return a file extension to filter for
    */
   abstract String getFileExtensionToProcess();
@@ -60,6 +88,65 @@ public abstract class BaseDirectoryImporter {
 
   abstract String[] getDeleteStatements();
 
+  /**
+   * Gets the types of files whose importers must finish before this importer can run. This is used by the
+   * {@link ImportScheduler} to decide which importers can run at the same time. Data is cleared in the reverse order so
+   * an importer's data is deleted only after the data of everything that depends on it.
+   * @return an array of upstream {@link FileType} values, empty if this importer has no dependencies
+   */
+  FileType[] getDependencies() {
+    return new FileType[0];
+  }
+
+  /**
+   * Gets the reference data tables this importer writes. The shared {@link ReferenceData} cache for these tables is 
+   * dropped when this importer clears its data and when it runs so other importers don't see stale values.
+   * @return an array of {@link ReferenceData.Table} values, empty if this importer doesn't write reference data
+   */
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[0];
+  }
+
+  /**
+   * Gets the kind of entity this importer's data is split up by. Importers that return a kind here can have the data 
+   * for just the changed entities reloaded in an incremental import, they must also override 
+   * {@link BaseDirectoryImporter#getEntityDeleteStatements()} and call 
+   * {@link BaseDirectoryImporter#noteEntity(String)} while processing a file.
+   * @return an {@link EntityKind}, null if this importer always reloads everything
+   */
+  EntityKind getEntityKind() {
+    return null;
+  }
+
+  /**
+   * Gets the statements that delete the data for one entity, every parameter is set to the entity ID. These run in the
+   * same order as {@link BaseDirectoryImporter#getDeleteStatements()}.
+   * @return an array of delete statements with parameters for the entity ID
+   */
+  String[] getEntityDeleteStatements() {
+    return new String[0];
+  }
+
+  /**
+   * Whether the files for this importer can be processed at the same time on separate threads. Importers that keep 
+   * state across files (e.g. in instance fields) or that have file processing that interferes with other files must 
+   * override this to return false.
+   * @return true if files can be processed in parallel, false to always process one file at a time
+   */
+  boolean isParallelSafe() {
+    return true;
+  }
+
+  /**
+   * Whether this importer only reads the rows of each sheet from top to bottom, so its workbooks can be streamed one row
+   * at a time instead of being loaded whole (see {@link WorkbookWrapper#stream(Path)}). Worth turning on for 
+   * importers with big workbooks. Formulas in streamed workbooks give their cached values.
+   * @return true to stream workbooks, false to load each workbook into memory
+   */
+  boolean isStreamingSafe() {
+    return false;
+  }
+
   /**
    * Gets the default directory name for the data type. Should rely on {@link FileType}
    * @return a default directory name, all lowercase
@@ -82,6 +169,8 @@ public abstract class BaseDirectoryImporter {
       if (getDeleteStatements().length > 0) {
         sf_logger.info("Deleted {} rows for {}", delCount, getFileType().name());
       }
+    } finally {
+      ReferenceData.invalidate(getReferenceDataWritten());
     }
   }
   
@@ -107,20 +196,392 @@ public abstract class BaseDirectoryImporter {
   private void parseArgs(String [] args) throws ParseException {
     Options options = new Options();
     options.addOption("d", true,"directory containing files to process (*.xlsx)");
+    options.addOption("w", true,"number of files to process at the same time (default 1)");
     CommandLineParser clParser = new DefaultParser();
     CommandLine cli = clParser.parse(options, args);
 
     String directoryPath = cli.getOptionValue("d");
     setDirectory(Paths.get(directoryPath));
+    setFileWorkers(Integer.parseInt(cli.getOptionValue("w", "1")));
   }
 
   /**
-   * Run the importer. Requires the "directory" to be set
+   * Run the importer. Requires the "directory" to be set.
+   * 
+   * By default files are processed one at a time and the first error will stop the import. If more than one file 
+   * worker has been set (see {@link BaseDirectoryImporter#setFileWorkers(int)}) and this importer is parallel-safe then 
+   * files are processed at the same time and errors are collected and reported together after all files are done.
+   * 
+   * Writes are grouped into transactions according to {@link BaseDirectoryImporter#getTransactionScope()}. With 
+   * {@link Transaction.Scope#IMPORTER} all files share one transaction so they're always processed one at a time.
    */
   public void execute() {
-    Arrays.stream(Objects.requireNonNull(this.directory.toFile().listFiles()))
-        .filter(f -> f.getName().toLowerCase().endsWith(getFileExtensionToProcess().toLowerCase()) && !f.getName().startsWith("~$"))
-        .forEach(getFileProcessor());
+    execute(listFiles());
+  }
+
+  private List<File> listFiles() {
+    List<File> files = Arrays.stream(Objects.requireNonNull(this.directory.toFile().listFiles()))
+        .filter(f -> !f.getName().startsWith("~$"))
+        .filter(f -> (f.isFile() && f.getName().toLowerCase().endsWith(getFileExtensionToProcess().toLowerCase())) || isTextExport(f))
+        .sorted()
+        .collect(Collectors.toList());
+
+    // a text export next to the workbook it came from would import the same data twice, the workbook wins
+    Set<String> workbookNames = files.stream()
+        .filter(f -> !isTextExport(f))
+        .map(f -> StringUtils.substringBeforeLast(f.getName().toLowerCase(), "."))
+        .collect(Collectors.toSet());
+    return files.stream()
+        .filter(f -> {
+          if (isTextExport(f) && workbookNames.contains(getTextExportName(f))) {
+            sf_logger.warn("Skipping {}, the workbook it was exported from is in the same directory", f.getName());
+            return false;
+          }
+          return true;
+        })
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Whether the given file is a text export of a workbook this importer reads, see 
+   * {@link BaseDirectoryImporter#getFileExtensionToProcess()}
+   */
+  private boolean isTextExport(File file) {
+    String extension = getFileExtensionToProcess().toLowerCase();
+    if (!extension.endsWith(Constants.EXCEL_EXTENSION)) {
+      return false;
+    }
+    String suffix = StringUtils.removeEnd(extension, Constants.EXCEL_EXTENSION);
+    return getTextExportName(file).endsWith(suffix) && WorkbookWrapper.isTextWorkbook(file.toPath());
+  }
+
+  private static String getTextExportName(File file) {
+    String name = file.getName().toLowerCase();
+    return file.isDirectory() ? name : StringUtils.substringBeforeLast(name, ".");
+  }
+
+  private void execute(List<File> files) {
+    ReferenceData.invalidate(getReferenceDataWritten());
+    try {
+      // reload anything upstream importers invalidated now, so workers don't borrow a second connection for it while
+      // holding the connection of their transaction
+      ReferenceData.preload();
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error reading reference data for " + getFileType().name(), ex);
+    }
+    try {
+      if (getTransactionScope() == Transaction.Scope.IMPORTER) {
+        if (fileWorkers > 1) {
+          sf_logger.info("Processing {} files one at a time in a single transaction", getFileType().name());
+        }
+        try (Transaction tx = Transaction.begin(getFileType().name())) {
+          files.forEach(getTrackedFileProcessor());
+          tx.commit();
+        } catch (SQLException ex) {
+          throw new RuntimeException("Error in transaction for " + getFileType().name(), ex);
+        }
+      } else if (fileWorkers > 1 && files.size() > 1 && isParallelSafe()) {
+        executeParallel(files);
+      } else {
+        files.forEach(getTransactionalFileProcessor());
+      }
+    } finally {
+      // anything read from these tables while this importer was writing them is out of date now
+      ReferenceData.invalidate(getReferenceDataWritten());
+    }
+    flushQueuedWrites(files);
+    afterExecute();
+  }
+
+  /**
+   * Called once all the files of a run have been processed without error. Override this for importers that report on
+   * the run as a whole.
+   */
+  void afterExecute() {
+  }
+
+  /**
+   * Waits for the notes and change log entries this importer queued to be written. The data and import state of the 
+   * files has been committed by then, so if any of them couldn't be written the import state of the files is cleared 
+   * and the next incremental import loads them again instead of skipping them as unchanged.
+   * @param files the files that were processed
+   * @throws RuntimeException if any of them couldn't be written
+   */
+  void flushQueuedWrites(List<File> files) {
+    try {
+      WriteBehindQueue.shared().flush(getFileType().name());
+    } catch (SQLException ex) {
+      try (FileHistoryWriter historyWriter = new FileHistoryWriter(getFileType())) {
+        for (File file : files) {
+          historyWriter.clearImport(file.getName());
+        }
+      } catch (Exception clearEx) {
+        ex.addSuppressed(clearEx);
+      }
+      throw new RuntimeException("Error writing notes and change log for " + getFileType().name() +
+          ", its files will be imported again by the next incremental import", ex);
+    }
+  }
+
+  /**
+   * Gets how much work to group into one transaction. Defaults to {@link Transaction#SCOPE} which can be set with the 
+   * CPIC_TRANSACTION environment variable.
+   * @return the transaction scope for this importer
+   */
+  Transaction.Scope getTransactionScope() {
+    return Transaction.SCOPE;
+  }
+
+  /**
+   * Wraps {@link BaseDirectoryImporter#getFileProcessor()} so each file is processed in its own transaction when the
+   * scope is {@link Transaction.Scope#WORKBOOK}. If processing fails then none of the file's writes are kept.
+   * @return a Consumer of File objects
+   */
+  private Consumer<File> getTransactionalFileProcessor() {
+    Consumer<File> fileProcessor = getTrackedFileProcessor();
+    if (getTransactionScope() != Transaction.Scope.WORKBOOK) {
+      return fileProcessor;
+    }
+    return (File file) -> {
+      try (Transaction tx = Transaction.begin(file.getName())) {
+        fileProcessor.accept(file);
+        tx.commit();
+      } catch (SQLException ex) {
+        throw new RuntimeException("Error in transaction for " + file, ex);
+      }
+    };
+  }
+
+  /**
+   * Wraps {@link BaseDirectoryImporter#getFileProcessor()} so the state of each file and the entities it had data for 
+   * are recorded once it has been processed. The record is written on the same connection as the data, so it's part of
+   * the file's transaction when there is one.
+   * @return a Consumer of File objects
+   */
+  private Consumer<File> getTrackedFileProcessor() {
+    Consumer<File> fileProcessor = getFileProcessor();
+    return (File file) -> {
+      FileImportState state = FileImportState.of(file);
+      Set<String> entities = new TreeSet<>();
+      sf_fileEntities.set(entities);
+      try {
+        fileProcessor.accept(file);
+      } finally {
+        sf_fileEntities.remove();
+      }
+
+      try (FileHistoryWriter historyWriter = new FileHistoryWriter(getFileType())) {
+        historyWriter.writeImport(state, entities.isEmpty() ? null : entities.toArray(new String[0]));
+      } catch (Exception ex) {
+        throw new RuntimeException("Error recording import of " + file, ex);
+      }
+    };
+  }
+
+  /**
+   * Note that the file being processed on the current thread has data for the given entity. The entities noted for a 
+   * file are recorded with it and their data is deleted when the file changes in an incremental import.
+   * @param entityId a gene symbol or drug ID, depending on {@link BaseDirectoryImporter#getEntityKind()}
+   */
+  static void noteEntity(String entityId) {
+    Set<String> entities = sf_fileEntities.get();
+    if (entities != null && StringUtils.isNotBlank(entityId)) {
+      entities.add(entityId);
+    }
+  }
+
+  /**
+   * Works out what this importer needs to do in an incremental import. Files are compared to the state recorded when 
+   * they were last imported, unchanged files are skipped.
+   * 
+   * If this importer has an {@link EntityKind} then only the entities of the changed and removed files, plus the 
+   * entities that upstream importers of the same kind are reloading, are deleted and reloaded. Otherwise, or when an 
+   * upstream importer reloads everything or a different kind of entity, this importer reloads everything.
+   * @param upstreamPlans the plans already made for this importer's upstream importers
+   * @return the plan, which is also kept for {@link BaseDirectoryImporter#clearPlannedData()} and 
+   * {@link BaseDirectoryImporter#executePlanned()}
+   * @throws SQLException can occur when reading the recorded file states
+   */
+  IncrementalPlan planIncremental(Collection<IncrementalPlan> upstreamPlans) throws SQLException {
+    List<File> files = listFiles();
+    Map<String, FileImportState> imported;
+    try (FileHistoryWriter historyWriter = new FileHistoryWriter(getFileType())) {
+      imported = historyWriter.readImportStates();
+    } catch (SQLException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new RuntimeException("Error reading import state for " + getFileType().name(), ex);
+    }
+
+    List<File> changedFiles = files.stream()
+        .filter(f -> !FileImportState.of(f).isUnchangedFrom(imported.get(f.getName())))
+        .collect(Collectors.toList());
+    Set<String> fileNames = files.stream().map(File::getName).collect(Collectors.toSet());
+    List<String> removedFiles = imported.keySet().stream()
+        .filter(n -> !fileNames.contains(n))
+        .sorted()
+        .collect(Collectors.toList());
+
+    boolean upstreamFull = false;
+    Set<String> upstreamEntities = new TreeSet<>();
+    for (IncrementalPlan upstream : upstreamPlans) {
+      if (upstream.getMode() == IncrementalPlan.Mode.FULL
+          || (upstream.getMode() == IncrementalPlan.Mode.ENTITIES && upstream.getEntityKind() != getEntityKind())) {
+        upstreamFull = true;
+      } else {
+        upstreamEntities.addAll(upstream.getEntityIds());
+      }
+    }
+
+    if (changedFiles.isEmpty() && removedFiles.isEmpty() && !upstreamFull && upstreamEntities.isEmpty()) {
+      incrementalPlan = IncrementalPlan.unchanged();
+    } else if (getEntityKind() == null || upstreamFull || imported.isEmpty()) {
+      incrementalPlan = IncrementalPlan.full(files, removedFiles);
+    } else {
+      Set<String> entities = new TreeSet<>(upstreamEntities);
+      boolean entitiesKnown = true;
+      for (String fileName : changedFiles.stream().map(File::getName).collect(Collectors.toList())) {
+        FileImportState state = imported.get(fileName);
+        if (state != null) {
+          if (state.getEntityIds() == null) {
+            entitiesKnown = false;
+          } else {
+            entities.addAll(Arrays.asList(state.getEntityIds()));
+          }
+        }
+      }
+      for (String fileName : removedFiles) {
+        if (imported.get(fileName).getEntityIds() == null) {
+          entitiesKnown = false;
+        } else {
+          entities.addAll(Arrays.asList(imported.get(fileName).getEntityIds()));
+        }
+      }
+
+      if (!entitiesKnown) {
+        // can't tell what data came from the file so it all has to go
+        incrementalPlan = IncrementalPlan.full(files, removedFiles);
+      } else {
+        // unchanged files with data for a reloaded entity are read again since their data gets deleted too
+        List<File> reloadFiles = files.stream()
+            .filter(f -> changedFiles.contains(f) || hasAnyEntity(imported.get(f.getName()), entities))
+            .collect(Collectors.toList());
+        incrementalPlan = IncrementalPlan.entities(getEntityKind(), entities, reloadFiles, removedFiles);
+      }
+    }
+    sf_logger.info("{}: {} of {} files changed, {}", getFileType().name(), changedFiles.size(), files.size(), incrementalPlan);
+    return incrementalPlan;
+  }
+
+  private static boolean hasAnyEntity(FileImportState state, Set<String> entities) {
+    return state != null && state.getEntityIds() != null && Arrays.stream(state.getEntityIds()).anyMatch(entities::contains);
+  }
+
+  /**
+   * Deletes the data this importer's incremental plan will reload. Needs {@link BaseDirectoryImporter#planIncremental(Collection)}
+   * to be run first.
+   * @throws SQLException can occur when deleting data
+   */
+  void clearPlannedData() throws SQLException {
+    Objects.requireNonNull(incrementalPlan, "No incremental plan for " + getFileType().name());
+    switch (incrementalPlan.getMode()) {
+      case FULL:
+        clearAllData();
+        break;
+      case ENTITIES:
+        clearEntityData(incrementalPlan.getEntityIds());
+        break;
+      default:
+        return;
+    }
+
+    try (FileHistoryWriter historyWriter = new FileHistoryWriter(getFileType())) {
+      for (String fileName : incrementalPlan.getRemovedFiles()) {
+        historyWriter.clearImport(fileName);
+      }
+    } catch (Exception ex) {
+      throw new RuntimeException("Error clearing import state for " + getFileType().name(), ex);
+    }
+  }
+
+  private void clearEntityData(Set<String> entityIds) throws SQLException {
+    try (Connection conn = ConnectionFactory.newConnection()) {
+      int delCount = 0;
+      for (String deleteStmt : getEntityDeleteStatements()) {
+        try (PreparedStatement stmt = conn.prepareStatement(deleteStmt)) {
+          int paramCount = StringUtils.countMatches(deleteStmt, '?');
+          if (paramCount == 0) {
+            delCount += stmt.executeUpdate();
+            continue;
+          }
+          for (String entityId : entityIds) {
+            for (int i = 1; i <= paramCount; i++) {
+              stmt.setString(i, entityId);
+            }
+            delCount += stmt.executeUpdate();
+          }
+        }
+      }
+      sf_logger.info("Deleted {} rows for {} {}", delCount, getFileType().name(), entityIds);
+    } finally {
+      ReferenceData.invalidate(getReferenceDataWritten());
+    }
+  }
+
+  /**
+   * Imports the files in this importer's incremental plan. Needs {@link BaseDirectoryImporter#planIncremental(Collection)}
+   * to be run first.
+   */
+  void executePlanned() {
+    Objects.requireNonNull(incrementalPlan, "No incremental plan for " + getFileType().name());
+    if (incrementalPlan.getMode() == IncrementalPlan.Mode.UNCHANGED) {
+      sf_logger.info("No changes for {}, skipping", getFileType().name());
+      return;
+    }
+    execute(incrementalPlan.getFiles());
+  }
+
+  /**
+   * Process the given files on a pool of {@link BaseDirectoryImporter#fileWorkers} threads. Each file is processed 
+   * independently so a failure in one file does not stop the others. All failures are reported at the end.
+   * @param files the files to process
+   */
+  private void executeParallel(List<File> files) {
+    int workers = Math.min(fileWorkers, files.size());
+    sf_logger.info("Processing {} {} files with {} workers", files.size(), getFileType().name(), workers);
+
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    Map<File, Future<?>> results = new LinkedHashMap<>();
+    Consumer<File> fileProcessor = getTransactionalFileProcessor();
+    files.forEach(f -> results.put(f, executor.submit(() -> fileProcessor.accept(f))));
+    executor.shutdown();
+
+    Map<File, Throwable> failures = new LinkedHashMap<>();
+    for (Map.Entry<File, Future<?>> result : results.entrySet()) {
+      try {
+        result.getValue().get();
+      } catch (ExecutionException ex) {
+        failures.put(result.getKey(), ex.getCause());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
+        throw new RuntimeException("Interrupted while processing " + getFileType().name() + " files", ex);
+      }
+    }
+
+    if (failures.size() > 0) {
+      StringJoiner summary = new StringJoiner("\n");
+      failures.forEach((f, ex) -> {
+        sf_logger.error("Error processing file " + f, ex);
+        summary.add("  " + f.getName() + ": " + ex.getMessage());
+      });
+      RuntimeException summaryException = new RuntimeException(
+          String.format("%d of %d %s files failed:%n%s", failures.size(), files.size(), getFileType().name(), summary),
+          failures.values().iterator().next()
+      );
+      failures.values().stream().skip(1).forEach(summaryException::addSuppressed);
+      throw summaryException;
+    }
   }
 
   /**
@@ -133,8 +594,7 @@ public abstract class BaseDirectoryImporter {
     return (File file) -> {
       sf_logger.info("Reading {}", file);
 
-      try (InputStream in = Files.newInputStream(file.toPath())) {
-        WorkbookWrapper workbook = new WorkbookWrapper(in);
+      try (WorkbookWrapper workbook = isStreamingSafe() ? WorkbookWrapper.stream(file.toPath()) : new WorkbookWrapper(file.toPath())) {
         workbook.setFileName(file.getName());
         processWorkbook(workbook);
       } catch (Exception ex) {
@@ -153,6 +613,20 @@ public abstract class BaseDirectoryImporter {
     throw new RuntimeException("Workbook processor not implemented in this importer");
   }
 
+  /**
+   * Sets the number of files this importer can process at the same time. This is ignored for importers that are not
+   * parallel-safe (see {@link BaseDirectoryImporter#isParallelSafe()}).
+   * @param fileWorkers the number of files to process at once, 1 to process files one at a time
+   * @return this importer
+   */
+  public BaseDirectoryImporter setFileWorkers(int fileWorkers) {
+    if (fileWorkers < 1) {
+      throw new IllegalArgumentException("Need at least 1 file worker, got " + fileWorkers);
+    }
+    this.fileWorkers = fileWorkers;
+    return this;
+  }
+
   public BaseDirectoryImporter setDirectory(Path parentDir, String dir) {
     setDirectory(parentDir.resolve(StringUtils.defaultIfBlank(dir, getDefaultDirectoryName())));
     return this;
@@ -210,27 +684,21 @@ public abstract class BaseDirectoryImporter {
   }
 
   /**
-   * Writes the supplied list of notes to the DB for the given id
+   * Queues the supplied list of notes to be written to the DB for the given id by the {@link WriteBehindQueue}, they're
+   * written by the time this importer finishes
    * @param entityId the ID of the object to note
    * @param notes a List of String notes
-   * @throws SQLException can occur from DB inserts
    */
-  void writeNotes(String entityId, List<String> notes) throws SQLException {
+  void writeNotes(String entityId, List<String> notes) {
     if (notes == null || notes.size() == 0) return;
 
-    try (Connection conn = ConnectionFactory.newConnection()) {
-      PreparedStatement noteInsert = conn.prepareStatement("insert into file_note(entityId, note, type, ordinal) values (?, ?, ?, ?)");
-      int n = 0;
-      for (String note : notes) {
-        noteInsert.setString(1, entityId);
-        noteInsert.setString(2, note);
-        noteInsert.setString(3, getFileType().name());
-        noteInsert.setInt(4, n);
-        noteInsert.executeUpdate();
-        n += 1;
-      }
-      sf_logger.debug("created {} new notes", notes.size());
+    int n = 0;
+    for (String note : notes) {
+      WriteBehindQueue.shared().add(getFileType().name(), BatchStatement.UNKNOWN_ROW, INSERT_NOTE_SQL,
+          entityId, note, getFileType().name(), n);
+      n += 1;
     }
+    sf_logger.debug("queued {} new notes", notes.size());
   }
 
   /**
@@ -253,7 +721,7 @@ public abstract class BaseDirectoryImporter {
         return Constants.NO_RESULT;
       }
       else if (sf_activityScorePattern.matcher(score).matches()) {
-        return score.replaceAll("\\.0$", "");
+        return TextNormalizer.intern(StringUtils.removeEnd(score, ".0"));
       } else {
         throw new RuntimeException("Activity score not in expected format: " + score);
       }
@@ -274,7 +742,7 @@ public abstract class BaseDirectoryImporter {
     } else if (strippedText.equalsIgnoreCase(Constants.NA)) {
       return Constants.NA;
     } else {
-      return strippedText.replaceAll(gene + "\\s*", "");
+      return TextNormalizer.intern(TextNormalizer.removeGene(strippedText, gene, false));
     }
   }
 
@@ -287,7 +755,7 @@ public abstract class BaseDirectoryImporter {
 
       java.util.Date date = row.getDate(0);
       String note = row.getText(1);
-      db.writeChangeLog(entityId, date, note);
+      db.writeChangeLog(i + 1, entityId, date, note);
     }
   }
 }
@@ -1,22 +1,33 @@
 package org.cpicpgx.importer;
 
+import com.google.gson.GsonBuilder;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.Transaction;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.model.FileType;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.RowWrapper;
+import org.cpicpgx.util.TextNormalizer;
 import org.cpicpgx.util.WorkbookWrapper;
-import org.postgresql.util.PSQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Objects;
+import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,7 +35,8 @@ import java.util.regex.Pattern;
  * Parses diplotype-phenotype translation files.
  *
  * This does not actually load any data into the DB, it checks the existing files to ensure the previously
- * manually-curated data matches the data inferred by the system.
+ * manually-curated data matches the data inferred by the system. The differences are logged, or written to a CSV or
+ * JSON report (by file extension) when the CPIC_DIPLOTYPE_REPORT environment variable gives a path for one.
  *
  * @author Ryan Whaley
  */
@@ -33,7 +45,12 @@ public class DiplotypePhenotypeImporter extends BaseDirectoryImporter {
   private static final Pattern GENE_PATTERN = Pattern.compile("(\\w+)\\s*Diplotype");
   private static final int COL_IDX_DIP = 0;
   private static final String DIPLOTYPE_SEPARATOR = "/";
+  // footnote letters left on "function" and "metabolizer", and the capitalized "Function", fixed in one pass
+  private static final Pattern sf_phenotypeFixPattern = Pattern.compile("Function[a-f]?|unction[a-f]|[Mm]eta[zb]olizer[cd]*+");
   private static final String[] sf_deleteStatements = new String[]{};
+  private static final Path sf_reportPath = StringUtils.isBlank(System.getenv("CPIC_DIPLOTYPE_REPORT")) ? null : Paths.get(System.getenv("CPIC_DIPLOTYPE_REPORT"));
+
+  private final List<Mismatch> f_mismatches = Collections.synchronizedList(new ArrayList<>());
 
   public static void main(String[] args) {
     rebuild(new DiplotypePhenotypeImporter(), args);
@@ -56,6 +73,14 @@ public class DiplotypePhenotypeImporter extends BaseDirectoryImporter {
     return Constants.EXCEL_EXTENSION;
   }
 
+  /**
+   * Only reads from the DB and keeps going after individual row errors, which an open transaction would not allow
+   */
+  @Override
+  Transaction.Scope getTransactionScope() {
+    return Transaction.Scope.NONE;
+  }
+
   @Override
   void processWorkbook(WorkbookWrapper workbook) throws Exception {
     int phenoIdx = -1;
@@ -102,29 +127,75 @@ public class DiplotypePhenotypeImporter extends BaseDirectoryImporter {
     sf_logger.debug("loading gene {}", geneSymbol);
 
     int rowsProcessed = 0;
-    try (DbHarness dbHarness = new DbHarness(geneSymbol)) {
-      for (int i = 1; i <= workbook.currentSheet.getLastRowNum(); i++) {
-        RowWrapper row = workbook.getRow(i);
-        // don't load rows that are footnotes (won't have a phenotype)
-        if (row.hasNoText(phenoIdx)) {
-          continue;
-        }
+    DbHarness dbHarness = new DbHarness(geneSymbol);
+    for (int i = 1; i <= workbook.currentSheet.getLastRowNum(); i++) {
+      RowWrapper row = workbook.getRow(i);
+      // don't load rows that are footnotes (won't have a phenotype)
+      if (row.hasNoText(phenoIdx)) {
+        continue;
+      }
 
-        String dip = row.getNullableText(COL_IDX_DIP);
-        String pheno = row.getNullableText(phenoIdx);
-        Double activity = row.getNullableDouble(activityIdx);
-        String ehr = row.getNullableText(ehrIdx);
+      String dip = row.getNullableText(COL_IDX_DIP);
+      String pheno = row.getNullableText(phenoIdx);
+      Double activity = row.getNullableDouble(activityIdx);
+      String ehr = row.getNullableText(ehrIdx);
 
-        try {
-          dbHarness.insert(dip, pheno, activity, ehr);
-        } catch (PSQLException ex) {
-          sf_logger.warn("found duplicate " + dip + " on row " + (i+1));
-        }
-        rowsProcessed += 1;
+      dbHarness.check(i + 1, dip, pheno, activity, ehr);
+      rowsProcessed += 1;
+    }
+    f_mismatches.addAll(dbHarness.getMismatches());
+    sf_logger.info("    {} rows processed", rowsProcessed);
+    sf_logger.info("    {} diplotypes match failed", dbHarness.getFailCount());
+  }
+
+  /**
+   * Reports the mismatches found in all the files
+   */
+  @Override
+  void afterExecute() {
+    List<Mismatch> mismatches = new ArrayList<>(f_mismatches);
+    f_mismatches.clear();
+    mismatches.sort(Comparator.comparing((Mismatch m) -> m.gene).thenComparingInt(m -> m.row));
+
+    if (sf_reportPath == null) {
+      mismatches.forEach(m -> sf_logger.warn("{}", m));
+      return;
+    }
+    try (Writer writer = Files.newBufferedWriter(sf_reportPath, StandardCharsets.UTF_8)) {
+      if (sf_reportPath.toString().toLowerCase().endsWith(".json")) {
+        writeJson(mismatches, writer);
+      } else {
+        writeCsv(mismatches, writer);
       }
-      sf_logger.info("    {} rows processed", rowsProcessed);
-      sf_logger.info("    {} diplotypes match failed", dbHarness.getFailCount());
+    } catch (IOException ex) {
+      throw new RuntimeException("Couldn't write diplotype report " + sf_reportPath, ex);
+    }
+    sf_logger.info("Wrote {} diplotype mismatches to {}", mismatches.size(), sf_reportPath);
+  }
+
+  static void writeCsv(List<Mismatch> mismatches, Writer writer) throws IOException {
+    CSVPrinter printer = new CSVPrinter(writer, CSVFormat.EXCEL.withHeader(Mismatch.HEADER));
+    for (Mismatch m : mismatches) {
+      printer.printRecord(m.gene, m.row, m.diplotype, m.field, m.fileValue, m.dbValue);
+    }
+    printer.flush();
+  }
+
+  static void writeJson(List<Mismatch> mismatches, Writer writer) {
+    new GsonBuilder().serializeNulls().setPrettyPrinting().create().toJson(mismatches, writer);
+  }
+
+  /**
+   * Gets a key for a diplotype that's the same no matter which order the alleles are in, so *2/*1 finds *1/*2
+   * @param dip a diplotype like *1/*2, or a single allele
+   * @return the diplotype with its alleles in a fixed order
+   */
+  static String canonicalDip(String dip) {
+    if (StringUtils.countMatches(dip, DIPLOTYPE_SEPARATOR) != 1) {
+      return dip;
     }
+    String flipped = flipDip(dip);
+    return flipped.compareTo(dip) < 0 ? flipped : dip;
   }
 
   /**
@@ -147,76 +218,146 @@ public class DiplotypePhenotypeImporter extends BaseDirectoryImporter {
     return Objects.equals(alleles[0], alleles[1]);
   }
 
-  static class DbHarness implements AutoCloseable {
-    private final Connection conn;
+  /**
+   * A value in a file that's different from the DB
+   */
+  static class Mismatch {
+    static final String[] HEADER = new String[]{"gene", "row", "diplotype", "field", "file", "db"};
+
     private final String gene;
-    private final PreparedStatement findDiplotype;
-    private int failCount = 0;
+    private final int row;
+    private final String diplotype;
+    private final String field;
+    private final String fileValue;
+    private final String dbValue;
 
-    DbHarness(String gene) throws SQLException {
+    Mismatch(String gene, int row, String diplotype, String field, String fileValue, String dbValue) {
       this.gene = gene;
-      this.conn = ConnectionFactory.newConnection();
+      this.row = row;
+      this.diplotype = diplotype;
+      this.field = field;
+      this.fileValue = fileValue;
+      this.dbValue = dbValue;
+    }
 
-      this.findDiplotype = this.conn.prepareStatement(
-          "select p.result, f.totalactivityscore, d.id, p.ehrpriority from gene_result p " +
-              "    join gene_result_lookup f on p.id = f.phenotypeId " +
-              "    join gene_result_diplotype d on f.id = d.functionPhenotypeId where p.genesymbol=? and d.diplotype=?"
-      );
+    @Override
+    public String toString() {
+      return String.format("%s %s (row %d): %s [%s] in file vs [%s] in DB", gene, diplotype, row, field, fileValue, dbValue);
     }
+  }
 
-    void insert(String diplotype, String phenotype, Double activity, String ehr) throws SQLException {
-      String phenoStripped = stripPhenotype(phenotype);
+  /**
+   * Holds the phenotype, activity score and EHR priority of every diplotype of a gene in the DB, read in one query, to
+   * check the rows of a file against
+   */
+  static class DbHarness {
+    private static final int COL_DIPLOTYPE = 0;
+    private static final int COL_RESULT = 1;
+    private static final int COL_SCORE = 2;
+    private static final int COL_EHR = 3;
 
-      findDiplotype.setString(1, gene);
-      findDiplotype.setString(2, diplotype);
-      try (ResultSet rs = findDiplotype.executeQuery()) {
-        if (rs.next()) {
-          String existingPhenotype = rs.getString(1);
-          String existingActivityScore = rs.getString(2);
-          String existingEhrPriority = rs.getString(4);
-
-          if (!phenoStripped.equalsIgnoreCase(existingPhenotype)) {
-            sf_logger.info("{} {}:\n\tPhenotype: [{}] in file vs [{}] in DB\n\tActivity Score: [{}] in file vs [{}] in DB", gene, diplotype, phenoStripped, existingPhenotype, activity, existingActivityScore);
-            failCount += 1;
-          }
-          if (!ehr.equalsIgnoreCase(existingEhrPriority) && !(ehr.equals("none") && existingEhrPriority == null)) {
-            sf_logger.info("{} {}:\n\tEHR: [{}] in file vs [{}] in DB", gene, diplotype, ehr, existingEhrPriority);
-            failCount += 1;
-          }
+    private final String gene;
+    private final Map<String, String[]> diplotypes = new HashMap<>();
+    private final Set<String> duplicates = new HashSet<>();
+    private final Set<String> checked = new HashSet<>();
+    private final List<Mismatch> mismatches = new ArrayList<>();
+
+    DbHarness(String gene) throws SQLException {
+      this(gene, loadDiplotypes(gene));
+    }
+
+    /**
+     * @param gene the gene symbol
+     * @param rows the diplotype, phenotype, activity score and EHR priority of each diplotype of the gene
+     */
+    DbHarness(String gene, List<String[]> rows) {
+      this.gene = gene;
+      for (String[] row : rows) {
+        String key = canonicalDip(row[COL_DIPLOTYPE]);
+        if (diplotypes.put(key, row) != null) {
+          duplicates.add(key);
+        }
+      }
+    }
 
-          if (rs.next()) {
-            throw new RuntimeException("Unexpected second result for " + gene + " " + diplotype);
+    private static List<String[]> loadDiplotypes(String gene) throws SQLException {
+      List<String[]> rows = new ArrayList<>();
+      try (
+          Connection conn = ConnectionFactory.newConnection();
+          PreparedStatement stmt = conn.prepareStatement(
+              "select d.diplotype, p.result, f.totalactivityscore, p.ehrpriority from gene_result p " +
+                  "    join gene_result_lookup f on p.id = f.phenotypeId " +
+                  "    join gene_result_diplotype d on f.id = d.functionPhenotypeId where p.genesymbol=?")
+      ) {
+        stmt.setString(1, gene);
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            rows.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)});
           }
         }
       }
+      return rows;
     }
-    
+
+    /**
+     * Compares a row of the file to the DB, differences are kept in {@link DbHarness#getMismatches()}. Diplotypes that
+     * aren't in the DB are skipped.
+     * @param row the 1-based row number in the file
+     */
+    void check(int row, String diplotype, String phenotype, Double activity, String ehr) {
+      if (diplotype == null) {
+        return;
+      }
+      String key = canonicalDip(diplotype);
+      if (!checked.add(key)) {
+        sf_logger.warn("found duplicate " + diplotype + " on row " + row);
+        return;
+      }
+      String[] existing = diplotypes.get(key);
+      if (existing == null) {
+        return;
+      }
+      if (duplicates.contains(key)) {
+        throw new RuntimeException("Unexpected second result for " + gene + " " + diplotype);
+      }
+
+      String phenoStripped = stripPhenotype(phenotype);
+      if (!StringUtils.equalsIgnoreCase(phenoStripped, existing[COL_RESULT])) {
+        mismatches.add(new Mismatch(gene, row, diplotype, "phenotype", phenoStripped, existing[COL_RESULT]));
+      }
+      String existingScore = existing[COL_SCORE];
+      if (activity != null && NumberUtils.isCreatable(existingScore) && activity != Double.parseDouble(existingScore)) {
+        mismatches.add(new Mismatch(gene, row, diplotype, "activity score", String.valueOf(activity), existingScore));
+      }
+      String existingEhr = existing[COL_EHR];
+      if (!StringUtils.equalsIgnoreCase(ehr, existingEhr) && !("none".equals(ehr) && existingEhr == null)) {
+        mismatches.add(new Mismatch(gene, row, diplotype, "EHR priority", ehr, existingEhr));
+      }
+    }
+
     String stripPhenotype(String pheno) {
       if (pheno == null) {
         return null;
       }
-      return StringUtils.stripToNull(
-          pheno
-              .replaceAll(this.gene, "")
-              .replaceAll("\\s+", " ")
-              .replaceAll("unction[abcdef]", "unction")
-              .replaceAll("Function", "function")
-              .replaceAll("[Mm]eta[zb]olizer[cd]*+", "metabolizer")
-      );
+      String text = TextNormalizer.collapseWhitespace(StringUtils.remove(pheno, this.gene));
+      Matcher m = sf_phenotypeFixPattern.matcher(text);
+      if (m.find()) {
+        StringBuffer fixed = new StringBuffer(text.length());
+        do {
+          String match = m.group();
+          m.appendReplacement(fixed, match.startsWith("F") ? "function" : match.startsWith("u") ? "unction" : "metabolizer");
+        } while (m.find());
+        text = m.appendTail(fixed).toString();
+      }
+      return TextNormalizer.intern(StringUtils.stripToNull(text));
     }
 
-    @Override
-    public void close() throws Exception {
-      if (this.findDiplotype != null) {
-        this.findDiplotype.close();
-      }
-      if (this.conn != null) {
-        this.conn.close();
-      }
+    List<Mismatch> getMismatches() {
+      return mismatches;
     }
 
     public int getFailCount() {
-      return failCount;
+      return mismatches.size();
     }
   }
 }
@@ -2,6 +2,7 @@ package org.cpicpgx.importer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.model.FileType;
 import org.cpicpgx.util.RowWrapper;
 import org.cpicpgx.util.WorkbookWrapper;
@@ -53,6 +54,11 @@ public class DrugImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.DRUG};
+  }
+
   @Override
   void processWorkbook(WorkbookWrapper workbook) throws Exception {
     workbook.switchToSheet(0);
@@ -2,9 +2,14 @@ package org.cpicpgx.importer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.CopyLoader;
+import org.cpicpgx.db.IdAllocator;
+import org.cpicpgx.db.ReferenceData;
+import org.cpicpgx.db.WriteBehindQueue;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.RowWrapper;
 import org.slf4j.Logger;
@@ -28,13 +33,14 @@ public class FrequencyProcessor implements AutoCloseable {
   
   private final Connection conn;
   private final Map<Integer, Long> colIdxAlleleIdMap = new HashMap<>();
-  private final PreparedStatement insertStatement;
-  private final PreparedStatement insertPopulation;
-  private final PreparedStatement insertHistory;
+  private final CopyLoader populationLoader;
+  private final CopyLoader frequencyLoader;
+  private final String gene;
   private final PreparedStatement updateMethods;
   private final PublicationCatalog publicationCatalog;
 
   private int colStartOffset = 0;
+  private final IdAllocator populationIds;
 
   /**
    * Construct the FrequencyProcessor
@@ -44,36 +50,34 @@ public class FrequencyProcessor implements AutoCloseable {
    */
   FrequencyProcessor(String gene, RowWrapper headerRow) throws SQLException, NotFoundException {
     this.conn = ConnectionFactory.newConnection();
-    publicationCatalog = new PublicationCatalog(this.conn);
+    IdAllocator ids = new IdAllocator(this.conn, IdAllocator.DEFAULT_BLOCK_SIZE);
+    publicationCatalog = new PublicationCatalog(this.conn, ids);
+    populationIds = ids;
 
     Map<String, Long> alleleNameMap = new HashMap<>();
-    PreparedStatement pstmt = this.conn.prepareStatement("select name, id from allele where allele.geneSymbol=?");
     if (gene.equals("HLA")) {
       String[] hlaGenes = new String[]{"HLA-A", "HLA-B"};
       for (String hlaGene : hlaGenes) {
-        pstmt.setString(1, hlaGene);
-        ResultSet rs = pstmt.executeQuery();
-        while (rs.next()) {
-          alleleNameMap.put(hlaGene + rs.getString(1), rs.getLong(2));
+        for (ReferenceData.Allele allele : ReferenceData.getAlleles(hlaGene).values()) {
+          alleleNameMap.put(hlaGene + allele.getName(), allele.getId());
         }
       }
     } 
     else {
-      pstmt.setString(1, gene);
-      ResultSet rs = pstmt.executeQuery();
-      while (rs.next()) {
-        alleleNameMap.put(rs.getString(1), rs.getLong(2));
+      for (ReferenceData.Allele allele : ReferenceData.getAlleles(gene).values()) {
+        alleleNameMap.put(allele.getName(), allele.getId());
       }
     }
 
-    this.insertStatement = 
-        this.conn.prepareStatement("insert into allele_frequency(alleleid, population, frequency, label) values (?, ?, ?, ?)");
-    this.insertPopulation = 
-        this.conn.prepareStatement("insert into population(ethnicity, population, populationinfo, subjecttype, subjectcount, publicationId) values (?, ?, ?, ?, ?, ?) returning (id)");
-    this.insertHistory =
-        this.conn.prepareStatement("insert into change_log(entityId, note, type, date) values (?, ?, ?, ?)");
-    this.insertHistory.setString(1, gene);
-    this.insertHistory.setString(3, FileType.FREQUENCY.name());
+    // population IDs are reserved ahead of time so populations and frequencies can both be sent with COPY, populations 
+    // always go first since frequencies refer to them, and new publications go before the populations that cite them
+    this.populationLoader = new CopyLoader(this.conn, "population", 
+        "id", "ethnicity", "population", "populationinfo", "subjecttype", "subjectcount", "publicationId")
+        .after(publicationCatalog.getLoader());
+    this.frequencyLoader = new CopyLoader(this.conn, "allele_frequency", 
+        "alleleid", "population", "frequency", "label")
+        .after(this.populationLoader);
+    this.gene = gene;
     this.updateMethods =
         this.conn.prepareStatement("update gene set frequencyMethods=? where symbol=?");
     this.updateMethods.setString(2, gene);
@@ -108,13 +112,13 @@ public class FrequencyProcessor implements AutoCloseable {
   }
 
   /**
-   * Read frequency data from the given row at the given column index and writes it to the DB
+   * Read frequency data from the given row at the given column index and queues it to be written to the DB
    * @param row a row of frequency data
    * @param alleleColIdx the index of the allele column to read
    * @param populationId the ID of the population DB record this frequency is for
    * @throws SQLException can occur when writing to the DB
    */
-  private void insertFrequency(RowWrapper row, Integer alleleColIdx, Long populationId) throws SQLException {
+  private void insertFrequency(RowWrapper row, Integer alleleColIdx, int populationId) throws SQLException {
     if (alleleColIdx == null || !colIdxAlleleIdMap.containsKey(alleleColIdx)) {
       throw new RuntimeException("Allele column index invalid: " + alleleColIdx);
     }
@@ -127,31 +131,16 @@ public class FrequencyProcessor implements AutoCloseable {
     String label = row.getNullableText(alleleColIdx);
     Double value = row.getNullableDouble(alleleColIdx);
     
-    this.insertStatement.setLong(1, alleleId);
-    this.insertStatement.setLong(2, populationId);
-    if (value != null) {
-      // some older frequency files use the 0-100 percentage range instead of 0-1 decimal range, convert if found
-      if (value > 1) {
-        value = value / 100;
-      }
-      this.insertStatement.setDouble(3, value);
-    } else {
-      this.insertStatement.setNull(3, Types.DOUBLE);
-    }
-    if (label != null) {
-      this.insertStatement.setString(4, label);
-    } else {
-      this.insertStatement.setNull(4, Types.VARCHAR);
-    }
-    int result = this.insertStatement.executeUpdate();
-    if (result == 0) {
-      throw new RuntimeException("Insert resulted in no rows");
+    // some older frequency files use the 0-100 percentage range instead of 0-1 decimal range, convert if found
+    if (value != null && value > 1) {
+      value = value / 100;
     }
-    this.insertStatement.clearParameters();
+    this.frequencyLoader.add(alleleId, populationId, value, label);
   }
 
   /**
-   * Read the given population row and write contents to the DB
+   * Read the given population row and queue its contents to be written to the DB. Rows are sent in bulk, at the latest
+   * when this processor is closed.
    * @param row a population Row
    * @throws SQLException can occur when writing data to the DB
    */
@@ -163,44 +152,39 @@ public class FrequencyProcessor implements AutoCloseable {
     String externalId = row.getNullableText(getPmidIdx(), true);
     Integer publicationId = this.publicationCatalog.lookupId(externalId, pubYear, author);
 
-    this.insertPopulation.setString(1, row.getNullableText(getEthIdx()));
-    this.insertPopulation.setString(2, row.getNullableText(getPopIdx()));
-    this.insertPopulation.setString(3, row.getNullableText(getPopInfoIdx()));
-    this.insertPopulation.setString(4, row.getNullableText(getSubjTypeIdx()));
     Long nSubjects = 0L;
     try {
       nSubjects = row.getNullableLong(getNIdx());
     } catch (NumberFormatException ex) {
       sf_logger.warn(ex.getMessage());
     }
-    this.insertPopulation.setLong(5, nSubjects);
-    if (publicationId != null) {
-      this.insertPopulation.setInt(6, publicationId);
-    } else {
-      this.insertPopulation.setNull(6, Types.INTEGER);
-    }
-    ResultSet rs = this.insertPopulation.executeQuery();
-    if (!rs.next()) {
-      throw new RuntimeException("Insert failed");
-    }
-    Long popId = rs.getLong(1);
+
+    int popId = populationIds.next();
+    this.populationLoader.add(
+        popId,
+        row.getNullableText(getEthIdx()),
+        row.getNullableText(getPopIdx()),
+        row.getNullableText(getPopInfoIdx()),
+        row.getNullableText(getSubjTypeIdx()),
+        nSubjects,
+        publicationId
+    );
     
     for (Integer colIdx : colIdxAlleleIdMap.keySet()) {
       insertFrequency(row, colIdx, popId);
     }
-    this.insertPopulation.clearParameters();
   }
 
-  void insertHistory(java.util.Date date, String note) throws SQLException {
+  /**
+   * Queue a change log entry for the gene to be written by the {@link WriteBehindQueue}
+   */
+  void insertHistory(java.util.Date date, String note) {
     if (note.equalsIgnoreCase(AbstractWorkbook.LOG_FILE_CREATED)) return;
 
-    if (StringUtils.isNotBlank(note)) {
-      insertHistory.setString(2, note);
-    } else {
-      insertHistory.setString(2, Constants.NA);
-    }
-    insertHistory.setDate(4, new Date(date.getTime()));
-    insertHistory.executeUpdate();
+    //language=PostgreSQL
+    WriteBehindQueue.shared().add(FileType.FREQUENCY.name(), BatchStatement.UNKNOWN_ROW,
+        "insert into change_log(entityId, note, type, date) values (?, ?, ?, ?)",
+        gene, StringUtils.isNotBlank(note) ? note : Constants.NA, FileType.FREQUENCY.name(), new Date(date.getTime()));
   }
 
   void updateMethods(String methodsText) throws SQLException {
@@ -212,8 +196,15 @@ public class FrequencyProcessor implements AutoCloseable {
 
   @Override
   public void close() throws Exception {
-    if (conn != null && !conn.isClosed()) {
-      conn.close();
+    try {
+      // frequencies flush populations first
+      this.frequencyLoader.close();
+      sf_logger.debug("copied {} publications, {} populations and {} frequencies", publicationCatalog.getLoader().getRowCount(),
+          populationLoader.getRowCount(), frequencyLoader.getRowCount());
+    } finally {
+      if (conn != null && !conn.isClosed()) {
+        conn.close();
+      }
     }
   }
   
@@ -3,6 +3,7 @@ package org.cpicpgx.importer;
 import com.google.gson.JsonObject;
 import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.db.LookupMethod;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
@@ -16,7 +17,6 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import java.lang.invoke.MethodHandles;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -50,6 +50,11 @@ public class FunctionReferenceImporter extends BaseDirectoryImporter {
       "delete from change_log where type='" + FileType.ALLELE_FUNCTION_REFERENCE.name() + "'",
       "delete from file_note where type='" + FileType.ALLELE_FUNCTION_REFERENCE.name() + "'"
   };
+  private static final String[] sf_entityDeleteStatements = new String[]{
+      "delete from allele where geneSymbol=? and geneSymbol not in ('HLA-A','HLA-B')",
+      "delete from change_log where type='" + FileType.ALLELE_FUNCTION_REFERENCE.name() + "' and entityId=?",
+      "delete from file_note where type='" + FileType.ALLELE_FUNCTION_REFERENCE.name() + "' and entityId=?"
+  };
 
   public static void main(String[] args) {
     rebuild(new FunctionReferenceImporter(), args);
@@ -70,6 +75,25 @@ public class FunctionReferenceImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  EntityKind getEntityKind() {
+    return EntityKind.GENE;
+  }
+
+  @Override
+  String[] getEntityDeleteStatements() {
+    return sf_entityDeleteStatements;
+  }
+
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.ALLELE};
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.ALLELE_DEFINITION};
+  }
+
   void processWorkbook(WorkbookWrapper workbook) throws Exception {
     int rowIdx = 0;
 
@@ -92,6 +116,7 @@ public class FunctionReferenceImporter extends BaseDirectoryImporter {
     }
     
     sf_logger.debug("This sheet is for {}, {}", geneSymbol, row.getNullableText(1));
+    noteEntity(geneSymbol);
 
     List<String> noFunctionAlleles = new ArrayList<>();
     rowIdx += 2; // move down 2 rows and start reading;
@@ -221,27 +246,18 @@ public class FunctionReferenceImporter extends BaseDirectoryImporter {
       super(FileType.ALLELE_FUNCTION_REFERENCE);
       this.gene = gene;
 
-      PreparedStatement pstmt = prepare("select name, id from allele_definition where geneSymbol=?");
-      pstmt.setString(1, gene);
-      try (ResultSet rs = pstmt.executeQuery()) {
-        while (rs.next()) {
-          this.alleleNameMap.put(rs.getString(1), rs.getLong(2));
-        }
-      }
+      this.alleleNameMap.putAll(ReferenceData.getAlleleDefinitionIds(gene));
 
       if (this.alleleNameMap.size() == 0) {
         throw new RuntimeException("No alleles found for gene: " + gene);
       }
 
-      PreparedStatement lstmt = prepare("select lookupmethod from gene where symbol=?");
-      lstmt.setString(1, gene);
-      try (ResultSet rs = lstmt.executeQuery()) {
-        if (rs.next()) {
-          this.geneLookupMethod = LookupMethod.valueOf(rs.getString(1));
-        } else {
-          sf_logger.warn("Gene lookup method not found for " + gene);
-          this.geneLookupMethod = null;
-        }
+      ReferenceData.Gene referenceGene = ReferenceData.getGene(gene);
+      if (referenceGene != null && referenceGene.getLookupMethod() != null) {
+        this.geneLookupMethod = referenceGene.getLookupMethod();
+      } else {
+        sf_logger.warn("Gene lookup method not found for " + gene);
+        this.geneLookupMethod = null;
       }
 
       //language=PostgreSQL
@@ -304,9 +320,7 @@ public class FunctionReferenceImporter extends BaseDirectoryImporter {
         return null;
       }
       
-      return fn
-          .replaceAll("Function", "function")
-          .replaceAll("unctione", "unction");
+      return StringUtils.replace(StringUtils.replace(fn, "Function", "function"), "unctione", "unction");
     }
   }
 }
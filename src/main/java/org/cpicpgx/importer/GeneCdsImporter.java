@@ -1,11 +1,14 @@
 package org.cpicpgx.importer;
 
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchUpsert;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.DbHarness;
 import org.cpicpgx.util.RowWrapper;
+import org.cpicpgx.util.TextNormalizer;
 import org.cpicpgx.util.WorkbookWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,8 +18,7 @@ import java.security.InvalidParameterException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +34,10 @@ public class GeneCdsImporter extends BaseDirectoryImporter {
       "delete from file_note where type='" + FileType.GENE_CDS.name() + "'",
       "delete from change_log where type='" + FileType.GENE_CDS.name() + "'"
   };
+  private static final String[] sf_entityDeleteStatements = new String[]{
+      "delete from file_note where type='" + FileType.GENE_CDS.name() + "' and entityId=?",
+      "delete from change_log where type='" + FileType.GENE_CDS.name() + "' and entityId=?"
+  };
   private static final int COL_PHENOTYPE = 0;
   private static final int COL_ACTIVITY = 1;
   private static final int COL_EHR_PRIORITY = 2;
@@ -52,6 +58,26 @@ public class GeneCdsImporter extends BaseDirectoryImporter {
   String[] getDeleteStatements() {
     return sf_deleteStatements;
   }
+
+  @Override
+  EntityKind getEntityKind() {
+    return EntityKind.GENE;
+  }
+
+  @Override
+  String[] getEntityDeleteStatements() {
+    return sf_entityDeleteStatements;
+  }
+
+  @Override
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.GENE_RESULT};
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.GENE_PHENOTYPE};
+  }
   
   @Override
   String getFileExtensionToProcess() {
@@ -78,6 +104,7 @@ public class GeneCdsImporter extends BaseDirectoryImporter {
     }
     String geneSymbol = m.group(1);
     sf_logger.debug("loading gene {}", geneSymbol);
+    noteEntity(geneSymbol);
 
     try (GeneDbHarness dbHarness = new GeneDbHarness(geneSymbol)) {
       for (; rowIdx <= workbook.currentSheet.getLastRowNum(); rowIdx++) {
@@ -95,7 +122,7 @@ public class GeneCdsImporter extends BaseDirectoryImporter {
         String priority = dataRow.getText(COL_EHR_PRIORITY);
         String consultation = dataRow.getText(COL_CONSULTATION);
 
-        dbHarness.insert(pheno, activity, priority, consultation);
+        dbHarness.insert(rowIdx + 1, pheno, activity, priority, consultation);
       }
 
       List<String> notes = new ArrayList<>();
@@ -118,60 +145,41 @@ public class GeneCdsImporter extends BaseDirectoryImporter {
 
   static class GeneDbHarness extends DbHarness {
     private final String gene;
-    private final PreparedStatement insertStmt;
-    private final PreparedStatement updateStmt;
-    private final boolean phenotypesExist;
+    private final BatchUpsert upsertResult;
+    // the results already in the DB for this gene, by result and activity score
+    private final Set<List<String>> existingResults = new HashSet<>();
 
     GeneDbHarness(String gene) throws SQLException {
       super(FileType.GENE_CDS);
       this.gene = gene;
 
-      //language=PostgreSQL
-      insertStmt = prepare(
-          "insert into gene_result(geneSymbol, result, ehrPriority, consultationText, activityScore) " +
-              "values (?, ?, ?, ?, ?)"
-      );
-
-      //language=PostgreSQL
-      updateStmt = prepare("update gene_result set ehrPriority=?, consultationText=? where geneSymbol=? and result=? and activityScore=?");
+      upsertResult = prepareUpsert("gene_result",
+          new String[]{"geneSymbol", "result", "activityScore"},
+          "ehrPriority", "consultationText");
 
       //language=PostgreSQL
-      PreparedStatement existingStmt = prepare("select count(*) from gene_result where genesymbol=?");
+      PreparedStatement existingStmt = prepare("select result, activityScore from gene_result where genesymbol=?");
       existingStmt.setString(1, gene);
       try (ResultSet rs = existingStmt.executeQuery()) {
-        if (rs.next()) {
-          int count = rs.getInt(1);
-          phenotypesExist = count > 0;
-        } else {
-          phenotypesExist = false;
+        while (rs.next()) {
+          existingResults.add(Arrays.asList(rs.getString(1), rs.getString(2)));
         }
       }
     }
 
-    void insert(String phenotype, String activity, String ehr, String consultation) throws Exception {
-      String normalizedPhenotype = phenotype.replaceAll(this.gene + "\\s+", "");
-
-      if (!phenotypesExist) {
-        insertStmt.clearParameters();
-        insertStmt.setString(1, gene);
-        insertStmt.setString(2, normalizedPhenotype);
-        insertStmt.setString(3, ehr);
-        insertStmt.setString(4, consultation);
-        insertStmt.setString(5, activity);
-        insertStmt.executeUpdate();
-      } else {
-        updateStmt.clearParameters();
-        setNullableString(updateStmt, 1, ehr);
-        setNullableString(updateStmt, 2, consultation);
-        updateStmt.setString(3, gene);
-        updateStmt.setString(4, normalizedPhenotype);
-        updateStmt.setString(5, activity);
-
-        int result = updateStmt.executeUpdate();
-        if (result == 0) {
-          throw new NotFoundException(String.format("No phenotype row exists for %s %s [activity:%s]", gene, normalizedPhenotype, activity));
-        }
+    /**
+     * Queue the CDS text for a result of this gene. If the gene already has results only those can get CDS text,
+     * otherwise the results are added.
+     * @param row the source row number, used in error messages
+     */
+    void insert(int row, String phenotype, String activity, String ehr, String consultation) throws Exception {
+      String normalizedPhenotype = TextNormalizer.removeGene(phenotype, this.gene, true);
+
+      // a null activity score never matches an existing result, the same as in SQL
+      if (!existingResults.isEmpty() && (activity == null || !existingResults.contains(Arrays.asList(normalizedPhenotype, activity)))) {
+        throw new NotFoundException(String.format("No phenotype row exists for %s %s [activity:%s]", gene, normalizedPhenotype, activity));
       }
+      upsertResult.add(row, gene, normalizedPhenotype, activity, normalizeNa(ehr), normalizeNa(consultation));
     }
   }
 }
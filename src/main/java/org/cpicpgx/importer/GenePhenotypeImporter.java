@@ -3,7 +3,10 @@ package org.cpicpgx.importer;
 import com.google.common.collect.ImmutableList;
 import com.google.gson.JsonObject;
 import org.apache.commons.lang3.StringUtils;
+import org.cpicpgx.db.CopyLoader;
+import org.cpicpgx.db.IdAllocator;
 import org.cpicpgx.db.LookupMethod;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.model.FileType;
 import org.cpicpgx.util.Constants;
@@ -18,8 +21,8 @@ import java.lang.invoke.MethodHandles;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,6 +39,11 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
       "delete from gene_result_lookup",
       "delete from gene_result"
   };
+  private static final String[] sf_entityDeleteStatements = new String[]{
+      "delete from gene_result_diplotype where functionPhenotypeId in (select l.id from gene_result_lookup l join gene_result r on l.phenotypeId=r.id where r.geneSymbol=?)",
+      "delete from gene_result_lookup where phenotypeId in (select id from gene_result where geneSymbol=?)",
+      "delete from gene_result where geneSymbol=?"
+  };
   private static final Pattern GENE_PATTERN = Pattern.compile("Gene:\\s+(\\w+)");
 
   private static final int COL_A1_FN = 0;
@@ -65,6 +73,26 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  EntityKind getEntityKind() {
+    return EntityKind.GENE;
+  }
+
+  @Override
+  String[] getEntityDeleteStatements() {
+    return sf_entityDeleteStatements;
+  }
+
+  @Override
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.GENE_RESULT};
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.ALLELE_FUNCTION_REFERENCE};
+  }
+
   @Override
   void processWorkbook(WorkbookWrapper workbook) throws Exception {
     workbook.switchToSheet(0);
@@ -78,33 +106,81 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
       throw new RuntimeException("Gene value in unrecognized format");
     }
     String geneSymbol = m.group(1);
+    noteEntity(geneSymbol);
 
-    try (PhenoDbHarness dbHarness = new PhenoDbHarness(geneSymbol)) {
+    // rows are decoded on one thread while the previous rows are written to the DB on another, 1 writer since rows
+    // refer to phenotypes written by earlier rows
+    ImportPipeline<PhenotypeRow> pipeline = new ImportPipeline<>(workbook.getFileName(), ImportPipeline.DEFAULT_CAPACITY);
+    pipeline.addReader((sink) -> {
       for (int i = 2; i <= workbook.currentSheet.getLastRowNum(); i++) {
         RowWrapper dataRow = workbook.getRow(i);
         if (dataRow.hasNoText(0)) {
           continue;
         }
         try {
-          dbHarness.insertValues(dataRow);
+          sink.put(new PhenotypeRow(i + 1, dataRow));
+        } catch (CancellationException e) {
+          throw e;
         } catch (Exception e) {
-          throw new RuntimeException("Error processing row " + (i+1), e);
+          throw new RuntimeException("Error reading row " + (i+1), e);
         }
       }
+    });
+    pipeline.run(() -> {
+      PhenoDbHarness dbHarness = new PhenoDbHarness(geneSymbol);
+      return new ImportPipeline.Writer<PhenotypeRow>() {
+        @Override
+        public void write(PhenotypeRow row) {
+          try {
+            dbHarness.insertValues(row);
+          } catch (Exception e) {
+            throw new RuntimeException("Error processing row " + row.rowNumber, e);
+          }
+        }
 
+        @Override
+        public void close() {
+          dbHarness.close();
+        }
+      };
+    }, 1);
+    sf_logger.info("Loaded {} phenotype rows for {}: {}", pipeline.getStats().getRecordsWritten(), geneSymbol, pipeline.getStats());
+  }
 
+  /**
+   * The values of one row of a phenotype sheet, decoded from the workbook but not yet validated against the DB
+   */
+  static class PhenotypeRow {
+    private final int rowNumber;
+    private final String a1Fn;
+    private final String a2Fn;
+    private final String a1Value;
+    private final String a2Value;
+    private final String totalScore;
+    private final String phenotype;
+    private final String description;
+
+    PhenotypeRow(int rowNumber, RowWrapper row) {
+      this.rowNumber = rowNumber;
+      this.a1Fn = row.getText(COL_A1_FN);
+      this.a2Fn = row.getText(COL_A2_FN);
+      this.a1Value = Optional.ofNullable(normalizeScore(row.getNullableText(COL_A1_VALUE))).orElse(Constants.NA);
+      this.a2Value = Optional.ofNullable(normalizeScore(row.getNullableText(COL_A2_VALUE))).orElse(Constants.NA);
+      this.totalScore = Optional.ofNullable(normalizeScore(row.getNullableText(COL_TOTAL_SCORE))).orElse(Constants.NA);
+      this.phenotype = row.getText(COL_PHENO);
+      this.description = row.getNullableText(COL_DESC);
     }
   }
 
   static class PhenoDbHarness extends DbHarness {
     private final static List<String> sf_singleAlleleGeneList = ImmutableList.of("chrX", "chrY", "chrM");
-    private final PreparedStatement insertPhenotype;
-    private final PreparedStatement insertLookup;
+    private final IdAllocator ids;
+    private final CopyLoader phenotypeLoader;
+    private final CopyLoader lookupLoader;
     private final PreparedStatement lookupDiplotypes;
     private final PreparedStatement lookupDiplotypesByScore;
-    private final PreparedStatement insertDiplotype;
+    private final CopyLoader diplotypeLoader;
     private final PreparedStatement lookupAllelesByFn;
-    private final PreparedStatement validateFn;
     private final String geneSymbol;
     private final Map<String, Integer> phenotypeCache = new HashMap<>();
     private LookupMethod lookupMethod;
@@ -114,40 +190,36 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
     PhenoDbHarness(String geneSymbol) throws SQLException {
       super(FileType.GENE_PHENOTYPE);
       this.geneSymbol = geneSymbol;
-      //language=PostgreSQL
-      this.insertPhenotype = prepare("insert into gene_result(genesymbol, result, activityScore) values (?, ?, ?) returning id");
-      //language=PostgreSQL
-      this.insertLookup = prepare("insert into gene_result_lookup(phenotypeid, lookupKey, function1, function2, activityvalue1, activityvalue2, totalactivityscore, description) values (?, ?::jsonb, ?, ?, ?, ?, ?, ?) returning id");
+      // IDs are reserved ahead of time so results, lookups and diplotypes can all be sent with COPY instead of waiting
+      // on an insert for each result and lookup, each loader sends the rows it refers to first
+      this.ids = idAllocator(IdAllocator.DEFAULT_BLOCK_SIZE);
+      this.phenotypeLoader = copyLoader(CopyLoader.Format.TEXT, "gene_result", "id", "genesymbol", "result", "activityScore");
+      this.lookupLoader = copyLoader(CopyLoader.Format.TEXT, "gene_result_lookup", "id", "phenotypeid", "lookupKey",
+          "function1", "function2", "activityvalue1", "activityvalue2", "totalactivityscore", "description")
+          .after(this.phenotypeLoader);
+      // the alleles for a lookup are found by its values since the lookup itself may not be written yet
       //language=PostgreSQL
       this.lookupDiplotypes = prepare("select a1.name, a2.name " +
-          "from gene_result g join gene_result_lookup pf on g.id = pf.phenotypeid " +
-          "                      join allele a1 on g.genesymbol = a1.genesymbol and a1.clinicalfunctionalstatus=pf.function1 " +
-          "                      join allele a2 on g.genesymbol = a2.genesymbol and a2.clinicalfunctionalstatus=pf.function2 " +
-          "where pf.id=? order by a1.name, a2.name");
+          "from allele a1 join allele a2 on a1.genesymbol = a2.genesymbol " +
+          "where a1.genesymbol=? and a1.clinicalfunctionalstatus=? and a2.clinicalfunctionalstatus=? " +
+          "order by a1.name, a2.name");
       //language=PostgreSQL
       this.lookupDiplotypesByScore = prepare("select a1.name, a2.name " +
-          "from gene_result g join gene_result_lookup pf on g.id = pf.phenotypeid " +
-          "                      join allele a1 on g.genesymbol = a1.genesymbol and a1.activityvalue=pf.activityvalue1 " +
-          "                      join allele a2 on g.genesymbol = a2.genesymbol and a2.activityvalue=pf.activityvalue2 " +
-          "where pf.id=? order by a1.name, a2.name");
-      //language=PostgreSQL
-      this.lookupAllelesByFn = prepare("select a.name from gene_result g join gene_result_lookup pf on g.id = pf.phenotypeid " +
-          "join allele a on g.genesymbol=a.genesymbol and a.clinicalFunctionalStatus=pf.function1 " +
-          "where pf.id=?");
-      //language=PostgreSQL
-      this.insertDiplotype = prepare("insert into gene_result_diplotype(functionphenotypeid, diplotype, diplotypekey) values (?, ?, ?::jsonb)");
-      //language=PostgreSQL
-      this.validateFn = prepare("select count(*) from allele where genesymbol=? and clinicalfunctionalstatus=?");
-
+          "from allele a1 join allele a2 on a1.genesymbol = a2.genesymbol " +
+          "where a1.genesymbol=? and a1.activityvalue=? and a2.activityvalue=? " +
+          "order by a1.name, a2.name");
       //language=PostgreSQL
-      PreparedStatement lookupGene = prepare("select lookupMethod, chr from gene where symbol=?");
-      lookupGene.setString(1, geneSymbol);
-      try (ResultSet rs = lookupGene.executeQuery()) {
-        while (rs.next()) {
-          this.lookupMethod = LookupMethod.valueOf(rs.getString(1));
-          if (sf_singleAlleleGeneList.contains(rs.getString(2))) {
-            this.allowSingleAlleles = true;
-          }
+      this.lookupAllelesByFn = prepare("select a.name from allele a where a.genesymbol=? and a.clinicalFunctionalStatus=?");
+      // diplotypes are the bulk of the rows for a gene so they're sent in a few COPY streams, sent at the latest when
+      // this harness closes
+      this.diplotypeLoader = copyLoader(CopyLoader.Format.TEXT, "gene_result_diplotype", "functionphenotypeid", "diplotype", "diplotypekey")
+          .after(this.lookupLoader);
+
+      ReferenceData.Gene gene = ReferenceData.getGene(geneSymbol);
+      if (gene != null) {
+        this.lookupMethod = gene.getLookupMethod();
+        if (sf_singleAlleleGeneList.contains(gene.getChr())) {
+          this.allowSingleAlleles = true;
         }
       }
     }
@@ -158,78 +230,58 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
         throw new NotFoundException("No function specified");
       }
 
-      this.validateFn.clearParameters();
-      this.validateFn.setString(1, this.geneSymbol);
-      this.validateFn.setString(2, fn);
-      try (ResultSet rs = this.validateFn.executeQuery()) {
-        if (rs.next()) {
-          int count = rs.getInt(1);
-          if (count == 0 && !(allowSingleAlleles && Constants.isUnspecified(fn))) {
-            throw new NotFoundException(String.format("No count found for %s allele function [%s]", this.geneSymbol, fn));
-          } else {
-            return fn;
-          }
-        } else {
-          throw new NotFoundException("No result found for allele function, unexpected result");
-        }
+      if (!ReferenceData.hasAlleleFunction(this.geneSymbol, fn) && !(allowSingleAlleles && Constants.isUnspecified(fn))) {
+        throw new NotFoundException(String.format("No count found for %s allele function [%s]", this.geneSymbol, fn));
       }
+      return fn;
     }
 
-    void insertValues(RowWrapper row) throws Exception {
-      String a1Fn = validateFunction(row.getText(COL_A1_FN));
-      String a2Fn = validateFunction(row.getText(COL_A2_FN));
-      String a1Value = Optional.ofNullable(normalizeScore(row.getNullableText(COL_A1_VALUE))).orElse(Constants.NA);
-      String a2Value = Optional.ofNullable(normalizeScore(row.getNullableText(COL_A2_VALUE))).orElse(Constants.NA);
-      String totalScore = Optional.ofNullable(normalizeScore(row.getNullableText(COL_TOTAL_SCORE))).orElse(Constants.NA);
-      String description = row.getNullableText(COL_DESC);
-      int phenoId = lookupPhenotype(row.getText(COL_PHENO), totalScore);
+    void insertValues(PhenotypeRow row) throws Exception {
+      String a1Fn = validateFunction(row.a1Fn);
+      String a2Fn = validateFunction(row.a2Fn);
+      String a1Value = row.a1Value;
+      String a2Value = row.a2Value;
+      String totalScore = row.totalScore;
+      String description = row.description;
+      int phenoId = lookupPhenotype(row.phenotype, totalScore);
 
       if (description == null) {
-        sf_logger.warn("Missing description for {}", row.getText(COL_PHENO));
+        sf_logger.warn("Missing description for {}", row.phenotype);
       }
 
       validateScoreData(a1Value, a2Value, totalScore);
 
-      this.insertLookup.setInt(1, phenoId);
+      String lookupKey;
       if (this.lookupMethod == LookupMethod.ACTIVITY_SCORE) {
-        this.insertLookup.setString(2, makeLookupKey(null, null, a1Value, a2Value));
-      } else {
-        this.insertLookup.setString(2, makeLookupKey(a1Fn, a2Fn, null, null));
-      }
-      this.insertLookup.setString(3, a1Fn);
-      this.insertLookup.setString(4, a2Fn);
-      this.insertLookup.setString(5, a1Value);
-      this.insertLookup.setString(6, a2Value);
-      this.insertLookup.setString(7, totalScore);
-      if (description != null) {
-        this.insertLookup.setString(8, description);
+        lookupKey = makeLookupKey(null, null, a1Value, a2Value);
       } else {
-        this.insertLookup.setNull(8, Types.VARCHAR);
+        lookupKey = makeLookupKey(a1Fn, a2Fn, null, null);
       }
+      int fnId = this.ids.next();
+      this.lookupLoader.add(fnId, phenoId, lookupKey, a1Fn, a2Fn, a1Value, a2Value, totalScore, description);
 
-      try (ResultSet rs = this.insertLookup.executeQuery()) {
-        if (rs.next()) {
-          int fnId = rs.getInt(1);
-          if (allowSingleAlleles && !a1Fn.equalsIgnoreCase(Constants.NA) && a2Fn.equalsIgnoreCase(Constants.NA)) {
-            insertSingleAllele(fnId);
-          } else {
-            insertDiplotypes(fnId);
-          }
-        } else {
-          throw new RuntimeException("Couldn't insert function");
-        }
+      if (allowSingleAlleles && !a1Fn.equalsIgnoreCase(Constants.NA) && a2Fn.equalsIgnoreCase(Constants.NA)) {
+        insertSingleAllele(fnId, a1Fn);
+      } else if (this.lookupMethod == LookupMethod.ACTIVITY_SCORE) {
+        insertDiplotypes(fnId, a1Value, a2Value);
+      } else {
+        insertDiplotypes(fnId, a1Fn, a2Fn);
       }
     }
 
     /**
-     * Generates gene_result_diplotype records based off of data about results in the gene_result_lookup table
+     * Generates gene_result_diplotype records for a gene_result_lookup record from the alleles that match its values
      * @param functionId the primary key ID for a phenotype
+     * @param value1 the function (or activity value for score genes) of the first allele
+     * @param value2 the function (or activity value for score genes) of the second allele
      * @throws SQLException can occur when inserting into the DB
      */
-    void insertDiplotypes(int functionId) throws SQLException {
+    void insertDiplotypes(int functionId, String value1, String value2) throws SQLException {
       PreparedStatement lookup = this.lookupMethod == LookupMethod.ACTIVITY_SCORE ? this.lookupDiplotypesByScore : this.lookupDiplotypes;
 
-      lookup.setInt(1, functionId);
+      lookup.setString(1, this.geneSymbol);
+      lookup.setString(2, value1);
+      lookup.setString(3, value2);
       Set<List<String>> rawDiplotypes = new HashSet<>();
 
       // caching the raw diplotypes ahead of time so they can be normalized. For example, *1/*2 is the same as *2/*1 so
@@ -261,31 +313,26 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
           JsonObject geneKey = new JsonObject();
           geneKey.add(geneSymbol, diplotypeKey);
 
-          this.insertDiplotype.setInt(1, functionId);
-          this.insertDiplotype.setString(2, diplotypeText);
-          this.insertDiplotype.setString(3, geneKey.toString());
-          this.insertDiplotype.executeUpdate();
+          this.diplotypeLoader.add(functionId, diplotypeText, geneKey.toString());
           this.loadedDiplotypes.add(diplotypeText);
         }
       }
     }
 
-    void insertSingleAllele(int functionId) throws SQLException {
-      lookupAllelesByFn.setInt(1, functionId);
-      ResultSet rs = lookupAllelesByFn.executeQuery();
-
-      while (rs.next()) {
-        String rawAllele = rs.getString(1);
+    void insertSingleAllele(int functionId, String function) throws SQLException {
+      lookupAllelesByFn.setString(1, this.geneSymbol);
+      lookupAllelesByFn.setString(2, function);
+      try (ResultSet rs = lookupAllelesByFn.executeQuery()) {
+        while (rs.next()) {
+          String rawAllele = rs.getString(1);
 
-        JsonObject diplotypeKey = new JsonObject();
-        diplotypeKey.addProperty(rawAllele, 1);
-        JsonObject geneKey = new JsonObject();
-        geneKey.add(geneSymbol, diplotypeKey);
+          JsonObject diplotypeKey = new JsonObject();
+          diplotypeKey.addProperty(rawAllele, 1);
+          JsonObject geneKey = new JsonObject();
+          geneKey.add(geneSymbol, diplotypeKey);
 
-        this.insertDiplotype.setInt(1, functionId);
-        this.insertDiplotype.setString(2, rawAllele);
-        this.insertDiplotype.setString(3, geneKey.toString());
-        this.insertDiplotype.executeUpdate();
+          this.diplotypeLoader.add(functionId, rawAllele, geneKey.toString());
+        }
       }
     }
 
@@ -302,19 +349,10 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
       if (phenotypeCache.containsKey(lookupKey)) {
         return phenotypeCache.get(lookupKey);
       } else {
-        this.insertPhenotype.setString(1, this.geneSymbol);
-        this.insertPhenotype.setString(2, normalizedPhenotype);
-        this.insertPhenotype.setString(3, normalizedScore);
-
-        try (ResultSet rs = this.insertPhenotype.executeQuery()) {
-          if (rs.next()) {
-            int phenoId = rs.getInt(1);
-            this.phenotypeCache.put(lookupKey, phenoId);
-            return phenoId;
-          } else {
-            throw new RuntimeException("Couldn't insert phenotype");
-          }
-        }
+        int phenoId = this.ids.next();
+        this.phenotypeLoader.add(phenoId, this.geneSymbol, normalizedPhenotype, normalizedScore);
+        this.phenotypeCache.put(lookupKey, phenoId);
+        return phenoId;
       }
     }
 
@@ -362,7 +400,7 @@ public class GenePhenotypeImporter extends BaseDirectoryImporter {
      * @return a double representation of a score
      */
     private static double convertScore(String score) {
-      String strippedScore = score.replaceAll("≥", "");
+      String strippedScore = StringUtils.remove(score, "≥");
       return Double.parseDouble(strippedScore);
     }
   }
@@ -1,12 +1,14 @@
 package org.cpicpgx.importer;
 
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
+import org.cpicpgx.util.BatchUpsert;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.DbHarness;
 import org.cpicpgx.util.RowWrapper;
 import org.cpicpgx.util.WorkbookWrapper;
 
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 /**
@@ -27,6 +29,11 @@ public class GeneReferenceImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.GENE};
+  }
+
   @Override
   public FileType getFileType() {
     return FileType.GENE_RESOURCE;
@@ -44,12 +51,14 @@ public class GeneReferenceImporter extends BaseDirectoryImporter {
       String hgncId = null;
       String ncbiId = null;
       String ensemblId = null;
+      int geneRow = BatchStatement.UNKNOWN_ROW;
 
       for (int i = 1; i < workbook.currentSheet.getLastRowNum(); i++) {
         RowWrapper row = workbook.getRow(i);
         String idType = row.getNullableText(2);
         String idValue = row.getNullableText(3, true);
         geneSymbol = row.getNullableText(0);
+        geneRow = i + 1;
 
         if (idValue != null) {
           switch (idType) {
@@ -68,28 +77,20 @@ public class GeneReferenceImporter extends BaseDirectoryImporter {
         }
       }
 
-      dbHarness.upsert(geneSymbol, hgncId, ncbiId, ensemblId);
+      dbHarness.upsert(geneRow, geneSymbol, hgncId, ncbiId, ensemblId);
     }
   }
 
   private static class GeneDbHarness extends DbHarness {
-    private final PreparedStatement upsertGene;
+    private final BatchUpsert upsertGene;
 
     GeneDbHarness() throws SQLException {
       super(FileType.GENE_RESOURCE);
-      //language=PostgreSQL
-      upsertGene = prepare("insert into gene(symbol, hgncid, ncbiid, ensemblid) values (?,?,?,?) " +
-          "on conflict (symbol) do update " +
-          "set hgncId=excluded.hgncid, ncbiId=excluded.ncbiid, ensemblId=excluded.ensemblid");
+      upsertGene = prepareUpsert("gene", new String[]{"symbol"}, "hgncId", "ncbiId", "ensemblId");
     }
 
-    private void upsert(String geneSymbol, String hgncId, String ncbiId, String ensemblId) throws SQLException {
-      this.upsertGene.clearParameters();
-      this.upsertGene.setString(1, geneSymbol);
-      setNullableString(this.upsertGene, 2, hgncId);
-      setNullableString(this.upsertGene, 3, ncbiId);
-      setNullableString(this.upsertGene, 4, ensemblId);
-      this.upsertGene.executeUpdate();
+    private void upsert(int sourceRow, String geneSymbol, String hgncId, String ncbiId, String ensemblId) throws SQLException {
+      upsertGene.add(sourceRow, geneSymbol, normalizeNa(hgncId), normalizeNa(ncbiId), normalizeNa(ensemblId));
     }
   }
 }
@@ -0,0 +1,321 @@
+package org.cpicpgx.importer;
+
+import org.cpicpgx.db.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A two stage pipeline that separates reading data out of a file from writing it to the database. Reader threads decode
+ * the file into typed records and put them on a bounded queue. Writer threads take records off the queue and write them
+ * to the database. This way the work of parsing a workbook happens while the database is busy with the last write.
+ *
+ * The queue has a fixed capacity so readers block when writers fall behind, this caps how many decoded records are held
+ * in memory at once.
+ *
+ * Each writer thread gets its own {@link Writer} from the given {@link WriterFactory} so writers don't have to share a
+ * connection. If records have to be written in order (e.g. later rows look up IDs written by earlier rows) then use 1
+ * writer. If a {@link Transaction} is open when the pipeline is run then writers join it, and since they'd share its
+ * one connection only 1 writer should be used.
+ *
+ * The first failure in any stage stops the pipeline, the failure is thrown from
+ * {@link ImportPipeline#run(WriterFactory, int)} once all threads have stopped. After a run the {@link Stats} for the
+ * run can be used to tell which stage is the bottleneck. A pipeline can only be run once.
+ *
+ * @param <T> the type of record passed from readers to writers
+ * @author Ryan Whaley
+ */
+public class ImportPipeline<T> {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  static final int DEFAULT_CAPACITY = 1000;
+  private static final long POLL_MILLIS = 50;
+
+  private final String f_name;
+  private final BlockingQueue<T> f_queue;
+  private final List<Reader<T>> f_readers = new ArrayList<>();
+  private final AtomicReference<Throwable> f_failure = new AtomicReference<>();
+  private Stats m_stats;
+
+  /**
+   * Constructor
+   * @param name a name for this pipeline to use in log messages
+   * @param capacity the maximum number of records that can be waiting between readers and writers
+   */
+  public ImportPipeline(String name, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be at least 1, got " + capacity);
+    }
+    f_name = name;
+    f_queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Add a reader to this pipeline. Each reader is run on its own thread.
+   * @param reader a reader that will send records to the writers
+   * @return this pipeline
+   */
+  public ImportPipeline<T> addReader(Reader<T> reader) {
+    f_readers.add(reader);
+    return this;
+  }
+
+  /**
+   * Run all readers and the given number of writers until all records have been written or something fails
+   * @param writerFactory makes a new {@link Writer} for each writer thread
+   * @param writers the number of writer threads, must be at least 1
+   * @throws Exception the first failure from any reader or writer, other failures are added as suppressed
+   */
+  public void run(WriterFactory<T> writerFactory, int writers) throws Exception {
+    if (writers < 1) {
+      throw new IllegalArgumentException("Need at least 1 writer, got " + writers);
+    }
+    if (f_readers.isEmpty()) {
+      throw new IllegalStateException("No readers added to pipeline " + f_name);
+    }
+    if (m_stats != null) {
+      throw new IllegalStateException("Pipeline " + f_name + " has already been run");
+    }
+
+    Stats stats = new Stats(f_queue.remainingCapacity() + f_queue.size());
+    CountDownLatch readersDone = new CountDownLatch(f_readers.size());
+    ExecutorService executor = Executors.newFixedThreadPool(f_readers.size() + writers);
+    List<Future<?>> tasks = new ArrayList<>();
+    long start = System.nanoTime();
+
+    try {
+      for (Reader<T> reader : f_readers) {
+        tasks.add(executor.submit(() -> {
+          try {
+            reader.read(record -> send(record, stats));
+          } catch (Throwable ex) {
+            fail(ex);
+          } finally {
+            readersDone.countDown();
+          }
+        }));
+      }
+      for (int i = 0; i < writers; i++) {
+        tasks.add(executor.submit(Transaction.propagate(() -> drain(writerFactory, readersDone, stats))));
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } finally {
+      executor.shutdownNow();
+      stats.elapsedNanos = System.nanoTime() - start;
+      m_stats = stats;
+    }
+
+    Throwable failure = f_failure.get();
+    if (failure != null) {
+      sf_logger.error("Pipeline {} failed after reading {} and writing {} records", f_name, stats.getRecordsRead(), stats.getRecordsWritten());
+      if (failure instanceof Exception) {
+        throw (Exception)failure;
+      } else {
+        throw new RuntimeException("Error in pipeline " + f_name, failure);
+      }
+    }
+    sf_logger.info("Pipeline {}: {}", f_name, stats);
+  }
+
+  /**
+   * Gets the stats for the last run of this pipeline
+   * @return the stats of the last run, null if this pipeline hasn't been run
+   */
+  public Stats getStats() {
+    return m_stats;
+  }
+
+  /**
+   * Puts a record on the queue, waiting for room if the queue is full. Gives up if another stage has failed.
+   */
+  private void send(T record, Stats stats) {
+    long waitStart = System.nanoTime();
+    try {
+      while (!f_queue.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (f_failure.get() != null) {
+          throw new CancellationException("Pipeline " + f_name + " stopped");
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Pipeline " + f_name + " interrupted");
+    }
+    stats.readBlockedNanos.addAndGet(System.nanoTime() - waitStart);
+    stats.recordsRead.incrementAndGet();
+    stats.sampleQueueDepth(f_queue.size());
+  }
+
+  /**
+   * Takes records off the queue and writes them until all readers are done and the queue is empty
+   */
+  private void drain(WriterFactory<T> writerFactory, CountDownLatch readersDone, Stats stats) {
+    try (Writer<T> writer = writerFactory.open()) {
+      while (f_failure.get() == null) {
+        long waitStart = System.nanoTime();
+        T record = f_queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        stats.writeWaitingNanos.addAndGet(System.nanoTime() - waitStart);
+
+        if (record == null) {
+          if (readersDone.getCount() == 0 && f_queue.isEmpty()) {
+            break;
+          }
+          continue;
+        }
+
+        long writeStart = System.nanoTime();
+        writer.write(record);
+        stats.writeBusyNanos.addAndGet(System.nanoTime() - writeStart);
+        stats.recordsWritten.incrementAndGet();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      fail(ex);
+    } catch (Throwable ex) {
+      fail(ex);
+    }
+  }
+
+  private void fail(Throwable ex) {
+    // readers that give up because another stage failed aren't the cause of the failure
+    if (ex instanceof CancellationException) {
+      return;
+    }
+    if (!f_failure.compareAndSet(null, ex)) {
+      f_failure.get().addSuppressed(ex);
+    }
+  }
+
+  /**
+   * Reads records out of some source and sends them to the pipeline
+   * @param <T> the type of record
+   */
+  @FunctionalInterface
+  public interface Reader<T> {
+    void read(Sink<T> sink) throws Exception;
+  }
+
+  /**
+   * Takes records read by a {@link Reader}. This will block when the pipeline queue is full.
+   * @param <T> the type of record
+   */
+  @FunctionalInterface
+  public interface Sink<T> {
+    void put(T record);
+  }
+
+  /**
+   * Writes records to the database, closed when the writer thread is done
+   * @param <T> the type of record
+   */
+  public interface Writer<T> extends AutoCloseable {
+    void write(T record) throws Exception;
+
+    @Override
+    void close() throws SQLException;
+  }
+
+  /**
+   * Makes a new {@link Writer} for a writer thread
+   * @param <T> the type of record
+   */
+  @FunctionalInterface
+  public interface WriterFactory<T> {
+    Writer<T> open() throws Exception;
+  }
+
+  /**
+   * Throughput and queue depth numbers for a pipeline run.
+   *
+   * If readers spend a lot of time blocked on a full queue then writing is the bottleneck. If writers spend a lot of
+   * time waiting on an empty queue then reading is the bottleneck.
+   */
+  public static class Stats {
+    private final int capacity;
+    private final AtomicLong recordsRead = new AtomicLong();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong readBlockedNanos = new AtomicLong();
+    private final AtomicLong writeBusyNanos = new AtomicLong();
+    private final AtomicLong writeWaitingNanos = new AtomicLong();
+    private final AtomicLong depthSamples = new AtomicLong();
+    private final AtomicLong depthTotal = new AtomicLong();
+    private final AtomicLong depthMax = new AtomicLong();
+    private volatile long elapsedNanos;
+
+    private Stats(int capacity) {
+      this.capacity = capacity;
+    }
+
+    private void sampleQueueDepth(int depth) {
+      depthSamples.incrementAndGet();
+      depthTotal.addAndGet(depth);
+      depthMax.accumulateAndGet(depth, Math::max);
+    }
+
+    public long getRecordsRead() {
+      return recordsRead.get();
+    }
+
+    public long getRecordsWritten() {
+      return recordsWritten.get();
+    }
+
+    /**
+     * @return total time readers spent waiting for room on the queue, in milliseconds
+     */
+    public long getReadBlockedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(readBlockedNanos.get());
+    }
+
+    /**
+     * @return total time writers spent writing records, in milliseconds
+     */
+    public long getWriteBusyMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(writeBusyNanos.get());
+    }
+
+    /**
+     * @return total time writers spent waiting for records on the queue, in milliseconds
+     */
+    public long getWriteWaitingMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(writeWaitingNanos.get());
+    }
+
+    public long getElapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    public int getMaxQueueDepth() {
+      return (int)depthMax.get();
+    }
+
+    public double getAverageQueueDepth() {
+      long samples = depthSamples.get();
+      return samples == 0 ? 0 : (double)depthTotal.get() / samples;
+    }
+
+    /**
+     * Records per second for the given count over the elapsed time of the run
+     */
+    private double rate(long count) {
+      return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+    }
+
+    public String toString() {
+      return String.format(
+          "%d ms, read %d (%.0f/s, blocked %d ms), wrote %d (%.0f/s, busy %d ms, waiting %d ms), queue depth avg %.1f max %d of %d",
+          getElapsedMillis(),
+          getRecordsRead(), rate(getRecordsRead()), getReadBlockedMillis(),
+          getRecordsWritten(), rate(getRecordsWritten()), getWriteBusyMillis(), getWriteWaitingMillis(),
+          getAverageQueueDepth(), getMaxQueueDepth(), capacity
+      );
+    }
+  }
+}
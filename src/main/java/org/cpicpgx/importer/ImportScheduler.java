@@ -0,0 +1,285 @@
+package org.cpicpgx.importer;
+
+import org.cpicpgx.model.FileType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a group of {@link BaseDirectoryImporter} objects on a bounded pool of threads. Each importer declares the
+ * importers it depends on through {@link BaseDirectoryImporter#getDependencies()} and an importer is only started once
+ * all of its upstream importers have finished. Importers that don't depend on each other run at the same time.
+ *
+ * Clearing data runs over the same graph in reverse so data is only deleted after the data of all downstream importers
+ * has been deleted.
+ *
+ * The first failure stops any more importers from being started. Importers that are already running are allowed to
+ * finish and then the failure is thrown.
+ *
+ * @author Ryan Whaley
+ */
+public class ImportScheduler {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private final Map<FileType, BaseDirectoryImporter> f_importers = new LinkedHashMap<>();
+  private final int f_threads;
+
+  /**
+   * Constructor
+   * @param threads the maximum number of importers to run at the same time, must be at least 1
+   */
+  public ImportScheduler(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least 1 thread, got " + threads);
+    }
+    f_threads = threads;
+  }
+
+  /**
+   * Add an importer to this schedule. Only one importer is allowed per {@link FileType}.
+   * @param importer an importer with its directory already set
+   * @return this scheduler
+   */
+  public ImportScheduler add(BaseDirectoryImporter importer) {
+    FileType type = importer.getFileType();
+    if (f_importers.containsKey(type)) {
+      throw new IllegalArgumentException("Importer already scheduled for " + type);
+    }
+    f_importers.put(type, importer);
+    return this;
+  }
+
+  /**
+   * Run {@link BaseDirectoryImporter#clearAllData()} for all importers, downstream importers first
+   * @throws SQLException can occur when deleting data
+   */
+  public void clearAllData() throws SQLException {
+    run("clear", reverse(upstreamGraph()), BaseDirectoryImporter::clearAllData);
+  }
+
+  /**
+   * Run {@link BaseDirectoryImporter#execute()} for all importers, upstream importers first
+   * @throws SQLException can occur when writing data
+   */
+  public void execute() throws SQLException {
+    run("import", upstreamGraph(), BaseDirectoryImporter::execute);
+  }
+
+  /**
+   * Run an incremental import that only reloads what changed since the last import. Each importer's plan is made in
+   * dependency order so it can see what its upstream importers will reload (see
+   * {@link BaseDirectoryImporter#planIncremental(Collection)}). Then the planned data is deleted, downstream importers
+   * first, and the planned files are imported, upstream importers first.
+   * @throws SQLException can occur when reading import state, deleting data, or writing data
+   */
+  public void executeIncremental() throws SQLException {
+    Map<FileType, Set<FileType>> graph = upstreamGraph();
+    Map<FileType, IncrementalPlan> plans = new EnumMap<>(FileType.class);
+    for (FileType type : upstreamFirst(graph)) {
+      List<IncrementalPlan> upstreamPlans = new ArrayList<>();
+      graph.get(type).forEach(u -> upstreamPlans.add(plans.get(u)));
+      plans.put(type, f_importers.get(type).planIncremental(upstreamPlans));
+    }
+
+    if (plans.values().stream().allMatch(p -> p.getMode() == IncrementalPlan.Mode.UNCHANGED)) {
+      sf_logger.info("No files changed since the last import");
+      return;
+    }
+    run("clear", reverse(graph), BaseDirectoryImporter::clearPlannedData);
+    run("import", graph, BaseDirectoryImporter::executePlanned);
+  }
+
+  /**
+   * Makes a map of each scheduled importer type to the importer types it must wait for. Dependencies on types that are
+   * not part of this schedule are dropped since there's nothing to wait for.
+   * @return a map of file type to upstream file types
+   */
+  Map<FileType, Set<FileType>> upstreamGraph() {
+    Map<FileType, Set<FileType>> graph = new LinkedHashMap<>();
+    for (Map.Entry<FileType, BaseDirectoryImporter> entry : f_importers.entrySet()) {
+      Set<FileType> upstream = EnumSet.noneOf(FileType.class);
+      for (FileType dependency : entry.getValue().getDependencies()) {
+        if (f_importers.containsKey(dependency)) {
+          upstream.add(dependency);
+        } else {
+          sf_logger.debug("{} depends on {} which is not scheduled, ignoring", entry.getKey(), dependency);
+        }
+      }
+      graph.put(entry.getKey(), upstream);
+    }
+    return graph;
+  }
+
+  private static Map<FileType, Set<FileType>> reverse(Map<FileType, Set<FileType>> graph) {
+    Map<FileType, Set<FileType>> reversed = new LinkedHashMap<>();
+    graph.keySet().forEach(t -> reversed.put(t, EnumSet.noneOf(FileType.class)));
+    graph.forEach((type, upstream) -> upstream.forEach(u -> reversed.get(u).add(type)));
+    return reversed;
+  }
+
+  /**
+   * Run the given step for every importer in an order that respects the given graph
+   * @param label a label for this run to use in log messages
+   * @param graph a map of file type to the file types that must be finished first
+   * @param step the thing to do to each importer
+   * @throws SQLException when a step fails on a database error
+   */
+  private void run(String label, Map<FileType, Set<FileType>> graph, Step step) throws SQLException {
+    checkForCycles(graph);
+
+    Map<FileType, Integer> waitingOn = new EnumMap<>(FileType.class);
+    Map<FileType, List<FileType>> downstream = new EnumMap<>(FileType.class);
+    Deque<FileType> ready = new ArrayDeque<>();
+    for (Map.Entry<FileType, Set<FileType>> entry : graph.entrySet()) {
+      waitingOn.put(entry.getKey(), entry.getValue().size());
+      for (FileType upstream : entry.getValue()) {
+        downstream.computeIfAbsent(upstream, t -> new ArrayList<>()).add(entry.getKey());
+      }
+      if (entry.getValue().isEmpty()) {
+        ready.add(entry.getKey());
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(f_threads);
+    CompletionService<FileType> completionService = new ExecutorCompletionService<>(executor);
+    Map<FileType, Long> elapsed = new ConcurrentHashMap<>();
+    List<FileType> finished = new ArrayList<>();
+    Exception failure = null;
+    int running = 0;
+    long start = System.currentTimeMillis();
+
+    try {
+      while (running > 0 || (failure == null && !ready.isEmpty())) {
+        while (failure == null && !ready.isEmpty()) {
+          FileType type = ready.poll();
+          BaseDirectoryImporter importer = f_importers.get(type);
+          completionService.submit(() -> {
+            long taskStart = System.currentTimeMillis();
+            try {
+              step.run(importer);
+            } finally {
+              elapsed.put(type, System.currentTimeMillis() - taskStart);
+            }
+            return type;
+          });
+          running += 1;
+        }
+
+        Future<FileType> done = completionService.take();
+        running -= 1;
+        try {
+          FileType type = done.get();
+          finished.add(type);
+          sf_logger.debug("Finished {} {} in {} ms", label, type, elapsed.get(type));
+          for (FileType next : downstream.getOrDefault(type, Collections.emptyList())) {
+            int remaining = waitingOn.merge(next, -1, Integer::sum);
+            if (remaining == 0) {
+              ready.add(next);
+            }
+          }
+        } catch (ExecutionException ex) {
+          if (failure == null) {
+            failure = ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex;
+            sf_logger.error("Stopping {}, {} more running", label, running);
+          }
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+      throw new RuntimeException("Interrupted while running " + label, ex);
+    } finally {
+      executor.shutdown();
+    }
+
+    if (failure != null) {
+      if (failure instanceof SQLException) {
+        throw (SQLException)failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException)failure;
+      } else {
+        throw new RuntimeException("Error during " + label, failure);
+      }
+    }
+
+    logCriticalPath(label, graph, finished, elapsed, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Log the longest chain of dependent steps, by elapsed time. This is the shortest time the whole run could take no
+   * matter how many threads are used.
+   */
+  private static void logCriticalPath(String label, Map<FileType, Set<FileType>> graph, List<FileType> finished, Map<FileType, Long> elapsed, long totalTime) {
+    Map<FileType, Long> pathTime = new EnumMap<>(FileType.class);
+    Map<FileType, FileType> pathPrevious = new EnumMap<>(FileType.class);
+    FileType last = null;
+
+    // finished is in completion order so every upstream step has already been visited
+    for (FileType type : finished) {
+      long upstreamTime = 0;
+      for (FileType upstream : graph.get(type)) {
+        if (pathTime.get(upstream) > upstreamTime) {
+          upstreamTime = pathTime.get(upstream);
+          pathPrevious.put(type, upstream);
+        }
+      }
+      pathTime.put(type, upstreamTime + elapsed.get(type));
+      if (last == null || pathTime.get(type) > pathTime.get(last)) {
+        last = type;
+      }
+    }
+    if (last == null) return;
+
+    LinkedList<String> path = new LinkedList<>();
+    for (FileType type = last; type != null; type = pathPrevious.get(type)) {
+      path.addFirst(String.format("%s (%d ms)", type.name(), elapsed.get(type)));
+    }
+    sf_logger.info("Finished {} in {} ms, critical path {} ms: {}", label, totalTime, pathTime.get(last), String.join(" -> ", path));
+  }
+
+  /**
+   * Make sure there are no cycles in the dependency graph, otherwise the run would never finish
+   * @param graph a map of file type to upstream file types
+   */
+  static void checkForCycles(Map<FileType, Set<FileType>> graph) {
+    upstreamFirst(graph);
+  }
+
+  /**
+   * Lists the file types in the graph so every type comes after all of its upstream types
+   * @param graph a map of file type to upstream file types
+   * @return a list of file types, upstream types first
+   */
+  static List<FileType> upstreamFirst(Map<FileType, Set<FileType>> graph) {
+    // types are added to done after all their upstream types so its insertion order is a dependency order
+    Set<FileType> done = new LinkedHashSet<>();
+    for (FileType type : graph.keySet()) {
+      visit(type, graph, done, new LinkedHashSet<>());
+    }
+    return new ArrayList<>(done);
+  }
+
+  private static void visit(FileType type, Map<FileType, Set<FileType>> graph, Set<FileType> done, LinkedHashSet<FileType> path) {
+    if (done.contains(type)) return;
+    if (!path.add(type)) {
+      throw new IllegalStateException("Importer dependency cycle: " + path + " -> " + type);
+    }
+    for (FileType upstream : graph.get(type)) {
+      visit(upstream, graph, done, path);
+    }
+    path.remove(type);
+    done.add(type);
+  }
+
+  /**
+   * A thing to do to an importer
+   */
+  @FunctionalInterface
+  private interface Step {
+    void run(BaseDirectoryImporter importer) throws Exception;
+  }
+}
@@ -0,0 +1,92 @@
+package org.cpicpgx.importer;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * What one importer has to do in an incremental import, worked out by comparing the files in its directory with the
+ * state recorded when they were last imported and with the plans of its upstream importers.
+ *
+ * @author Ryan Whaley
+ */
+class IncrementalPlan {
+
+  enum Mode {
+    /** nothing changed, skip the importer */
+    UNCHANGED,
+    /** delete and reload only the data for the planned entities */
+    ENTITIES,
+    /** delete all the importer's data and reload every file, same as a full import */
+    FULL
+  }
+
+  private final Mode f_mode;
+  private final BaseDirectoryImporter.EntityKind f_entityKind;
+  private final Set<String> f_entityIds;
+  private final List<File> f_files;
+  private final List<String> f_removedFiles;
+
+  private IncrementalPlan(Mode mode, BaseDirectoryImporter.EntityKind entityKind, Set<String> entityIds, List<File> files, List<String> removedFiles) {
+    f_mode = mode;
+    f_entityKind = entityKind;
+    f_entityIds = Collections.unmodifiableSet(entityIds);
+    f_files = Collections.unmodifiableList(files);
+    f_removedFiles = Collections.unmodifiableList(removedFiles);
+  }
+
+  static IncrementalPlan unchanged() {
+    return new IncrementalPlan(Mode.UNCHANGED, null, Collections.emptySet(), Collections.emptyList(), Collections.emptyList());
+  }
+
+  static IncrementalPlan full(List<File> files, List<String> removedFiles) {
+    return new IncrementalPlan(Mode.FULL, null, Collections.emptySet(), files, removedFiles);
+  }
+
+  static IncrementalPlan entities(BaseDirectoryImporter.EntityKind entityKind, Set<String> entityIds, List<File> files, List<String> removedFiles) {
+    return new IncrementalPlan(Mode.ENTITIES, entityKind, new TreeSet<>(entityIds), files, removedFiles);
+  }
+
+  Mode getMode() {
+    return f_mode;
+  }
+
+  /**
+   * Gets the kind of entity this plan reloads, only set for {@link Mode#ENTITIES}
+   */
+  BaseDirectoryImporter.EntityKind getEntityKind() {
+    return f_entityKind;
+  }
+
+  /**
+   * Gets the IDs of the entities whose data gets deleted and reloaded, only set for {@link Mode#ENTITIES}
+   */
+  Set<String> getEntityIds() {
+    return f_entityIds;
+  }
+
+  /**
+   * Gets the files to import
+   */
+  List<File> getFiles() {
+    return f_files;
+  }
+
+  /**
+   * Gets the names of files that were imported before but aren't in the directory anymore
+   */
+  List<String> getRemovedFiles() {
+    return f_removedFiles;
+  }
+
+  @Override
+  public String toString() {
+    switch (f_mode) {
+      case ENTITIES:
+        return String.format("reload %d files for %s %s", f_files.size(), f_entityKind.name().toLowerCase(), f_entityIds);
+      case FULL:
+        return String.format("reload all %d files", f_files.size());
+      default:
+        return "unchanged";
+    }
+  }
+}
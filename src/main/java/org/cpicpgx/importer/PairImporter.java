@@ -1,9 +1,12 @@
 package org.cpicpgx.importer;
 
 import org.apache.commons.lang3.StringUtils;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
+import org.cpicpgx.util.BatchUpsert;
 import org.cpicpgx.util.DbHarness;
 import org.cpicpgx.util.RowWrapper;
 import org.cpicpgx.util.WorkbookWrapper;
@@ -34,6 +37,7 @@ public class PairImporter extends BaseDirectoryImporter {
         RowWrapper row = workbook.getRow(i);
 
         db.write(
+            i + 1,
             row.getText(0),
             row.getText(1),
             row.getNullableText(2),
@@ -79,10 +83,20 @@ public class PairImporter extends BaseDirectoryImporter {
     return DELETE_STATEMENTS;
   }
 
+  @Override
+  ReferenceData.Table[] getReferenceDataWritten() {
+    return new ReferenceData.Table[]{ReferenceData.Table.DRUG};
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.GENE_RESOURCE, FileType.DRUG_RESOURCE};
+  }
+
   private static class PairDbHarness extends DbHarness {
 
-    final PreparedStatement upsertPair;
-    final PreparedStatement updateDrug;
+    final BatchUpsert upsertPair;
+    final BatchStatement updateDrug;
     final PreparedStatement updateGuidelines;
     final Set<String> unknownDrugs = new TreeSet<>();
     final Set<String> unknownGenes = new TreeSet<>();
@@ -90,13 +104,12 @@ public class PairImporter extends BaseDirectoryImporter {
 
     PairDbHarness() throws SQLException {
       super(FileType.PAIR);
-      //language=PostgreSQL
-      upsertPair = prepare("insert into pair(genesymbol, drugid, guidelineid, cpiclevel, pgkbcalevel, pgxtesting, citations, usedforrecommendation, removed, removeddate, removedreason) " +
-          "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) on conflict (genesymbol, drugid) do " +
-          "update set guidelineid=excluded.guidelineid, cpiclevel=excluded.cpiclevel, pgkbcalevel=excluded.pgkbcalevel, pgxtesting=excluded.pgxtesting, citations=excluded.citations, usedforrecommendation=excluded.usedforrecommendation, removed=excluded.removed, removeddate=excluded.removeddate, removedreason=excluded.removedreason");
+      upsertPair = prepareUpsert("pair",
+          new String[]{"genesymbol", "drugid"},
+          "guidelineid", "cpiclevel", "pgkbcalevel", "pgxtesting", "citations", "usedforrecommendation", "removed", "removeddate", "removedreason");
 
       //language=PostgreSQL
-      updateDrug = prepare("update drug set guidelineid=? where drugid=?");
+      updateDrug = prepareBatch("update drug set guidelineid=? where drugid=?");
 
       //language=PostgreSQL
       updateGuidelines = prepare("update guideline set genes=(select array_agg(distinct genesymbol) from pair where guidelineid=id and cpiclevel ~ 'A') where genes is null");
@@ -109,7 +122,7 @@ public class PairImporter extends BaseDirectoryImporter {
       }
     }
 
-    void write(String gene, String drugName, String guidelineUrl, String level, String pgkbLevel, String pgxTesting, String[] citations, String used, String removed, Date removedDate, String removedReason) throws SQLException {
+    void write(int row, String gene, String drugName, String guidelineUrl, String level, String pgkbLevel, String pgxTesting, String[] citations, String used, String removed, Date removedDate, String removedReason) throws SQLException {
       String drugId = findDrug(drugName);
       boolean knownGene = lookupCachedGene(gene);
       if (!knownGene) {
@@ -120,30 +133,31 @@ public class PairImporter extends BaseDirectoryImporter {
 
       Integer guidelineId = lookupCachedGuideline(guidelineUrl);
 
-      upsertPair.clearParameters();
-      setNullableString(upsertPair, 1, StringUtils.stripToNull(gene));
-      setNullableString(upsertPair, 2, drugId);
-      setNullableInteger(upsertPair, 3, guidelineId);
-      setNullableString(upsertPair, 4, StringUtils.stripToNull(level));
-      setNullableString(upsertPair, 5, StringUtils.stripToNull(pgkbLevel));
-      setNullableString(upsertPair, 6, StringUtils.stripToNull(pgxTesting));
-      setNullableArray(upsertPair, 7, citations);
-      upsertPair.setBoolean(8, StringUtils.strip(used).equalsIgnoreCase("yes"));
-      upsertPair.setBoolean(9, StringUtils.strip(removed).equalsIgnoreCase("yes"));
-      setNullableDate(upsertPair, 10, removedDate);
-      setNullableString(upsertPair, 11, removedReason);
-      upsertPair.executeUpdate();
+      upsertPair.add(
+          row,
+          normalizeNa(StringUtils.stripToNull(gene)),
+          normalizeNa(drugId),
+          guidelineId,
+          normalizeNa(StringUtils.stripToNull(level)),
+          normalizeNa(StringUtils.stripToNull(pgkbLevel)),
+          normalizeNa(StringUtils.stripToNull(pgxTesting)),
+          citations == null || citations.length == 0 ? null : createArrayOf(citations),
+          StringUtils.strip(used).equalsIgnoreCase("yes"),
+          StringUtils.strip(removed).equalsIgnoreCase("yes"),
+          removedDate == null ? null : new java.sql.Date(removedDate.getTime()),
+          normalizeNa(removedReason)
+      );
 
       if (guidelineId != null) {
-        setNullableInteger(updateDrug, 1, guidelineId);
-        updateDrug.setString(2, drugId);
-        updateDrug.executeUpdate();
+        updateDrug.add(row, guidelineId, drugId);
       }
 
       existingPairs.remove(drugName.toLowerCase() + " + " + gene);
     }
 
     void updateGuidelineGenes() throws SQLException {
+      // the guideline genes come from the pairs so they have to be written first
+      upsertPair.flush();
       updateGuidelines.executeUpdate();
     }
 
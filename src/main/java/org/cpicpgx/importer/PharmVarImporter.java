@@ -2,18 +2,19 @@ package org.cpicpgx.importer;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
-import org.cpicpgx.db.ConnectionFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.cpicpgx.db.CopyLoader;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.DbHarness;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.StringJoiner;
 import java.util.function.Consumer;
 
 /**
@@ -51,31 +52,39 @@ public class PharmVarImporter extends BaseDirectoryImporter {
     return new String[0];
   }
 
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.ALLELE_DEFINITION};
+  }
+
   @Override
   Consumer<File> getFileProcessor() {
     return f -> {
       sf_logger.info("Processing file {}", f);
       try (
           Reader reader = new FileReader(f);
-          DbHarness dbHarness = new DbHarness()
+          PharmVarDbHarness dbHarness = new PharmVarDbHarness()
       ) {
         int line = 0;
         for (CSVRecord record : CSVFormat.TDF.parse(reader)) {
           if (line != 0) {
             String gene = record.get(0);
             String geneAllele = record.get(1);
-            String allele = geneAllele.replaceAll(gene, "");
+            String allele = StringUtils.remove(geneAllele, gene);
             String id;
             if (record.size() == 3) {
               id = record.get(2);
             } else {
               id = record.get(3);
             }
-            
-            dbHarness.updateId(gene, allele, id);
+
+            if (!isSuballele(allele)) {
+              dbHarness.addId(line, gene, allele, id);
+            }
           }
           line += 1;
         }
+        dbHarness.updateIds();
       } catch (FileNotFoundException e) {
         throw new RuntimeException("No file " + f, e);
       } catch (IOException e) {
@@ -86,40 +95,80 @@ public class PharmVarImporter extends BaseDirectoryImporter {
     };
   }
 
-  private static class DbHarness implements AutoCloseable {
-    private List<AutoCloseable> closables = new ArrayList<>();
-    private PreparedStatement updateStmt;
-    
-    DbHarness() throws SQLException {
-      Connection conn = ConnectionFactory.newConnection();
-      closables.add(conn);
-
-      updateStmt = conn.prepareStatement("update allele_definition set pharmvarId=? where geneSymbol=? and name=?");
-      closables.add(updateStmt);
+  /**
+   * Checks for a sub-allele name, one that ends in a period and three digits (e.g. *2.001). CPIC only has the core
+   * alleles so these are skipped.
+   * @param allele an allele name
+   * @return true if this is a sub-allele
+   */
+  static boolean isSuballele(String allele) {
+    int n = allele.length();
+    if (n < 5 || allele.charAt(n - 4) != '.') {
+      return false;
     }
-    
-    private void updateId(String gene, String allele, String id) throws SQLException {
-      if (allele.matches(".+\\.\\d{3}")) return;
-      
-      updateStmt.setString(1, id);
-      updateStmt.setString(2, gene);
-      updateStmt.setString(3, allele);
-      int n = updateStmt.executeUpdate();
-      if (n == 0) {
-        sf_logger.warn("PharmVar allele not in CPIC: {} {}", gene, allele);
+    for (int i = n - 3; i < n; i++) {
+      char c = allele.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
       }
     }
+    return true;
+  }
+
+  /**
+   * Loads all the IDs in the file into a temporary table with one COPY, then sets them on the alleles with a single
+   * update joined to that table. The IDs for alleles that aren't in CPIC are reported together at the end instead of
+   * one warning per line.
+   */
+  private static class PharmVarDbHarness extends DbHarness {
+    private final CopyLoader f_idLoader;
+
+    PharmVarDbHarness() throws SQLException {
+      super(FileType.PHARMVAR);
+      //language=PostgreSQL
+      prepare("create temporary table pharmvar_id(line integer, geneSymbol text, name text, pharmvarId text)").executeUpdate();
+      f_idLoader = copyLoader(CopyLoader.Format.TEXT, "pharmvar_id", "line", "geneSymbol", "name", "pharmvarId");
+    }
+
+    private void addId(int line, String gene, String allele, String id) throws SQLException {
+      f_idLoader.add(line, gene, allele, id);
+    }
+
+    private void updateIds() throws SQLException {
+      f_idLoader.flush();
+
+      // when an allele is in the file more than once the last line for it wins
+      //language=PostgreSQL
+      int updated = prepare(
+          "update allele_definition a set pharmvarId=p.pharmvarId from (" +
+              "select distinct on (geneSymbol, name) geneSymbol, name, pharmvarId from pharmvar_id order by geneSymbol, name, line desc" +
+              ") p where a.geneSymbol=p.geneSymbol and a.name=p.name"
+      ).executeUpdate();
+      sf_logger.info("Set {} PharmVar IDs from {} lines", updated, f_idLoader.getRowCount());
 
-    @Override
-    public void close() {
-      closables.forEach(c -> {
-        try {
-          c.close();
-        } catch (Exception e) {
-          throw new RuntimeException(e);
+      //language=PostgreSQL
+      PreparedStatement missingStmt = prepare(
+          "select p.geneSymbol, array_agg(distinct p.name order by p.name) from pharmvar_id p " +
+              "where not exists(select 1 from allele_definition a where a.geneSymbol=p.geneSymbol and a.name=p.name) " +
+              "group by p.geneSymbol order by p.geneSymbol"
+      );
+      int missingCount = 0;
+      StringJoiner missingByGene = new StringJoiner(", ");
+      try (ResultSet rs = missingStmt.executeQuery()) {
+        while (rs.next()) {
+          String gene = rs.getString(1);
+          String[] alleles = (String[])rs.getArray(2).getArray();
+          missingCount += alleles.length;
+          missingByGene.add(gene + " (" + alleles.length + ")");
+          sf_logger.debug("PharmVar alleles not in CPIC for {}: {}", gene, String.join(", ", alleles));
         }
-      });
+      }
+      if (missingCount > 0) {
+        sf_logger.warn("{} PharmVar alleles not in CPIC: {}", missingCount, missingByGene);
+      }
+
+      //language=PostgreSQL
+      prepare("drop table pharmvar_id").executeUpdate();
     }
   }
 }
-
@@ -1,11 +1,14 @@
 package org.cpicpgx.importer;
 
 import org.apache.commons.lang3.StringUtils;
+import org.cpicpgx.db.CopyLoader;
+import org.cpicpgx.db.IdAllocator;
 
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.regex.Pattern;
 
 /**
  * A class for storing Publication information in the database 
@@ -14,19 +17,28 @@ import java.util.Optional;
  */
 @SuppressWarnings("SpellCheckingInspection")
 public class PublicationCatalog {
-  private Connection conn;
+  private static final Pattern sf_pmcidPattern = Pattern.compile("^PMC\\d+$");
+  private static final Pattern sf_doiPattern = Pattern.compile("^doi:.+");
+  private static final Pattern sf_urlPattern = Pattern.compile("^https?:.+");
+  private static final int COL_PMID = 1;
+  private static final int COL_PMCID = 2;
+  private static final int COL_DOI = 3;
+  private static final int COL_URL = 4;
+  private final IdAllocator ids;
+  private final CopyLoader insertLoader;
   private PreparedStatement pmidLookupStmt;
   private PreparedStatement pmcidLookupStmt;
   private PreparedStatement urlLookupStmt;
   private PreparedStatement doiLookupStmt;
-  private PreparedStatement pmidInsertStmt;
-  private PreparedStatement pmcidInsertStmt;
-  private PreparedStatement doiInsertStmt;
-  private PreparedStatement urlInsertStmt;
   private Map<String, Integer> checkedIds = new HashMap<>();
 
-  PublicationCatalog(Connection conn) throws SQLException {
-    this.conn = conn;
+  /**
+   * Constructor
+   * @param conn the connection to look up and write publications on
+   * @param ids where new publications get their IDs, so they can be referred to before they're written
+   */
+  PublicationCatalog(Connection conn, IdAllocator ids) throws SQLException {
+    this.ids = ids;
     pmidLookupStmt = conn.prepareStatement("select id from publication p where p.pmid=?",
         ResultSet.TYPE_SCROLL_INSENSITIVE,
         ResultSet.CONCUR_READ_ONLY);
@@ -39,10 +51,16 @@ public class PublicationCatalog {
     doiLookupStmt = conn.prepareStatement("select id from publication p where p.doi=?",
         ResultSet.TYPE_SCROLL_INSENSITIVE,
         ResultSet.CONCUR_READ_ONLY);
-    pmidInsertStmt = conn.prepareStatement("insert into publication(pmid, year, authors) values (?, ?, ?) returning id");
-    pmcidInsertStmt = conn.prepareStatement("insert into publication(pmcid, year, authors) values (?, ?, ?) returning id");
-    doiInsertStmt = conn.prepareStatement("insert into publication(doi, year, authors) values (?, ?, ?) returning id");
-    urlInsertStmt = conn.prepareStatement("insert into publication(url, year, authors) values (?, ?, ?) returning id");
+    insertLoader = new CopyLoader(conn, "publication", "id", "pmid", "pmcid", "doi", "url", "year", "authors");
+  }
+
+  /**
+   * Gets the loader new publications are queued in. They're not written until it's flushed, so anything that refers to
+   * them should be loaded {@link CopyLoader#after(CopyLoader)} it.
+   * @return the loader for new publications
+   */
+  CopyLoader getLoader() {
+    return insertLoader;
   }
 
   /**
@@ -68,32 +86,30 @@ public class PublicationCatalog {
     Integer pubId = checkedIds.get(externalId);
 
     if (pubId == null) {
+      // the kind of ID decides which column it's looked up in and written to
+      int idColumn;
       PreparedStatement lookupStmt;
-      PreparedStatement insertStmt;
-      if (externalId.matches("^PMC\\d+$")) {
+      if (sf_pmcidPattern.matcher(externalId).matches()) {
+        idColumn = COL_PMCID;
         lookupStmt = pmcidLookupStmt;
-        insertStmt = pmcidInsertStmt;
-      } else if (externalId.matches("^doi:.+")) {
+      } else if (sf_doiPattern.matcher(externalId).matches()) {
+        idColumn = COL_DOI;
         lookupStmt = doiLookupStmt;
-        insertStmt = doiInsertStmt;
-      } else if (externalId.matches("^https?:.+")) {
+      } else if (sf_urlPattern.matcher(externalId).matches()) {
+        idColumn = COL_URL;
         lookupStmt = urlLookupStmt;
-        insertStmt = urlInsertStmt;
       } else {
+        idColumn = COL_PMID;
         lookupStmt = pmidLookupStmt;
-        insertStmt = pmidInsertStmt;
       }
 
       Optional<Integer> optionalId = lookup(lookupStmt, externalId);
       if (optionalId.isPresent()) {
         pubId = optionalId.get();
-        checkedIds.put(externalId, pubId);
-      }
-
-      if (!checkedIds.containsKey(externalId)) {
-        pubId = add(insertStmt, externalId, pubYear, new String[]{author});
-        checkedIds.put(externalId, pubId);
+      } else {
+        pubId = add(idColumn, externalId, pubYear, author);
       }
+      checkedIds.put(externalId, pubId);
     }
     
     return pubId;
@@ -111,21 +127,27 @@ public class PublicationCatalog {
     }
   }
   
-  private Integer add(PreparedStatement insertStmt, String externalId, Integer year, String[] authors) throws SQLException {
-    insertStmt.setString(1, externalId);
-    if (year != null) {
-      insertStmt.setInt(2, year);
-    } else {
-      insertStmt.setNull(2, Types.INTEGER);
-    }
-    insertStmt.setArray(3, this.conn.createArrayOf("text", authors));
-    
-    try (ResultSet rs = insertStmt.executeQuery()) {
-      if (rs.next()) {
-        return rs.getInt(1);
-      } else {
-        throw new RuntimeException("Could not add new publication");
-      }
+  /**
+   * Queues a new publication to be written and gives back the ID it will have
+   */
+  private Integer add(int idColumn, String externalId, Integer year, String author) throws SQLException {
+    int id = ids.next();
+    Object[] values = new Object[7];
+    values[0] = id;
+    values[idColumn] = externalId;
+    values[5] = year;
+    values[6] = makeArrayLiteral(author);
+    insertLoader.add(values);
+    return id;
+  }
+
+  /**
+   * Makes the text of a single-element postgres array for the COPY text format
+   */
+  private static String makeArrayLiteral(String value) {
+    if (value == null) {
+      return "{NULL}";
     }
+    return "{\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
   }
 }
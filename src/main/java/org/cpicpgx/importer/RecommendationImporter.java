@@ -3,14 +3,17 @@ package org.cpicpgx.importer;
 import com.google.gson.Gson;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.text.WordUtils;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.cpicpgx.db.LookupMethod;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.DbHarness;
+import org.cpicpgx.util.RowCursor;
 import org.cpicpgx.util.RowWrapper;
+import org.cpicpgx.util.WorkbookSheet;
 import org.cpicpgx.util.WorkbookWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,10 +23,7 @@ import java.lang.invoke.MethodHandles;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Importer class for recommendation Excel workbooks.
@@ -52,10 +52,22 @@ public class RecommendationImporter extends BaseDirectoryImporter {
       "delete from file_note where type='" + FileType.RECOMMENDATION.name() + "'",
       "delete from change_log where type='" + FileType.RECOMMENDATION.name() + "'"
   };
-  private static final Pattern PHENO_PATTERN = Pattern.compile("([\\w-]+)\\s+[Pp]henotype");
-  private static final Pattern IMPL_PATTERN = Pattern.compile("([\\w-]+)?\\s*[Ii]mplication.*");
-  private static final Pattern AS_PATTERN = Pattern.compile("([\\w-]+)?\\s*[Aa]ctivity [Ss]core.*");
-  private static final Pattern ALLELE_PATTERN = Pattern.compile("([\\w-]+)\\s+[Aa]llele.*");
+  private static final String[] sf_entityDeleteStatements = new String[]{
+      "delete from recommendation where drugId=?",
+      "delete from file_note where type='" + FileType.RECOMMENDATION.name() + "' and entityId=?",
+      "delete from change_log where type='" + FileType.RECOMMENDATION.name() + "' and entityId=?"
+  };
+  private static final String COL_RECOMMENDATION = "recommendation";
+  private static final String COL_CLASSIFICATION = "classification";
+  private static final String COL_COMMENTS = "comments";
+  private static final SheetSchema sf_schema = new SheetSchema()
+      .geneColumn(SheetSchema.Role.IMPLICATION)
+      .geneColumn(SheetSchema.Role.ACTIVITY_SCORE)
+      .geneColumn(SheetSchema.Role.PHENOTYPE)
+      .geneColumn(SheetSchema.Role.ALLELE_STATUS)
+      .column(COL_RECOMMENDATION, "Therapeutic Recommendation"::equalsIgnoreCase)
+      .column(COL_CLASSIFICATION, (text) -> text.toLowerCase().contains("classification of recommendation"))
+      .column(COL_COMMENTS, (text) -> text.toLowerCase().contains("comments"));
 
   public static void main(String[] args) {
     rebuild(new RecommendationImporter(), args);
@@ -73,6 +85,21 @@ public class RecommendationImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  EntityKind getEntityKind() {
+    return EntityKind.DRUG;
+  }
+
+  @Override
+  String[] getEntityDeleteStatements() {
+    return sf_entityDeleteStatements;
+  }
+
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.PAIR, FileType.GENE_CDS};
+  }
+
   @Override
   String getFileExtensionToProcess() {
     return FILE_NAME_SUFFIX;
@@ -86,8 +113,13 @@ public class RecommendationImporter extends BaseDirectoryImporter {
 
     for (String drugName : drugNames) {
       try (RecDbHarness dbHarness = new RecDbHarness(drugName)) {
-        for (Iterator<Sheet> sheetIterator = workbook.getSheetIterator(); sheetIterator.hasNext(); ) {
-          Sheet sheet = sheetIterator.next();
+        noteEntity(dbHarness.drugId);
+        // population sheets usually have the same header so the plan for one is reused for the next
+        SheetSchema.Plan plan = null;
+        SheetSchema.Plan lookupKeyPlan = null;
+        SheetSchema.GeneValues lookupKey = null;
+        for (Iterator<WorkbookSheet> sheetIterator = workbook.getSheetIterator(); sheetIterator.hasNext(); ) {
+          WorkbookSheet sheet = sheetIterator.next();
           workbook.currentSheetIs(sheet.getSheetName());
 
           if (sheet.getSheetName().equals(AbstractWorkbook.HISTORY_SHEET_NAME)) {
@@ -99,7 +131,7 @@ public class RecommendationImporter extends BaseDirectoryImporter {
 
               java.util.Date date = row.getDate(0);
               String note = row.getNullableText(1);
-              dbHarness.insertChange(date, note);
+              dbHarness.insertChange(i + 1, date, note);
             }
             continue;
           }
@@ -109,75 +141,32 @@ public class RecommendationImporter extends BaseDirectoryImporter {
             populationName = "general";
           }
 
-          RowWrapper headerRow = workbook.getRow(0);
-
-          // caching column indexes for different types of data
-          Map<String, Integer> phenotypeIdxMap = new HashMap<>();
-          Map<String, Integer> implIdxMap = new HashMap<>();
-          Map<String, Integer> asIdxMap = new HashMap<>();
-          Map<String, Integer> alleleIdxMap = new HashMap<>();
-          int idxRecommendation = -1;
-          int idxClassification = -1;
-          int idxComments = -1;
-
-          for (int j = 0; j < headerRow.getLastCellNum(); j++) {
-            String cellText = headerRow.getNullableText(j);
-            if (cellText == null) continue;
-
-            Matcher implMatch = IMPL_PATTERN.matcher(cellText);
-            Matcher asMatch = AS_PATTERN.matcher(cellText);
-            Matcher phenoMatch = PHENO_PATTERN.matcher(cellText);
-            Matcher alleleMatch = ALLELE_PATTERN.matcher(cellText);
-
-            // figuring out the index of each type of column
-            if (implMatch.matches()) {
-              if (implMatch.group(1) != null) {
-                implIdxMap.put(implMatch.group(1), j);
-              } else if (dbHarness.getGenes().size() == 1) {
-                implIdxMap.put(dbHarness.getGenes().get(0), j);
-              } else {
-                throw new RuntimeException("Unexpected implication column setup");
-              }
-            } else if (asMatch.matches()) {
-              if (asMatch.group(1) != null) {
-                asIdxMap.put(asMatch.group(1), j);
-              } else if (dbHarness.getGenes().size() == 1) {
-                asIdxMap.put(dbHarness.getGenes().get(0), j);
-              } else {
-                throw new RuntimeException("Unexpected activity score setup for " + drugName);
-              }
-            } else if (phenoMatch.matches()) {
-              phenotypeIdxMap.put(phenoMatch.group(1), j);
-            } else if (alleleMatch.matches()) {
-              alleleIdxMap.put(alleleMatch.group(1), j);
-            } else if (cellText.equalsIgnoreCase("Therapeutic Recommendation")) {
-              idxRecommendation = j;
-            } else if (cellText.toLowerCase().contains("classification of recommendation")) {
-              idxClassification = j;
-            } else if (cellText.toLowerCase().contains("comments")) {
-              idxComments = j;
-            } else {
-              throw new RuntimeException("Unrecognized column: " + cellText);
-            }
-          }
-
-          for (String gene : dbHarness.getGenes()) {
-            switch (dbHarness.geneLookupCache.get(gene)) {
+          List<String> genes = dbHarness.getGenes();
+          plan = sf_schema.compile(workbook.getRow(0), 0, genes.size() == 1 ? genes.get(0) : null, plan);
+
+          // the number in the plan and the lookup method of each gene used for lookups
+          int[] lookupGenes = new int[genes.size()];
+          LookupMethod[] lookupMethods = new LookupMethod[genes.size()];
+          for (int l = 0; l < genes.size(); l++) {
+            String gene = genes.get(l);
+            lookupGenes[l] = plan.geneIndex(gene);
+            lookupMethods[l] = dbHarness.geneLookupCache.get(gene);
+            switch (lookupMethods[l]) {
               case ACTIVITY_SCORE:
-                if (asIdxMap.get(gene) == null) {
+                if (!plan.has(SheetSchema.Role.ACTIVITY_SCORE, gene)) {
                   throw new RuntimeException("Activity score column missing for " + gene);
                 }
-                if (phenotypeIdxMap.get(gene) == null) {
+                if (!plan.has(SheetSchema.Role.PHENOTYPE, gene)) {
                   throw new RuntimeException("Phenotype column missing for " + gene);
                 }
                 break;
               case PHENOTYPE:
-                if (phenotypeIdxMap.get(gene) == null) {
+                if (!plan.has(SheetSchema.Role.PHENOTYPE, gene)) {
                   throw new RuntimeException("Phenotype column missing for " + gene);
                 }
                 break;
               case ALLELE_STATUS:
-                if (alleleIdxMap.get(gene) == null) {
+                if (!plan.has(SheetSchema.Role.ALLELE_STATUS, gene)) {
                   throw new RuntimeException("Allele status column missing for " + gene);
                 }
                 break;
@@ -185,25 +174,29 @@ public class RecommendationImporter extends BaseDirectoryImporter {
                 throw new RuntimeException("Unsupported lookup method for " + gene);
             }
           }
+          if (lookupKey == null || lookupKeyPlan != plan) {
+            lookupKey = plan.newValues();
+            lookupKeyPlan = plan;
+          }
+          int idxRecommendation = plan.column(COL_RECOMMENDATION);
+          int idxClassification = plan.column(COL_CLASSIFICATION);
+          int idxComments = plan.column(COL_COMMENTS);
 
-          for (int k = 1; k <= workbook.currentSheet.getLastRowNum(); k++) {
+          RowCursor dataRow = workbook.cursor();
+          for (int k = 1; dataRow.moveTo(k); k++) {
             try {
-              RowWrapper dataRow = workbook.getRow(k);
               if (dataRow.hasNoText(0)) continue;
 
-              Map<String,String> phenotype = new HashMap<>();
-              Map<String,String> implication = new HashMap<>();
-              Map<String,String> activityScore = new HashMap<>();
-              Map<String,String> alleleStatus = new HashMap<>();
-              Map<String,String> lookupKey = new HashMap<>();
-
-              for (String gene : phenotypeIdxMap.keySet()) {
-                String normalizedPheno = normalizeGeneText(gene, dataRow.getText(phenotypeIdxMap.get(gene)));
+              SheetSchema.GeneValues phenotype = plan.values(SheetSchema.Role.PHENOTYPE);
+              for (int g = 0; g < plan.geneCount(); g++) {
+                int column = plan.column(SheetSchema.Role.PHENOTYPE, g);
+                if (column < 0) continue;
+                String gene = plan.gene(g);
+                String normalizedPheno = normalizeGeneText(gene, dataRow.getText(column));
                 if (normalizedPheno == null) {
                   throw new RuntimeException("No phenotype found");
                 }
-                String validPhenotype = dbHarness.validPhenotype(gene, normalizedPheno);
-                phenotype.put(gene, validPhenotype);
+                phenotype.set(g, dbHarness.validPhenotype(gene, normalizedPheno));
               }
 
               // Validate not all "No Result" in multi-gene rec
@@ -215,46 +208,43 @@ public class RecommendationImporter extends BaseDirectoryImporter {
                 sf_logger.warn("Single-gene recommendations should not use 'No Result'");
               }
 
-              for (String gene : dbHarness.getGenes()) {
-                switch (dbHarness.geneLookupCache.get(gene)) {
+              lookupKey.clear();
+              for (int l = 0; l < lookupGenes.length; l++) {
+                int g = lookupGenes[l];
+                String gene = plan.gene(g);
+                switch (lookupMethods[l]) {
                   case ACTIVITY_SCORE:
-                    lookupKey.put(gene, normalizeScore(normalizeGeneText(gene, dataRow.getText(asIdxMap.get(gene)))));
+                    lookupKey.set(g, normalizeScore(normalizeGeneText(gene, dataRow.getText(plan.column(SheetSchema.Role.ACTIVITY_SCORE, g)))));
                     break;
                   case ALLELE_STATUS:
-                    lookupKey.put(gene, normalizeGeneText(gene, dataRow.getText(alleleIdxMap.get(gene))));
+                    lookupKey.set(g, normalizeGeneText(gene, dataRow.getText(plan.column(SheetSchema.Role.ALLELE_STATUS, g))));
                     break;
                   case PHENOTYPE:
-                    lookupKey.put(gene, phenotype.get(gene));
+                    lookupKey.set(g, phenotype.get(g));
                     break;
                   default:
                     throw new RuntimeException("Unsupported lookup method for " + gene);
                 }
               }
 
-              for (String gene : implIdxMap.keySet()) {
-                implication.put(gene, dataRow.getText(implIdxMap.get(gene)));
-              }
-              for (String gene : asIdxMap.keySet()) {
-                activityScore.put(gene, dataRow.getText(asIdxMap.get(gene)));
-              }
-              for (String gene : alleleIdxMap.keySet()) {
-                alleleStatus.put(gene, dataRow.getText(alleleIdxMap.get(gene)));
-              }
               dbHarness.insert(
+                  k + 1,
                   phenotype,
-                  implication,
+                  plan.read(dataRow, SheetSchema.Role.IMPLICATION),
                   dataRow.getText(idxRecommendation),
                   normalizeClassification(dataRow.getText(idxClassification)),
                   dataRow.getNullableText(idxComments),
-                  activityScore,
+                  plan.read(dataRow, SheetSchema.Role.ACTIVITY_SCORE),
                   populationName,
                   lookupKey,
-                  alleleStatus
+                  plan.read(dataRow, SheetSchema.Role.ALLELE_STATUS)
               );
             } catch (RuntimeException ex) {
               throw new RuntimeException("Error reading row " + (k + 1), ex);
             }
           }
+          // send what's left for this sheet so errors are reported in the context of this sheet
+          dbHarness.flush();
         }
       }
     }
@@ -270,34 +260,22 @@ public class RecommendationImporter extends BaseDirectoryImporter {
   }
 
   private static class RecDbHarness extends DbHarness {
-    private final PreparedStatement insertStmt;
-    private final PreparedStatement findPhenotype;
+    private final BatchStatement insertStmt;
     private final String drugId;
     private final Long guidelineId;
-    private final Map<String,String> phenotypeCache = new HashMap<>();
     private final Map<String, LookupMethod> geneLookupCache = new HashMap<>();
     private final Gson gson = new Gson();
 
     RecDbHarness(String drugName) throws Exception {
       super(FileType.RECOMMENDATION);
       //language=PostgreSQL
-      this.insertStmt = prepare("insert into recommendation(guidelineid, drugid, implications, drugRecommendation, classification, phenotypes, comments, activityScore, population, lookupKey, alleleStatus) values (?, ?, ?::jsonb, ?, ? , ?::jsonb, ?, ?::jsonb, ?, ?::jsonb, ?::jsonb)");
-      //language=PostgreSQL
-      this.findPhenotype = prepare("select a.result from gene_result a where a.genesymbol=? and lower(a.result)=lower(?)");
-
-      //language=PostgreSQL
-      PreparedStatement drugLookupStmt = prepare("select drugid, guidelineid from drug where name=? and guidelineid is not null");
-      drugLookupStmt.setString(1, drugName);
-      ResultSet rs = drugLookupStmt.executeQuery();
-      if (rs.next()) {
-        drugId = rs.getString(1);
-        guidelineId = rs.getLong(2);
-      } else {
+      this.insertStmt = prepareBatch("insert into recommendation(guidelineid, drugid, implications, drugRecommendation, classification, phenotypes, comments, activityScore, population, lookupKey, alleleStatus) values (?, ?, ?::jsonb, ?, ? , ?::jsonb, ?, ?::jsonb, ?, ?::jsonb, ?::jsonb)");
+      ReferenceData.Drug drug = ReferenceData.getDrug(drugName);
+      if (drug == null || drug.getGuidelineId() == null) {
         throw new NotFoundException("Couldn't find drug with guideline for: " + drugName);
       }
-      if (rs.next()) {
-        throw new RuntimeException("More than one guideline found for: " + drugName);
-      }
+      drugId = drug.getDrugId();
+      guidelineId = drug.getGuidelineId().longValue();
 
       //language=PostgreSQL
       PreparedStatement stmt = prepare("select genesymbol, g.lookupmethod from pair p join drug d on p.drugid = d.drugid join gene g on p.genesymbol = g.symbol where d.name=? and p.usedForRecommendation = true");
@@ -329,80 +307,63 @@ public class RecommendationImporter extends BaseDirectoryImporter {
       if (Constants.isNoResult(phenotype)) return Constants.NO_RESULT;
       if (Constants.isIndeterminate(phenotype)) return Constants.INDETERMINATE;
 
-      String key = gene + phenotype;
-
-      if (phenotypeCache.containsKey(key)) {
-        return phenotypeCache.get(key);
-      } else {
-        findPhenotype.setString(1, gene);
-        findPhenotype.setString(2, phenotype);
-        try (ResultSet rs = findPhenotype.executeQuery()) {
-          if (rs.next()) {
-            String validPhenotype = rs.getString(1);
-            phenotypeCache.put(key, validPhenotype);
-            return validPhenotype;
-          } else {
-            throw new NotFoundException("Phenotype not found in allele table for " + gene + ": " + phenotype);
-          }
-        }
+      String validPhenotype = ReferenceData.getGeneResult(gene, phenotype);
+      if (validPhenotype == null) {
+        throw new NotFoundException("Phenotype not found in allele table for " + gene + ": " + phenotype);
       }
+      return validPhenotype;
     }
 
-    void insert(Map<String,String> phenotype, Map<String,String> implication, String recommendation, String classification, String comments, Map<String,String> activityScore, String population, Map<String,String> lookupKey, Map<String,String> alleleStatus) {
-      try {
-        this.insertStmt.clearParameters();
-
-        // Validate that activity score genes have activity score values filled in
-        for (String gene : activityScore.keySet()) {
-          LookupMethod lookupMethod = geneLookupCache.get(gene);
-          if (lookupMethod == LookupMethod.ACTIVITY_SCORE && activityScore.get(gene).equals(Constants.NA)) {
-            String genePhenotype = phenotype.get(gene);
-            if (!genePhenotype.equals("Indeterminate") && !genePhenotype.equals(Constants.NO_RESULT)) {
-              sf_logger.warn("{} is an activity gene but has a missing activity value for {} {}", gene, population, gson.toJson(phenotype));
-            }
+    /**
+     * Queue a recommendation to be inserted with the next batch
+     * @param row the source row number, used in error messages
+     * @throws SQLException can occur when the batch is sent
+     */
+    void insert(int row, Map<String,String> phenotype, Map<String,String> implication, String recommendation, String classification, String comments, Map<String,String> activityScore, String population, Map<String,String> lookupKey, Map<String,String> alleleStatus) throws SQLException {
+      // Validate that activity score genes have activity score values filled in
+      for (String gene : activityScore.keySet()) {
+        LookupMethod lookupMethod = geneLookupCache.get(gene);
+        if (lookupMethod == LookupMethod.ACTIVITY_SCORE && activityScore.get(gene).equals(Constants.NA)) {
+          String genePhenotype = phenotype.get(gene);
+          if (!genePhenotype.equals("Indeterminate") && !genePhenotype.equals(Constants.NO_RESULT)) {
+            sf_logger.warn("{} is an activity gene but has a missing activity value for {} {}", gene, population, gson.toJson(phenotype));
           }
         }
+      }
 
-        this.insertStmt.setLong(1, guidelineId);
-        this.insertStmt.setString(2, drugId);
-        this.insertStmt.setString(3, gson.toJson(implication));
-        if (StringUtils.isNotBlank(recommendation)) {
-          this.insertStmt.setString(4, recommendation);
-        } else {
-          this.insertStmt.setNull(4, Types.VARCHAR);
-        }
-        if (StringUtils.isNotBlank(classification)) {
-          this.insertStmt.setString(5, classification);
-        } else {
-          this.insertStmt.setNull(5, Types.VARCHAR);
-        }
-        this.insertStmt.setObject(6, gson.toJson(phenotype));
+      this.insertStmt.add(
+          row,
+          guidelineId,
+          drugId,
+          gson.toJson(implication),
+          StringUtils.isNotBlank(recommendation) ? recommendation : null,
+          StringUtils.isNotBlank(classification) ? classification : null,
+          gson.toJson(phenotype),
+          comments,
+          gson.toJson(activityScore),
+          population,
+          gson.toJson(lookupKey),
+          gson.toJson(alleleStatus)
+      );
+    }
 
-        if (comments == null) {
-          this.insertStmt.setNull(7, Types.VARCHAR);
-        } else {
-          this.insertStmt.setString(7, comments);
-        }
-        this.insertStmt.setString(8, gson.toJson(activityScore));
-        this.insertStmt.setString(9, population);
-        this.insertStmt.setString(10, gson.toJson(lookupKey));
-        this.insertStmt.setString(11, gson.toJson(alleleStatus));
-        
-        this.insertStmt.executeUpdate();
-        
-      } catch (Exception e) {
-        throw new RuntimeException("Error inserting record", e);
-      }
+    /**
+     * Send any recommendations waiting to be written
+     * @throws SQLException can occur when the batch is sent
+     */
+    void flush() throws SQLException {
+      this.insertStmt.flush();
     }
 
     /**
      * Insert a change event into the history table.
+     * @param row the source row number, used in error messages
      * @param date the date of the change, required
      * @param note the text note to explain the change
      * @throws SQLException can occur from bad database transaction
      */
-    void insertChange(java.util.Date date, String note) throws SQLException {
-      writeChangeLog(drugId, date, note);
+    void insertChange(int row, java.util.Date date, String note) throws SQLException {
+      writeChangeLog(row, drugId, date, note);
     }
   }
 }
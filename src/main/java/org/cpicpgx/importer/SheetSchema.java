@@ -0,0 +1,377 @@
+package org.cpicpgx.importer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.cpicpgx.util.RowWrapper;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A description of the columns an importer expects in the header row of a sheet. There are two kinds of columns:
+ * gene columns, where the header names a gene and says what {@link Role} the column has for it (e.g. "CYP2D6
+ * Phenotype"), and named columns that only appear once (e.g. "Therapeutic Recommendation").
+ *
+ * Define the schema once in a static field, then {@link SheetSchema#compile(RowWrapper, int, String, Plan)} the header
+ * row of each sheet into a {@link Plan} of which column has what. The header is only matched against the column rules
+ * there, reading data rows goes straight to column indexes. Sheets of the same workbook usually have the same header
+ * so pass the last plan back in and it's reused when the header hasn't changed.
+ *
+ * @author Ryan Whaley
+ */
+final class SheetSchema {
+
+  /**
+   * The kinds of data a gene column can have. Each one has the header pattern it's found with, the first group of the
+   * pattern is the gene symbol.
+   */
+  enum Role {
+    PHENOTYPE("([\\w-]+)\\s+[Pp]henotype"),
+    ACTIVITY_SCORE("([\\w-]+)?\\s*[Aa]ctivity [Ss]core.*"),
+    ALLELE_STATUS("([\\w-]+)\\s+[Aa]llele.*"),
+    IMPLICATION("([\\w-]+)?\\s*[Ii]mplication.*");
+
+    private final Pattern f_pattern;
+
+    Role(String pattern) {
+      f_pattern = Pattern.compile(pattern);
+    }
+  }
+
+  private final List<Rule> f_rules = new ArrayList<>();
+
+  /**
+   * Adds a gene column for the given role. Rules are tried in the order they're added and the first to match a header
+   * wins.
+   * @param role the role of the column
+   * @return this schema
+   */
+  SheetSchema geneColumn(Role role) {
+    f_rules.add(new Rule(role, null, null));
+    return this;
+  }
+
+  /**
+   * Adds a named column that's recognized by its header text
+   * @param name the name the column is looked up by in the {@link Plan}
+   * @param header true for header text of this column
+   * @return this schema
+   */
+  SheetSchema column(String name, Predicate<String> header) {
+    f_rules.add(new Rule(null, name, header));
+    return this;
+  }
+
+  /**
+   * Reads the header row into a plan of which column has what
+   * @param headerRow the header row of a sheet
+   * @param firstColumn the index of the first column to read
+   * @param defaultGene the gene to use for gene columns that don't name one, null if they must name one
+   * @param lastPlan the plan for the last sheet that was read, null if there isn't one
+   * @return the last plan when the header is the same as it was for that plan, otherwise a new plan
+   * @throws RuntimeException when a header isn't recognized by any column rule
+   */
+  Plan compile(RowWrapper headerRow, int firstColumn, @Nullable String defaultGene, @Nullable Plan lastPlan) {
+    String[] header = new String[Math.max(0, headerRow.getLastCellNum() - firstColumn)];
+    for (int i = 0; i < header.length; i++) {
+      header[i] = StringUtils.strip(headerRow.getNullableText(firstColumn + i));
+    }
+    if (lastPlan != null && lastPlan.f_schema == this && lastPlan.f_firstColumn == firstColumn &&
+        Objects.equals(lastPlan.f_defaultGene, defaultGene) && Arrays.equals(lastPlan.f_header, header)) {
+      return lastPlan;
+    }
+    return new Plan(this, header, firstColumn, defaultGene);
+  }
+
+  private static class Rule {
+    private final Role f_role;
+    private final String f_name;
+    private final Predicate<String> f_header;
+
+    private Rule(Role role, String name, Predicate<String> header) {
+      f_role = role;
+      f_name = name;
+      f_header = header;
+    }
+  }
+
+  /**
+   * The columns found in the header of a sheet. Genes are numbered in the order they first appear in the header and
+   * the column for a gene in a role is looked up by that number.
+   */
+  static final class Plan {
+    private final SheetSchema f_schema;
+    private final String[] f_header;
+    private final int f_firstColumn;
+    private final String f_defaultGene;
+    private final List<String> f_genes = new ArrayList<>();
+    private final Map<String, Integer> f_geneIdx = new HashMap<>();
+    private final int[][] f_columns = new int[Role.values().length][];
+    private final Map<String, Integer> f_namedColumns = new HashMap<>();
+    private final GeneValues[] f_values = new GeneValues[Role.values().length];
+
+    private Plan(SheetSchema schema, String[] header, int firstColumn, @Nullable String defaultGene) {
+      f_schema = schema;
+      f_header = header;
+      f_firstColumn = firstColumn;
+      f_defaultGene = defaultGene;
+
+      int[] geneColumns = new int[header.length];
+      Role[] roles = new Role[header.length];
+      for (int i = 0; i < header.length; i++) {
+        geneColumns[i] = -1;
+        String text = header[i];
+        if (text == null) continue;
+
+        boolean recognized = false;
+        for (Rule rule : schema.f_rules) {
+          if (rule.f_role != null) {
+            Matcher matcher = rule.f_role.f_pattern.matcher(text);
+            if (!matcher.matches()) continue;
+            String gene = matcher.group(1) != null ? matcher.group(1) : defaultGene;
+            if (gene == null) continue;
+            geneColumns[i] = addGene(gene);
+            roles[i] = rule.f_role;
+          } else {
+            if (!rule.f_header.test(text)) continue;
+            f_namedColumns.put(rule.f_name, firstColumn + i);
+          }
+          recognized = true;
+          break;
+        }
+        if (!recognized) {
+          throw new RuntimeException("Unrecognized column: " + text);
+        }
+      }
+
+      for (Role role : Role.values()) {
+        f_columns[role.ordinal()] = new int[f_genes.size()];
+        Arrays.fill(f_columns[role.ordinal()], -1);
+      }
+      for (int i = 0; i < header.length; i++) {
+        if (roles[i] != null) {
+          f_columns[roles[i].ordinal()][geneColumns[i]] = firstColumn + i;
+        }
+      }
+    }
+
+    private int addGene(String gene) {
+      Integer idx = f_geneIdx.get(gene);
+      if (idx == null) {
+        idx = f_genes.size();
+        f_genes.add(gene);
+        f_geneIdx.put(gene, idx);
+      }
+      return idx;
+    }
+
+    /**
+     * Gets the number of genes that have a column in any role
+     */
+    int geneCount() {
+      return f_genes.size();
+    }
+
+    /**
+     * Gets the gene with the given number
+     */
+    String gene(int geneIdx) {
+      return f_genes.get(geneIdx);
+    }
+
+    /**
+     * Gets the number of a gene
+     * @return the number of the gene, -1 if it has no columns
+     */
+    int geneIndex(String gene) {
+      Integer idx = f_geneIdx.get(gene);
+      return idx == null ? -1 : idx;
+    }
+
+    /**
+     * Gets the column index for a gene in a role
+     * @return the 0-based column index, -1 if there's no column for the gene in that role
+     */
+    int column(Role role, int geneIdx) {
+      return geneIdx < 0 ? -1 : f_columns[role.ordinal()][geneIdx];
+    }
+
+    /**
+     * Whether there's a column for the gene in the role
+     */
+    boolean has(Role role, String gene) {
+      return column(role, geneIndex(gene)) >= 0;
+    }
+
+    /**
+     * Gets the genes that have a column in the role, in the order they appear
+     */
+    List<String> genes(Role role) {
+      List<String> genes = new ArrayList<>();
+      for (int g = 0; g < f_genes.size(); g++) {
+        if (f_columns[role.ordinal()][g] >= 0) {
+          genes.add(f_genes.get(g));
+        }
+      }
+      return genes;
+    }
+
+    /**
+     * Gets the column index for a named column
+     * @return the 0-based column index, -1 if the sheet doesn't have the column
+     */
+    int column(String name) {
+      return f_namedColumns.getOrDefault(name, -1);
+    }
+
+    /**
+     * Reads the text of every gene column in the role from the row. The values are kept in one {@link GeneValues} per
+     * role that's reused every time this is called, so use them before reading the next row.
+     * @param row a data row
+     * @param role the role of the columns to read
+     * @return the text of each gene's column, by gene
+     */
+    GeneValues read(RowWrapper row, Role role) {
+      GeneValues values = values(role);
+      int[] columns = f_columns[role.ordinal()];
+      for (int g = 0; g < columns.length; g++) {
+        values.set(g, columns[g] < 0 ? null : row.getText(columns[g]));
+      }
+      return values;
+    }
+
+    /**
+     * Gets the reused values for a role, cleared of whatever was in them
+     */
+    GeneValues values(Role role) {
+      GeneValues values = f_values[role.ordinal()];
+      if (values == null) {
+        values = newValues();
+        f_values[role.ordinal()] = values;
+      } else {
+        values.clear();
+      }
+      return values;
+    }
+
+    /**
+     * Makes a new, empty set of values for the genes in this plan
+     */
+    GeneValues newValues() {
+      return new GeneValues(this);
+    }
+  }
+
+  /**
+   * A value for each gene of a {@link Plan}, kept in an array indexed by the gene's number so it can be cleared and
+   * filled again for every row. As a {@link Map} it has only the genes that have a value, so it serializes to JSON the
+   * same as a map that was filled from scratch.
+   */
+  static final class GeneValues extends AbstractMap<String, String> {
+    private final Plan f_plan;
+    private final String[] f_values;
+    private final Set<Entry<String, String>> f_entries = new AbstractSet<Entry<String, String>>() {
+      @Override
+      public Iterator<Entry<String, String>> iterator() {
+        return new Iterator<Entry<String, String>>() {
+          private int m_next = advance(0);
+
+          private int advance(int from) {
+            while (from < f_values.length && f_values[from] == null) {
+              from += 1;
+            }
+            return from;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return m_next < f_values.length;
+          }
+
+          @Override
+          public Entry<String, String> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Entry<String, String> entry = new SimpleImmutableEntry<>(f_plan.gene(m_next), f_values[m_next]);
+            m_next = advance(m_next + 1);
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        int size = 0;
+        for (String value : f_values) {
+          if (value != null) size += 1;
+        }
+        return size;
+      }
+    };
+
+    private GeneValues(Plan plan) {
+      f_plan = plan;
+      f_values = new String[plan.geneCount()];
+    }
+
+    /**
+     * Sets the value for the gene with the given number, null to remove it
+     */
+    void set(int geneIdx, @Nullable String value) {
+      f_values[geneIdx] = value;
+    }
+
+    /**
+     * Gets the value for the gene with the given number
+     */
+    String get(int geneIdx) {
+      return f_values[geneIdx];
+    }
+
+    @Override
+    public String get(Object gene) {
+      int idx = gene instanceof String ? f_plan.geneIndex((String)gene) : -1;
+      return idx < 0 ? null : f_values[idx];
+    }
+
+    @Override
+    public boolean containsKey(Object gene) {
+      return get(gene) != null;
+    }
+
+    @Override
+    public String put(String gene, String value) {
+      int idx = f_plan.geneIndex(gene);
+      if (idx < 0) {
+        throw new IllegalArgumentException("No column for " + gene);
+      }
+      String old = f_values[idx];
+      f_values[idx] = value;
+      return old;
+    }
+
+    @Override
+    public String remove(Object gene) {
+      int idx = gene instanceof String ? f_plan.geneIndex((String)gene) : -1;
+      if (idx < 0) {
+        return null;
+      }
+      String old = f_values[idx];
+      f_values[idx] = null;
+      return old;
+    }
+
+    @Override
+    public void clear() {
+      Arrays.fill(f_values, null);
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      return f_entries;
+    }
+  }
+}
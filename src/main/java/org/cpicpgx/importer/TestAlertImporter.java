@@ -2,14 +2,16 @@ package org.cpicpgx.importer;
 
 import com.google.gson.Gson;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.cpicpgx.db.LookupMethod;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
+import org.cpicpgx.util.BatchStatement;
 import org.cpicpgx.util.Constants;
 import org.cpicpgx.util.DbHarness;
 import org.cpicpgx.util.RowWrapper;
+import org.cpicpgx.util.WorkbookSheet;
 import org.cpicpgx.util.WorkbookWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,12 +19,8 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.lang.invoke.MethodHandles;
 import java.sql.Array;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * An importer for drug CDS test-alert text from excel workbooks into the database.
@@ -57,6 +55,19 @@ public class TestAlertImporter extends BaseDirectoryImporter {
     return sf_deleteStatements;
   }
 
+  @Override
+  FileType[] getDependencies() {
+    return new FileType[]{FileType.GENE_RESOURCE, FileType.DRUG_RESOURCE};
+  }
+
+  /**
+   * Not parallel-safe, notes are collected in an instance field across all files
+   */
+  @Override
+  boolean isParallelSafe() {
+    return false;
+  }
+
   @Override
   String getFileExtensionToProcess() {
     return FILE_EXTENSION;
@@ -65,8 +76,10 @@ public class TestAlertImporter extends BaseDirectoryImporter {
   @Override
   void processWorkbook(WorkbookWrapper workbook) throws Exception {
     try (TestDbHarness dbHarness = new TestDbHarness()) {
-      for (Iterator<Sheet> sheetIterator = workbook.getSheetIterator(); sheetIterator.hasNext(); ) {
-        Sheet sheet = sheetIterator.next();
+      // population sheets usually have the same header so the plan for one is reused for the next
+      SheetSchema.Plan plan = null;
+      for (Iterator<WorkbookSheet> sheetIterator = workbook.getSheetIterator(); sheetIterator.hasNext(); ) {
+        WorkbookSheet sheet = sheetIterator.next();
 
         if (AbstractWorkbook.HISTORY_SHEET_NAME.equalsIgnoreCase(sheet.getSheetName())) {
           workbook.currentSheetIs(AbstractWorkbook.HISTORY_SHEET_NAME);
@@ -74,7 +87,7 @@ public class TestAlertImporter extends BaseDirectoryImporter {
         }
         else if (!sheet.getSheetName().equalsIgnoreCase("flow chart")) {
           String population = sheet.getSheetName().replaceFirst("population ", "");
-          processTestAlertSheet(workbook, dbHarness, population);
+          plan = processTestAlertSheet(workbook, dbHarness, population, plan);
         }
       }
       for (String drugId : dbHarness.getDrugIds()) {
@@ -88,45 +101,23 @@ public class TestAlertImporter extends BaseDirectoryImporter {
   private static final int COL_TRIGGER_START = 1;
   private static final String COL_NAME_CONTEXT = "CDS Context, Relative to Genetic Testing";
   private static final String COL_NAME_ALERT = "CDS Alert Text";
-  private static final Pattern PHENO_PATTERN = Pattern.compile("([\\w-]+)\\s+[Pp]henotype");
-  private static final Pattern AS_PATTERN = Pattern.compile("([\\w-]+)?\\s*[Aa]ctivity [Ss]core.*");
-  private static final Pattern ALLELE_PATTERN = Pattern.compile("([\\w-]+)\\s+[Aa]llele.*");
-
-  private void processTestAlertSheet(WorkbookWrapper workbook, TestDbHarness dbHarness, String population) throws Exception {
-    RowWrapper headerRow = workbook.getRow(0);
-
-    int idxContext = -1;
-    int idxAlert = -1;
-    Map<String, Integer> idxPhenotypeByGene = new HashMap<>();
-    Map<String, Integer> idxActivityByGene = new HashMap<>();
-    Map<String, Integer> idxAlleleByGene = new HashMap<>();
-
-    for (int h=COL_TRIGGER_START; h<= headerRow.row.getLastCellNum(); h++) {
-      String columnHeaderText = StringUtils.strip(headerRow.getNullableText(h));
-      if (columnHeaderText == null) {
-        continue;
-      }
-
-      Matcher phenoMatch = PHENO_PATTERN.matcher(columnHeaderText);
-      Matcher activityMatch = AS_PATTERN.matcher(columnHeaderText);
-      Matcher alleleMatch = ALLELE_PATTERN.matcher(columnHeaderText);
-
-      if (columnHeaderText.equals(COL_NAME_CONTEXT)) {
-        idxContext = h;
-      } else if (columnHeaderText.equals(COL_NAME_ALERT)) {
-        idxAlert = h;
-      } else if (phenoMatch.matches() && phenoMatch.group(1) != null) {
-        idxPhenotypeByGene.put(phenoMatch.group(1), h);
-      } else if (activityMatch.matches() && activityMatch.group(1) != null) {
-        idxActivityByGene.put(activityMatch.group(1), h);
-      } else if (alleleMatch.matches() && alleleMatch.group(1) != null) {
-        idxAlleleByGene.put(alleleMatch.group(1), h);
-      } else {
-        throw new RuntimeException("Column type not recognized: " + columnHeaderText);
-      }
-    }
-
-    if (idxPhenotypeByGene.size() == 0 && idxActivityByGene.size() == 0 && idxAlleleByGene.size() == 0) {
+  private static final SheetSchema sf_schema = new SheetSchema()
+      .column(COL_NAME_CONTEXT, COL_NAME_CONTEXT::equals)
+      .column(COL_NAME_ALERT, COL_NAME_ALERT::equals)
+      .geneColumn(SheetSchema.Role.PHENOTYPE)
+      .geneColumn(SheetSchema.Role.ACTIVITY_SCORE)
+      .geneColumn(SheetSchema.Role.ALLELE_STATUS);
+
+  private SheetSchema.Plan processTestAlertSheet(WorkbookWrapper workbook, TestDbHarness dbHarness, String population, @Nullable SheetSchema.Plan lastPlan) throws Exception {
+    SheetSchema.Plan plan = sf_schema.compile(workbook.getRow(0), COL_TRIGGER_START, null, lastPlan);
+
+    int idxContext = plan.column(COL_NAME_CONTEXT);
+    int idxAlert = plan.column(COL_NAME_ALERT);
+    List<String> phenotypeGenes = plan.genes(SheetSchema.Role.PHENOTYPE);
+    List<String> activityGenes = plan.genes(SheetSchema.Role.ACTIVITY_SCORE);
+    List<String> alleleGenes = plan.genes(SheetSchema.Role.ALLELE_STATUS);
+
+    if (phenotypeGenes.size() == 0 && activityGenes.size() == 0 && alleleGenes.size() == 0) {
       throw new RuntimeException("No lookup columns found");
     }
     if (idxContext == -1) {
@@ -136,9 +127,9 @@ public class TestAlertImporter extends BaseDirectoryImporter {
       sf_logger.warn("no alert text column found");
     }
 
-    dbHarness.addGenes(idxPhenotypeByGene.keySet());
-    dbHarness.addGenes(idxActivityByGene.keySet());
-    dbHarness.addGenes(idxAlleleByGene.keySet());
+    dbHarness.addGenes(phenotypeGenes);
+    dbHarness.addGenes(activityGenes);
+    dbHarness.addGenes(alleleGenes);
 
     boolean noteMode = false;
     for (int i = 1; i <= workbook.currentSheet.getLastRowNum(); i++) {
@@ -162,33 +153,46 @@ public class TestAlertImporter extends BaseDirectoryImporter {
         continue;
       }
 
-      Map<String, String> activityJson = new HashMap<>();
-      for (String gene : idxActivityByGene.keySet()) {
-        String pheno = normalizeGeneText(gene, row.getText(idxPhenotypeByGene.get(gene)));
-        if (pheno != null && pheno.toLowerCase().startsWith(Constants.NO_RESULT.toLowerCase())) {
-          activityJson.put(gene, pheno);
-        } else {
-          activityJson.put(gene, normalizeScore(normalizeGeneText(gene, row.getText(idxActivityByGene.get(gene)))));
+      SheetSchema.GeneValues activityJson = plan.values(SheetSchema.Role.ACTIVITY_SCORE);
+      SheetSchema.GeneValues phenotypeJson = plan.values(SheetSchema.Role.PHENOTYPE);
+      SheetSchema.GeneValues alleleJson = plan.values(SheetSchema.Role.ALLELE_STATUS);
+      for (int g = 0; g < plan.geneCount(); g++) {
+        String gene = plan.gene(g);
+        int idxPhenotype = plan.column(SheetSchema.Role.PHENOTYPE, g);
+        int idxActivity = plan.column(SheetSchema.Role.ACTIVITY_SCORE, g);
+        int idxAllele = plan.column(SheetSchema.Role.ALLELE_STATUS, g);
+
+        String pheno = idxPhenotype < 0 ? null : normalizeGeneText(gene, row.getText(idxPhenotype));
+        phenotypeJson.set(g, pheno);
+        if (idxActivity >= 0) {
+          if (idxPhenotype < 0) {
+            throw new RuntimeException("Phenotype column missing for " + gene);
+          }
+          if (pheno != null && pheno.toLowerCase().startsWith(Constants.NO_RESULT.toLowerCase())) {
+            activityJson.set(g, pheno);
+          } else {
+            activityJson.set(g, normalizeScore(normalizeGeneText(gene, row.getText(idxActivity))));
+          }
+        }
+        if (idxAllele >= 0) {
+          alleleJson.set(g, normalizeGeneText(gene, row.getText(idxAllele)));
         }
-      }
-      Map<String,String> phenotypeJson = new HashMap<>();
-      for (String gene : idxPhenotypeByGene.keySet()) {
-        phenotypeJson.put(gene, normalizeGeneText(gene, row.getText(idxPhenotypeByGene.get(gene))));
-      }
-
-      Map<String,String> alleleJson = new HashMap<>();
-      for (String gene : idxAlleleByGene.keySet()) {
-        alleleJson.put(gene, normalizeGeneText(gene, row.getText(idxAlleleByGene.get(gene))));
       }
 
       String context = StringUtils.replace(row.getText(idxContext), "Test", "test");
 
       try {
-        dbHarness.writeAlert(context, row.getText(COL_DRUG), row.getText(idxAlert), population, activityJson, phenotypeJson, alleleJson);
+        dbHarness.writeAlert(i + 1, context, row.getText(COL_DRUG), row.getText(idxAlert), population, activityJson, phenotypeJson, alleleJson);
+      } catch (BatchStatement.BatchRowException ex) {
+        // already has the number of the row that failed, which may be an earlier row in the batch
+        throw ex;
       } catch (Exception ex) {
         throw new RuntimeException("Error processing row " + (i + 1), ex);
       }
     }
+    // send what's left for this sheet so errors are reported in the context of this sheet
+    dbHarness.flush();
+    return plan;
   }
 
   void processHistory(WorkbookWrapper workbook, TestDbHarness dbHarness) throws SQLException {
@@ -200,22 +204,20 @@ public class TestAlertImporter extends BaseDirectoryImporter {
 
       java.util.Date date = row.getDate(0);
       String note = row.getText(1);
-      dbHarness.writeHistory(date, note);
+      dbHarness.writeHistory(i + 1, date, note);
     }
   }
 
   private static class TestDbHarness extends DbHarness {
-    private final PreparedStatement insert;
-    private final PreparedStatement findLookup;
+    private final BatchStatement insert;
     private final Map<String, String> nameToIdMap = new HashMap<>();
     private final Map<String,LookupMethod> geneMap = new HashMap<>();
     private final Gson gson = new Gson();
 
     private TestDbHarness() throws SQLException {
       super(FileType.TEST_ALERT);
-      this.insert = prepare(
+      this.insert = prepareBatch(
           "insert into test_alert(cdsContext, genes, drugid, alertText, population, activityScore, phenotype, alleleStatus, lookupKey) values (?, ?, ?, ?, ?, ?::jsonb, ?::jsonb, ?::jsonb, ?::jsonb)");
-      this.findLookup = prepare("select lookupmethod from gene where symbol=?");
     }
 
     private Set<String> getGenes() {
@@ -229,13 +231,17 @@ public class TestAlertImporter extends BaseDirectoryImporter {
       }
     }
 
-    private void writeHistory(Date date, String note) throws SQLException {
+    private void writeHistory(int row, Date date, String note) throws SQLException {
       for (String drugId : nameToIdMap.values()) {
-        writeChangeLog(drugId, date, note);
+        writeChangeLog(row, drugId, date, note);
       }
     }
 
-    private void writeAlert(String context, String drugName, String alertText, String population, Map<String,String> activityMap, Map<String,String> phenotypeMap, Map<String,String> alleleMap) throws SQLException, NotFoundException {
+    private void flush() throws SQLException {
+      insert.flush();
+    }
+
+    private void writeAlert(int row, String context, String drugName, String alertText, String population, Map<String,String> activityMap, Map<String,String> phenotypeMap, Map<String,String> alleleMap) throws SQLException, NotFoundException {
       Array geneArray = createArrayOf(getGenes().toArray(new String[]{}));
       Array alertSqlArray = createArrayOf(new String[]{alertText});
 
@@ -266,17 +272,18 @@ public class TestAlertImporter extends BaseDirectoryImporter {
         }
       }
 
-      insert.clearParameters();
-      insert.setString(1, context);
-      insert.setArray(2, geneArray);
-      insert.setString(3, lookupCachedDrug(drugName));
-      insert.setArray(4, alertSqlArray);
-      insert.setString(5, population);
-      insert.setString(6, gson.toJson(activityMap));
-      insert.setString(7, gson.toJson(phenotypeMap));
-      insert.setString(8, gson.toJson(alleleMap));
-      insert.setString(9, gson.toJson(lookupKey));
-      insert.executeUpdate();
+      insert.add(
+          row,
+          context,
+          geneArray,
+          lookupCachedDrug(drugName),
+          alertSqlArray,
+          population,
+          gson.toJson(activityMap),
+          gson.toJson(phenotypeMap),
+          gson.toJson(alleleMap),
+          gson.toJson(lookupKey)
+      );
     }
 
     private Collection<String> getDrugIds() {
@@ -285,14 +292,12 @@ public class TestAlertImporter extends BaseDirectoryImporter {
 
     @Nullable
     LookupMethod findLookup(String gene) throws SQLException {
-      this.findLookup.setString(1, gene);
-      try (ResultSet rs = this.findLookup.executeQuery()) {
-        if (rs.next()) {
-          return LookupMethod.valueOf(rs.getString(1));
-        } else {
-          sf_logger.warn("no gene data for {}", gene);
-          return null;
-        }
+      ReferenceData.Gene referenceGene = ReferenceData.getGene(gene);
+      if (referenceGene != null) {
+        return referenceGene.getLookupMethod();
+      } else {
+        sf_logger.warn("no gene data for {}", gene);
+        return null;
       }
     }
   }
@@ -0,0 +1,189 @@
+package org.cpicpgx.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandles;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps a {@link PreparedStatement} so rows are sent to the DB in batches instead of one <code>executeUpdate()</code>
+ * per row. The batch is sent when it reaches the batch size, when the oldest row in the batch has waited longer than
+ * the max delay, or when {@link BatchStatement#flush()} or {@link BatchStatement#close()} is called.
+ *
+ * Each row is added with the number of the spreadsheet row it came from. If the batch fails the exception will say
+ * which source row caused it so errors read the same as they did when rows were written one at a time.
+ *
+ * Get one of these from {@link DbHarness#prepareBatch(String)} so it will be flushed and closed with the harness.
+ *
+ * @author Ryan Whaley
+ */
+public class BatchStatement implements AutoCloseable {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  public static final int UNKNOWN_ROW = -1;
+
+  private final PreparedStatement f_stmt;
+  private final int f_batchSize;
+  private final long f_maxDelayMillis;
+  private final List<Integer> f_pendingRows = new ArrayList<>();
+  private long m_oldestPending = 0;
+  private long m_rowCount = 0;
+  private int m_batchCount = 0;
+
+  /**
+   * Constructor
+   * @param stmt the statement to batch, closed when this is closed
+   * @param batchSize the max number of rows to hold before sending, must be at least 1
+   * @param maxDelayMillis the max time a row can wait before the batch is sent, checked when rows are added
+   */
+  public BatchStatement(@Nonnull PreparedStatement stmt, int batchSize, long maxDelayMillis) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+    }
+    f_stmt = stmt;
+    f_batchSize = batchSize;
+    f_maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Add a row to the batch. Null values are sent as untyped nulls so they work with casts like <code>?::jsonb</code>.
+   * @param sourceRow the 1-based number of the row in the source file, or {@link BatchStatement#UNKNOWN_ROW}
+   * @param values the parameter values for the statement, in order
+   * @throws SQLException can occur if this sends the batch, a {@link BatchRowException} if a row in the batch fails
+   */
+  public void add(int sourceRow, Object... values) throws SQLException {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == null) {
+        f_stmt.setNull(i + 1, Types.OTHER);
+      } else {
+        f_stmt.setObject(i + 1, values[i]);
+      }
+    }
+    f_stmt.addBatch();
+    if (f_pendingRows.isEmpty()) {
+      m_oldestPending = System.currentTimeMillis();
+    }
+    f_pendingRows.add(sourceRow);
+
+    if (f_pendingRows.size() >= f_batchSize || System.currentTimeMillis() - m_oldestPending >= f_maxDelayMillis) {
+      flush();
+    }
+  }
+
+  /**
+   * Send any rows waiting in the batch
+   * @throws SQLException can occur when sending the batch, a {@link BatchRowException} if a row in the batch fails
+   */
+  public void flush() throws SQLException {
+    if (f_pendingRows.isEmpty()) return;
+
+    try {
+      f_stmt.executeBatch();
+      m_rowCount += f_pendingRows.size();
+      m_batchCount += 1;
+    } catch (BatchUpdateException ex) {
+      throw new BatchRowException(findFailedRow(ex), f_pendingRows, ex);
+    } catch (SQLException ex) {
+      throw new BatchRowException(UNKNOWN_ROW, f_pendingRows, ex);
+    } finally {
+      f_stmt.clearBatch();
+      f_pendingRows.clear();
+    }
+  }
+
+  /**
+   * The driver reports update counts for the statements that ran before the failure so the next one is the one that
+   * failed. When the driver can't tell (e.g. rewritten multi-row inserts) this gives up and returns unknown.
+   */
+  private int findFailedRow(BatchUpdateException ex) {
+    int[] counts = ex.getUpdateCounts();
+    if (counts != null && counts.length < f_pendingRows.size()) {
+      return f_pendingRows.get(counts.length);
+    }
+    return UNKNOWN_ROW;
+  }
+
+  /**
+   * @return number of rows sent to the DB so far
+   */
+  public long getRowCount() {
+    return m_rowCount;
+  }
+
+  /**
+   * @return number of batches sent to the DB so far
+   */
+  public int getBatchCount() {
+    return m_batchCount;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    try {
+      flush();
+      if (m_rowCount > 0) {
+        sf_logger.debug("sent {} rows in {} batches", m_rowCount, m_batchCount);
+      }
+    } finally {
+      f_stmt.close();
+    }
+  }
+
+  /**
+   * Makes an error message that points at the source rows a failed write came from, the failed row when it's known or
+   * else the range of rows that were sent together
+   * @param row the 1-based source row that failed, {@link BatchStatement#UNKNOWN_ROW} if not known
+   * @param batchRows the source rows that were sent together
+   * @param target what was being written, used when none of the source rows are known
+   * @param reason the message of the DB error
+   * @return an error message
+   */
+  static String makeErrorMessage(int row, List<Integer> batchRows, String target, String reason) {
+    int first = batchRows.stream().filter(r -> r != UNKNOWN_ROW).min(Integer::compare).orElse(UNKNOWN_ROW);
+    int last = batchRows.stream().filter(r -> r != UNKNOWN_ROW).max(Integer::compare).orElse(UNKNOWN_ROW);
+    if (row != UNKNOWN_ROW) {
+      if (first != last) {
+        return "Error reading row " + row + " (sent with rows " + first + "-" + last + "): " + reason;
+      }
+      return "Error reading row " + row + ": " + reason;
+    } else if (first == UNKNOWN_ROW) {
+      return "Error writing " + target + ": " + reason;
+    } else if (first == last) {
+      return "Error reading row " + first + ": " + reason;
+    }
+    return "Error reading one of rows " + first + "-" + last + ": " + reason;
+  }
+
+  /**
+   * Thrown when a batch fails. Has the source row number that caused the failure when it's known, and the range of
+   * source rows that were in the failed batch.
+   */
+  public static class BatchRowException extends SQLException {
+    private static final long serialVersionUID = 1L;
+    private final int f_row;
+
+    BatchRowException(int row, List<Integer> batchRows, SQLException cause) {
+      super(makeMessage(row, batchRows, cause), cause.getSQLState(), cause);
+      f_row = row;
+    }
+
+    /**
+     * @return the 1-based source row number that failed, {@link BatchStatement#UNKNOWN_ROW} if not known
+     */
+    public int getRow() {
+      return f_row;
+    }
+
+    private static String makeMessage(int row, List<Integer> batchRows, SQLException cause) {
+      // the driver puts the actual DB error in the next exception
+      SQLException reason = cause.getNextException() != null ? cause.getNextException() : cause;
+      return makeErrorMessage(row, batchRows, "batch", reason.getMessage());
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package org.cpicpgx.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.lang.invoke.MethodHandles;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Inserts or updates rows in a table by their key columns, sending many rows in each multi-row
+ * <code>insert ... on conflict (key) do update</code> statement instead of one upsert per row.
+ *
+ * Rows that are already in the table with the same values are left alone, so their version isn't bumped, and every
+ * batch is counted as inserted, updated or unchanged. When a key is added more than once before the batch is sent the
+ * last row for it wins. Rows with a null key value can't conflict with anything so they're always inserted.
+ *
+ * The table needs a unique constraint on the key columns. Get one of these from
+ * {@link DbHarness#prepareUpsert(String, String[], String...)} so it will be flushed and closed with the harness.
+ *
+ * @author Ryan Whaley
+ */
+public class BatchUpsert implements AutoCloseable {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  // the most parameters postgres allows in one statement
+  private static final int MAX_PARAMETERS = Short.MAX_VALUE;
+
+  private final Connection f_conn;
+  private final String f_table;
+  private final int f_keyCount;
+  private final int f_columnCount;
+  private final int f_batchSize;
+  private final String f_sqlStart;
+  private final String f_sqlEnd;
+  private final Map<Object, Object[]> f_pending = new LinkedHashMap<>();
+  private final List<Integer> f_pendingRows = new ArrayList<>();
+  private PreparedStatement m_fullBatchStmt;
+  private long m_inserted = 0;
+  private long m_updated = 0;
+  private long m_unchanged = 0;
+  private int m_batchCount = 0;
+
+  /**
+   * Constructor
+   * @param conn the connection to send rows on, this does not close it
+   * @param table the table to write to
+   * @param keyColumns the columns of the table's unique constraint
+   * @param valueColumns the columns that are set when a row with the same key is already there
+   * @param batchSize the max number of rows to send in one statement, lowered if the statement would have too many
+   *                  parameters
+   */
+  public BatchUpsert(@Nonnull Connection conn, @Nonnull String table, @Nonnull String[] keyColumns, @Nonnull String[] valueColumns, int batchSize) {
+    if (keyColumns.length == 0 || valueColumns.length == 0) {
+      throw new IllegalArgumentException("Need both key and value columns for " + table);
+    }
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+    }
+    f_conn = conn;
+    f_table = table;
+    f_keyCount = keyColumns.length;
+    f_columnCount = keyColumns.length + valueColumns.length;
+    f_batchSize = Math.min(batchSize, MAX_PARAMETERS / f_columnCount);
+
+    StringJoiner updates = new StringJoiner(", ");
+    StringJoiner current = new StringJoiner(", ", "(", ")");
+    StringJoiner excluded = new StringJoiner(", ", "(", ")");
+    for (String column : valueColumns) {
+      updates.add(column + "=excluded." + column);
+      current.add("t." + column);
+      excluded.add("excluded." + column);
+    }
+    f_sqlStart = String.format("insert into %s as t(%s, %s) values ",
+        table, String.join(", ", keyColumns), String.join(", ", valueColumns));
+    // xmax is only 0 for a row version that was inserted, not updated
+    f_sqlEnd = String.format(" on conflict (%s) do update set %s where %s is distinct from %s returning (xmax = 0)",
+        String.join(", ", keyColumns), updates, current, excluded);
+  }
+
+  /**
+   * Add a row. The row may not be sent to the DB until later.
+   * @param sourceRow the 1-based number of the row in the source file, or {@link BatchStatement#UNKNOWN_ROW}
+   * @param values the values of the key columns followed by the value columns, in the order given to the constructor
+   * @throws SQLException can occur if this sends the batch
+   */
+  public void add(int sourceRow, Object... values) throws SQLException {
+    if (values.length != f_columnCount) {
+      throw new IllegalArgumentException(String.format("Expected %d values for %s, got %d", f_columnCount, f_table, values.length));
+    }
+    Object key = makeKey(values);
+    f_pending.remove(key);
+    f_pending.put(key, values);
+    f_pendingRows.add(sourceRow);
+
+    if (f_pending.size() >= f_batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * The key columns of a row as something that can be compared to other keys, or a new Object that's only equal to
+   * itself when any of them is null
+   */
+  private Object makeKey(Object[] values) {
+    List<Object> key = Arrays.asList(Arrays.copyOf(values, f_keyCount));
+    return key.contains(null) ? new Object() : key;
+  }
+
+  /**
+   * Send any rows waiting in the batch
+   * @throws SQLException can occur when sending the batch
+   */
+  public void flush() throws SQLException {
+    if (f_pending.isEmpty()) return;
+
+    int rows = f_pending.size();
+    PreparedStatement stmt;
+    if (rows == f_batchSize) {
+      if (m_fullBatchStmt == null) {
+        m_fullBatchStmt = f_conn.prepareStatement(makeSql(rows));
+      }
+      stmt = m_fullBatchStmt;
+    } else {
+      stmt = f_conn.prepareStatement(makeSql(rows));
+    }
+
+    try {
+      int p = 1;
+      for (Object[] values : f_pending.values()) {
+        for (Object value : values) {
+          if (value == null) {
+            stmt.setNull(p, Types.OTHER);
+          } else {
+            stmt.setObject(p, value);
+          }
+          p += 1;
+        }
+      }
+
+      int inserted = 0;
+      int updated = 0;
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          if (rs.getBoolean(1)) {
+            inserted += 1;
+          } else {
+            updated += 1;
+          }
+        }
+      }
+      m_inserted += inserted;
+      m_updated += updated;
+      m_unchanged += rows - inserted - updated;
+      m_batchCount += 1;
+      sf_logger.debug("{}: {} inserted, {} updated, {} unchanged", f_table, inserted, updated, rows - inserted - updated);
+    } catch (SQLException ex) {
+      throw new SQLException(makeErrorMessage(ex), ex.getSQLState(), ex);
+    } finally {
+      if (stmt != m_fullBatchStmt) {
+        stmt.close();
+      }
+      f_pending.clear();
+      f_pendingRows.clear();
+    }
+  }
+
+  private String makeSql(int rows) {
+    StringBuilder sql = new StringBuilder(f_sqlStart);
+    StringJoiner params = new StringJoiner(",", "(", ")");
+    for (int i = 0; i < f_columnCount; i++) {
+      params.add("?");
+    }
+    String row = params.toString();
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) {
+        sql.append(',');
+      }
+      sql.append(row);
+    }
+    return sql.append(f_sqlEnd).toString();
+  }
+
+  /**
+   * A multi-row statement fails as a whole so the best we can do is say which source rows were in it
+   */
+  private String makeErrorMessage(SQLException ex) {
+    return BatchStatement.makeErrorMessage(BatchStatement.UNKNOWN_ROW, f_pendingRows, f_table, ex.getMessage());
+  }
+
+  /**
+   * @return number of rows that weren't in the table before
+   */
+  public long getInsertedCount() {
+    return m_inserted;
+  }
+
+  /**
+   * @return number of rows that were in the table and had different values
+   */
+  public long getUpdatedCount() {
+    return m_updated;
+  }
+
+  /**
+   * @return number of rows that were in the table with the same values
+   */
+  public long getUnchangedCount() {
+    return m_unchanged;
+  }
+
+  /**
+   * @return number of statements sent to the DB so far
+   */
+  public int getBatchCount() {
+    return m_batchCount;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    try {
+      flush();
+      if (m_batchCount > 0) {
+        sf_logger.info("{}: {} inserted, {} updated, {} unchanged", f_table, m_inserted, m_updated, m_unchanged);
+      }
+    } finally {
+      if (m_fullBatchStmt != null) {
+        m_fullBatchStmt.close();
+      }
+    }
+  }
+}
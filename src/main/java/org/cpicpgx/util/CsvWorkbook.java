@@ -0,0 +1,243 @@
+package org.cpicpgx.util;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Workbook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A workbook exported as CSV or TSV text. A single <code>.csv</code> or <code>.tsv</code> file is a workbook with one
+ * sheet. A directory of them is a workbook with a sheet for each file, in file name order. A number and an underscore at
+ * the start of a file name only set the order and aren't part of the sheet name, so <code>0_CYP2D6.csv</code> and
+ * <code>1_Notes.csv</code> are the sheets "CYP2D6" and "Notes".
+ *
+ * Text that looks like a number becomes a numeric cell and text that looks like a date (<code>2018-11-11</code>,
+ * <code>11/11/2018</code> or <code>11/11/18</code>) becomes a date-formatted numeric cell, the same as the cells they
+ * were exported from. Everything else is a text cell. Text files can't hold formatting so there are no footnotes.
+ * Each sheet is read the first time one of its rows is asked for.
+ *
+ * @author Ryan Whaley
+ */
+final class CsvWorkbook implements SheetSource {
+  static final String CSV_EXTENSION = ".csv";
+  static final String TSV_EXTENSION = ".tsv";
+  private static final Pattern sf_numberPattern = Pattern.compile("-?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+  private static final Pattern sf_orderPrefixPattern = Pattern.compile("^\\d+_");
+  private static final Pattern sf_datePattern = Pattern.compile("\\d{4}-\\d{1,2}-\\d{1,2}|\\d{1,2}/\\d{1,2}/\\d{2}(\\d{2})?");
+  private static final List<DateTimeFormatter> sf_dateFormats = Arrays.asList(
+      DateTimeFormatter.ISO_LOCAL_DATE,
+      DateTimeFormatter.ofPattern("M/d/yyyy"),
+      DateTimeFormatter.ofPattern("M/d/yy")
+  );
+
+  private final List<File> f_files;
+  private final List<String> f_sheetNames = new ArrayList<>();
+  private final Map<Integer, CsvSheet> f_sheets = new HashMap<>();
+
+  /**
+   * Whether the given path is a workbook exported as text, either a CSV or TSV file or a directory with at least one
+   * @param path a file or directory
+   * @return true if the path can be opened with {@link CsvWorkbook#open(Path)}
+   */
+  static boolean isTextWorkbook(Path path) {
+    if (Files.isDirectory(path)) {
+      return !listSheetFiles(path.toFile()).isEmpty();
+    }
+    return Files.isRegularFile(path) && isSheetFile(path.toFile());
+  }
+
+  /**
+   * Opens a CSV or TSV file, or a directory of them
+   * @param path a file or directory
+   * @return the workbook, no sheets are read until their rows are asked for
+   * @throws IOException when the path isn't a text workbook
+   */
+  static CsvWorkbook open(Path path) throws IOException {
+    if (!isTextWorkbook(path)) {
+      throw new IOException("Not a CSV or TSV file, or a directory of them: " + path);
+    }
+    return new CsvWorkbook(Files.isDirectory(path) ? listSheetFiles(path.toFile()) : Collections.singletonList(path.toFile()));
+  }
+
+  private static boolean isSheetFile(File file) {
+    String name = file.getName().toLowerCase();
+    return !name.startsWith("~$") && (name.endsWith(CSV_EXTENSION) || name.endsWith(TSV_EXTENSION));
+  }
+
+  private static List<File> listSheetFiles(File dir) {
+    File[] files = dir.listFiles(f -> f.isFile() && isSheetFile(f));
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    Arrays.sort(files, Comparator.comparing(File::getName));
+    return Arrays.asList(files);
+  }
+
+  private CsvWorkbook(List<File> files) {
+    f_files = files;
+    for (File file : files) {
+      String name = file.getName();
+      name = name.substring(0, name.lastIndexOf('.'));
+      if (files.size() > 1) {
+        name = sf_orderPrefixPattern.matcher(name).replaceFirst("");
+      }
+      f_sheetNames.add(name);
+    }
+  }
+
+  @Override
+  public int getNumberOfSheets() {
+    return f_files.size();
+  }
+
+  @Override
+  public int getSheetIndex(String name) {
+    for (int i = 0; i < f_sheetNames.size(); i++) {
+      if (f_sheetNames.get(i).equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public WorkbookSheet getSheetAt(int i) {
+    return f_sheets.computeIfAbsent(i, CsvSheet::new);
+  }
+
+  @Override
+  public boolean isForwardOnly() {
+    return false;
+  }
+
+  @Override
+  public boolean isDate1904() {
+    return false;
+  }
+
+  /**
+   * Text files have no formulas, only the values they were exported with
+   */
+  @Override
+  public boolean canEvaluate() {
+    return false;
+  }
+
+  @Override
+  public boolean hasSavedResults() {
+    return true;
+  }
+
+  /**
+   * Text files have no formulas to evaluate
+   * @return null
+   */
+  @Override
+  public Workbook getFormulaWorkbook() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+    f_sheets.clear();
+  }
+
+  /**
+   * Sets the value of a cell from exported text
+   */
+  private static void setValue(SheetCell cell, String text) {
+    if (sf_numberPattern.matcher(text).matches()) {
+      cell.setNumber(Double.parseDouble(text));
+      return;
+    }
+    if (sf_datePattern.matcher(text).matches()) {
+      for (DateTimeFormatter format : sf_dateFormats) {
+        try {
+          LocalDate date = LocalDate.parse(text, format);
+          cell.setNumber(DateUtil.getExcelDate(Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant())));
+          cell.setDateFormat(true);
+          return;
+        } catch (DateTimeParseException ex) {
+          // try the next format
+        }
+      }
+    }
+    cell.setText(text, false);
+  }
+
+  /**
+   * One file of the workbook, all its rows are read the first time one is asked for
+   */
+  private class CsvSheet extends WorkbookSheet {
+    private final File f_file;
+    private TreeMap<Integer, SheetRow> m_rows;
+
+    CsvSheet(int sheetIdx) {
+      super(f_sheetNames.get(sheetIdx), false);
+      f_file = f_files.get(sheetIdx);
+    }
+
+    @Override
+    public SheetRow getRow(int rowIdx) {
+      return getRows().get(rowIdx);
+    }
+
+    @Override
+    public int getFirstRowNum() {
+      return getRows().isEmpty() ? 0 : getRows().firstKey();
+    }
+
+    @Override
+    public int getLastRowNum() {
+      return getRows().isEmpty() ? 0 : getRows().lastKey();
+    }
+
+    @Override
+    String describe() {
+      return "Text sheet";
+    }
+
+    private TreeMap<Integer, SheetRow> getRows() {
+      if (m_rows == null) {
+        CSVFormat format = f_file.getName().toLowerCase().endsWith(TSV_EXTENSION) ? CSVFormat.TDF : CSVFormat.DEFAULT;
+        TreeMap<Integer, SheetRow> rows = new TreeMap<>();
+        try (Reader reader = Files.newBufferedReader(f_file.toPath(), StandardCharsets.UTF_8)) {
+          int rowIdx = 0;
+          for (CSVRecord record : format.withIgnoreEmptyLines(false).withIgnoreSurroundingSpaces(false).parse(reader)) {
+            SheetRow row = new SheetRow(this, rowIdx);
+            boolean hasValue = false;
+            for (int i = 0; i < record.size(); i++) {
+              String text = rowIdx == 0 && i == 0 ? StringUtils.removeStart(record.get(i), "\uFEFF") : record.get(i);
+              if (!text.isEmpty()) {
+                setValue(row.addCell(i), text);
+                hasValue = true;
+              }
+            }
+            if (hasValue) {
+              rows.put(rowIdx, row);
+            }
+            rowIdx += 1;
+          }
+        } catch (IOException ex) {
+          throw new RuntimeException("Error reading " + f_file, ex);
+        }
+        m_rows = rows;
+      }
+      return m_rows;
+    }
+  }
+}
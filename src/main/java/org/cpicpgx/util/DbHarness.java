@@ -2,6 +2,10 @@ package org.cpicpgx.util;
 
 import org.apache.commons.lang3.StringUtils;
 import org.cpicpgx.db.ConnectionFactory;
+import org.cpicpgx.db.CopyLoader;
+import org.cpicpgx.db.IdAllocator;
+import org.cpicpgx.db.WriteBehindQueue;
+import org.cpicpgx.db.ReferenceData;
 import org.cpicpgx.exception.NotFoundException;
 import org.cpicpgx.exporter.AbstractWorkbook;
 import org.cpicpgx.model.FileType;
@@ -14,39 +18,37 @@ import java.util.Date;
 
 /**
  * Helper class to interact with the database. Handles connection creation and closing any generated SQL
- * statements. Also include some caching for common queries like looking up drug IDs or guideline IDs.
+ * statements. Also has lookups for common reference data like drug IDs or guideline IDs, these come from the shared
+ * {@link ReferenceData} cache.
  *
  * Extend this class in your own class and add your own write statements to it.
+ *
+ * If a {@link org.cpicpgx.db.Transaction} is open on the current thread the harness uses the transaction's connection
+ * so all of its writes are committed or rolled back together with the rest of the transaction.
  */
 public abstract class DbHarness implements AutoCloseable {
+  /**
+   * Number of rows to send in one batch, override with the CPIC_BATCH_SIZE environment variable
+   */
+  public static final int BATCH_SIZE = Integer.parseInt(StringUtils.defaultIfBlank(System.getenv("CPIC_BATCH_SIZE"), "500"));
+  /**
+   * Longest time a row can wait in a batch before the batch is sent, in milliseconds
+   */
+  public static final long BATCH_MAX_DELAY = 5000;
+  //language=PostgreSQL
+  private static final String sf_insertChangeLog = "insert into change_log(entityId, note, type, date) values (?, ?, ?, ?)";
+
   private final List<AutoCloseable> closables = new ArrayList<>();
+  private final List<BatchStatement> batchStatements = new ArrayList<>();
+  private final List<CopyLoader> copyLoaders = new ArrayList<>();
+  private final List<BatchUpsert> upserts = new ArrayList<>();
   private final Connection f_conn;
   private final FileType f_fileType;
 
-  private final PreparedStatement drugLookup;
-  private final Map<String, String> drugLookupCache = new HashMap<>();
-
-  private final PreparedStatement geneLookup;
-  private final Set<String> geneLookupCache = new HashSet<>();
-
-  private final PreparedStatement guidelineLookup;
-  private final Map<String, Integer> guidelineLookupCache = new HashMap<>();
-
-  private final PreparedStatement insertChangeLog;
-
   public DbHarness(FileType type) throws SQLException {
     f_conn = ConnectionFactory.newConnection();
     closables.add(f_conn);
     f_fileType = type;
-
-    //language=PostgreSQL
-    drugLookup = prepare("select drugid from drug where lower(name)=?");
-    //language=PostgreSQL
-    geneLookup = prepare("select symbol from gene where symbol=?");
-    //language=PostgreSQL
-    guidelineLookup = prepare("select id from guideline where url=?");
-    //language=PostgreSQL
-    insertChangeLog = prepare("insert into change_log(entityId, note, type, date) values (?, ?, ?, ?)");
   }
 
   public PreparedStatement prepare(@Nonnull String sql) throws SQLException {
@@ -55,77 +57,125 @@ public abstract class DbHarness implements AutoCloseable {
     return pstmt;
   }
 
+  /**
+   * Prepare a statement that will be sent in batches of {@link DbHarness#BATCH_SIZE}. Any rows left in the batch are
+   * sent when this harness is closed.
+   * @param sql an insert or update statement
+   * @return a new BatchStatement
+   */
+  public BatchStatement prepareBatch(@Nonnull String sql) throws SQLException {
+    return prepareBatch(sql, BATCH_SIZE);
+  }
+
+  /**
+   * Prepare a statement that will be sent in batches of the given size. Any rows left in the batch are sent when this 
+   * harness is closed.
+   * @param sql an insert or update statement
+   * @param batchSize the max number of rows in a batch
+   * @return a new BatchStatement
+   */
+  public BatchStatement prepareBatch(@Nonnull String sql, int batchSize) throws SQLException {
+    BatchStatement batch = new BatchStatement(f_conn.prepareStatement(sql), batchSize, BATCH_MAX_DELAY);
+    batchStatements.add(batch);
+    return batch;
+  }
+
+  /**
+   * Prepare an upsert that will be sent in batches of {@link DbHarness#BATCH_SIZE}. Any rows left in the batch are sent
+   * when this harness is closed.
+   * @param table the table to write to
+   * @param keyColumns the columns of the table's unique constraint
+   * @param valueColumns the columns to set when the key is already in the table
+   * @return a new BatchUpsert
+   */
+  public BatchUpsert prepareUpsert(@Nonnull String table, String[] keyColumns, String... valueColumns) {
+    BatchUpsert upsert = new BatchUpsert(f_conn, table, keyColumns, valueColumns, BATCH_SIZE);
+    upserts.add(upsert);
+    return upsert;
+  }
+
+  /**
+   * Make a new {@link CopyLoader} on this harness's connection. Any rows left in the loader are sent when this harness
+   * is closed, before the connection is closed.
+   * @param format the COPY format to use
+   * @param table the table to load
+   * @param columns the columns each row will have values for
+   * @return a new CopyLoader
+   */
+  public CopyLoader copyLoader(CopyLoader.Format format, @Nonnull String table, String... columns) {
+    CopyLoader loader = new CopyLoader(f_conn, format, table, columns);
+    copyLoaders.add(loader);
+    return loader;
+  }
+
+  /**
+   * Reserve a block of new IDs for rows that will be written with a {@link CopyLoader}
+   * @param count the number of IDs needed
+   * @return an array of new IDs
+   */
+  public int[] nextIds(int count) throws SQLException {
+    return CopyLoader.nextIds(f_conn, count);
+  }
+
+  /**
+   * Make an allocator that hands out new IDs one at a time, reserving them from the DB a block at a time
+   * @param blockSize the number of IDs to reserve at once
+   * @return a new IdAllocator on this harness's connection
+   */
+  public IdAllocator idAllocator(int blockSize) {
+    return new IdAllocator(f_conn, blockSize);
+  }
+
   public String lookupCachedDrug(String drugName) throws SQLException, NotFoundException {
-    String normalizedName = StringUtils.lowerCase(StringUtils.stripToNull(drugName));
-    if (normalizedName == null) return null;
+    if (StringUtils.isBlank(drugName)) return null;
 
-    if (drugLookupCache.containsKey(normalizedName)) {
-      return drugLookupCache.get(normalizedName);
-    } else {
-      drugLookup.setString(1, normalizedName);
-      ResultSet rs = drugLookup.executeQuery();
-      if (rs.next()) {
-        String drugId = rs.getString(1);
-        drugLookupCache.put(normalizedName, drugId);
-        return drugId;
-      } else {
-        throw new NotFoundException("No drug found for " + drugName);
-      }
+    ReferenceData.Drug drug = ReferenceData.getDrug(drugName);
+    if (drug == null) {
+      throw new NotFoundException("No drug found for " + drugName);
     }
+    return drug.getDrugId();
   }
 
   /**
-   * Check whether a gene is already in the system, cache any found genes for faster lookup
+   * Check whether a gene is already in the system
    * @param geneSymbol the Gene to find as an HGNC symbol
    * @return true if this is a known gene, false if not found
    */
   public boolean lookupCachedGene(String geneSymbol) throws SQLException {
-    if (geneSymbol == null) return false;
-    if (geneLookupCache.contains(geneSymbol)) {
-      return true;
-    } else {
-      geneLookup.setString(1, geneSymbol);
-      ResultSet rs = geneLookup.executeQuery();
-      if (rs.next()) {
-        geneLookupCache.add(geneSymbol);
-        return true;
-      } else {
-        return false;
-      }
-    }
+    return ReferenceData.getGene(geneSymbol) != null;
   }
 
   public Integer lookupCachedGuideline(String url) throws SQLException {
-    String normalizedUrl = StringUtils.stripToNull(url);
-    if (normalizedUrl == null) return null;
+    if (StringUtils.isBlank(url)) return null;
 
-    if (guidelineLookupCache.containsKey(normalizedUrl)) {
-      return guidelineLookupCache.get(normalizedUrl);
-    } else {
-      guidelineLookup.setString(1, normalizedUrl);
-      ResultSet rs = guidelineLookup.executeQuery();
-      if (rs.next()) {
-        int guidelineId = rs.getInt(1);
-        guidelineLookupCache.put(normalizedUrl, guidelineId);
-        return guidelineId;
-      } else {
-        throw new RuntimeException("No guideline found for " + url);
-      }
+    Integer guidelineId = ReferenceData.getGuidelineId(url);
+    if (guidelineId == null) {
+      throw new RuntimeException("No guideline found for " + url);
     }
+    return guidelineId;
   }
 
   public void setNullableString(@Nonnull PreparedStatement stmt, int parameterIndex, @Nullable String value) throws SQLException {
     if (value == null) {
       stmt.setNull(parameterIndex, Types.VARCHAR);
     } else {
-      if (value.equalsIgnoreCase(Constants.NA)) {
-        stmt.setString(parameterIndex, Constants.NA);
-      } else {
-        stmt.setString(parameterIndex, value);
-      }
+      stmt.setString(parameterIndex, normalizeNa(value));
     }
   }
 
+  /**
+   * Gets the text to write for a nullable string value, any spelling of {@link Constants#NA} is written the same way
+   * @param value a string value, possibly null
+   * @return the value to write
+   */
+  @Nullable
+  public static String normalizeNa(@Nullable String value) {
+    if (value != null && value.equalsIgnoreCase(Constants.NA)) {
+      return Constants.NA;
+    }
+    return value;
+  }
+
   public void setNullableDate(@Nonnull PreparedStatement stmt, int parameterIndex, @Nullable Date value) throws SQLException {
     if (value == null) {
       stmt.setNull(parameterIndex, Types.DATE);
@@ -150,19 +200,27 @@ public abstract class DbHarness implements AutoCloseable {
     }
   }
 
-  public void writeChangeLog(@Nullable String entityId, @Nonnull java.util.Date date, @Nonnull String note) throws SQLException {
+  public void writeChangeLog(@Nullable String entityId, @Nonnull java.util.Date date, @Nonnull String note) {
+    writeChangeLog(BatchStatement.UNKNOWN_ROW, entityId, date, note);
+  }
+
+  /**
+   * Queue a change log entry to be written behind the import by the {@link WriteBehindQueue}. It's only queued once the
+   * current transaction commits, failures are reported when the queue is flushed for this harness's file type.
+   * @param sourceRow the row number of the entry in the change log sheet, used in error messages
+   * @param entityId the ID of the entity this change is for
+   * @param date the date of the change
+   * @param note the description of the change
+   */
+  public void writeChangeLog(int sourceRow, @Nullable String entityId, @Nonnull java.util.Date date, @Nonnull String note) {
     if (note.equalsIgnoreCase(AbstractWorkbook.LOG_FILE_CREATED)) return;
 
-    this.insertChangeLog.clearParameters();
-    if (StringUtils.isBlank(entityId)) {
-      this.insertChangeLog.setNull(1, Types.VARCHAR);
-    } else {
-      this.insertChangeLog.setString(1, entityId);
-    }
-    this.insertChangeLog.setString(2, note);
-    this.insertChangeLog.setString(3, f_fileType.name());
-    this.insertChangeLog.setDate(4, new java.sql.Date(date.getTime()));
-    this.insertChangeLog.executeUpdate();
+    WriteBehindQueue.shared().add(f_fileType.name(), sourceRow, sf_insertChangeLog,
+        StringUtils.isBlank(entityId) ? null : entityId,
+        note,
+        f_fileType.name(),
+        new java.sql.Date(date.getTime())
+    );
   }
 
   public Array createArrayOf(String[] values) throws SQLException {
@@ -171,12 +229,26 @@ public abstract class DbHarness implements AutoCloseable {
 
   @Override
   public void close() {
-    closables.forEach(c -> {
-      try {
-        c.close();
-      } catch (Exception e) {
-        throw new RuntimeException(e);
+    try {
+      for (BatchStatement batch : batchStatements) {
+        batch.close();
       }
-    });
+      for (BatchUpsert upsert : upserts) {
+        upsert.close();
+      }
+      for (CopyLoader loader : copyLoaders) {
+        loader.close();
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException("Error sending remaining rows", e);
+    } finally {
+      closables.forEach(c -> {
+        try {
+          c.close();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+    }
   }
 }
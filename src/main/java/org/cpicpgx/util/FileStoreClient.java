@@ -10,9 +10,8 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Path;
-import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 
 /**
  * Utility class that helps write files to the network file store, Amazon S3.
@@ -29,34 +28,25 @@ public class FileStoreClient implements AutoCloseable {
   private static final String S3_PUBLIC_BUCKET      = "files.cpicpgx.org";
   private static final String S3_GENERIC_KEY_PREFIX = "data/report/";
   private static final String S3_URL_FORMAT         = "http://" + S3_PUBLIC_BUCKET + "/%s%s";
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
   
   private final AmazonS3 s3;
-  private FileHistoryWriter fileHistoryWriter;
   
   public FileStoreClient() {
     s3 = AmazonS3ClientBuilder.defaultClient();
-    try {
-      fileHistoryWriter = new FileHistoryWriter(null);
-    } catch (SQLException e) {
-      sf_logger.error("Could not start DB connection", e);
-    }
   }
   
   public void putArtifact(Path geneFilePath, FileType type) {
     String fileName = geneFilePath.getFileName().toString();
 
-    String datedDirPath = S3_GENERIC_KEY_PREFIX + DATE_FORMAT.format(new Date()) + "/" + type.name().toLowerCase() + "/";
+    String datedDirPath = S3_GENERIC_KEY_PREFIX + LocalDate.now().format(DATE_FORMAT) + "/" + type.name().toLowerCase() + "/";
     putFile(datedDirPath, fileName, geneFilePath.toFile());
 
     String currentDirPath = S3_GENERIC_KEY_PREFIX + "current/" + type.name().toLowerCase() + "/";
     putFile(currentDirPath, fileName, geneFilePath.toFile());
 
-    try {
-      fileHistoryWriter.writeUpload(fileName, String.format(S3_URL_FORMAT, datedDirPath, fileName));
-    } catch (SQLException e) {
-      sf_logger.error("Error updating file record in DB " + fileName, e);
-    }
+    // the URL is written behind, failures are reported when the exporter finishes
+    FileHistoryWriter.writeUpload(type, fileName, String.format(S3_URL_FORMAT, datedDirPath, fileName));
   }
 
   private void putFile(String directoryPath, String fileName, File geneFile) {
@@ -69,12 +59,5 @@ public class FileStoreClient implements AutoCloseable {
     if (s3 != null) {
       s3.shutdown();
     }
-    if (fileHistoryWriter != null) {
-      try {
-        fileHistoryWriter.close();
-      } catch (Exception e) {
-        sf_logger.error("Could not close DB connection", e);
-      }
-    }
   }
 }
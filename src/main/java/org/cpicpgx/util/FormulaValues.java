@@ -0,0 +1,118 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Gets the values of formula cells for a workbook.
+ *
+ * Excel saves the result of every formula in the file along with the formula, so by default that result is used as is
+ * and the formula is only evaluated when the file has no result for it, like a workbook written by POI that was never
+ * opened in Excel. Evaluated results are kept for the life of the workbook so each formula is only evaluated once.
+ *
+ * POI saves a 0 for formulas it never evaluated, so the results in a workbook last saved by POI, or one that asks to be
+ * recalculated when it's opened, aren't used and all its formulas are evaluated.
+ *
+ * Formulas are evaluated in the POI workbook the {@link SheetSource} gives for the file. Sources that read the file 
+ * themselves only load that workbook the first time a formula has to be evaluated, so workbooks where every formula 
+ * has a saved result are never loaded whole.
+ *
+ * @author Ryan Whaley
+ */
+final class FormulaValues {
+  /** The start of the application name POI writes into the files it saves */
+  static final String POI_APPLICATION = "Apache POI";
+
+  private final SheetSource f_source;
+  private final boolean f_savedResults;
+  private final Map<Cell, CellValue> f_evaluated = new IdentityHashMap<>();
+  private Workbook m_workbook;
+  private FormulaEvaluator m_evaluator;
+  private boolean m_evaluateAll = false;
+
+  /**
+   * Constructor
+   * @param source where the workbook is read from
+   */
+  FormulaValues(SheetSource source) {
+    f_source = source;
+    f_savedResults = source.hasSavedResults();
+  }
+
+  /**
+   * Sets whether every formula is evaluated instead of using the result saved in the file
+   */
+  void setEvaluateAll(boolean evaluateAll) {
+    m_evaluateAll = evaluateAll;
+  }
+
+  /**
+   * Whether the value of the given formula cell is the result saved with it, instead of being evaluated
+   * @param cell a FORMULA cell
+   */
+  boolean usesSavedValue(SheetCell cell) {
+    return f_savedResults && !m_evaluateAll && cell.hasSavedValue();
+  }
+
+  /**
+   * Gets the value of a formula cell. Formulas that can't be evaluated give the result saved with them.
+   * @param cell a FORMULA cell
+   * @return the value of the formula
+   */
+  CellValue get(SheetCell cell) {
+    if (usesSavedValue(cell)) {
+      return getSavedValue(cell);
+    }
+    synchronized (f_evaluated) {
+      Cell formula = findCell(cell);
+      if (formula == null) {
+        return getSavedValue(cell);
+      }
+      CellValue value = f_evaluated.get(formula);
+      if (value == null) {
+        value = m_evaluator.evaluate(formula);
+        f_evaluated.put(formula, value);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * Finds the POI cell the formula is evaluated in, by sheet name and position
+   * @return the cell, null if formulas can't be evaluated
+   */
+  private Cell findCell(SheetCell cell) {
+    if (m_evaluator == null) {
+      m_workbook = f_source.getFormulaWorkbook();
+      if (m_workbook == null) {
+        return null;
+      }
+      m_evaluator = m_workbook.getCreationHelper().createFormulaEvaluator();
+    }
+    Sheet sheet = m_workbook.getSheet(cell.getRow().getSheet().getSheetName());
+    Row row = sheet != null ? sheet.getRow(cell.getRowIndex()) : null;
+    return row != null ? row.getCell(cell.getColumnIndex()) : null;
+  }
+
+  /**
+   * Gets the result of a formula as it was saved in the file
+   * @param cell a FORMULA cell
+   * @return the saved value of the formula
+   */
+  static CellValue getSavedValue(SheetCell cell) {
+    switch (cell.getCachedFormulaResultType()) {
+      case NUMERIC:
+        return new CellValue(cell.getNumericCellValue());
+      case STRING:
+        return new CellValue(cell.getStringCellValue());
+      case BOOLEAN:
+        return CellValue.valueOf(cell.getBooleanCellValue());
+      case BLANK:
+        return new CellValue("");
+      default:
+        return CellValue.getError(FormulaError.forString(cell.getErrorText()).getCode());
+    }
+  }
+}
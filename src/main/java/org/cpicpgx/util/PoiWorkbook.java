@@ -0,0 +1,169 @@
+package org.cpicpgx.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A workbook POI has loaded whole, used for workbooks read from an {@link java.io.InputStream} and for xls files. Each
+ * POI row is copied into a {@link SheetRow} when it's asked for.
+ *
+ * @author Ryan Whaley
+ */
+final class PoiWorkbook implements SheetSource {
+  private final Workbook f_workbook;
+  private final Map<Integer, PoiSheet> f_sheets = new HashMap<>();
+
+  PoiWorkbook(Workbook workbook) {
+    f_workbook = workbook;
+  }
+
+  @Override
+  public int getNumberOfSheets() {
+    return f_workbook.getNumberOfSheets();
+  }
+
+  @Override
+  public int getSheetIndex(String name) {
+    return f_workbook.getSheetIndex(name);
+  }
+
+  @Override
+  public WorkbookSheet getSheetAt(int i) {
+    return f_sheets.computeIfAbsent(i, idx -> new PoiSheet(f_workbook.getSheetAt(idx)));
+  }
+
+  @Override
+  public boolean isForwardOnly() {
+    return false;
+  }
+
+  @Override
+  public boolean isDate1904() {
+    if (f_workbook instanceof XSSFWorkbook) {
+      return ((XSSFWorkbook)f_workbook).isDate1904();
+    }
+    return f_workbook instanceof HSSFWorkbook && ((HSSFWorkbook)f_workbook).getInternalWorkbook().isUsing1904DateWindowing();
+  }
+
+  @Override
+  public boolean canEvaluate() {
+    return true;
+  }
+
+  @Override
+  public boolean hasSavedResults() {
+    if (f_workbook.getForceFormulaRecalculation()) {
+      return false;
+    }
+    if (f_workbook instanceof XSSFWorkbook) {
+      String application = ((XSSFWorkbook)f_workbook).getProperties().getExtendedProperties().getUnderlyingProperties().getApplication();
+      return application == null || !application.startsWith(FormulaValues.POI_APPLICATION);
+    }
+    return true;
+  }
+
+  /**
+   * Formulas are evaluated in the workbook that's already loaded
+   */
+  @Override
+  public Workbook getFormulaWorkbook() {
+    return f_workbook;
+  }
+
+  @Override
+  public void close() {
+    f_sheets.clear();
+    try {
+      f_workbook.close();
+    } catch (IOException ex) {
+      throw new RuntimeException("Error closing workbook", ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return f_workbook.toString();
+  }
+
+  /**
+   * Copies the value of a POI cell into a sheet cell
+   */
+  private static void copyValue(Cell cell, SheetCell target) {
+    CellType type = cell.getCellType();
+    if (type == CellType.FORMULA) {
+      // only xlsx files can leave out the result of a formula, xls files always have one
+      target.setFormula(!(cell instanceof XSSFCell) || ((XSSFCell)cell).getCTCell().isSetV());
+      type = cell.getCachedFormulaResultType();
+    }
+
+    switch (type) {
+      case NUMERIC:
+        target.setNumber(cell.getNumericCellValue());
+        break;
+      case STRING:
+        RichTextString richText = cell.getRichStringCellValue();
+        target.setText(richText.getString(), richText instanceof XSSFRichTextString &&
+            StringUtils.isNotBlank(RowWrapper.getSuperScript((XSSFRichTextString)richText)));
+        break;
+      case BOOLEAN:
+        target.setBoolean(cell.getBooleanCellValue());
+        break;
+      case ERROR:
+        target.setError(FormulaError.forInt(cell.getErrorCellValue()).getString());
+        break;
+      default:
+        break;
+    }
+
+    CellStyle style = cell.getCellStyle();
+    target.setDateFormat(style != null && DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString()));
+  }
+
+  /**
+   * One sheet of the POI workbook
+   */
+  private class PoiSheet extends WorkbookSheet {
+    private final Sheet f_sheet;
+
+    PoiSheet(Sheet sheet) {
+      super(sheet.getSheetName(), PoiWorkbook.this.isDate1904());
+      f_sheet = sheet;
+    }
+
+    @Override
+    public SheetRow getRow(int rowIdx) {
+      Row row = f_sheet.getRow(rowIdx);
+      if (row == null) {
+        return null;
+      }
+      SheetRow sheetRow = new SheetRow(this, rowIdx);
+      for (Cell cell : row) {
+        copyValue(cell, sheetRow.addCell(cell.getColumnIndex()));
+      }
+      return sheetRow;
+    }
+
+    @Override
+    public int getFirstRowNum() {
+      return f_sheet.getFirstRowNum();
+    }
+
+    @Override
+    public int getLastRowNum() {
+      return f_sheet.getLastRowNum();
+    }
+
+    @Override
+    String describe() {
+      return "Sheet";
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package org.cpicpgx.util;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+/**
+ * A {@link RowWrapper} that can be moved from row to row instead of making a new wrapper for every row. Get one from
+ * {@link WorkbookWrapper#cursor()} and call {@link RowCursor#moveTo(int)} for each row in a loop.
+ *
+ * Each cell is decoded the first time it's read on a row and the value is kept until the cursor moves, so reading the
+ * same cell as text and then as a number, or reading it again, doesn't go back to the {@link SheetCell}. Decoded values are
+ * kept in arrays indexed by column that are reused for every row, moving the cursor only bumps a counter.
+ *
+ * Cells with a value this doesn't keep (booleans, errors, formulas and dates) are read through {@link RowWrapper} the
+ * same as before, only their text is kept.
+ *
+ * @author Ryan Whaley
+ */
+public class RowCursor extends RowWrapper {
+  private static final byte NONE = 1;
+  private static final byte TEXT = 2;
+  private static final byte NUMBER = 3;
+  private static final byte OTHER = 4;
+
+  private final WorkbookWrapper f_workbook;
+  private int m_rowIdx = -1;
+  // a cell's slots are only valid when its stamp matches the current generation, which goes up every time we move
+  private int m_generation = 1;
+  private int[] m_decodedAt = new int[16];
+  private int[] m_textAt = new int[16];
+  private byte[] m_kinds = new byte[16];
+  private double[] m_numbers = new double[16];
+  private String[] m_texts = new String[16];
+
+  RowCursor(WorkbookWrapper workbook) {
+    super(null, workbook.getFormulaValues());
+    f_workbook = workbook;
+  }
+
+  /**
+   * Moves to the row at the given index in the current sheet of the workbook
+   * @param i the index of the row, 0-based
+   * @return true if there's a row at that index, false if it's past the last row in the sheet
+   */
+  public boolean moveTo(int i) {
+    if (i < 0) {
+      throw new InvalidParameterException("Invalid row index " + i);
+    }
+    if (++m_generation == 0) {
+      Arrays.fill(m_decodedAt, 0);
+      Arrays.fill(m_textAt, 0);
+      m_generation = 1;
+    }
+    if (i > f_workbook.currentSheet.getLastRowNum()) {
+      row = null;
+      m_rowIdx = -1;
+      return false;
+    }
+    row = f_workbook.currentSheet.getRow(i);
+    m_rowIdx = i;
+    return true;
+  }
+
+  /**
+   * Gets the index of the row the cursor is on
+   * @return the 0-based row index, -1 if the cursor isn't on a row
+   */
+  public int getRowIndex() {
+    return m_rowIdx;
+  }
+
+  @Override
+  public String getNullableText(int cellIdx, boolean roundNumerics) {
+    switch (decode(cellIdx)) {
+      case NONE:
+        return null;
+      case TEXT:
+        return m_texts[cellIdx];
+      case NUMBER:
+        if (roundNumerics) {
+          return String.valueOf(Math.round(m_numbers[cellIdx]));
+        }
+        if (m_textAt[cellIdx] != m_generation) {
+          m_texts[cellIdx] = String.valueOf(m_numbers[cellIdx]);
+          m_textAt[cellIdx] = m_generation;
+        }
+        return m_texts[cellIdx];
+      default:
+        if (roundNumerics) {
+          return super.getNullableText(cellIdx, true);
+        }
+        if (m_textAt[cellIdx] != m_generation) {
+          m_texts[cellIdx] = super.getNullableText(cellIdx, false);
+          m_textAt[cellIdx] = m_generation;
+        }
+        return m_texts[cellIdx];
+    }
+  }
+
+  @Override
+  public Long getNullableLong(int cellIdx) {
+    byte kind = decode(cellIdx);
+    if (kind == NUMBER) {
+      return Math.round(m_numbers[cellIdx]);
+    }
+    return row == null ? null : super.getNullableLong(cellIdx);
+  }
+
+  @Override
+  public Double getNullableDouble(int cellIdx) {
+    switch (decode(cellIdx)) {
+      case NUMBER:
+        return m_numbers[cellIdx];
+      case OTHER:
+        return super.getNullableDouble(cellIdx);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Reads the cell at the given index into its slots unless that's already been done on this row
+   * @return the kind of value in the cell
+   */
+  private byte decode(int cellIdx) {
+    if (cellIdx < 0) {
+      throw new RuntimeException("Bad cell index, must be >= 0");
+    }
+    if (cellIdx >= m_kinds.length) {
+      grow(cellIdx + 1);
+    }
+    if (m_decodedAt[cellIdx] == m_generation) {
+      return m_kinds[cellIdx];
+    }
+
+    byte kind;
+    SheetCell cell = row == null ? null : row.getCell(cellIdx);
+    if (cell == null) {
+      kind = NONE;
+    } else {
+      switch (cell.getCellType()) {
+        case BLANK:
+          kind = NONE;
+          break;
+        case STRING:
+          kind = TEXT;
+          m_texts[cellIdx] = stripFootnote(cellIdx);
+          break;
+        case NUMERIC:
+          if (cell.isDateFormatted()) {
+            kind = OTHER;
+          } else {
+            kind = NUMBER;
+            m_numbers[cellIdx] = cell.getNumericCellValue();
+          }
+          break;
+        default:
+          kind = OTHER;
+      }
+    }
+    m_kinds[cellIdx] = kind;
+    m_decodedAt[cellIdx] = m_generation;
+    return kind;
+  }
+
+  private void grow(int size) {
+    int newSize = Math.max(size, m_kinds.length * 2);
+    m_decodedAt = Arrays.copyOf(m_decodedAt, newSize);
+    m_textAt = Arrays.copyOf(m_textAt, newSize);
+    m_kinds = Arrays.copyOf(m_kinds, newSize);
+    m_numbers = Arrays.copyOf(m_numbers, newSize);
+    m_texts = Arrays.copyOf(m_texts, newSize);
+  }
+}
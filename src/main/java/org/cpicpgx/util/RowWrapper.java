@@ -1,34 +1,40 @@
 package org.cpicpgx.util;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellAddress;
+import org.apache.poi.util.LocaleUtil;
 import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 
-import java.text.SimpleDateFormat;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Helper class for handling {@link Row} objects
+ * Helper class for handling {@link SheetRow} objects
  *
  * @author Ryan Whaley
  */
 public class RowWrapper {
   private static final Pattern NUMBER_PATTERN = Pattern.compile("[\\d\\.]+");
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("MM/dd/yy");
+  // workbooks can be read on more than one thread at a time so only immutable formatters and patterns are shared
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yy");
   
-  public Row row;
-  private final FormulaEvaluator formulaEvaluator;
+  public SheetRow row;
+  private final FormulaValues formulaValues;
 
   /**
-   * Constructor. Requires a formula evaluator so we can get a value out of Formula columns
-   * @param row a {@link Row}, possibly null
-   * @param formulaEvaluator a {@link FormulaEvaluator} that comes from the containing workbook
+   * Constructor. Requires the formula values of the workbook so we can get a value out of Formula columns
+   * @param row a {@link SheetRow}, possibly null
+   * @param formulaValues the {@link FormulaValues} of the containing workbook, null to use the values saved in formula 
+   *                      cells
    */
-  RowWrapper(Row row, FormulaEvaluator formulaEvaluator) {
+  RowWrapper(SheetRow row, FormulaValues formulaValues) {
     this.row = row;
-    this.formulaEvaluator = formulaEvaluator;
+    this.formulaValues = formulaValues;
   }
 
   public short getLastCellNum() {
@@ -64,11 +70,7 @@ public class RowWrapper {
     if (text != null) {
       return text;
     } else {
-      Cell cell = this.row.getCell(cellIdx);
-      if (cell == null) {
-        cell = this.row.createCell(cellIdx);
-      }
-      throw new RuntimeException("Found unexpected null value at " + cell.getAddress());
+      throw new RuntimeException("Found unexpected null value at " + new CellAddress(this.row.getRowNum(), cellIdx));
     }
   }
 
@@ -84,15 +86,15 @@ public class RowWrapper {
       throw new RuntimeException("Bad cell index, must be >= 0");
     }
     
-    Cell cell = this.row.getCell(cellIdx);
+    SheetCell cell = this.row.getCell(cellIdx);
     if (cell == null) return null;
     
     switch (cell.getCellType()) {
       case STRING:
         return stripFootnote(cellIdx);
       case NUMERIC:
-        if (DateUtil.isCellDateFormatted(cell)) {
-          return DATE_FORMAT.format(cell.getDateCellValue());
+        if (cell.isDateFormatted()) {
+          return formatDate(cell.getDateCellValue());
         } else {
           double numVal = cell.getNumericCellValue();
           if (!roundNumerics) {
@@ -106,12 +108,12 @@ public class RowWrapper {
       case BLANK:
         return null;
       case FORMULA:
-        CellValue cellValue = formulaEvaluator.evaluate(cell);
+        CellValue cellValue = evaluate(cell);
         switch (cellValue.getCellType()) {
           case STRING:
             return StringUtils.stripToNull(cellValue.getStringValue());
           case NUMERIC:
-            if (DateUtil.isCellDateFormatted(cell)) {
+            if (cell.hasDateFormat() && DateUtil.isValidExcelDate(cellValue.getNumberValue())) {
               return cellValue.getStringValue();
             } else {
               if (roundNumerics) {
@@ -131,6 +133,23 @@ public class RowWrapper {
     }
   }
 
+  /**
+   * Formats a date from a cell, in the time zone POI used to make the {@link Date}
+   */
+  private static String formatDate(Date date) {
+    return DATE_FORMAT.format(date.toInstant().atZone(LocaleUtil.getUserTimeZone().toZoneId()));
+  }
+
+  /**
+   * Gets the value of a formula cell, see {@link FormulaValues}
+   */
+  private CellValue evaluate(SheetCell cell) {
+    if (formulaValues != null) {
+      return formulaValues.get(cell);
+    }
+    return FormulaValues.getSavedValue(cell);
+  }
+
   /**
    * Parses PubMed IDs out of a cell at the given index. Will split semicolon-separated PMID lists and automatically
    * convert PMIDs that are stored as NUMERICs for some reason.
@@ -142,7 +161,7 @@ public class RowWrapper {
       throw new RuntimeException("Bad cell index, must be >= 0");
     }
 
-    Cell cell = this.row.getCell(cellIdx);
+    SheetCell cell = this.row.getCell(cellIdx);
     if (cell == null) return null;
 
     switch (cell.getCellType()) {
@@ -155,7 +174,7 @@ public class RowWrapper {
           return cell.getStringCellValue().split(";");
         }
       case NUMERIC:
-        if (DateUtil.isCellDateFormatted(cell)) {
+        if (cell.isDateFormatted()) {
           throw new RuntimeException(cell.getAddress() + " Type not supported " + cell.getCellType());
         } else {
           return new String[]{String.valueOf(Math.round(cell.getNumericCellValue()))};
@@ -181,7 +200,7 @@ public class RowWrapper {
       throw new RuntimeException("Bad cell index, must be >= 0");
     }
     
-    Cell cell = this.row.getCell(cellIdx);
+    SheetCell cell = this.row.getCell(cellIdx);
     if (cell == null) return null;
     
     switch (cell.getCellType()) {
@@ -197,7 +216,7 @@ public class RowWrapper {
           throw new NumberFormatException("[" + cell.getStringCellValue() + "] is not a valid number in cell " + cell.getAddress());
         }
       case FORMULA:
-        CellValue cellValue = formulaEvaluator.evaluate(cell);
+        CellValue cellValue = evaluate(cell);
         if (cellValue.getCellType() == CellType.NUMERIC) {
           return Math.round(cellValue.getNumberValue());
         }
@@ -218,14 +237,14 @@ public class RowWrapper {
       throw new RuntimeException("Bad cell index, must be >= 0");
     }
     
-    Cell cell = this.row.getCell(cellIdx);
+    SheetCell cell = this.row.getCell(cellIdx);
     if (cell == null) return null;
     
     switch (cell.getCellType()) {
       case NUMERIC:
         return cell.getNumericCellValue();
       case FORMULA:
-        CellValue cellValue = formulaEvaluator.evaluate(cell);
+        CellValue cellValue = evaluate(cell);
         if (cell.getCellType() == CellType.NUMERIC) {
           return cellValue.getNumberValue();
         }
@@ -244,14 +263,14 @@ public class RowWrapper {
    * @throws RuntimeException if the cell is not date-formatted
    */
   public Date getNullableDate(int cellIdx) {
-    Cell cell = this.row.getCell(cellIdx);
+    SheetCell cell = this.row.getCell(cellIdx);
     if (cell == null) return null;
 
     if (cell.getCellType() == CellType.BLANK) {
       return null;
     }
 
-    if (!DateUtil.isCellDateFormatted(cell)) {
+    if (!cell.isDateFormatted()) {
       throw new RuntimeException("Cell is not date formatted " + cell.getAddress());
     }
     
@@ -268,7 +287,7 @@ public class RowWrapper {
   public Date getDate(int cellIdx) {
     Date date = getNullableDate(cellIdx);
     if (date == null) {
-      Cell cell = this.row.getCell(cellIdx);
+      SheetCell cell = this.row.getCell(cellIdx);
       throw new RuntimeException("No date in " + cell.getAddress());
     }
     return date;
@@ -281,16 +300,13 @@ public class RowWrapper {
    */
   String stripFootnote(int cellIdx) {
     if (row == null || row.getCell(cellIdx) == null) return null;
-    
-    RichTextString rts = row.getCell(cellIdx).getRichStringCellValue();
-    int rtsLength = rts.length();
-    if (rts instanceof XSSFRichTextString) {
-      String superScript = getSuperScript((XSSFRichTextString)rts);
-      if (StringUtils.isNotBlank(superScript)) {
-        return StringUtils.stripToNull(StringUtils.substring(row.getCell(cellIdx).getStringCellValue(), 0, rtsLength-1));
-      }
+
+    SheetCell cell = row.getCell(cellIdx);
+    String text = cell.getStringCellValue();
+    if (cell.hasFootnote()) {
+      return StringUtils.stripToNull(StringUtils.substring(text, 0, text.length() - 1));
     }
-    return StringUtils.stripToNull(row.getCell(cellIdx).getStringCellValue());
+    return StringUtils.stripToNull(text);
   }
 
   /**
@@ -300,23 +316,21 @@ public class RowWrapper {
    */
   String getFootnote(int cellIdx) {
     if (row == null || row.getCell(cellIdx) == null) return null;
-    
-    RichTextString rts = row.getCell(cellIdx).getRichStringCellValue();
-    if (rts instanceof XSSFRichTextString) {
-      String superScript = getSuperScript((XSSFRichTextString)rts);
-      if (StringUtils.isNotBlank(superScript)) {
-        return superScript;
-      }
+
+    SheetCell cell = row.getCell(cellIdx);
+    if (cell.hasFootnote()) {
+      String text = cell.getStringCellValue();
+      return text.substring(text.length() - 1);
     }
     return null;
   }
 
   /**
-   * Reads the superscript String from a {@link RichTextString} object. This only applies to XSSF Cells
+   * Reads the superscript String from the rich text of an XSSF cell, sheet sources use this to find footnotes
    * @param cellContent a {@link XSSFRichTextString} representation of cell contents
    * @return the superscript text, null if none exists
    */
-  private static String getSuperScript(XSSFRichTextString cellContent) {
+  static String getSuperScript(XSSFRichTextString cellContent) {
     int lenSuper = cellContent.getLengthOfFormattingRun(cellContent.numFormattingRuns() - 1);
     int iSuper = cellContent.getIndexOfFormattingRun(cellContent.numFormattingRuns() - 1);
     if (lenSuper < 0 || iSuper != cellContent.length() - 1) return null;
@@ -0,0 +1,217 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellAddress;
+
+import java.util.Date;
+
+/**
+ * The value of one cell in a {@link SheetRow}, read out of the workbook file by its {@link SheetSource}. Cells are
+ * read-only once the source has filled them in.
+ *
+ * Formula cells hold the result saved in the file with the formula, use {@link FormulaValues} to get the value of a
+ * formula. Text that ends in a superscript footnote keeps the footnote, {@link RowWrapper#stripFootnote(int)} takes it
+ * off.
+ *
+ * @author Ryan Whaley
+ */
+public final class SheetCell {
+  private final SheetRow f_row;
+  private final int f_colIdx;
+  private CellType m_type = CellType.BLANK;
+  private boolean m_formula = false;
+  private boolean m_savedValue = true;
+  private boolean m_dateFormat = false;
+  private boolean m_footnote = false;
+  private String m_text;
+  private double m_number;
+  private boolean m_bool;
+
+  SheetCell(SheetRow row, int colIdx) {
+    f_row = row;
+    f_colIdx = colIdx;
+  }
+
+  public SheetRow getRow() {
+    return f_row;
+  }
+
+  public int getRowIndex() {
+    return f_row.getRowNum();
+  }
+
+  public int getColumnIndex() {
+    return f_colIdx;
+  }
+
+  public CellAddress getAddress() {
+    return new CellAddress(f_row.getRowNum(), f_colIdx);
+  }
+
+  /**
+   * Gets the type of the cell, {@link CellType#FORMULA} for formulas
+   */
+  public CellType getCellType() {
+    return m_formula ? CellType.FORMULA : m_type;
+  }
+
+  /**
+   * Gets the type of the result saved with a formula
+   * @throws IllegalStateException if this isn't a formula cell
+   */
+  public CellType getCachedFormulaResultType() {
+    if (!m_formula) {
+      throw new IllegalStateException("Only formula cells have cached results " + getAddress());
+    }
+    return m_type;
+  }
+
+  /**
+   * Gets the text of the cell, including any footnote
+   * @return the text, an empty string for a blank cell
+   * @throws IllegalStateException if the cell holds something other than text
+   */
+  public String getStringCellValue() {
+    if (m_type == CellType.BLANK) {
+      return "";
+    }
+    checkType(CellType.STRING);
+    return m_text;
+  }
+
+  /**
+   * @throws IllegalStateException if the cell holds something other than a number
+   */
+  public double getNumericCellValue() {
+    if (m_type == CellType.BLANK) {
+      return 0.0;
+    }
+    checkType(CellType.NUMERIC);
+    return m_number;
+  }
+
+  /**
+   * Gets the number in the cell as a date, in the date system of its workbook
+   * @return the date, null for a blank cell
+   * @throws IllegalStateException if the cell holds something other than a number
+   */
+  public Date getDateCellValue() {
+    if (m_type == CellType.BLANK) {
+      return null;
+    }
+    checkType(CellType.NUMERIC);
+    return DateUtil.getJavaDate(m_number, f_row.getSheet().isDate1904());
+  }
+
+  /**
+   * @throws IllegalStateException if the cell holds something other than a boolean
+   */
+  public boolean getBooleanCellValue() {
+    if (m_type == CellType.BLANK) {
+      return false;
+    }
+    checkType(CellType.BOOLEAN);
+    return m_bool;
+  }
+
+  /**
+   * Whether the cell holds a number that's formatted as a date, the same check as
+   * {@link DateUtil#isCellDateFormatted(org.apache.poi.ss.usermodel.Cell)}
+   */
+  public boolean isDateFormatted() {
+    return m_dateFormat && m_type == CellType.NUMERIC && DateUtil.isValidExcelDate(m_number);
+  }
+
+  /**
+   * Whether the number format of the cell is a date format, no matter what the cell holds
+   */
+  boolean hasDateFormat() {
+    return m_dateFormat;
+  }
+
+  /**
+   * Whether the text of the cell ends in a superscript footnote
+   */
+  boolean hasFootnote() {
+    return m_footnote;
+  }
+
+  /**
+   * Whether the file has a result for this formula, only xlsx files can leave it out
+   */
+  boolean hasSavedValue() {
+    return m_savedValue;
+  }
+
+  /**
+   * Gets the error in the cell, like <code>#DIV/0!</code>
+   */
+  String getErrorText() {
+    checkType(CellType.ERROR);
+    return m_text;
+  }
+
+  void setNumber(double number) {
+    m_type = CellType.NUMERIC;
+    m_number = number;
+  }
+
+  /**
+   * Sets text, a footnote is the last character of the text
+   */
+  void setText(String text, boolean footnote) {
+    m_type = CellType.STRING;
+    m_text = text;
+    m_footnote = footnote && text.length() > 0;
+  }
+
+  void setBoolean(boolean bool) {
+    m_type = CellType.BOOLEAN;
+    m_bool = bool;
+  }
+
+  /**
+   * Sets an error, like <code>#DIV/0!</code>
+   */
+  void setError(String error) {
+    m_type = CellType.ERROR;
+    m_text = error;
+  }
+
+  /**
+   * Marks the cell as a formula, the value set on it is the result saved with the formula
+   * @param savedValue false if the file has no result for the formula
+   */
+  void setFormula(boolean savedValue) {
+    m_formula = true;
+    m_savedValue = savedValue;
+  }
+
+  /**
+   * Sets whether the number format of the cell is a date format
+   */
+  void setDateFormat(boolean dateFormat) {
+    m_dateFormat = dateFormat;
+  }
+
+  private void checkType(CellType expected) {
+    if (m_type != expected) {
+      throw new IllegalStateException("Cannot get a " + expected + " value from a " + m_type + " cell " + getAddress());
+    }
+  }
+
+  @Override
+  public String toString() {
+    switch (m_type) {
+      case NUMERIC:
+        return String.valueOf(m_number);
+      case BOOLEAN:
+        return m_bool ? "TRUE" : "FALSE";
+      case BLANK:
+        return "";
+      default:
+        return m_text;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.cpicpgx.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A row of a {@link WorkbookSheet} along with all its cells. Cells are kept in an array indexed by column so looking
+ * one up is just an array read.
+ *
+ * @author Ryan Whaley
+ */
+public final class SheetRow implements Iterable<SheetCell> {
+  private static final SheetCell[] sf_noCells = new SheetCell[0];
+
+  private final WorkbookSheet f_sheet;
+  private final int f_rowIdx;
+  private SheetCell[] m_cells = sf_noCells;
+  private int m_firstCol = -1;
+  private int m_cellCount = 0;
+
+  SheetRow(WorkbookSheet sheet, int rowIdx) {
+    f_sheet = sheet;
+    f_rowIdx = rowIdx;
+  }
+
+  public WorkbookSheet getSheet() {
+    return f_sheet;
+  }
+
+  /**
+   * @return the 0-based index of this row
+   */
+  public int getRowNum() {
+    return f_rowIdx;
+  }
+
+  /**
+   * Gets the cell at the given column
+   * @param colIdx a 0-based column index
+   * @return the cell, null if the row has no cell there
+   */
+  public SheetCell getCell(int colIdx) {
+    return colIdx >= 0 && colIdx < m_cells.length ? m_cells[colIdx] : null;
+  }
+
+  /**
+   * @return the 0-based index of the first cell in the row, -1 if the row has no cells
+   */
+  public short getFirstCellNum() {
+    return (short)m_firstCol;
+  }
+
+  /**
+   * @return the index of the last cell in the row PLUS ONE, the same as POI, -1 if the row has no cells
+   */
+  public short getLastCellNum() {
+    return (short)(m_cellCount == 0 ? -1 : m_cells.length);
+  }
+
+  public int getPhysicalNumberOfCells() {
+    return m_cellCount;
+  }
+
+  /**
+   * Adds a blank cell to this row, set its value with one of the setters
+   * @param colIdx the 0-based column index of the cell
+   * @return the new cell
+   */
+  SheetCell addCell(int colIdx) {
+    if (colIdx >= m_cells.length) {
+      m_cells = Arrays.copyOf(m_cells, colIdx + 1);
+    }
+    if (m_cells[colIdx] == null) {
+      m_cellCount += 1;
+    }
+    SheetCell cell = new SheetCell(this, colIdx);
+    m_cells[colIdx] = cell;
+    if (m_firstCol < 0 || colIdx < m_firstCol) {
+      m_firstCol = colIdx;
+    }
+    return cell;
+  }
+
+  /**
+   * Iterates over the cells in the row in column order, skipping columns that have no cell
+   */
+  @Override
+  public Iterator<SheetCell> iterator() {
+    return new Iterator<SheetCell>() {
+      private int next = nextCol(0);
+
+      @Override
+      public boolean hasNext() {
+        return next < m_cells.length;
+      }
+
+      @Override
+      public SheetCell next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        SheetCell cell = m_cells[next];
+        next = nextCol(next + 1);
+        return cell;
+      }
+    };
+  }
+
+  private int nextCol(int from) {
+    int col = from;
+    while (col < m_cells.length && m_cells[col] == null) {
+      col += 1;
+    }
+    return col;
+  }
+
+  @Override
+  public String toString() {
+    return "Row " + (f_rowIdx + 1) + " of " + f_sheet;
+  }
+}
@@ -0,0 +1,68 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.ss.usermodel.Workbook;
+
+import java.io.Closeable;
+
+/**
+ * Where a {@link WorkbookWrapper} gets its sheets from. Sheets are handed out as {@link WorkbookSheet}s so
+ * {@link RowWrapper} reads them the same way no matter where they come from.
+ *
+ * @author Ryan Whaley
+ */
+interface SheetSource extends Closeable {
+
+  int getNumberOfSheets();
+
+  /**
+   * Gets the index of the sheet with the given name, ignoring case like POI does
+   * @param name a sheet name
+   * @return the 0-based index of the sheet, -1 if there's no sheet with that name
+   */
+  int getSheetIndex(String name);
+
+  /**
+   * Gets a sheet, nothing in it should be read until a row is asked for
+   * @param i the 0-based index of the sheet
+   * @return the sheet
+   */
+  WorkbookSheet getSheetAt(int i);
+
+  /**
+   * Whether the rows of a sheet can only be read from top to bottom
+   * @return true if asking for a row before the last one read is an error
+   */
+  boolean isForwardOnly();
+
+  /**
+   * Whether dates in the workbook count days from 1904 instead of 1900
+   * @return true for the 1904 date system
+   */
+  boolean isDate1904();
+
+  /**
+   * Whether the results saved with formulas can be used. They can't when the file asks to be recalculated when it's 
+   * opened or was last saved by POI, which saves a 0 for formulas it never evaluated.
+   * @return true if saved formula results can be used
+   */
+  boolean hasSavedResults();
+
+  /**
+   * Whether formulas in the workbook can be evaluated, when they can't every formula gives the value it was read with
+   * @return true if {@link SheetSource#getFormulaWorkbook()} gives a workbook
+   */
+  boolean canEvaluate();
+
+  /**
+   * Gets a POI workbook for the same file that formulas can be evaluated in, see {@link FormulaValues}. It's loaded the 
+   * first time it's asked for and closed along with this source.
+   * @return the workbook, null if formulas can't be evaluated
+   */
+  Workbook getFormulaWorkbook();
+
+  /**
+   * Stops reading and releases the file, doesn't write anything back to it
+   */
+  @Override
+  void close();
+}
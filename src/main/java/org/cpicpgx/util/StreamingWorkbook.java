@@ -0,0 +1,596 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Reads an Excel (xlsx) workbook one row at a time with the XSSF event API instead of building every cell of every
+ * sheet in memory.
+ *
+ * Sheet XML is pulled from the package a row at a time as rows are asked for, so only the shared strings, the styles
+ * and the current row are held in memory. Each row is read straight into a {@link SheetRow} so {@link WorkbookWrapper} 
+ * and {@link RowWrapper} work the same way they do with a full workbook, including footnote superscripts in shared 
+ * strings.
+ *
+ * Rows can only be read going forward, the most recently read row can be asked for again but asking for an earlier
+ * row throws an {@link IllegalStateException}. Opening a sheet again starts reading it from the top.
+ *
+ * Formula cells give the result Excel saved in the file. A formula that has to be evaluated, because it has no saved
+ * result or the file was last saved by POI, is evaluated in a full POI workbook loaded from the same package the first 
+ * time it's needed, see {@link FormulaValues}.
+ *
+ * Workbooks can also be opened to load sheets instead, their rows can be read in any order. A loaded sheet is read the
+ * first time one of its rows is asked for and then kept, so sheets that never get read are never parsed.
+ *
+ * @author Ryan Whaley
+ */
+class StreamingWorkbook implements SheetSource {
+  private static final XMLInputFactory sf_xmlInputFactory = XMLInputFactory.newInstance();
+  static {
+    sf_xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    sf_xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private final OPCPackage f_package;
+  private final boolean f_load;
+  private final XSSFReader f_reader;
+  private final SharedStringsTable f_sharedStrings;
+  private final StylesTable f_styles;
+  private final List<String> f_sheetNames = new ArrayList<>();
+  private final List<String> f_sheetRelIds = new ArrayList<>();
+  private final Map<Integer, SheetCursor> f_loadedSheets = new HashMap<>();
+  // whether each cell style has a date format: 0 not checked yet, 1 no, 2 yes
+  private byte[] m_dateStyles;
+  private boolean m_date1904 = false;
+  private boolean m_fullCalcOnLoad = false;
+  private String m_application;
+  private XSSFWorkbook m_formulaWorkbook;
+  private SheetCursor m_openCursor;
+
+  /**
+   * Opens an xlsx file read-only, only the parts of the package that get read are unzipped
+   * @param path the path to an xlsx file
+   * @param load true to load sheets so their rows can be read in any order, false to stream them forward-only
+   * @return an opened workbook, close it to release the file
+   * @throws IOException can occur when the file can't be read
+   */
+  static StreamingWorkbook open(Path path, boolean load) throws IOException {
+    try {
+      return open(OPCPackage.open(path.toFile(), PackageAccess.READ), load);
+    } catch (InvalidFormatException ex) {
+      throw new IOException("Not a valid xlsx file: " + path, ex);
+    }
+  }
+
+  /**
+   * Opens an xlsx file from a stream, the whole package gets copied into memory
+   * @param in an {@link InputStream} for an xlsx file
+   * @param load true to load sheets so their rows can be read in any order, false to stream them forward-only
+   * @return an opened workbook
+   * @throws IOException can occur when the stream can't be read
+   */
+  static StreamingWorkbook open(InputStream in, boolean load) throws IOException {
+    try {
+      return open(OPCPackage.open(in), load);
+    } catch (InvalidFormatException ex) {
+      throw new IOException("Not a valid xlsx file", ex);
+    }
+  }
+
+  private static StreamingWorkbook open(OPCPackage pkg, boolean load) throws IOException {
+    try {
+      return new StreamingWorkbook(pkg, load);
+    } catch (IOException | RuntimeException ex) {
+      pkg.revert();
+      throw ex;
+    }
+  }
+
+  /**
+   * Constructor. Reads the workbook index, shared strings and styles but none of the sheets.
+   * @param pkg an opened xlsx package, closed along with this workbook
+   * @param load true to load sheets so their rows can be read in any order, false to stream them forward-only
+   * @throws IOException can occur when the package can't be read
+   */
+  private StreamingWorkbook(OPCPackage pkg, boolean load) throws IOException {
+    f_package = pkg;
+    f_load = load;
+    try {
+      f_reader = new XSSFReader(pkg);
+      f_sharedStrings = f_reader.getSharedStringsTable();
+      f_styles = f_reader.getStylesTable();
+      try (InputStream in = f_reader.getWorkbookData()) {
+        readWorkbookIndex(in);
+      }
+      m_application = readApplication(pkg);
+    } catch (OpenXML4JException | XMLStreamException ex) {
+      throw new IOException("Couldn't read workbook", ex);
+    }
+  }
+
+  /**
+   * Reads the sheet names and their part IDs, in workbook order, and the date system out of workbook.xml
+   */
+  private void readWorkbookIndex(InputStream in) throws XMLStreamException {
+    XMLStreamReader reader = sf_xmlInputFactory.createXMLStreamReader(in);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+
+        if (reader.getLocalName().equals("workbookPr")) {
+          String date1904 = reader.getAttributeValue(null, "date1904");
+          m_date1904 = "1".equals(date1904) || "true".equalsIgnoreCase(date1904);
+        } else if (reader.getLocalName().equals("calcPr")) {
+          String fullCalcOnLoad = reader.getAttributeValue(null, "fullCalcOnLoad");
+          m_fullCalcOnLoad = "1".equals(fullCalcOnLoad) || "true".equalsIgnoreCase(fullCalcOnLoad);
+        } else if (reader.getLocalName().equals("sheet")) {
+          f_sheetNames.add(reader.getAttributeValue(null, "name"));
+          for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (reader.getAttributeLocalName(i).equals("id") && !reader.getAttributeNamespace(i).isEmpty()) {
+              f_sheetRelIds.add(reader.getAttributeValue(i));
+            }
+          }
+          if (f_sheetRelIds.size() != f_sheetNames.size()) {
+            throw new XMLStreamException("No part ID for sheet " + reader.getAttributeValue(null, "name"));
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads the name of the application that last saved the file out of the extended properties, docProps/app.xml
+   * @return the application name, null if the file doesn't say
+   */
+  private static String readApplication(OPCPackage pkg) throws IOException, XMLStreamException {
+    PackageRelationshipCollection rels = pkg.getRelationshipsByType(PackageRelationshipTypes.EXTENDED_PROPERTIES);
+    PackagePart part = rels.size() > 0 ? pkg.getPart(rels.getRelationship(0)) : null;
+    if (part == null) {
+      return null;
+    }
+    try (InputStream in = part.getInputStream()) {
+      XMLStreamReader reader = sf_xmlInputFactory.createXMLStreamReader(in);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("Application")) {
+            return reader.getElementText();
+          }
+        }
+        return null;
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Override
+  public int getNumberOfSheets() {
+    return f_sheetNames.size();
+  }
+
+  @Override
+  public int getSheetIndex(String name) {
+    for (int i = 0; i < f_sheetNames.size(); i++) {
+      if (f_sheetNames.get(i).equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets a sheet. Nothing is read until a row is asked for. A streamed sheet is read from the top each time it's asked
+   * for, a loaded sheet is read whole the first time and kept.
+   * @param i the 0-based index of the sheet
+   * @return the sheet
+   */
+  @Override
+  public WorkbookSheet getSheetAt(int i) {
+    if (f_load) {
+      return f_loadedSheets.computeIfAbsent(i, idx -> new SheetCursor(idx, true));
+    }
+    return new SheetCursor(i, false);
+  }
+
+  @Override
+  public boolean isForwardOnly() {
+    return !f_load;
+  }
+
+  @Override
+  public boolean isDate1904() {
+    return m_date1904;
+  }
+
+  @Override
+  public boolean canEvaluate() {
+    return true;
+  }
+
+  @Override
+  public boolean hasSavedResults() {
+    return !m_fullCalcOnLoad && (m_application == null || !m_application.startsWith(FormulaValues.POI_APPLICATION));
+  }
+
+  /**
+   * Loads the whole workbook out of the package the first time it's asked for, this takes as much memory as opening
+   * the workbook with POI
+   */
+  @Override
+  public Workbook getFormulaWorkbook() {
+    if (m_formulaWorkbook == null) {
+      try {
+        m_formulaWorkbook = new XSSFWorkbook(f_package);
+      } catch (IOException ex) {
+        throw new RuntimeException("Couldn't load workbook to evaluate formulas", ex);
+      }
+    }
+    return m_formulaWorkbook;
+  }
+
+  /**
+   * Stops reading whatever sheet is open and closes the package without saving anything back to it
+   */
+  @Override
+  public void close() {
+    if (m_openCursor != null) {
+      m_openCursor.close();
+    }
+    f_loadedSheets.clear();
+    m_formulaWorkbook = null;
+    f_package.revert();
+  }
+
+  /**
+   * Only one sheet is read at a time, opening a sheet stops reading the one that was open before it
+   */
+  private void opening(SheetCursor cursor) {
+    if (m_openCursor != null && m_openCursor != cursor) {
+      m_openCursor.close();
+    }
+    m_openCursor = cursor;
+  }
+
+  /**
+   * Whether the cell style at the given index has a date format, each style is only checked once
+   */
+  private boolean isDateStyle(int styleIdx) {
+    if (f_styles == null || styleIdx >= f_styles.getNumCellStyles()) {
+      return false;
+    }
+    if (m_dateStyles == null) {
+      m_dateStyles = new byte[f_styles.getNumCellStyles()];
+    }
+    if (m_dateStyles[styleIdx] == 0) {
+      CellStyle style = f_styles.getStyleAt(styleIdx);
+      m_dateStyles[styleIdx] = (byte)(DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString()) ? 2 : 1);
+    }
+    return m_dateStyles[styleIdx] == 2;
+  }
+
+  private InputStream openSheetData(int sheetIdx) throws IOException {
+    try {
+      return f_reader.getSheet(f_sheetRelIds.get(sheetIdx));
+    } catch (OpenXML4JException ex) {
+      throw new IOException("Couldn't open sheet " + f_sheetNames.get(sheetIdx), ex);
+    }
+  }
+
+  /**
+   * Keeps the read position in one sheet, or all the rows of the sheet once it's loaded
+   */
+  private class SheetCursor extends WorkbookSheet {
+    private final int f_sheetIdx;
+    private final boolean f_load;
+    private InputStream m_in;
+    private XMLStreamReader m_reader;
+    private boolean m_done = false;
+    private int m_lastRowRead = -1;
+    private int m_lastAsked = -1;
+    private SheetRow m_current;
+    private SheetRow m_next;
+    private int[] m_rowRange;
+    private TreeMap<Integer, SheetRow> m_rows;
+
+    SheetCursor(int sheetIdx, boolean load) {
+      super(f_sheetNames.get(sheetIdx), m_date1904);
+      f_sheetIdx = sheetIdx;
+      f_load = load;
+    }
+
+    @Override
+    public int getFirstRowNum() {
+      return getRowRange()[0];
+    }
+
+    @Override
+    public int getLastRowNum() {
+      return getRowRange()[1];
+    }
+
+    @Override
+    String describe() {
+      return f_load ? "Loaded sheet" : "Streamed sheet";
+    }
+
+    /**
+     * Gets the row at the given index, reading forward as far as needed
+     * @param rowIdx a 0-based row index
+     * @return the row, null if the sheet has no row at that index
+     */
+    @Override
+    public SheetRow getRow(int rowIdx) {
+      if (f_load) {
+        return loadRows().get(rowIdx);
+      }
+      if (m_current != null && m_current.getRowNum() == rowIdx) {
+        return m_current;
+      }
+      if (rowIdx < m_lastAsked) {
+        throw new IllegalStateException(String.format(
+            "Can't go back to row %d of sheet %s, row %d has already been read", rowIdx + 1, getSheetName(), m_lastAsked + 1));
+      }
+      m_lastAsked = rowIdx;
+
+      try {
+        while (m_next == null || m_next.getRowNum() < rowIdx) {
+          m_next = readNextRow();
+          if (m_next == null) {
+            return null;
+          }
+        }
+      } catch (IOException | XMLStreamException ex) {
+        throw new RuntimeException("Error reading sheet " + getSheetName(), ex);
+      }
+
+      if (m_next.getRowNum() == rowIdx) {
+        m_current = m_next;
+        m_next = null;
+        return m_current;
+      }
+      return null;
+    }
+
+    /**
+     * Gets the first and last row indexes the way POI does.
+     * This takes a quick pass over the sheet that only looks at row numbers, the result is kept for later calls.
+     */
+    int[] getRowRange() {
+      if (m_rowRange == null && f_load) {
+        TreeMap<Integer, SheetRow> rows = loadRows();
+        m_rowRange = rows.isEmpty() ? new int[]{0, 0} : new int[]{rows.firstKey(), rows.lastKey()};
+      }
+      if (m_rowRange == null) {
+        try (InputStream in = openSheetData(f_sheetIdx)) {
+          XMLStreamReader reader = sf_xmlInputFactory.createXMLStreamReader(in);
+          try {
+            int first = -1;
+            int last = -1;
+            while (reader.hasNext()) {
+              int event = reader.next();
+              if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("row")) {
+                String r = reader.getAttributeValue(null, "r");
+                last = r != null ? Integer.parseInt(r) - 1 : last + 1;
+                if (first < 0) {
+                  first = last;
+                }
+              } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("sheetData")) {
+                break;
+              }
+            }
+            m_rowRange = new int[]{Math.max(first, 0), Math.max(last, 0)};
+          } finally {
+            reader.close();
+          }
+        } catch (IOException | XMLStreamException ex) {
+          throw new RuntimeException("Error reading sheet " + getSheetName(), ex);
+        }
+      }
+      return m_rowRange;
+    }
+
+    /**
+     * Reads every row of the sheet the first time it's called
+     */
+    private TreeMap<Integer, SheetRow> loadRows() {
+      if (m_rows == null) {
+        TreeMap<Integer, SheetRow> rows = new TreeMap<>();
+        try {
+          for (SheetRow row = readNextRow(); row != null; row = readNextRow()) {
+            rows.put(row.getRowNum(), row);
+          }
+        } catch (IOException | XMLStreamException ex) {
+          throw new RuntimeException("Error reading sheet " + getSheetName(), ex);
+        } finally {
+          close();
+        }
+        m_rows = rows;
+      }
+      return m_rows;
+    }
+
+    private SheetRow readNextRow() throws IOException, XMLStreamException {
+      if (m_done) {
+        return null;
+      }
+      if (m_reader == null) {
+        opening(this);
+        m_in = openSheetData(f_sheetIdx);
+        m_reader = sf_xmlInputFactory.createXMLStreamReader(m_in);
+      }
+
+      while (m_reader.hasNext()) {
+        int event = m_reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT && m_reader.getLocalName().equals("row")) {
+          String r = m_reader.getAttributeValue(null, "r");
+          m_lastRowRead = r != null ? Integer.parseInt(r) - 1 : m_lastRowRead + 1;
+          return readRow(m_lastRowRead);
+        } else if (event == XMLStreamConstants.END_ELEMENT && m_reader.getLocalName().equals("sheetData")) {
+          break;
+        }
+      }
+      closeStream();
+      m_done = true;
+      return null;
+    }
+
+    /**
+     * Reads the cells of the row the reader is on, up to the end of the row element
+     */
+    private SheetRow readRow(int rowIdx) throws XMLStreamException {
+      SheetRow row = new SheetRow(this, rowIdx);
+      int colIdx = -1;
+      while (m_reader.hasNext()) {
+        int event = m_reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT && m_reader.getLocalName().equals("c")) {
+          String r = m_reader.getAttributeValue(null, "r");
+          colIdx = r != null ? new CellReference(r).getCol() : colIdx + 1;
+          readCell(row.addCell(colIdx));
+        } else if (event == XMLStreamConstants.END_ELEMENT && m_reader.getLocalName().equals("row")) {
+          break;
+        }
+      }
+      return row;
+    }
+
+    /**
+     * Reads the value of the cell the reader is on into the given cell, up to the end of the cell element
+     */
+    private void readCell(SheetCell cell) throws XMLStreamException {
+      String type = m_reader.getAttributeValue(null, "t");
+      String styleIdx = m_reader.getAttributeValue(null, "s");
+      boolean formula = false;
+      String value = null;
+      StringBuilder inlineText = null;
+
+      while (m_reader.hasNext()) {
+        int event = m_reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          switch (m_reader.getLocalName()) {
+            case "f":
+              formula = true;
+              skipElement();
+              break;
+            case "v":
+              value = m_reader.getElementText();
+              break;
+            case "is":
+              inlineText = new StringBuilder();
+              break;
+            case "t":
+              if (inlineText != null) {
+                inlineText.append(m_reader.getElementText());
+              }
+              break;
+            case "rPh":
+              // phonetic hints aren't part of the text
+              skipElement();
+              break;
+            default:
+              break;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT && m_reader.getLocalName().equals("c")) {
+          break;
+        }
+      }
+
+      if (formula) {
+        cell.setFormula(value != null);
+      }
+      cell.setDateFormat(isDateStyle(styleIdx != null ? Integer.parseInt(styleIdx) : 0));
+      if (formula && value == null && !"str".equals(type)) {
+        // no saved result, the cell stays blank
+        return;
+      }
+
+      if (type == null || type.equals("n")) {
+        if (value != null && !value.isEmpty()) {
+          cell.setNumber(Double.parseDouble(value));
+        }
+      } else if (type.equals("s")) {
+        RichTextString text = f_sharedStrings.getItemAt(Integer.parseInt(value));
+        cell.setText(text.getString(), text instanceof XSSFRichTextString &&
+            StringUtils.isNotBlank(RowWrapper.getSuperScript((XSSFRichTextString)text)));
+      } else if (type.equals("inlineStr")) {
+        cell.setText(inlineText != null ? inlineText.toString() : "", false);
+      } else if (type.equals("b")) {
+        cell.setBoolean("1".equals(value) || "true".equalsIgnoreCase(value));
+      } else if (type.equals("e")) {
+        cell.setError(value);
+      } else {
+        // "str" for formula strings and "d" for ISO dates
+        cell.setText(value != null ? value : "", false);
+      }
+    }
+
+    private void closeStream() {
+      try {
+        if (m_reader != null) {
+          m_reader.close();
+        }
+        if (m_in != null) {
+          m_in.close();
+        }
+      } catch (IOException | XMLStreamException ex) {
+        throw new RuntimeException("Error closing sheet " + getSheetName(), ex);
+      } finally {
+        m_reader = null;
+        m_in = null;
+      }
+    }
+
+    private void skipElement() throws XMLStreamException {
+      int depth = 1;
+      while (depth > 0 && m_reader.hasNext()) {
+        int event = m_reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth += 1;
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth -= 1;
+        }
+      }
+    }
+
+    /**
+     * Stops reading this sheet, it's read from the top again if more rows are asked for
+     */
+    void close() {
+      try {
+        closeStream();
+      } finally {
+        m_done = false;
+        m_lastRowRead = -1;
+        m_lastAsked = -1;
+        m_current = null;
+        m_next = null;
+      }
+    }
+  }
+}
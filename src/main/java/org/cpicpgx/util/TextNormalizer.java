@@ -0,0 +1,150 @@
+package org.cpicpgx.util;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Cleans up text read out of cells. These are called for every cell of every row an importer reads, so none of them
+ * compile a regular expression. Each one scans the text once and gives back the same String when there's nothing to
+ * change.
+ *
+ * Normalized values like phenotypes and activity scores repeat on almost every row of a file. Pass them through
+ * {@link TextNormalizer#intern(String)} so all those rows share one String instead of each holding its own copy.
+ *
+ * @author Ryan Whaley
+ */
+public final class TextNormalizer {
+  private static final Interner<String> sf_interner = Interners.newWeakInterner();
+
+  private TextNormalizer() {}
+
+  /**
+   * Removes every occurrence of a gene symbol from the text along with any whitespace that follows it, the same as
+   * <code>text.replaceAll(gene + "\\s*", "")</code>
+   * @param text the text to remove the gene from
+   * @param gene a gene symbol
+   * @param spaceRequired true to only remove the symbol when whitespace follows it, the same as
+   *                      <code>text.replaceAll(gene + "\\s+", "")</code>
+   * @return the text without the gene symbol
+   */
+  @Nonnull
+  public static String removeGene(@Nonnull String text, @Nonnull String gene, boolean spaceRequired) {
+    if (gene.isEmpty()) {
+      return text;
+    }
+    int idx = text.indexOf(gene);
+    if (idx < 0) {
+      return text;
+    }
+
+    StringBuilder builder = null;
+    int copiedTo = 0;
+    while (idx >= 0) {
+      int end = idx + gene.length();
+      while (end < text.length() && isSpace(text.charAt(end))) {
+        end += 1;
+      }
+      if (spaceRequired && end == idx + gene.length()) {
+        idx = text.indexOf(gene, idx + 1);
+        continue;
+      }
+      if (builder == null) {
+        builder = new StringBuilder(text.length());
+      }
+      builder.append(text, copiedTo, idx);
+      copiedTo = end;
+      idx = text.indexOf(gene, end);
+    }
+    if (builder == null) {
+      return text;
+    }
+    return builder.append(text, copiedTo, text.length()).toString();
+  }
+
+  /**
+   * Replaces each run of whitespace with a single space, the same as <code>text.replaceAll("\\s+", " ")</code>
+   * @param text the text to collapse
+   * @return the text with single spaces
+   */
+  @Nonnull
+  public static String collapseWhitespace(@Nonnull String text) {
+    StringBuilder builder = null;
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (!isSpace(c)) {
+        if (builder != null) {
+          builder.append(c);
+        }
+        i += 1;
+        continue;
+      }
+      int end = i + 1;
+      while (end < text.length() && isSpace(text.charAt(end))) {
+        end += 1;
+      }
+      if (builder == null && (c != ' ' || end - i > 1)) {
+        builder = new StringBuilder(text.length()).append(text, 0, i);
+      }
+      if (builder != null) {
+        builder.append(' ');
+      }
+      i = end;
+    }
+    return builder == null ? text : builder.toString();
+  }
+
+  /**
+   * Trims ALL visible whitespace from both ends of the text, including the non-breaking spaces that Excel loves to
+   * introduce
+   * @param text some text, possibly null
+   * @return the text without whitespace at the beginning or end, null if nothing is left
+   */
+  @Nullable
+  public static String trim(@Nullable String text) {
+    if (text == null) {
+      return null;
+    }
+    int start = 0;
+    int end = text.length();
+    while (start < end && isBlank(text.charAt(start))) {
+      start += 1;
+    }
+    while (end > start && isBlank(text.charAt(end - 1))) {
+      end -= 1;
+    }
+    if (start == end) {
+      return null;
+    }
+    return text.substring(start, end);
+  }
+
+  /**
+   * Gets the shared copy of a String that many rows have the same value for
+   * @param text some text, possibly null
+   * @return a String equal to the given one that's shared by everything that interned it
+   */
+  @Nullable
+  public static String intern(@Nullable String text) {
+    return text == null ? null : sf_interner.intern(text);
+  }
+
+  /**
+   * Whether the character is whitespace as <code>\s</code> matches it in a regular expression
+   */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Whether the character is whitespace of any kind, horizontal space as <code>\h</code> matches it or anything
+   * {@link StringUtils#strip(String)} removes
+   */
+  private static boolean isBlank(char c) {
+    return Character.isWhitespace(c) || Character.getType(c) == Character.SPACE_SEPARATOR || c == '\u180E';
+  }
+}
@@ -0,0 +1,480 @@
+package org.cpicpgx.util;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A decoded copy of a workbook kept in a local cache directory so unchanged files don't have to be parsed by POI again.
+ * The cache is turned on by setting the <code>CPIC_WORKBOOK_CACHE</code> environment variable to a directory.
+ *
+ * Cache files are named for the SHA-256 hash of the workbook they were decoded from, so a changed workbook gets a new
+ * cache file and an unchanged workbook is found no matter where it's read from. Each cache file holds every cell of
+ * every sheet: its type, its text or number, whether it's date-formatted, whether its text ends in a superscript
+ * footnote and, for formulas, the result. The cache file is memory-mapped and rows are decoded as they're asked for, see
+ * {@link WorkbookSheet}.
+ * Old cache files aren't removed, clear the directory to reclaim the space.
+ *
+ * Formulas give the value they were decoded with. To evaluate them again the workbook they were decoded from is opened
+ * with POI, the first time a formula is asked for, and kept open until the cache is closed.
+ *
+ * The format:
+ * <pre>
+ *   int magic, int version, byte date1904
+ *   int sheet count, then for each sheet: int name string index, int offset of the sheet
+ *   int string count, then for each string: int byte length, UTF-8 bytes
+ *   for each sheet: int first row, int last row, int row count, row count ints of row numbers, row count ints of row
+ *     offsets from the start of the sheet, then for each row: short cell count, then for each cell: short column,
+ *     byte flags, and a double for numbers, an int string index for text and errors, or a byte for booleans
+ * </pre>
+ *
+ * @author Ryan Whaley
+ */
+final class WorkbookCache implements SheetSource {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final Path sf_cacheDir = StringUtils.isBlank(System.getenv("CPIC_WORKBOOK_CACHE")) ? null : Paths.get(System.getenv("CPIC_WORKBOOK_CACHE"));
+  private static final int sf_magic = 0x43504943;
+  // version 1 files could hold blanks for formulas that had no saved result
+  private static final int sf_version = 2;
+  private static final String sf_suffix = ".wbc";
+
+  private static final int sf_typeMask = 0x07;
+  private static final int sf_formulaFlag = 0x08;
+  private static final int sf_dateFlag = 0x10;
+  private static final int sf_footnoteFlag = 0x20;
+  private static final CellType[] sf_types = {CellType.BLANK, CellType.NUMERIC, CellType.STRING, CellType.BOOLEAN, CellType.ERROR};
+
+  private final Path f_source;
+  private final ByteBuffer f_buffer;
+  private final boolean f_date1904;
+  private final String[] f_sheetNames;
+  private final int[] f_sheetOffsets;
+  private final int[] f_stringOffsets;
+  private final String[] f_strings;
+  private Workbook m_formulaWorkbook;
+
+  /**
+   * Whether workbooks should be read through the cache
+   * @return true if the cache directory is set
+   */
+  static boolean isEnabled() {
+    return sf_cacheDir != null;
+  }
+
+  /**
+   * Opens the cached copy of the given workbook, decoding the workbook into the cache first if it isn't there yet
+   * @param source the path to an excel file
+   * @return the cached workbook
+   * @throws IOException can occur when reading the workbook or the cache
+   */
+  static WorkbookCache open(Path source) throws IOException {
+    return open(source, sf_cacheDir);
+  }
+
+  /**
+   * Opens the cached copy of the given workbook from the given cache directory
+   * @param source the path to an excel file
+   * @param cacheDir the directory cache files are kept in
+   * @return the cached workbook
+   * @throws IOException can occur when reading the workbook or the cache
+   */
+  static WorkbookCache open(Path source, Path cacheDir) throws IOException {
+    String hash = com.google.common.io.Files.asByteSource(source.toFile()).hash(Hashing.sha256()).toString();
+    Path cached = cacheDir.resolve(hash + sf_suffix);
+    if (Files.isRegularFile(cached)) {
+      try {
+        WorkbookCache cache = new WorkbookCache(source, cached);
+        sf_logger.debug("Reading {} from cache", source.getFileName());
+        return cache;
+      } catch (IOException ex) {
+        sf_logger.warn("Couldn't read cached copy of {}, decoding it again: {}", source.getFileName(), ex.getMessage());
+      }
+    }
+    write(source, cached);
+    return new WorkbookCache(source, cached);
+  }
+
+  /**
+   * Decodes every sheet of the given workbook and writes them to a cache file. The file is written under a temporary
+   * name then moved into place so nothing ever reads a half-written file.
+   * @param source the path to an excel file
+   * @param target the path of the cache file to write
+   * @throws IOException can occur when reading the workbook or writing the cache file
+   */
+  static void write(Path source, Path target) throws IOException {
+    Files.createDirectories(target.toAbsolutePath().getParent());
+    Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      try (WorkbookWrapper workbook = WorkbookWrapper.openUncached(source);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        new Encoder(workbook).writeTo(out);
+      }
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      sf_logger.debug("Cached {} as {}", source.getFileName(), target.getFileName());
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private WorkbookCache(Path source, Path path) throws IOException {
+    f_source = source;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      f_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      if (f_buffer.getInt(0) != sf_magic || f_buffer.getInt(4) != sf_version) {
+        throw new IOException("Not a workbook cache file of version " + sf_version + ": " + path);
+      }
+      f_date1904 = f_buffer.get(8) != 0;
+
+      int sheetCount = f_buffer.getInt(9);
+      int stringTable = 13 + sheetCount * 8;
+      int stringCount = f_buffer.getInt(stringTable);
+      f_stringOffsets = new int[stringCount];
+      f_strings = new String[stringCount];
+      for (int i = 0, pos = stringTable + 4; i < stringCount; i++) {
+        f_stringOffsets[i] = pos;
+        pos += 4 + f_buffer.getInt(pos);
+      }
+
+      f_sheetNames = new String[sheetCount];
+      f_sheetOffsets = new int[sheetCount];
+      for (int i = 0; i < sheetCount; i++) {
+        f_sheetNames[i] = getString(f_buffer.getInt(13 + i * 8));
+        f_sheetOffsets[i] = f_buffer.getInt(17 + i * 8);
+      }
+    } catch (IndexOutOfBoundsException ex) {
+      throw new IOException("Truncated workbook cache file " + path, ex);
+    }
+  }
+
+  @Override
+  public int getNumberOfSheets() {
+    return f_sheetNames.length;
+  }
+
+  @Override
+  public int getSheetIndex(String name) {
+    for (int i = 0; i < f_sheetNames.length; i++) {
+      if (f_sheetNames[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public WorkbookSheet getSheetAt(int i) {
+    return new CachedSheet(i);
+  }
+
+  @Override
+  public boolean isForwardOnly() {
+    return false;
+  }
+
+  @Override
+  public boolean isDate1904() {
+    return f_date1904;
+  }
+
+  /**
+   * Formulas were given their values when the workbook was decoded, see {@link FormulaValues}
+   */
+  @Override
+  public boolean hasSavedResults() {
+    return true;
+  }
+
+  @Override
+  public boolean canEvaluate() {
+    return true;
+  }
+
+  /**
+   * Opens the workbook the cache was decoded from, read-only
+   */
+  @Override
+  public Workbook getFormulaWorkbook() {
+    if (m_formulaWorkbook == null) {
+      try {
+        m_formulaWorkbook = WorkbookFactory.create(f_source.toFile(), null, true);
+      } catch (IOException ex) {
+        throw new RuntimeException("Couldn't open " + f_source.getFileName() + " to evaluate formulas", ex);
+      }
+    }
+    return m_formulaWorkbook;
+  }
+
+  /**
+   * Closes the workbook formulas were evaluated in, if there is one. The mapping goes away when this object is collected.
+   */
+  @Override
+  public void close() {
+    if (m_formulaWorkbook != null) {
+      try {
+        m_formulaWorkbook.close();
+      } catch (IOException ex) {
+        throw new RuntimeException("Error closing workbook", ex);
+      } finally {
+        m_formulaWorkbook = null;
+      }
+    }
+  }
+
+  private String getString(int idx) {
+    String string = f_strings[idx];
+    if (string == null) {
+      int pos = f_stringOffsets[idx];
+      byte[] bytes = new byte[f_buffer.getInt(pos)];
+      ByteBuffer view = f_buffer.duplicate();
+      view.position(pos + 4);
+      view.get(bytes);
+      string = new String(bytes, StandardCharsets.UTF_8);
+      f_strings[idx] = string;
+    }
+    return string;
+  }
+
+  /**
+   * One sheet of the cache, rows are found with a binary search over the sheet's row numbers and decoded when they're
+   * asked for
+   */
+  private class CachedSheet extends WorkbookSheet {
+    private final int f_offset;
+    private final int f_rowCount;
+
+    CachedSheet(int sheetIdx) {
+      super(f_sheetNames[sheetIdx], f_date1904);
+      f_offset = f_sheetOffsets[sheetIdx];
+      f_rowCount = f_buffer.getInt(f_offset + 8);
+    }
+
+    @Override
+    public int getFirstRowNum() {
+      return f_buffer.getInt(f_offset);
+    }
+
+    @Override
+    public int getLastRowNum() {
+      return f_buffer.getInt(f_offset + 4);
+    }
+
+    @Override
+    String describe() {
+      return "Cached sheet";
+    }
+
+    @Override
+    public SheetRow getRow(int rowIdx) {
+      int low = 0;
+      int high = f_rowCount - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int midRow = f_buffer.getInt(f_offset + 12 + mid * 4);
+        if (midRow < rowIdx) {
+          low = mid + 1;
+        } else if (midRow > rowIdx) {
+          high = mid - 1;
+        } else {
+          return decodeRow(rowIdx, f_offset + f_buffer.getInt(f_offset + 12 + (f_rowCount + mid) * 4));
+        }
+      }
+      return null;
+    }
+
+    private SheetRow decodeRow(int rowIdx, int pos) {
+      SheetRow row = new SheetRow(this, rowIdx);
+      int cellCount = f_buffer.getShort(pos);
+      pos += 2;
+      for (int i = 0; i < cellCount; i++) {
+        SheetCell cell = row.addCell(f_buffer.getShort(pos));
+        int flags = f_buffer.get(pos + 2);
+        pos += 3;
+        if ((flags & sf_formulaFlag) != 0) {
+          cell.setFormula(true);
+        }
+        switch (sf_types[flags & sf_typeMask]) {
+          case NUMERIC:
+            cell.setNumber(f_buffer.getDouble(pos));
+            cell.setDateFormat((flags & sf_dateFlag) != 0);
+            pos += 8;
+            break;
+          case STRING:
+            cell.setText(getString(f_buffer.getInt(pos)), (flags & sf_footnoteFlag) != 0);
+            pos += 4;
+            break;
+          case ERROR:
+            cell.setError(getString(f_buffer.getInt(pos)));
+            pos += 4;
+            break;
+          case BOOLEAN:
+            cell.setBoolean(f_buffer.get(pos) != 0);
+            pos += 1;
+            break;
+          default:
+            break;
+        }
+      }
+      return row;
+    }
+  }
+
+  /**
+   * Writes every cell of a workbook in the cache format
+   */
+  private static class Encoder {
+    private final WorkbookWrapper f_workbook;
+    private final Map<String, Integer> f_stringIdx = new LinkedHashMap<>();
+
+    Encoder(WorkbookWrapper workbook) {
+      f_workbook = workbook;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      List<Integer> names = new ArrayList<>();
+      List<byte[]> sheets = new ArrayList<>();
+      for (Iterator<WorkbookSheet> it = f_workbook.getSheetIterator(); it.hasNext(); ) {
+        WorkbookSheet sheet = it.next();
+        names.add(stringIdx(sheet.getSheetName()));
+        sheets.add(encodeSheet(sheet));
+      }
+
+      List<byte[]> strings = new ArrayList<>();
+      int offset = 13 + sheets.size() * 8 + 4;
+      for (String string : f_stringIdx.keySet()) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        offset += 4 + bytes.length;
+      }
+
+      out.writeInt(sf_magic);
+      out.writeInt(sf_version);
+      out.writeByte(f_workbook.isDate1904() ? 1 : 0);
+      out.writeInt(sheets.size());
+      for (int i = 0; i < sheets.size(); i++) {
+        out.writeInt(names.get(i));
+        out.writeInt(offset);
+        offset += sheets.get(i).length;
+      }
+      out.writeInt(strings.size());
+      for (byte[] bytes : strings) {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      for (byte[] sheet : sheets) {
+        out.write(sheet);
+      }
+    }
+
+    private byte[] encodeSheet(WorkbookSheet sheet) throws IOException {
+      List<Integer> rowNums = new ArrayList<>();
+      List<Integer> rowOffsets = new ArrayList<>();
+      ByteArrayOutputStream rowBytes = new ByteArrayOutputStream();
+      DataOutputStream rowOut = new DataOutputStream(rowBytes);
+
+      int firstRow = sheet.getFirstRowNum();
+      int lastRow = sheet.getLastRowNum();
+      for (int i = firstRow; i <= lastRow; i++) {
+        SheetRow row = sheet.getRow(i);
+        if (row == null) continue;
+        rowNums.add(i);
+        rowOffsets.add(rowOut.size());
+        encodeRow(row, rowOut);
+      }
+
+      int headerSize = 12 + rowNums.size() * 8;
+      ByteArrayOutputStream sheetBytes = new ByteArrayOutputStream(headerSize + rowOut.size());
+      DataOutputStream out = new DataOutputStream(sheetBytes);
+      out.writeInt(firstRow);
+      out.writeInt(lastRow);
+      out.writeInt(rowNums.size());
+      for (int rowNum : rowNums) {
+        out.writeInt(rowNum);
+      }
+      for (int rowOffset : rowOffsets) {
+        out.writeInt(headerSize + rowOffset);
+      }
+      rowBytes.writeTo(out);
+      return sheetBytes.toByteArray();
+    }
+
+    private void encodeRow(SheetRow row, DataOutputStream out) throws IOException {
+      out.writeShort(row.getPhysicalNumberOfCells());
+      for (SheetCell cell : row) {
+        out.writeShort(cell.getColumnIndex());
+        encodeCell(cell, out);
+      }
+    }
+
+    private void encodeCell(SheetCell cell, DataOutputStream out) throws IOException {
+      CellType type = cell.getCellType();
+      int flags = 0;
+      CellValue value = null;
+      if (type == CellType.FORMULA) {
+        flags |= sf_formulaFlag;
+        FormulaValues formulaValues = f_workbook.getFormulaValues();
+        if (formulaValues.usesSavedValue(cell)) {
+          type = cell.getCachedFormulaResultType();
+        } else {
+          value = formulaValues.get(cell);
+          type = value.getCellType();
+        }
+      }
+
+      switch (type) {
+        case NUMERIC:
+          double number = value != null ? value.getNumberValue() : cell.getNumericCellValue();
+          if (cell.hasDateFormat() && DateUtil.isValidExcelDate(number)) {
+            flags |= sf_dateFlag;
+          }
+          out.writeByte(flags | 1);
+          out.writeDouble(number);
+          break;
+        case STRING:
+          String text;
+          if (value != null) {
+            text = value.getStringValue();
+          } else {
+            text = cell.getStringCellValue();
+            if (cell.hasFootnote()) {
+              flags |= sf_footnoteFlag;
+            }
+          }
+          out.writeByte(flags | 2);
+          out.writeInt(stringIdx(text));
+          break;
+        case BOOLEAN:
+          out.writeByte(flags | 3);
+          out.writeByte((value != null ? value.getBooleanValue() : cell.getBooleanCellValue()) ? 1 : 0);
+          break;
+        case ERROR:
+          out.writeByte(flags | 4);
+          out.writeInt(stringIdx(value != null ? FormulaError.forInt(value.getErrorValue()).getString() : cell.getErrorText()));
+          break;
+        default:
+          out.writeByte(flags);
+          break;
+      }
+    }
+
+    private int stringIdx(String string) {
+      return f_stringIdx.computeIfAbsent(string, s -> f_stringIdx.size());
+    }
+  }
+}
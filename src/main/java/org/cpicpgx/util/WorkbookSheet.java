@@ -0,0 +1,61 @@
+package org.cpicpgx.util;
+
+/**
+ * One sheet of a workbook read by {@link WorkbookWrapper}. Each {@link SheetSource} says how its sheets find their rows,
+ * rows are asked for by index and come back as {@link SheetRow}s so {@link RowWrapper} reads every kind of workbook the
+ * same way.
+ *
+ * @author Ryan Whaley
+ */
+public abstract class WorkbookSheet {
+  private final String f_name;
+  private final boolean f_date1904;
+
+  /**
+   * Constructor
+   * @param name the name of the sheet
+   * @param date1904 true if date numbers count days from 1904 instead of 1900
+   */
+  WorkbookSheet(String name, boolean date1904) {
+    f_name = name;
+    f_date1904 = date1904;
+  }
+
+  public String getSheetName() {
+    return f_name;
+  }
+
+  /**
+   * Gets the row at the given index
+   * @param rowIdx a 0-based row index
+   * @return the row, null if the sheet has no row at that index
+   */
+  public abstract SheetRow getRow(int rowIdx);
+
+  /**
+   * @return the 0-based index of the first row in the sheet, 0 if the sheet is empty
+   */
+  public abstract int getFirstRowNum();
+
+  /**
+   * @return the 0-based index of the last row in the sheet, 0 if the sheet is empty
+   */
+  public abstract int getLastRowNum();
+
+  /**
+   * Whether dates in the sheet count days from 1904 instead of 1900
+   */
+  boolean isDate1904() {
+    return f_date1904;
+  }
+
+  /**
+   * A short description of where the sheet came from, used in messages
+   */
+  abstract String describe();
+
+  @Override
+  public String toString() {
+    return describe() + " " + f_name;
+  }
+}
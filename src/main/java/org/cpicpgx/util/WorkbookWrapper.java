@@ -1,30 +1,66 @@
 package org.cpicpgx.util;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Wrapper class for an Excel workbook. Helps read and setup supporting objects.
  * 
  * During construction, this will set the <code>currentSheet</code> to the first sheet in the workbook.
+ * 
+ * Workbooks opened from a {@link Path} are read straight out of the file, only the parts of the package that get used 
+ * are unzipped, instead of the whole file being copied into memory first. Close the wrapper when done with it so the 
+ * file gets released. For xlsx files only the sheet names are read when the workbook is opened, each sheet is parsed 
+ * the first time one of its rows is read so sheets that never get read cost nothing. The whole workbook is only loaded
+ * if a formula has to be evaluated.
+ * 
+ * Workbooks opened with {@link WorkbookWrapper#stream(Path)} read rows as they're asked for instead of loading 
+ * the whole workbook up front, see {@link StreamingWorkbook}. The same methods work but rows in a sheet have to be read
+ * from top to bottom.
+ * 
+ * When the <code>CPIC_WORKBOOK_CACHE</code> environment variable names a directory, workbooks opened from a 
+ * {@link Path} are read from a decoded copy kept in that directory instead, see {@link WorkbookCache}.
+ * 
+ * A {@link Path} can also be a workbook exported as text: a CSV or TSV file, or a directory of them with one file per 
+ * sheet. They're read through the same methods, see {@link CsvWorkbook}.
+ *
+ * Formula cells give the result Excel saved in the file with the formula. Formulas without a saved result are 
+ * evaluated, once, and so are all the formulas in a file last saved by POI or flagged to be recalculated when it's 
+ * opened, see {@link FormulaValues}. Use {@link WorkbookWrapper#setFormulaMode(FormulaMode)} to evaluate every formula 
+ * instead.
  *
  * @author Ryan Whaley
  */
-public class WorkbookWrapper {
+public class WorkbookWrapper implements Closeable {
   public static final String NOTES_SHEET_NAME = "Notes";
 
-  private Workbook workbook;
-  private FormulaEvaluator formulaEvaluator;
+  /**
+   * How formula cells get their values
+   */
+  public enum FormulaMode {
+    /** Use the result Excel saved with the formula, only evaluate formulas that don't have one */
+    CACHED,
+    /** Evaluate every formula */
+    EVALUATE
+  }
+
+  private final SheetSource sheetSource;
+  private final FormulaValues formulaValues;
   private String fileName = null;
-  public Sheet currentSheet;
+  public WorkbookSheet currentSheet;
 
   /**
    * Constructor
@@ -35,9 +71,133 @@ public class WorkbookWrapper {
     if (in == null) {
       throw new InvalidParameterException("No valid input stream specified");
     }
-    this.workbook = WorkbookFactory.create(in);
-    this.formulaEvaluator = workbook.getCreationHelper().createFormulaEvaluator();
-    this.currentSheet = workbook.getSheetAt(0);
+    this.sheetSource = new PoiWorkbook(WorkbookFactory.create(in));
+    this.formulaValues = new FormulaValues(this.sheetSource);
+    this.currentSheet = this.sheetSource.getSheetAt(0);
+  }
+
+  /**
+   * Constructor that reads the workbook out of a file. The file is opened read-only and kept open until 
+   * {@link WorkbookWrapper#close()} is called. Sheets in xlsx files are parsed when they're first read.
+   * @param path the path to the excel file, or to a text export of one
+   * @throws IOException can occur when reading the file
+   */
+  public WorkbookWrapper(Path path) throws IOException {
+    checkFile(path);
+    if (isTextWorkbook(path)) {
+      this.sheetSource = CsvWorkbook.open(path);
+    } else if (WorkbookCache.isEnabled()) {
+      this.sheetSource = WorkbookCache.open(path);
+    } else if (FileMagic.valueOf(path.toFile()) == FileMagic.OOXML) {
+      this.sheetSource = StreamingWorkbook.open(path, true);
+    } else {
+      this.sheetSource = new PoiWorkbook(WorkbookFactory.create(path.toFile(), null, true));
+    }
+    this.formulaValues = new FormulaValues(this.sheetSource);
+    this.currentSheet = this.sheetSource.getSheetAt(0);
+  }
+
+  private WorkbookWrapper(SheetSource sheetSource) {
+    this.sheetSource = sheetSource;
+    this.formulaValues = new FormulaValues(sheetSource);
+    this.currentSheet = sheetSource.getSheetAt(0);
+  }
+
+  /**
+   * Opens a workbook from a file without going through the {@link WorkbookCache}. Sheets in xlsx files are streamed.
+   * @param path the path to the excel file
+   * @return a workbook with the first sheet as the current sheet
+   * @throws IOException can occur when reading the file
+   */
+  static WorkbookWrapper openUncached(Path path) throws IOException {
+    checkFile(path);
+    if (FileMagic.valueOf(path.toFile()) == FileMagic.OOXML) {
+      return new WorkbookWrapper(StreamingWorkbook.open(path, false));
+    }
+    return new WorkbookWrapper(new PoiWorkbook(WorkbookFactory.create(path.toFile(), null, true)));
+  }
+
+  /**
+   * Open a workbook that's read one row at a time. Uses much less memory than the constructor for big workbooks but rows
+   * in each sheet can only be read going forward. The whole workbook is still loaded if a formula has to be evaluated.
+   * @param in an {@link InputStream} for the excel (xlsx) file
+   * @return a streaming workbook with the first sheet as the current sheet
+   * @throws IOException can occur when reading the file
+   */
+  public static WorkbookWrapper stream(InputStream in) throws IOException {
+    if (in == null) {
+      throw new InvalidParameterException("No valid input stream specified");
+    }
+    return new WorkbookWrapper(StreamingWorkbook.open(in, false));
+  }
+
+  /**
+   * Open a workbook out of a file that's read one row at a time, see {@link WorkbookWrapper#stream(InputStream)}. The 
+   * file is opened read-only and kept open until {@link WorkbookWrapper#close()} is called.
+   * @param path the path to the excel (xlsx) file, or to a text export of one which can be read in any order
+   * @return a streaming workbook with the first sheet as the current sheet
+   * @throws IOException can occur when reading the file
+   */
+  public static WorkbookWrapper stream(Path path) throws IOException {
+    checkFile(path);
+    if (isTextWorkbook(path)) {
+      return new WorkbookWrapper(CsvWorkbook.open(path));
+    }
+    if (WorkbookCache.isEnabled()) {
+      return new WorkbookWrapper(WorkbookCache.open(path));
+    }
+    return new WorkbookWrapper(StreamingWorkbook.open(path, false));
+  }
+
+  private static void checkFile(Path path) {
+    if (path == null || !(Files.isRegularFile(path) || isTextWorkbook(path))) {
+      throw new InvalidParameterException("No valid file specified: " + path);
+    }
+  }
+
+  /**
+   * Whether the given path is a workbook exported as text: a CSV or TSV file, or a directory with at least one
+   * @param path a file or directory
+   * @return true if the path is read as text instead of as an excel file
+   */
+  public static boolean isTextWorkbook(Path path) {
+    return path != null && CsvWorkbook.isTextWorkbook(path);
+  }
+
+  /**
+   * Whether this workbook is read one row at a time
+   * @return true if rows in a sheet have to be read from top to bottom
+   */
+  public boolean isStreaming() {
+    return this.sheetSource.isForwardOnly();
+  }
+
+  /**
+   * Whether dates in this workbook count days from 1904 instead of 1900
+   */
+  boolean isDate1904() {
+    return this.sheetSource.isDate1904();
+  }
+
+  /**
+   * Gets the values of formulas in this workbook
+   * @return the {@link FormulaValues} for this workbook
+   */
+  FormulaValues getFormulaValues() {
+    return this.formulaValues;
+  }
+
+  /**
+   * Sets how formula cells in this workbook get their values. Workbooks read from the cache open the file they were 
+   * decoded from to evaluate formulas.
+   * @param mode the {@link FormulaMode} to use, {@link FormulaMode#CACHED} is the default
+   * @throws IllegalStateException if asked to evaluate formulas in a workbook exported as text, which has no formulas
+   */
+  public void setFormulaMode(FormulaMode mode) {
+    if (mode == FormulaMode.EVALUATE && !this.sheetSource.canEvaluate()) {
+      throw new IllegalStateException("Formulas can't be evaluated in " + this);
+    }
+    this.formulaValues.setEvaluateAll(mode == FormulaMode.EVALUATE);
   }
 
   /**
@@ -50,12 +210,12 @@ public class WorkbookWrapper {
       throw new InvalidParameterException("No sheet name specified");
     }
     
-    Sheet nextSheet = this.workbook.getSheet(name);
-    if (nextSheet == null) {
+    int sheetIdx = this.sheetSource.getSheetIndex(name);
+    if (sheetIdx < 0) {
       throw new InvalidParameterException("No sheet with given name found");
     }
     
-    this.currentSheet = nextSheet;
+    this.currentSheet = this.sheetSource.getSheetAt(sheetIdx);
   }
 
   /**
@@ -70,11 +230,20 @@ public class WorkbookWrapper {
     if (i > this.currentSheet.getLastRowNum()) {
       return null;
     }
-    return new RowWrapper(this.currentSheet.getRow(i), this.formulaEvaluator);
+    return new RowWrapper(this.currentSheet.getRow(i), this.formulaValues);
+  }
+
+  /**
+   * Get a {@link RowCursor} that reads rows from the current sheet, use it instead of {@link WorkbookWrapper#getRow(int)}
+   * in loops over many rows so a new wrapper isn't made for each one
+   * @return a cursor that isn't on any row yet
+   */
+  public RowCursor cursor() {
+    return new RowCursor(this);
   }
   
   public String toString() {
-    return this.workbook.toString();
+    return (isStreaming() ? "Streamed workbook " : "Workbook ") + StringUtils.defaultString(this.fileName);
   }
 
   /**
@@ -82,10 +251,10 @@ public class WorkbookWrapper {
    * @param i index of a sheet in this workbook, 0-based
    */
   public void switchToSheet(int i) {
-    int n = this.workbook.getNumberOfSheets();
+    int n = this.sheetSource.getNumberOfSheets();
     
     if (i+1 <= n) {
-      this.currentSheet = this.workbook.getSheetAt(i);
+      this.currentSheet = this.sheetSource.getSheetAt(i);
     } else {
       this.currentSheet = null;
     }
@@ -99,8 +268,23 @@ public class WorkbookWrapper {
     this.fileName = fileName;
   }
 
-  public Iterator<Sheet> getSheetIterator() {
-    return this.workbook.sheetIterator();
+  public Iterator<WorkbookSheet> getSheetIterator() {
+    return new Iterator<WorkbookSheet>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < sheetSource.getNumberOfSheets();
+      }
+
+      @Override
+      public WorkbookSheet next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return sheetSource.getSheetAt(next++);
+      }
+    };
   }
 
   /**
@@ -118,11 +302,11 @@ public class WorkbookWrapper {
     List<String> notes = new ArrayList<>();
     // intentionally skip first header row
     for (int i = 1; i <= currentSheet.getLastRowNum(); i++) {
-      Row row = currentSheet.getRow(i);
+      SheetRow row = currentSheet.getRow(i);
       if (row == null) {
         continue;
       }
-      Cell cell = row.getCell(0);
+      SheetCell cell = row.getCell(0);
       if (cell == null || cell.getStringCellValue().length() == 0) {
         continue;
       }
@@ -130,4 +314,14 @@ public class WorkbookWrapper {
     }
     return notes;
   }
+
+  /**
+   * Closes the workbook and the file it was read from, if any. Nothing is written back to the file.
+   * @throws IOException can occur when closing the file
+   */
+  @Override
+  public void close() throws IOException {
+    this.currentSheet = null;
+    this.sheetSource.close();
+  }
 }
@@ -1,11 +1,11 @@
 -- the role used for actual connection and CRUD
-grant usage on schema cpic to cpic_api;
-grant usage on schema cpic to web_anon;
-grant select,insert,update,delete on all tables in schema cpic to cpic_api;
+grant usage on schema ${flyway:defaultSchema} to cpic_api;
+grant usage on schema ${flyway:defaultSchema} to web_anon;
+grant select,insert,update,delete on all tables in schema ${flyway:defaultSchema} to cpic_api;
 grant usage,select on sequence cpic_id to cpic_api;
 -- the role used for read-only queries
-grant select on all tables in schema cpic to web_anon;
-grant execute on all functions in schema cpic to web_anon;
+grant select on all tables in schema ${flyway:defaultSchema} to web_anon;
+grant execute on all functions in schema ${flyway:defaultSchema} to web_anon;
 
 grant select on data_progress to web_anon;
 grant select on diplotype to web_anon;
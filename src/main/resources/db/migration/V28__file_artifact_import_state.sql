@@ -0,0 +1,7 @@
+ALTER TABLE file_artifact ADD contentHash TEXT;
+ALTER TABLE file_artifact ADD contentSize BIGINT;
+ALTER TABLE file_artifact ADD contentModified TIMESTAMP;
+
+COMMENT ON COLUMN file_artifact.contentHash IS 'The SHA-256 hash of the file contents when it was last imported, null if it has not been imported';
+COMMENT ON COLUMN file_artifact.contentSize IS 'The size of the file in bytes when it was last imported, optional';
+COMMENT ON COLUMN file_artifact.contentModified IS 'The last-modified time of the file when it was last imported, optional';
@@ -0,0 +1,177 @@
+package org.cpicpgx.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for handing out and taking back pooled connections
+ *
+ * @author Ryan Whaley
+ */
+public class ConnectionPoolTest {
+
+  @Test
+  public void testReuse() throws SQLException {
+    List<FakeConnection> opened = new ArrayList<>();
+    try (ConnectionPool pool = new ConnectionPool(() -> open(opened), 0, 2, 1000, 0, 60000)) {
+      Connection first = pool.borrow();
+      first.close();
+      Connection second = pool.borrow();
+      second.close();
+
+      assertEquals(1, opened.size());
+      assertFalse(opened.get(0).closed);
+      assertTrue(first.isClosed());
+      assertThrows(SQLException.class, first::createStatement);
+
+      ConnectionPool.Stats stats = pool.getStats();
+      assertEquals(2, stats.getBorrowed());
+      assertEquals(1, stats.getCreated());
+      assertEquals(1, stats.getIdle());
+      assertEquals(0, stats.getActive());
+    }
+    assertTrue(opened.get(0).closed);
+  }
+
+  @Test
+  public void testReset() throws SQLException {
+    List<FakeConnection> opened = new ArrayList<>();
+    List<Connection> setUp = new ArrayList<>();
+    try (ConnectionPool pool = new ConnectionPool(() -> open(opened), setUp::add, 0, 1, 1000, 0, 60000)) {
+      Connection conn = pool.borrow();
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement();
+      conn.close();
+
+      FakeConnection fake = opened.get(0);
+      assertTrue(fake.rolledBack);
+      assertTrue(fake.autoCommit);
+      assertTrue(stmt.isClosed());
+      // temp tables and settings are dropped, then the session is set up again
+      assertEquals(Arrays.asList("discard temp", "reset all"), fake.executed);
+      assertEquals(1, setUp.size());
+    }
+  }
+
+  @Test
+  public void testExhausted() throws SQLException {
+    List<FakeConnection> opened = new ArrayList<>();
+    try (ConnectionPool pool = new ConnectionPool(() -> open(opened), 1, 1, 100, 0, 60000)) {
+      pool.fill();
+      assertEquals(1, opened.size());
+
+      Connection conn = pool.borrow();
+      SQLException ex = assertThrows(SQLException.class, pool::borrow);
+      assertTrue(ex.getMessage().startsWith("No connection available"));
+      assertEquals(1, pool.getStats().getTimeouts());
+
+      conn.close();
+      pool.borrow().close();
+      assertEquals(1, opened.size());
+    }
+  }
+
+  @Test
+  public void testWaitForReturn() throws Exception {
+    List<FakeConnection> opened = new ArrayList<>();
+    try (ConnectionPool pool = new ConnectionPool(() -> open(opened), 0, 1, 5000, 0, 60000)) {
+      Connection conn = pool.borrow();
+      Thread returner = new Thread(() -> {
+        try {
+          Thread.sleep(100);
+          conn.close();
+        } catch (Exception ex) {
+          throw new RuntimeException(ex);
+        }
+      });
+      returner.start();
+      pool.borrow().close();
+      returner.join();
+      assertEquals(1, opened.size());
+      assertTrue(pool.getStats().getMaxWaitMillis() > 0);
+    }
+  }
+
+  @Test
+  public void testBrokenConnectionDiscarded() throws SQLException {
+    List<FakeConnection> opened = new ArrayList<>();
+    try (ConnectionPool pool = new ConnectionPool(() -> open(opened), 0, 1, 1000, 0, 60000)) {
+      Connection conn = pool.borrow();
+      opened.get(0).closed = true;
+      conn.close();
+
+      pool.borrow().close();
+      assertEquals(2, opened.size());
+      assertEquals(1, pool.getStats().getDiscarded());
+    }
+  }
+
+  private static synchronized Connection open(List<FakeConnection> opened) {
+    FakeConnection fake = new FakeConnection();
+    opened.add(fake);
+    return fake.proxy();
+  }
+
+  /**
+   * Just enough of a Connection to see what the pool does with it
+   */
+  private static class FakeConnection {
+    private boolean closed = false;
+    private boolean autoCommit = true;
+    private boolean rolledBack = false;
+    private final List<String> executed = new ArrayList<>();
+
+    Connection proxy() {
+      return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "close":
+            closed = true;
+            return null;
+          case "isClosed":
+            return closed;
+          case "isValid":
+            return !closed;
+          case "getAutoCommit":
+            return autoCommit;
+          case "setAutoCommit":
+            autoCommit = (Boolean)args[0];
+            return null;
+          case "rollback":
+            rolledBack = true;
+            return null;
+          case "createStatement":
+            return fakeStatement();
+          default:
+            return null;
+        }
+      });
+    }
+
+    private Statement fakeStatement() {
+      boolean[] stmtClosed = new boolean[]{false};
+      return (Statement)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Statement.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "close":
+            stmtClosed[0] = true;
+            return null;
+          case "isClosed":
+            return stmtClosed[0];
+          case "execute":
+            executed.add((String)args[0]);
+            return false;
+          default:
+            return null;
+        }
+      });
+    }
+  }
+}
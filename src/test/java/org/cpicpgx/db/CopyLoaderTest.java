@@ -0,0 +1,174 @@
+package org.cpicpgx.db;
+
+import org.junit.jupiter.api.Test;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check that values are encoded properly for the COPY formats and that loaders are sent in the right order
+ *
+ * @author Ryan Whaley
+ */
+public class CopyLoaderTest {
+
+  @Test
+  public void testEscapeText() {
+    assertEquals("*1/*2", escape("*1/*2"));
+    assertEquals("a\\tb", escape("a\tb"));
+    assertEquals("line 1\\nline 2\\r", escape("line 1\nline 2\r"));
+    assertEquals("C:\\\\path", escape("C:\\path"));
+    assertEquals("{\"CYP2D6\": {\"*1\": 2}}", escape("{\"CYP2D6\": {\"*1\": 2}}"));
+  }
+
+  @Test
+  public void testText() throws SQLException {
+    List<String> copies = new ArrayList<>();
+    FakeCopyLoader loader = new FakeCopyLoader(copies, CopyLoader.Format.TEXT, "allele", "id", "name", "clinicalfunctionalstatus");
+    loader.add(1, "*1", null).add(2L, "a\tb", true).close();
+
+    assertEquals(1, loader.getCopyCount());
+    assertEquals(2, loader.getRowCount());
+    assertEquals("copy allele(id,name,clinicalfunctionalstatus) from stdin", copies.get(0));
+    assertEquals("1\t*1\t\\N\n2\ta\\tb\tt\n", new String(loader.data.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testBinary() throws SQLException, IOException {
+    List<String> copies = new ArrayList<>();
+    FakeCopyLoader loader = new FakeCopyLoader(copies, CopyLoader.Format.BINARY, "test_table", "a", "b", "c", "d", "e");
+    loader.add(null, 7, 8L, 2.5, "é");
+    loader.close();
+    assertEquals("copy test_table(a,b,c,d,e) from stdin with (format binary)", copies.get(0));
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(loader.data.toByteArray()));
+    byte[] header = new byte[11];
+    in.readFully(header);
+    assertEquals("PGCOPY\n\u00ff\r\n\u0000", new String(header, StandardCharsets.ISO_8859_1));
+    assertEquals(0, in.readInt()); // flags
+    assertEquals(0, in.readInt()); // header extension length
+
+    assertEquals(5, in.readShort());
+    assertEquals(-1, in.readInt());
+    assertEquals(4, in.readInt());
+    assertEquals(7, in.readInt());
+    assertEquals(8, in.readInt());
+    assertEquals(8L, in.readLong());
+    assertEquals(8, in.readInt());
+    assertEquals(2.5, in.readDouble());
+    assertEquals(2, in.readInt());
+    assertEquals(0xc3, in.readUnsignedByte());
+    assertEquals(0xa9, in.readUnsignedByte());
+
+    assertEquals(-1, in.readShort()); // trailer
+    assertEquals(0, in.available());
+  }
+
+  @Test
+  public void testAfter() throws SQLException {
+    List<String> copies = new ArrayList<>();
+    FakeCopyLoader publication = new FakeCopyLoader(copies, CopyLoader.Format.TEXT, "publication", "id");
+    FakeCopyLoader population = new FakeCopyLoader(copies, CopyLoader.Format.TEXT, "population", "id", "publicationid");
+    population.after(publication);
+
+    population.add(2, 1);
+    publication.add(1);
+    population.flush();
+    assertEquals(2, copies.size());
+    assertTrue(copies.get(0).startsWith("copy publication("));
+    assertTrue(copies.get(1).startsWith("copy population("));
+
+    // nothing buffered upstream so only the child is sent
+    population.add(3, 1);
+    population.close();
+    assertEquals(3, copies.size());
+    assertTrue(copies.get(2).startsWith("copy population("));
+    assertEquals(1, publication.getCopyCount());
+    assertEquals(2, population.getCopyCount());
+  }
+
+  @Test
+  public void testNextIds() throws SQLException {
+    assertArrayEquals(new int[]{1, 2, 3}, CopyLoader.nextIds(fakeSequence(3), 3));
+    assertArrayEquals(new int[0], CopyLoader.nextIds(fakeSequence(0), 0));
+
+    SQLException ex = assertThrows(SQLException.class, () -> CopyLoader.nextIds(fakeSequence(2), 3));
+    assertEquals("Expected 3 IDs, got 2", ex.getMessage());
+  }
+
+  private static String escape(String value) {
+    StringBuilder sb = new StringBuilder();
+    CopyLoader.escapeText(value, sb);
+    return sb.toString();
+  }
+
+  /**
+   * Just enough of a Connection to answer a <code>nextval</code> query with the given number of IDs
+   */
+  private static Connection fakeSequence(int available) {
+    ClassLoader loader = CopyLoaderTest.class.getClassLoader();
+    int[] returned = new int[]{0};
+    ResultSet rs = (ResultSet)Proxy.newProxyInstance(loader, new Class<?>[]{ResultSet.class}, (p, method, args) -> {
+      switch (method.getName()) {
+        case "next":
+          if (returned[0] >= available) return false;
+          returned[0] += 1;
+          return true;
+        case "getInt":
+          return returned[0];
+        default:
+          return null;
+      }
+    });
+    PreparedStatement stmt = (PreparedStatement)Proxy.newProxyInstance(loader, new Class<?>[]{PreparedStatement.class}, (p, method, args) ->
+        method.getName().equals("executeQuery") ? rs : null);
+    return (Connection)Proxy.newProxyInstance(loader, new Class<?>[]{Connection.class}, (p, method, args) ->
+        method.getName().equals("prepareStatement") ? stmt : null);
+  }
+
+  /**
+   * A loader that keeps what it would have sent to the DB, and records each COPY in a list shared with other loaders
+   */
+  private static class FakeCopyLoader extends CopyLoader {
+    private final List<String> f_copies;
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    FakeCopyLoader(List<String> copies, Format format, String table, String... columns) {
+      super(null, format, table, columns);
+      f_copies = copies;
+    }
+
+    @Override
+    CopyIn startCopy(String sql) {
+      f_copies.add(sql);
+      boolean[] active = new boolean[]{true};
+      return (CopyIn)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{CopyIn.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "writeToCopy":
+            data.write((byte[])args[0], (Integer)args[1], (Integer)args[2]);
+            return null;
+          case "endCopy":
+            active[0] = false;
+            return 0L;
+          case "isActive":
+            return active[0];
+          default:
+            return null;
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.cpicpgx.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for telling whether a file changed since it was imported
+ *
+ * @author Ryan Whaley
+ */
+public class FileImportStateTest {
+
+  @Test
+  public void testUnchanged() throws IOException {
+    File file = write("CYP2D6 data");
+    FileImportState imported = FileImportState.of(file);
+    FileImportState stored = stored(file, imported.getHash());
+
+    assertTrue(FileImportState.of(file).isUnchangedFrom(stored));
+    assertFalse(FileImportState.of(file).isUnchangedFrom(null));
+    assertFalse(FileImportState.of(file).isUnchangedFrom(new FileImportState(null, file.getName(), file.length(), file.lastModified(), null, null)));
+  }
+
+  @Test
+  public void testTouched() throws IOException {
+    File file = write("CYP2D6 data");
+    FileImportState stored = stored(file, FileImportState.of(file).getHash());
+
+    assertTrue(file.setLastModified(file.lastModified() - 60000));
+    assertTrue(FileImportState.of(file).isUnchangedFrom(stored));
+  }
+
+  @Test
+  public void testChanged() throws IOException {
+    File file = write("CYP2D6 data");
+    FileImportState stored = stored(file, FileImportState.of(file).getHash());
+
+    Files.write(file.toPath(), "CYP2C9 data".getBytes(StandardCharsets.UTF_8));
+    assertTrue(file.setLastModified(file.lastModified() - 60000));
+    FileImportState current = FileImportState.of(file);
+    assertFalse(current.isUnchangedFrom(stored));
+    assertEquals(64, current.getHash().length());
+  }
+
+  private static FileImportState stored(File file, String hash) {
+    return new FileImportState(null, file.getName(), file.length(), file.lastModified(), hash, new String[]{"CYP2D6"});
+  }
+
+  private static File write(String contents) throws IOException {
+    File file = File.createTempFile("import-state", ".xlsx");
+    file.deleteOnExit();
+    Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
@@ -0,0 +1,80 @@
+package org.cpicpgx.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check that IDs are handed out from blocks reserved from the sequence
+ *
+ * @author Ryan Whaley
+ */
+public class IdAllocatorTest {
+
+  @Test
+  public void testNext() throws SQLException {
+    FakeSequence sequence = new FakeSequence();
+    IdAllocator ids = new IdAllocator(sequence.proxy(), 3);
+    assertEquals(0, ids.getReservedCount());
+
+    for (int i = 1; i <= 7; i++) {
+      assertEquals(i, ids.next());
+    }
+    assertEquals(3, sequence.queries);
+    assertEquals(9, ids.getReservedCount());
+
+    assertThrows(IllegalArgumentException.class, () -> new IdAllocator(sequence.proxy(), 0));
+  }
+
+  /**
+   * Just enough of a Connection to answer <code>nextval</code> queries
+   */
+  private static class FakeSequence {
+    private int last = 0;
+    private int queries = 0;
+
+    Connection proxy() {
+      return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (p, method, args) ->
+          method.getName().equals("prepareStatement") ? statement() : null);
+    }
+
+    private PreparedStatement statement() {
+      int[] count = new int[]{0};
+      return (PreparedStatement)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "setInt":
+            count[0] = (Integer)args[1];
+            return null;
+          case "executeQuery":
+            queries += 1;
+            return results(count[0]);
+          default:
+            return null;
+        }
+      });
+    }
+
+    private ResultSet results(int count) {
+      int[] returned = new int[]{0};
+      return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "next":
+            if (returned[0] >= count) return false;
+            returned[0] += 1;
+            last += 1;
+            return true;
+          case "getInt":
+            return last;
+          default:
+            return null;
+        }
+      });
+    }
+  }
+}
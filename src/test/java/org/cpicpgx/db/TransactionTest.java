@@ -0,0 +1,63 @@
+package org.cpicpgx.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check that code using the transaction's connection can't end the transaction on its own
+ *
+ * @author Ryan Whaley
+ */
+public class TransactionTest {
+
+  @Test
+  public void testSharedRollback() throws SQLException {
+    List<String> calls = new ArrayList<>();
+    Connection conn = fakeConnection(calls);
+
+    Transaction tx = new Transaction("test", conn, null);
+    Connection shared = tx.getConnection();
+    shared.commit();
+    shared.rollback();
+    shared.close();
+    assertThrows(SQLException.class, () -> shared.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE));
+    assertTrue(calls.isEmpty(), "calls reached the connection: " + calls);
+
+    assertThrows(SQLException.class, tx::commit);
+    tx.close();
+    assertEquals("rollback", calls.get(calls.size() - 2));
+    assertEquals("close", calls.get(calls.size() - 1));
+  }
+
+  @Test
+  public void testSavepoint() throws SQLException {
+    List<String> calls = new ArrayList<>();
+    Transaction tx = new Transaction("test", fakeConnection(calls), null);
+    Connection shared = tx.getConnection();
+
+    // recovering from an expected error with a savepoint doesn't stop the transaction from committing
+    Savepoint savepoint = shared.setSavepoint();
+    shared.rollback(savepoint);
+    shared.releaseSavepoint(savepoint);
+    assertEquals(3, calls.size(), "calls didn't reach the connection: " + calls);
+
+    tx.commit();
+    tx.close();
+    assertEquals("commit", calls.get(3));
+  }
+
+  private Connection fakeConnection(List<String> calls) {
+    return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (p, method, args) -> {
+      calls.add(method.getName());
+      return method.getName().equals("isClosed") ? false : null;
+    });
+  }
+}
@@ -0,0 +1,129 @@
+package org.cpicpgx.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Check that queued writes are sent in order and that failures are reported to their owner
+ *
+ * @author Ryan Whaley
+ */
+public class WriteBehindQueueTest {
+  private static final String NOTE_SQL = "insert into file_note(entityId, note, type, ordinal) values (?, ?, ?, ?)";
+  private static final String LOG_SQL = "insert into change_log(entityId, note, type, date) values (?, ?, ?, ?)";
+
+  @Test
+  public void testFlush() throws SQLException {
+    FakeConnection fake = new FakeConnection();
+    WriteBehindQueue queue = new WriteBehindQueue(fake::proxy, 100, 100);
+    queue.add("GENE_CDS", -1, NOTE_SQL, "CYP2D6", "note 1", "GENE_CDS", 0);
+    queue.add("GENE_CDS", -1, NOTE_SQL, "CYP2D6", "note 2", "GENE_CDS", 1);
+    queue.add("GENE_CDS", 3, LOG_SQL, "CYP2D6", "changed", "GENE_CDS", null);
+    queue.flush("GENE_CDS");
+
+    assertEquals(3, fake.written.size());
+    assertEquals("note 1", fake.written.get(0));
+    assertEquals("changed", fake.written.get(2));
+  }
+
+  @Test
+  public void testFailure() throws SQLException {
+    FakeConnection fake = new FakeConnection();
+    WriteBehindQueue queue = new WriteBehindQueue(fake::proxy, 100, 100);
+    queue.add("PAIR", 2, LOG_SQL, null, "fine", "PAIR", null);
+    queue.add("PAIR", 5, LOG_SQL, null, "bad", "PAIR", null);
+    queue.add("TEST_ALERT", -1, LOG_SQL, null, "also fine", "TEST_ALERT", null);
+
+    SQLException ex = assertThrows(SQLException.class, () -> queue.flush("PAIR"));
+    assertTrue(ex.getMessage().contains("row 5"), ex.getMessage());
+    // the rest of the writes still go in
+    assertTrue(fake.written.contains("fine"));
+    assertTrue(fake.written.contains("also fine"));
+    assertFalse(fake.written.contains("bad"));
+
+    // the failure is only reported once, and only to its owner
+    queue.flush("TEST_ALERT");
+    queue.flush("PAIR");
+  }
+
+  @Test
+  public void testNoConnection() throws SQLException {
+    WriteBehindQueue queue = new WriteBehindQueue(() -> {
+      throw new SQLException("connection refused");
+    }, 100, 100);
+    queue.add("GENE_CDS", -1, NOTE_SQL, "CYP2D6", "note 1", "GENE_CDS", 0);
+    queue.add("PAIR", -1, LOG_SQL, null, "changed", "PAIR", null);
+
+    // every owner with writes waiting hears about it
+    SQLException ex = assertThrows(SQLException.class, () -> queue.flush("GENE_CDS"));
+    assertTrue(ex.getMessage().contains("connection refused"), ex.getMessage());
+    assertThrows(SQLException.class, () -> queue.flush("PAIR"));
+    queue.flush("GENE_CDS");
+  }
+
+  /**
+   * Just enough of a Connection to see the notes that get written. A note of "bad" fails.
+   */
+  private static class FakeConnection {
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> uncommitted = new ArrayList<>();
+
+    Connection proxy() {
+      return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "prepareStatement":
+            return statement();
+          case "commit":
+            written.addAll(uncommitted);
+            uncommitted.clear();
+            return null;
+          case "rollback":
+            uncommitted.clear();
+            return null;
+          default:
+            return null;
+        }
+      });
+    }
+
+    private PreparedStatement statement() {
+      String[] note = new String[1];
+      List<String> batch = new ArrayList<>();
+      return (PreparedStatement)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "setObject":
+            if ((Integer)args[0] == 2) {
+              note[0] = (String)args[1];
+            }
+            return null;
+          case "addBatch":
+            batch.add(note[0]);
+            return null;
+          case "executeBatch":
+            if (batch.contains("bad")) {
+              throw new SQLException("bad note");
+            }
+            uncommitted.addAll(batch);
+            return new int[batch.size()];
+          case "executeUpdate":
+            if ("bad".equals(note[0])) {
+              throw new SQLException("bad note");
+            }
+            written.add(note[0]);
+            return 1;
+          default:
+            return null;
+        }
+      });
+    }
+  }
+}
@@ -2,9 +2,12 @@ package org.cpicpgx.importer;
 
 import org.junit.jupiter.api.Test;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertFalse;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Test methods used for diplotype-phenotype translation loading
@@ -24,4 +27,31 @@ public class DiplotypePhenotypeImporterTest {
     assertTrue(DiplotypePhenotypeImporter.isHom("*1/*1"));
     assertFalse(DiplotypePhenotypeImporter.isHom("*1/*2"));
   }
+
+  @Test
+  public void testCanonicalDip() {
+    assertEquals(DiplotypePhenotypeImporter.canonicalDip("*1/*2"), DiplotypePhenotypeImporter.canonicalDip("*2/*1"));
+    assertEquals("*1/*1", DiplotypePhenotypeImporter.canonicalDip("*1/*1"));
+    assertEquals("*1", DiplotypePhenotypeImporter.canonicalDip("*1"));
+  }
+
+  @Test
+  public void testCheck() throws IOException {
+    List<String[]> dbRows = Arrays.asList(
+        new String[]{"*1/*2", "Normal Metabolizer", "1.5", "Normal/Routine/Low Risk"},
+        new String[]{"*2/*4", "Intermediate Metabolizer", "1.0", null}
+    );
+    DiplotypePhenotypeImporter.DbHarness harness = new DiplotypePhenotypeImporter.DbHarness("CYP2D6", dbRows);
+    // the same diplotype written the other way around
+    harness.check(2, "*2/*1", "CYP2D6 Normal Metabolizer", 1.5, "Normal/Routine/Low Risk");
+    harness.check(3, "*4/*2", "CYP2D6 Poor Metabolizer", 1.0, "none");
+    // not in the DB
+    harness.check(4, "*5/*5", "CYP2D6 Poor Metabolizer", 0.0, "Abnormal/Priority/High Risk");
+    assertEquals(1, harness.getFailCount());
+
+    StringWriter csv = new StringWriter();
+    DiplotypePhenotypeImporter.writeCsv(harness.getMismatches(), csv);
+    assertEquals("gene,row,diplotype,field,file,db\r\n" +
+        "CYP2D6,3,*4/*2,phenotype,Poor metabolizer,Intermediate Metabolizer\r\n", csv.toString());
+  }
 }
@@ -0,0 +1,103 @@
+package org.cpicpgx.importer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for passing records from readers to writers
+ *
+ * @author Ryan Whaley
+ */
+public class ImportPipelineTest {
+
+  @Test
+  public void testRun() throws Exception {
+    List<Integer> written = new ArrayList<>();
+    ImportPipeline<Integer> pipeline = new ImportPipeline<Integer>("test", 5)
+        .addReader((sink) -> {
+          for (int i = 0; i < 100; i++) {
+            sink.put(i);
+          }
+        });
+    pipeline.run(() -> new TestWriter(written), 1);
+
+    assertEquals(100, written.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (int)written.get(i));
+    }
+    assertEquals(100, pipeline.getStats().getRecordsRead());
+    assertEquals(100, pipeline.getStats().getRecordsWritten());
+    assertTrue(pipeline.getStats().getMaxQueueDepth() <= 5);
+  }
+
+  @Test
+  public void testManyWriters() throws Exception {
+    List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+    ImportPipeline<Integer> pipeline = new ImportPipeline<>("test", 3);
+    pipeline.addReader((sink) -> {
+      for (int i = 0; i < 50; i++) sink.put(i);
+    });
+    pipeline.addReader((sink) -> {
+      for (int i = 50; i < 100; i++) sink.put(i);
+    });
+    pipeline.run(() -> new TestWriter(written), 3);
+
+    assertEquals(100, written.size());
+    assertEquals(100, written.stream().distinct().count());
+  }
+
+  @Test
+  public void testWriterFailure() {
+    ImportPipeline<Integer> pipeline = new ImportPipeline<Integer>("test", 2)
+        .addReader((sink) -> {
+          for (int i = 0; i < 1000; i++) {
+            sink.put(i);
+          }
+        });
+    Exception ex = assertThrows(IllegalStateException.class, () -> pipeline.run(() -> new ImportPipeline.Writer<Integer>() {
+      @Override
+      public void write(Integer record) {
+        if (record == 10) {
+          throw new IllegalStateException("bad record " + record);
+        }
+      }
+
+      @Override
+      public void close() { }
+    }, 1));
+    assertEquals("bad record 10", ex.getMessage());
+    assertTrue(pipeline.getStats().getRecordsRead() < 1000);
+  }
+
+  @Test
+  public void testReaderFailure() {
+    List<Integer> written = new ArrayList<>();
+    ImportPipeline<Integer> pipeline = new ImportPipeline<Integer>("test", 2)
+        .addReader((sink) -> {
+          sink.put(1);
+          throw new RuntimeException("bad file");
+        });
+    assertThrows(RuntimeException.class, () -> pipeline.run(() -> new TestWriter(written), 1));
+  }
+
+  private static class TestWriter implements ImportPipeline.Writer<Integer> {
+    private final List<Integer> written;
+
+    TestWriter(List<Integer> written) {
+      this.written = written;
+    }
+
+    @Override
+    public void write(Integer record) {
+      written.add(record);
+    }
+
+    @Override
+    public void close() { }
+  }
+}
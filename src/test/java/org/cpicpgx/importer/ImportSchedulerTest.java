@@ -0,0 +1,187 @@
+package org.cpicpgx.importer;
+
+import org.cpicpgx.db.ReferenceData;
+import org.cpicpgx.model.FileType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for running importers in dependency order
+ *
+ * @author Ryan Whaley
+ */
+public class ImportSchedulerTest {
+
+  @Test
+  public void testExecuteOrder() throws Exception {
+    List<FileType> log = Collections.synchronizedList(new ArrayList<>());
+    ImportScheduler scheduler = new ImportScheduler(4)
+        .add(new FakeImporter(FileType.GENE_CDS, log, FileType.GENE_PHENOTYPE))
+        .add(new FakeImporter(FileType.GENE_PHENOTYPE, log, FileType.ALLELE_DEFINITION))
+        .add(new FakeImporter(FileType.ALLELE_DEFINITION, log))
+        .add(new FakeImporter(FileType.DRUG_RESOURCE, log));
+
+    scheduler.execute();
+    assertEquals(4, log.size());
+    assertTrue(log.indexOf(FileType.ALLELE_DEFINITION) < log.indexOf(FileType.GENE_PHENOTYPE));
+    assertTrue(log.indexOf(FileType.GENE_PHENOTYPE) < log.indexOf(FileType.GENE_CDS));
+
+    log.clear();
+    scheduler.clearAllData();
+    assertEquals(4, log.size());
+    assertTrue(log.indexOf(FileType.GENE_CDS) < log.indexOf(FileType.GENE_PHENOTYPE));
+    assertTrue(log.indexOf(FileType.GENE_PHENOTYPE) < log.indexOf(FileType.ALLELE_DEFINITION));
+  }
+
+  @Test
+  public void testFailFast() {
+    List<FileType> log = Collections.synchronizedList(new ArrayList<>());
+    FakeImporter failing = new FakeImporter(FileType.ALLELE_DEFINITION, log);
+    failing.fail = true;
+    ImportScheduler scheduler = new ImportScheduler(1)
+        .add(failing)
+        .add(new FakeImporter(FileType.ALLELE_FUNCTION_REFERENCE, log, FileType.ALLELE_DEFINITION));
+
+    assertThrows(RuntimeException.class, scheduler::execute);
+    assertFalse(log.contains(FileType.ALLELE_FUNCTION_REFERENCE));
+  }
+
+  @Test
+  public void testCycle() {
+    Map<FileType, Set<FileType>> graph = new HashMap<>();
+    graph.put(FileType.PAIR, EnumSet.of(FileType.DRUG_RESOURCE));
+    graph.put(FileType.DRUG_RESOURCE, EnumSet.of(FileType.PAIR));
+    assertThrows(IllegalStateException.class, () -> ImportScheduler.checkForCycles(graph));
+  }
+
+  /**
+   * Every importer has to declare the {@link ReferenceData} tables it writes so the cache is invalidated for the 
+   * importers scheduled after it. The SQL in each importer's source, and in the helper classes it creates, is checked 
+   * for statements that change a table the cache holds.
+   */
+  @Test
+  public void testReferenceDataWritten() throws Exception {
+    Path importerDir = Paths.get("src/main/java/org/cpicpgx/importer");
+    Map<String, String> sources = new HashMap<>();
+    try (Stream<Path> files = Files.list(importerDir)) {
+      for (Path file : files.collect(Collectors.toList())) {
+        sources.put(file.getFileName().toString().replace(".java", ""), new String(Files.readAllBytes(file)));
+      }
+    }
+
+    int checked = 0;
+    for (Map.Entry<String, String> entry : sources.entrySet()) {
+      if (!entry.getValue().contains("extends BaseDirectoryImporter")) continue;
+      BaseDirectoryImporter importer = (BaseDirectoryImporter)Class.forName("org.cpicpgx.importer." + entry.getKey())
+          .getConstructor().newInstance();
+      Set<ReferenceData.Table> declared = EnumSet.noneOf(ReferenceData.Table.class);
+      declared.addAll(Arrays.asList(importer.getReferenceDataWritten()));
+
+      for (ReferenceData.Table table : tablesWritten(entry.getKey(), sources)) {
+        assertTrue(declared.contains(table), entry.getKey() + " writes " + table + " but doesn't declare it");
+      }
+      checked += 1;
+    }
+    assertTrue(checked > 10, "Only found " + checked + " importers");
+  }
+
+  /**
+   * Finds the cached tables the SQL in a class, and in the classes it creates, inserts into, copies into, deletes from, 
+   * or updates a cached column of
+   */
+  private static Set<ReferenceData.Table> tablesWritten(String className, Map<String, String> sources) {
+    // the columns ReferenceData reads for each table, updates to other columns don't change the cache
+    Map<ReferenceData.Table, String[]> cachedColumns = new EnumMap<>(ReferenceData.Table.class);
+    cachedColumns.put(ReferenceData.Table.GENE, new String[]{"symbol", "lookupmethod", "chr"});
+    cachedColumns.put(ReferenceData.Table.DRUG, new String[]{"drugid", "name", "guidelineid"});
+    cachedColumns.put(ReferenceData.Table.GUIDELINE, new String[]{"url", "id"});
+    cachedColumns.put(ReferenceData.Table.ALLELE_DEFINITION, new String[]{"genesymbol", "name", "id"});
+    cachedColumns.put(ReferenceData.Table.ALLELE, new String[]{"genesymbol", "name", "id", "clinicalfunctionalstatus"});
+    cachedColumns.put(ReferenceData.Table.GENE_RESULT, new String[]{"genesymbol", "result"});
+
+    StringBuilder source = new StringBuilder(sources.get(className));
+    Matcher created = Pattern.compile("new (\\w+)\\(").matcher(sources.get(className));
+    while (created.find()) {
+      String helper = created.group(1);
+      if (!helper.equals(className) && sources.containsKey(helper) && !sources.get(helper).contains("extends BaseDirectoryImporter")) {
+        source.append(sources.get(helper));
+      }
+    }
+    String sql = source.toString().toLowerCase();
+
+    Set<ReferenceData.Table> written = EnumSet.noneOf(ReferenceData.Table.class);
+    for (ReferenceData.Table table : ReferenceData.Table.values()) {
+      String name = table.name().toLowerCase();
+      if (Pattern.compile("(insert into|delete from) " + name + "\\b").matcher(sql).find() ||
+          Pattern.compile("(copyloader|prepareupsert)\\([^;]*?\"" + name + "\"").matcher(sql).find()) {
+        written.add(table);
+      }
+      Matcher update = Pattern.compile("update " + name + "\\b[^\"]*? set ([^\"]*)").matcher(sql);
+      while (update.find()) {
+        String setClause = update.group(1).split(" where ")[0];
+        for (String column : cachedColumns.get(table)) {
+          if (Pattern.compile("\\b" + column + "\\s*=").matcher(setClause).find()) {
+            written.add(table);
+          }
+        }
+      }
+    }
+    return written;
+  }
+
+  private static class FakeImporter extends BaseDirectoryImporter {
+    private final FileType type;
+    private final FileType[] dependencies;
+    private final List<FileType> log;
+    private boolean fail = false;
+
+    FakeImporter(FileType type, List<FileType> log, FileType... dependencies) {
+      this.type = type;
+      this.log = log;
+      this.dependencies = dependencies;
+    }
+
+    @Override
+    String getFileExtensionToProcess() {
+      return ".xlsx";
+    }
+
+    @Override
+    FileType getFileType() {
+      return type;
+    }
+
+    @Override
+    String[] getDeleteStatements() {
+      return new String[0];
+    }
+
+    @Override
+    FileType[] getDependencies() {
+      return dependencies;
+    }
+
+    @Override
+    public void clearAllData() {
+      log.add(type);
+    }
+
+    @Override
+    public void execute() {
+      if (fail) {
+        throw new RuntimeException("Failed " + type);
+      }
+      log.add(type);
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package org.cpicpgx.importer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Ryan Whaley
+ */
+public class PharmVarImporterTest {
+
+  @Test
+  public void testIsSuballele() {
+    for (String allele : new String[]{"*2.001", "*10.002", "*1", "*1.1", "*2.01", "*2.0a1", ".001", "x.001", "*4.001x"}) {
+      assertEquals(allele.matches(".+\\.\\d{3}"), PharmVarImporter.isSuballele(allele), allele);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.cpicpgx.importer;
+
+import com.google.gson.Gson;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.cpicpgx.util.WorkbookWrapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Testing that a {@link SheetSchema} finds the columns in a header row
+ *
+ * @author Ryan Whaley
+ */
+public class SheetSchemaTest {
+  private static final SheetSchema sf_schema = new SheetSchema()
+      .geneColumn(SheetSchema.Role.IMPLICATION)
+      .geneColumn(SheetSchema.Role.ACTIVITY_SCORE)
+      .geneColumn(SheetSchema.Role.PHENOTYPE)
+      .geneColumn(SheetSchema.Role.ALLELE_STATUS)
+      .column("recommendation", "Therapeutic Recommendation"::equalsIgnoreCase);
+
+  @Test
+  public void testCompile() throws IOException {
+    try (WorkbookWrapper workbook = new WorkbookWrapper(new ByteArrayInputStream(writeWorkbook()))) {
+      workbook.currentSheetIs("population general");
+      SheetSchema.Plan plan = sf_schema.compile(workbook.getRow(0), 0, null, null);
+
+      assertEquals(2, plan.geneCount());
+      assertEquals("CYP2C9", plan.gene(0));
+      assertEquals(0, plan.column(SheetSchema.Role.PHENOTYPE, plan.geneIndex("CYP2C9")));
+      assertEquals(1, plan.column(SheetSchema.Role.ACTIVITY_SCORE, plan.geneIndex("CYP2C9")));
+      assertEquals(2, plan.column(SheetSchema.Role.ALLELE_STATUS, plan.geneIndex("HLA-B")));
+      assertEquals(-1, plan.column(SheetSchema.Role.PHENOTYPE, plan.geneIndex("HLA-B")));
+      assertTrue(plan.has(SheetSchema.Role.IMPLICATION, "HLA-B"));
+      assertFalse(plan.has(SheetSchema.Role.IMPLICATION, "CYP2D6"));
+      assertEquals(5, plan.column("recommendation"));
+      assertEquals(-1, plan.column("comments"));
+      assertEquals(Collections.singletonList("CYP2C9"), plan.genes(SheetSchema.Role.PHENOTYPE));
+
+      SheetSchema.GeneValues implications = plan.read(workbook.getRow(1), SheetSchema.Role.IMPLICATION);
+      Map<String, String> expected = new HashMap<>();
+      expected.put("CYP2C9", "Reduced metabolism");
+      expected.put("HLA-B", "Lower risk");
+      assertEquals(expected, implications);
+      assertEquals(expected, new Gson().fromJson(new Gson().toJson(implications), Map.class));
+
+      // the values are reused and only have the genes that were set
+      SheetSchema.GeneValues phenotypes = plan.values(SheetSchema.Role.PHENOTYPE);
+      assertTrue(phenotypes.isEmpty());
+      assertEquals("{}", new Gson().toJson(phenotypes));
+      phenotypes.set(plan.geneIndex("CYP2C9"), "Poor Metabolizer");
+      assertSame(phenotypes, plan.values(SheetSchema.Role.PHENOTYPE));
+      assertTrue(phenotypes.isEmpty());
+
+      // a sheet with the same header gets the same plan
+      workbook.currentSheetIs("population pediatrics");
+      assertSame(plan, sf_schema.compile(workbook.getRow(0), 0, null, plan));
+      // but not if the header's read differently
+      assertNotSame(plan, sf_schema.compile(workbook.getRow(0), 1, null, plan));
+    }
+  }
+
+  @Test
+  public void testDefaultGene() throws IOException {
+    try (WorkbookWrapper workbook = new WorkbookWrapper(new ByteArrayInputStream(writeWorkbook()))) {
+      workbook.currentSheetIs("single gene");
+      assertThrows(RuntimeException.class, () -> sf_schema.compile(workbook.getRow(0), 0, null, null));
+
+      SheetSchema.Plan plan = sf_schema.compile(workbook.getRow(0), 0, "CYP2D6", null);
+      assertEquals(1, plan.geneCount());
+      assertEquals(1, plan.column(SheetSchema.Role.IMPLICATION, plan.geneIndex("CYP2D6")));
+    }
+  }
+
+  private static byte[] writeWorkbook() throws IOException {
+    try (XSSFWorkbook written = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      String[] header = new String[]{
+          "CYP2C9 Phenotype", "CYP2C9 Activity Score", "HLA-B Allele Status", "CYP2C9 Implications for Phenotypic Measures",
+          "HLA-B Implications for Phenotypic Measures", "Therapeutic Recommendation"
+      };
+      for (String name : new String[]{"population general", "population pediatrics"}) {
+        Sheet sheet = written.createSheet(name);
+        writeRow(sheet.createRow(0), header);
+        writeRow(sheet.createRow(1), new String[]{
+            "CYP2C9 Poor Metabolizer", "0", "HLA-B*57:01 negative", "Reduced metabolism", "Lower risk", "Use it"
+        });
+      }
+      writeRow(written.createSheet("single gene").createRow(0), new String[]{"CYP2D6 Phenotype", "Implication"});
+      written.write(out);
+      return out.toByteArray();
+    }
+  }
+
+  private static void writeRow(Row row, String[] values) {
+    for (int i = 0; i < values.length; i++) {
+      row.createCell(i).setCellValue(values[i]);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.cpicpgx.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for sending statements in batches and mapping failures back to source rows
+ *
+ * @author Ryan Whaley
+ */
+public class BatchStatementTest {
+
+  @Test
+  public void testFlushOnSize() throws SQLException {
+    FakeStatement fake = new FakeStatement();
+    try (BatchStatement batch = new BatchStatement(fake.proxy(), 3, Long.MAX_VALUE)) {
+      for (int i = 1; i <= 7; i++) {
+        batch.add(i, "value " + i, null);
+      }
+      assertEquals(2, fake.executed);
+      assertEquals(6, batch.getRowCount());
+    }
+    assertEquals(3, fake.executed);
+    assertTrue(fake.closed);
+  }
+
+  @Test
+  public void testFailedRow() {
+    FakeStatement fake = new FakeStatement();
+    fake.failAfter = 2;
+    BatchStatement batch = new BatchStatement(fake.proxy(), 10, Long.MAX_VALUE);
+    BatchStatement.BatchRowException ex = assertThrows(BatchStatement.BatchRowException.class, () -> {
+      batch.add(5, "a");
+      batch.add(6, "b");
+      batch.add(8, "c");
+      batch.add(9, "d");
+      batch.flush();
+    });
+    assertEquals(8, ex.getRow());
+    assertTrue(ex.getMessage().startsWith("Error reading row 8 (sent with rows 5-9)"), ex.getMessage());
+  }
+
+  @Test
+  public void testFailedRowUnknown() {
+    FakeStatement fake = new FakeStatement();
+    fake.failAfter = 4;
+    BatchStatement batch = new BatchStatement(fake.proxy(), 10, Long.MAX_VALUE);
+    BatchStatement.BatchRowException ex = assertThrows(BatchStatement.BatchRowException.class, () -> {
+      batch.add(5, "a");
+      batch.add(6, "b");
+      batch.add(8, "c");
+      batch.add(9, "d");
+      batch.flush();
+    });
+    assertEquals(BatchStatement.UNKNOWN_ROW, ex.getRow());
+    assertTrue(ex.getMessage().startsWith("Error reading one of rows 5-9"));
+  }
+
+  /**
+   * Just enough of a PreparedStatement to count batches
+   */
+  private static class FakeStatement {
+    private int executed = 0;
+    private int pending = 0;
+    private int failAfter = -1;
+    private boolean closed = false;
+
+    PreparedStatement proxy() {
+      return (PreparedStatement)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "addBatch":
+            pending += 1;
+            return null;
+          case "executeBatch":
+            if (failAfter >= 0) {
+              throw new BatchUpdateException("bad row", new int[failAfter]);
+            }
+            executed += 1;
+            int[] counts = new int[pending];
+            pending = 0;
+            return counts;
+          case "clearBatch":
+            pending = 0;
+            return null;
+          case "close":
+            closed = true;
+            return null;
+          default:
+            return null;
+        }
+      });
+    }
+  }
+}
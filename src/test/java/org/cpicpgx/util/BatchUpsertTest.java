@@ -0,0 +1,146 @@
+package org.cpicpgx.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for sending upserts in multi-row statements and counting what they did
+ *
+ * @author Ryan Whaley
+ */
+public class BatchUpsertTest {
+
+  @Test
+  public void testBatches() throws SQLException {
+    FakeConnection fake = new FakeConnection();
+    try (BatchUpsert upsert = new BatchUpsert(fake.proxy(), "gene", new String[]{"symbol"}, new String[]{"hgncId", "ncbiId"}, 2)) {
+      upsert.add(1, "CYP2D6", "HGNC:2625", "1565");
+      upsert.add(2, "CYP2C19", "HGNC:2621", "1557");
+      assertEquals(1, fake.sql.size());
+      assertEquals(
+          "insert into gene as t(symbol, hgncId, ncbiId) values (?,?,?),(?,?,?) on conflict (symbol) do update " +
+              "set hgncId=excluded.hgncId, ncbiId=excluded.ncbiId where (t.hgncId, t.ncbiId) is distinct from " +
+              "(excluded.hgncId, excluded.ncbiId) returning (xmax = 0)",
+          fake.sql.get(0));
+      assertEquals(6, fake.parameters);
+
+      // the last row for a key wins
+      upsert.add(3, "CYP2C9", "HGNC:1", "1");
+      upsert.add(4, "CYP2C9", "HGNC:2620", "1559");
+      assertEquals(1, fake.sql.size());
+      upsert.add(5, "CYP3A5", "HGNC:2638", "1577");
+      assertEquals(2, fake.sql.size());
+      assertEquals("HGNC:2620", fake.values.get(7));
+
+      upsert.add(6, "DPYD", "HGNC:3012", "1806");
+    }
+    assertEquals(3, fake.sql.size());
+    assertTrue(fake.sql.get(2).contains("values (?,?,?) on conflict"));
+  }
+
+  @Test
+  public void testCounts() throws SQLException {
+    FakeConnection fake = new FakeConnection();
+    fake.returned = new boolean[]{true, false};
+    BatchUpsert upsert = new BatchUpsert(fake.proxy(), "gene", new String[]{"symbol"}, new String[]{"hgncId"}, 10);
+    upsert.add(1, "CYP2D6", "HGNC:2625");
+    upsert.add(2, "CYP2C19", "HGNC:2621");
+    upsert.add(3, "CYP2C9", "HGNC:2623");
+    upsert.close();
+
+    assertEquals(1, upsert.getInsertedCount());
+    assertEquals(1, upsert.getUpdatedCount());
+    assertEquals(1, upsert.getUnchangedCount());
+    assertEquals(1, upsert.getBatchCount());
+  }
+
+  @Test
+  public void testNullKey() throws SQLException {
+    FakeConnection fake = new FakeConnection();
+    BatchUpsert upsert = new BatchUpsert(fake.proxy(), "gene_result", new String[]{"geneSymbol", "activityScore"}, new String[]{"ehrPriority"}, 10);
+    // rows with a null key value never conflict so they're both sent
+    upsert.add(1, "CYP2D6", null, "a");
+    upsert.add(2, "CYP2D6", null, "b");
+    upsert.flush();
+    assertEquals(6, fake.parameters);
+
+    assertThrows(IllegalArgumentException.class, () -> upsert.add(3, "CYP2D6"));
+  }
+
+  @Test
+  public void testFailedBatch() {
+    FakeConnection fake = new FakeConnection();
+    fake.fail = true;
+    BatchUpsert upsert = new BatchUpsert(fake.proxy(), "gene", new String[]{"symbol"}, new String[]{"hgncId"}, 10);
+    SQLException ex = assertThrows(SQLException.class, () -> {
+      upsert.add(5, "CYP2D6", "HGNC:2625");
+      upsert.add(8, "CYP2C19", "HGNC:2621");
+      upsert.flush();
+    });
+    assertTrue(ex.getMessage().startsWith("Error reading one of rows 5-8"));
+  }
+
+  /**
+   * Just enough of a Connection to see the statements that are sent
+   */
+  private static class FakeConnection {
+    private final List<String> sql = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+    private int parameters = 0;
+    private boolean[] returned = new boolean[0];
+    private boolean fail = false;
+
+    Connection proxy() {
+      return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (p, method, args) -> {
+        if (method.getName().equals("prepareStatement")) {
+          return statement((String)args[0]);
+        }
+        return null;
+      });
+    }
+
+    private PreparedStatement statement(String statementSql) {
+      return (PreparedStatement)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "setObject":
+          case "setNull":
+            parameters = Math.max(parameters, (Integer)args[0]);
+            values.add(method.getName().equals("setNull") ? null : args[1]);
+            return null;
+          case "executeQuery":
+            if (fail) {
+              throw new SQLException("bad row");
+            }
+            sql.add(statementSql);
+            return results();
+          default:
+            return null;
+        }
+      });
+    }
+
+    private ResultSet results() {
+      int[] next = new int[]{0};
+      return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class}, (p, method, args) -> {
+        switch (method.getName()) {
+          case "next":
+            next[0] += 1;
+            return next[0] <= returned.length;
+          case "getBoolean":
+            return returned[next[0] - 1];
+          default:
+            return null;
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.cpicpgx.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Testing that workbooks exported as CSV or TSV read the same as the workbooks they came from
+ *
+ * @author Ryan Whaley
+ */
+public class CsvWorkbookTest {
+
+  @Test
+  public void testDirectory() throws IOException, ParseException {
+    Path dir = Files.createTempDirectory("workbook");
+    write(dir.resolve("0_CYP2C19.csv"), "﻿CYP2C19 Diplotype,Activity Score,Date", "", "1.25,3,11/11/2018", "\"*1/*2, *3\",, 2018-11-12 ");
+    write(dir.resolve("1_Notes.csv"), "Notes", "a first note", "a second note");
+    assertTrue(WorkbookWrapper.isTextWorkbook(dir));
+
+    try (WorkbookWrapper workbook = new WorkbookWrapper(dir)) {
+      assertFalse(workbook.isStreaming());
+      assertEquals("CYP2C19", workbook.currentSheet.getSheetName());
+      assertEquals(3, workbook.currentSheet.getLastRowNum());
+
+      RowWrapper row = workbook.getRow(0);
+      assertEquals("CYP2C19 Diplotype", row.getNullableText(0));
+      assertNull(workbook.currentSheet.getRow(1));
+
+      row = workbook.getRow(2);
+      assertEquals("1.25", row.getNullableText(0));
+      assertEquals(Long.valueOf(3), row.getNullableLong(1));
+      assertEquals(Double.valueOf(1.25), row.getNullableDouble(0));
+      assertEquals(new SimpleDateFormat("MM/dd/yyyy").parse("11/11/2018"), row.getNullableDate(2));
+      assertEquals("11/11/18", row.getNullableText(2));
+
+      // quoted commas stay in the cell and text with spaces around it isn't taken for a date
+      row = workbook.getRow(3);
+      assertEquals("*1/*2, *3", row.getNullableText(0));
+      assertTrue(row.hasNoText(1));
+      assertNull(row.getFootnote(0));
+
+      assertEquals(Arrays.asList("a first note", "a second note"), workbook.getNotes());
+    }
+  }
+
+  @Test
+  public void testSingleFile() throws IOException {
+    Path dir = Files.createTempDirectory("workbook");
+    Path file = dir.resolve("CYP2D6_Allele_Functionality.tsv");
+    write(file, "Allele\tFunction", "*1\tNormal function");
+    assertTrue(WorkbookWrapper.isTextWorkbook(file));
+    assertFalse(WorkbookWrapper.isTextWorkbook(Files.createTempDirectory("empty")));
+
+    try (WorkbookWrapper workbook = new WorkbookWrapper(file)) {
+      assertEquals("CYP2D6_Allele_Functionality", workbook.currentSheet.getSheetName());
+      assertEquals("Normal function", workbook.getRow(1).getNullableText(1));
+      // there are no formulas to evaluate
+      assertThrows(IllegalStateException.class, () -> workbook.setFormulaMode(WorkbookWrapper.FormulaMode.EVALUATE));
+    }
+  }
+
+  private static void write(Path file, String... lines) throws IOException {
+    Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+    file.toFile().deleteOnExit();
+  }
+}
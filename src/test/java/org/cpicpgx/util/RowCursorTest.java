@@ -0,0 +1,75 @@
+package org.cpicpgx.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidParameterException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Testing that a {@link RowCursor} reads the same values as a new {@link RowWrapper} for each row
+ *
+ * @author Ryan Whaley
+ */
+public class RowCursorTest {
+  private static final String TEST_EXCEL = "superscript_example.xlsx";
+
+  @Test
+  public void testSameValues() throws IOException {
+    try (
+        InputStream in = getClass().getResourceAsStream(TEST_EXCEL);
+        InputStream cursorIn = getClass().getResourceAsStream(TEST_EXCEL)
+    ) {
+      WorkbookWrapper workbook = new WorkbookWrapper(in);
+      WorkbookWrapper cursorWorkbook = new WorkbookWrapper(cursorIn);
+      RowCursor cursor = cursorWorkbook.cursor();
+      assertEquals(-1, cursor.getRowIndex());
+
+      for (int i = 0; i <= workbook.currentSheet.getLastRowNum(); i++) {
+        assertTrue(cursor.moveTo(i));
+        assertEquals(i, cursor.getRowIndex());
+        RowWrapper row = workbook.getRow(i);
+        for (int j = 0; j < 4; j++) {
+          // read twice so the second read comes from what the cursor kept
+          for (int n = 0; n < 2; n++) {
+            assertEquals(row.hasNoText(j), cursor.hasNoText(j));
+            assertEquals(row.getNullableText(j), cursor.getNullableText(j));
+            assertEquals(row.getNullableText(j, true), cursor.getNullableText(j, true));
+            assertEquals(row.getNullableDouble(j), cursor.getNullableDouble(j));
+          }
+        }
+      }
+
+      assertTrue(cursor.moveTo(2));
+      assertEquals(Long.valueOf(3), cursor.getNullableLong(1));
+      assertEquals(workbook.getRow(2).getNullableDate(2), cursor.getNullableDate(2));
+      assertEquals("11/11/18", cursor.getNullableText(2));
+
+      // moving back to a row reads it again
+      assertTrue(cursor.moveTo(0));
+      assertEquals("CYP2C19 Diplotype", cursor.getText(0));
+      assertThrows(RuntimeException.class, () -> cursor.getText(3));
+
+      assertFalse(cursor.moveTo(workbook.currentSheet.getLastRowNum() + 1));
+      assertTrue(cursor.hasNoText(0));
+      assertThrows(InvalidParameterException.class, () -> cursor.moveTo(-1));
+    }
+  }
+
+  @Test
+  public void testStreamed() throws IOException {
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      WorkbookWrapper workbook = WorkbookWrapper.stream(in);
+      RowCursor cursor = workbook.cursor();
+
+      assertTrue(cursor.moveTo(2));
+      assertEquals("1.25", cursor.getNullableText(0));
+      assertEquals(Double.valueOf(1.25), cursor.getNullableDouble(0));
+      assertTrue(cursor.moveTo(3));
+      assertEquals("test a midstring styling", cursor.getNullableText(1));
+      assertFalse(cursor.moveTo(4));
+    }
+  }
+}
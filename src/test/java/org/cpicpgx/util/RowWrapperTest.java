@@ -1,12 +1,25 @@
 package org.cpicpgx.util;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.util.IOUtils;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -111,4 +124,54 @@ public class RowWrapperTest {
       assertNull(row.getNullableDate(3));
     }
   }
+
+  @Test
+  public void testConcurrentDecoding() throws Exception {
+    // each workbook has different dates so a formatter shared between threads would mix them up
+    LocalDate start = LocalDate.of(2018, 11, 11);
+    List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      Path file = Files.createTempFile("dates", ".csv");
+      file.toFile().deleteOnExit();
+      List<String> lines = new ArrayList<>();
+      lines.add("Date,Note");
+      for (int j = 0; j < 50; j++) {
+        lines.add(start.plusDays(i * 50 + j) + ",note " + j);
+      }
+      Files.write(file, lines, StandardCharsets.UTF_8);
+      files.add(file);
+    }
+    byte[] excel;
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      excel = IOUtils.toByteArray(in);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int n = 0; n < 64; n++) {
+        int fileIdx = n % files.size();
+        results.add(pool.submit(() -> {
+          try (WorkbookWrapper workbook = new WorkbookWrapper(files.get(fileIdx))) {
+            for (int j = 0; j < 50; j++) {
+              RowWrapper row = workbook.getRow(j + 1);
+              LocalDate date = start.plusDays(fileIdx * 50 + j);
+              assertEquals(date.format(DateTimeFormatter.ofPattern("MM/dd/yy")), row.getNullableText(0));
+              assertEquals("note " + j, row.getNullableText(1));
+            }
+          }
+          try (WorkbookWrapper workbook = WorkbookWrapper.stream(new ByteArrayInputStream(excel))) {
+            assertEquals("b", workbook.getRow(0).getFootnote(2));
+            assertEquals("11/11/18", workbook.getRow(2).getNullableText(2));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 }
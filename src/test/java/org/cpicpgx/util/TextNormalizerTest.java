@@ -0,0 +1,69 @@
+package org.cpicpgx.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Testing that {@link TextNormalizer} gives the same text as the regular expressions it replaces
+ *
+ * @author Ryan Whaley
+ */
+public class TextNormalizerTest {
+
+  @Test
+  public void testRemoveGene() {
+    String[] examples = new String[]{
+        "CYP2D6 Poor Metabolizer",
+        "CYP2D6  Normal\tMetabolizer",
+        "CYP2D6CYP2D6 Poor",
+        "Poor Metabolizer",
+        "HLA-B*57:01 positive",
+        "CYP2D6",
+        "",
+    };
+    for (String example : examples) {
+      assertEquals(example.replaceAll("CYP2D6\\s*", ""), TextNormalizer.removeGene(example, "CYP2D6", false), example);
+      assertEquals(example.replaceAll("CYP2D6\\s+", ""), TextNormalizer.removeGene(example, "CYP2D6", true), example);
+    }
+
+    assertEquals("*57:01 positive", TextNormalizer.removeGene("HLA-B*57:01 positive", "HLA-B", false));
+    assertEquals("HLA-B*57:01 positive", TextNormalizer.removeGene("HLA-B*57:01 positive", "HLA-B", true));
+
+    String unchanged = "Poor Metabolizer";
+    assertSame(unchanged, TextNormalizer.removeGene(unchanged, "CYP2D6", false));
+  }
+
+  @Test
+  public void testCollapseWhitespace() {
+    String[] examples = new String[]{
+        "Poor  Metabolizer",
+        " Poor\t\nMetabolizer ",
+        "Poor\tMetabolizer",
+        "Poor Metabolizer",
+        "",
+    };
+    for (String example : examples) {
+      assertEquals(example.replaceAll("\\s+", " "), TextNormalizer.collapseWhitespace(example), example);
+    }
+
+    String unchanged = "Poor Metabolizer";
+    assertSame(unchanged, TextNormalizer.collapseWhitespace(unchanged));
+  }
+
+  @Test
+  public void testTrim() {
+    assertEquals("Normal function", TextNormalizer.trim(" Normal function  \n"));
+    assertEquals("Normal function", TextNormalizer.trim("Normal function"));
+    assertNull(TextNormalizer.trim("  \t"));
+    assertNull(TextNormalizer.trim(""));
+    assertNull(TextNormalizer.trim(null));
+  }
+
+  @Test
+  public void testIntern() {
+    String score = new StringBuilder("1.").append("5").toString();
+    assertSame(TextNormalizer.intern("1.5"), TextNormalizer.intern(score));
+    assertNull(TextNormalizer.intern(null));
+  }
+}
@@ -0,0 +1,134 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Testing that a workbook read back out of the cache gives the same values as the workbook itself
+ *
+ * @author Ryan Whaley
+ */
+public class WorkbookCacheTest {
+  private static final String TEST_EXCEL = "superscript_example.xlsx";
+
+  @Test
+  public void testCachedValues() throws IOException, ParseException {
+    Path cacheDir = Files.createTempDirectory("workbook-cache");
+    Path file = copyToTempFile();
+
+    WorkbookCache cache = WorkbookCache.open(file, cacheDir);
+    assertEquals(1, countCacheFiles(cacheDir));
+    assertFalse(cache.isForwardOnly());
+    assertEquals(0, cache.getSheetIndex(cache.getSheetAt(0).getSheetName()));
+    assertEquals(3, cache.getSheetAt(0).getLastRowNum());
+
+    RowWrapper row = new RowWrapper(cache.getSheetAt(0).getRow(0), null);
+    assertEquals("CYP2C19 Diplotype", row.getNullableText(0));
+    assertEquals("EHR Priority Result Notation", row.stripFootnote(2));
+    assertEquals("b", row.getFootnote(2));
+    assertTrue(row.hasNoText(3));
+
+    row = new RowWrapper(cache.getSheetAt(0).getRow(2), null);
+    assertEquals("1.25", row.getNullableText(0));
+    assertEquals("3", row.getNullableText(1, true));
+    assertEquals("11/11/18", row.getNullableText(2));
+    assertEquals(new SimpleDateFormat("MM/dd/yyyy").parse("11/11/2018"), row.getNullableDate(2));
+
+    row = new RowWrapper(cache.getSheetAt(0).getRow(3), null);
+    assertEquals("3.75", row.getNullableText(0));
+    assertEquals(Long.valueOf(4), row.getNullableLong(0));
+    assertEquals("test a midstring styling", row.stripFootnote(1));
+    assertNull(row.getFootnote(1));
+
+    assertNull(cache.getSheetAt(0).getRow(4));
+  }
+
+  @Test
+  public void testReuse() throws IOException {
+    Path cacheDir = Files.createTempDirectory("workbook-cache");
+    Path file = copyToTempFile();
+
+    WorkbookCache.open(file, cacheDir);
+    Path cached;
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      cached = files.findFirst().orElseThrow(IllegalStateException::new);
+    }
+    long written = Files.getLastModifiedTime(cached).toMillis();
+    assertTrue(cached.toFile().setLastModified(written - 60000));
+
+    // the same contents at a different path are read from the same cache file without writing it again
+    Path copy = copyToTempFile();
+    WorkbookCache cache = WorkbookCache.open(copy, cacheDir);
+    assertEquals(written - 60000, Files.getLastModifiedTime(cached).toMillis());
+    assertEquals("1.25", new RowWrapper(cache.getSheetAt(0).getRow(2), null).getNullableText(0));
+
+    // a cache file that can't be read gets written again
+    Files.write(cached, new byte[]{1, 2, 3});
+    cache = WorkbookCache.open(copy, cacheDir);
+    assertEquals("1.25", new RowWrapper(cache.getSheetAt(0).getRow(2), null).getNullableText(0));
+    assertEquals(1, countCacheFiles(cacheDir));
+  }
+
+  @Test
+  public void testFormulas() throws IOException {
+    Path cacheDir = Files.createTempDirectory("workbook-cache");
+    Path file = Files.createTempFile("formulas", ".xlsx");
+    file.toFile().deleteOnExit();
+    try (XSSFWorkbook written = new XSSFWorkbook(); OutputStream out = Files.newOutputStream(file)) {
+      Row row = written.createSheet("Formulas").createRow(0);
+      row.createCell(0).setCellValue(1);
+      Cell saved = row.createCell(1);
+      saved.setCellFormula("A1*2");
+      saved.setCellValue(99);
+      XSSFCell unsaved = (XSSFCell)row.createCell(2);
+      unsaved.setCellFormula("A1*3");
+      unsaved.getCTCell().unsetV();
+      written.getProperties().getExtendedProperties().getUnderlyingProperties().setApplication("Microsoft Excel");
+      written.write(out);
+    }
+
+    try (WorkbookCache cache = WorkbookCache.open(file, cacheDir)) {
+      FormulaValues formulaValues = new FormulaValues(cache);
+      SheetRow sheetRow = cache.getSheetAt(0).getRow(0);
+      RowWrapper row = new RowWrapper(sheetRow, formulaValues);
+      assertEquals("99.0", row.getNullableText(1));
+      // evaluated when the cache was written
+      assertEquals("3.0", row.getNullableText(2));
+
+      // the source workbook is opened to evaluate formulas again
+      assertTrue(cache.canEvaluate());
+      formulaValues.setEvaluateAll(true);
+      assertEquals(2.0, formulaValues.get(sheetRow.getCell(1)).getNumberValue());
+    }
+  }
+
+  private Path copyToTempFile() throws IOException {
+    Path file = Files.createTempFile("workbook", ".xlsx");
+    file.toFile().deleteOnExit();
+    Files.delete(file);
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      Files.copy(in, file);
+    }
+    return file;
+  }
+
+  private static long countCacheFiles(Path cacheDir) throws IOException {
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      return files.count();
+    }
+  }
+}
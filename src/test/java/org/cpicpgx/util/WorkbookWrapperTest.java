@@ -0,0 +1,214 @@
+package org.cpicpgx.util;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidParameterException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Testing that workbooks read one row at a time give the same values as workbooks loaded whole
+ *
+ * @author Ryan Whaley
+ */
+public class WorkbookWrapperTest {
+  private static final String TEST_EXCEL = "superscript_example.xlsx";
+
+  @Test
+  public void testStreamedValues() throws IOException, ParseException {
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      WorkbookWrapper workbook = WorkbookWrapper.stream(in);
+      assertTrue(workbook.isStreaming());
+      assertEquals(3, workbook.currentSheet.getLastRowNum());
+
+      RowWrapper row = workbook.getRow(0);
+      assertEquals("CYP2C19 Diplotype", row.getNullableText(0));
+      assertEquals("EHR Priority Result Notation", row.stripFootnote(2));
+      assertEquals("b", row.getFootnote(2));
+      assertTrue(row.hasNoText(3));
+
+      row = workbook.getRow(2);
+      assertEquals("1.25", row.getNullableText(0));
+      assertEquals("3", row.getNullableText(1, true));
+      assertEquals("11/11/18", row.getNullableText(2));
+      assertEquals(Long.valueOf(3), row.getNullableLong(1));
+      assertEquals(Double.valueOf(1.25), row.getNullableDouble(0));
+      assertEquals(new SimpleDateFormat("MM/dd/yyyy").parse("11/11/2018"), row.getNullableDate(2));
+
+      row = workbook.getRow(3);
+      assertEquals("3.75", row.getNullableText(0));
+      assertEquals("test a midstring styling", row.stripFootnote(1));
+      assertNull(row.getFootnote(1));
+
+      assertNull(workbook.getRow(4));
+    }
+  }
+
+  @Test
+  public void testStreamedForwardOnly() throws IOException {
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      WorkbookWrapper workbook = WorkbookWrapper.stream(in);
+
+      workbook.getRow(2);
+      assertEquals("1.25", workbook.getRow(2).getNullableText(0));
+      assertThrows(IllegalStateException.class, () -> workbook.getRow(1));
+
+      // switching to the sheet again starts from the top
+      workbook.switchToSheet(0);
+      assertEquals("CYP2C19 Diplotype", workbook.getRow(0).getNullableText(0));
+    }
+  }
+
+  @Test
+  public void testStreamedSheets() throws IOException {
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      WorkbookWrapper workbook = WorkbookWrapper.stream(in);
+
+      assertThrows(InvalidParameterException.class, () -> workbook.currentSheetIs("Missing"));
+      assertTrue(workbook.getNotes().isEmpty());
+      assertTrue(workbook.getSheetIterator().hasNext());
+      workbook.currentSheetIs(workbook.getSheetIterator().next().getSheetName());
+      assertNotNull(workbook.getRow(0));
+
+      workbook.switchToSheet(1);
+      assertNull(workbook.currentSheet);
+    }
+  }
+
+  @Test
+  public void testOpenFromPath() throws IOException {
+    Path file = copyToTempFile();
+    byte[] contents = Files.readAllBytes(file);
+
+    try (WorkbookWrapper workbook = new WorkbookWrapper(file)) {
+      assertFalse(workbook.isStreaming());
+      assertEquals("3.75", workbook.getRow(3).getNullableText(0));
+      assertEquals("b", workbook.getRow(0).getFootnote(2));
+    }
+    try (WorkbookWrapper workbook = WorkbookWrapper.stream(file)) {
+      assertTrue(workbook.isStreaming());
+      assertEquals("CYP2C19 Diplotype", workbook.getRow(0).getNullableText(0));
+      assertEquals("3.75", workbook.getRow(3).getNullableText(0));
+    }
+
+    // opened read-only so the file is left as it was
+    assertArrayEquals(contents, Files.readAllBytes(file));
+    Files.delete(file);
+    assertThrows(InvalidParameterException.class, () -> new WorkbookWrapper(file));
+  }
+
+  @Test
+  public void testLazySheets() throws IOException {
+    Path file = copyToTempFile();
+
+    try (WorkbookWrapper workbook = new WorkbookWrapper(file)) {
+      WorkbookSheet firstSheet = workbook.currentSheet;
+      assertEquals(3, firstSheet.getLastRowNum());
+
+      // rows of a loaded sheet can be read in any order
+      assertEquals("3.75", workbook.getRow(3).getNullableText(0));
+      assertEquals("CYP2C19 Diplotype", workbook.getRow(0).getNullableText(0));
+      assertEquals("1.25", workbook.getRow(2).getNullableText(0));
+
+      // sheets are only loaded once
+      workbook.switchToSheet(0);
+      assertSame(firstSheet, workbook.currentSheet);
+      workbook.currentSheetIs(firstSheet.getSheetName());
+      assertSame(firstSheet, workbook.currentSheet);
+    }
+  }
+
+  @Test
+  public void testFormulaModes() throws IOException {
+    try (WorkbookWrapper workbook = new WorkbookWrapper(new ByteArrayInputStream(writeFormulas("Microsoft Excel")))) {
+      RowWrapper row = workbook.getRow(0);
+      assertEquals("99.0", row.getNullableText(1));
+      // no saved result so it's evaluated
+      assertEquals("3.0", row.getNullableText(2));
+      assertEquals(Long.valueOf(3), row.getNullableLong(2));
+
+      SheetCell cell = workbook.currentSheet.getRow(0).getCell(2);
+      assertSame(workbook.getFormulaValues().get(cell), workbook.getFormulaValues().get(cell));
+
+      workbook.setFormulaMode(WorkbookWrapper.FormulaMode.EVALUATE);
+      assertEquals("2.0", workbook.getRow(0).getNullableText(1));
+    }
+
+    // results saved by POI aren't used
+    try (WorkbookWrapper workbook = new WorkbookWrapper(new ByteArrayInputStream(writeFormulas(null)))) {
+      assertEquals("2.0", workbook.getRow(0).getNullableText(1));
+    }
+  }
+
+  @Test
+  public void testFormulasFromPath() throws IOException {
+    Path file = Files.createTempFile("formulas", ".xlsx");
+    file.toFile().deleteOnExit();
+
+    Files.write(file, writeFormulas("Microsoft Excel"));
+    try (WorkbookWrapper workbook = new WorkbookWrapper(file)) {
+      RowWrapper row = workbook.getRow(0);
+      assertEquals("99.0", row.getNullableText(1));
+      // no saved result so the workbook is loaded to evaluate it
+      assertEquals("3.0", row.getNullableText(2));
+
+      workbook.setFormulaMode(WorkbookWrapper.FormulaMode.EVALUATE);
+      assertEquals("2.0", workbook.getRow(0).getNullableText(1));
+    }
+
+    // results saved by POI aren't used
+    Files.write(file, writeFormulas(null));
+    try (WorkbookWrapper workbook = new WorkbookWrapper(file)) {
+      assertEquals("2.0", workbook.getRow(0).getNullableText(1));
+      assertEquals("3.0", workbook.getRow(0).getNullableText(2));
+    }
+    try (WorkbookWrapper workbook = WorkbookWrapper.stream(file)) {
+      assertEquals("2.0", workbook.getRow(0).getNullableText(1));
+    }
+    Files.delete(file);
+  }
+
+  /**
+   * Writes a workbook with a formula that has a saved result that doesn't match the formula, so we can tell which one 
+   * was used, and a formula with no saved result
+   */
+  private static byte[] writeFormulas(String application) throws IOException {
+    try (XSSFWorkbook written = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      Row row = written.createSheet("Formulas").createRow(0);
+      row.createCell(0).setCellValue(1);
+      Cell saved = row.createCell(1);
+      saved.setCellFormula("A1*2");
+      saved.setCellValue(99);
+      XSSFCell unsaved = (XSSFCell)row.createCell(2);
+      unsaved.setCellFormula("A1*3");
+      unsaved.getCTCell().unsetV();
+      if (application != null) {
+        written.getProperties().getExtendedProperties().getUnderlyingProperties().setApplication(application);
+      }
+      written.write(out);
+      return out.toByteArray();
+    }
+  }
+
+  private Path copyToTempFile() throws IOException {
+    Path file = Files.createTempFile("workbook", ".xlsx");
+    file.toFile().deleteOnExit();
+    try (InputStream in = getClass().getResourceAsStream(TEST_EXCEL)) {
+      Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return file;
+  }
+}